@@ -1,65 +1,82 @@
 package application;
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
 import geography.GeographicPoint;
-import util.GraphLoader;
+import geography.RoadSegment;
+import roadgraph.RoadNetwork;
 
 /**
  * Class to wrap the graph, current .map file map, and 
  * other pertinent information about the map data sets
  *
+ * The graph and its road segments are held as one RoadNetwork
+ * snapshot.  A query should get the snapshot once with getNetwork() and 
+ * use it throughout, so that reload() can swap in a fresh map at any 
+ * time: queries already running finish against the snapshot they got.
+ * Road closures and cost changes are made the same way, by swapping in
+ * the snapshot RoadNetwork.withEdgeUpdates or withCostModel returns.
+ *
  * @author UCSD MOOC development team
  *
  */
 public class DataSet {
 	String filePath;
-	roadgraph.MapGraph graph;
-	Set<GeographicPoint> intersections;
-    private HashMap<geography.GeographicPoint,HashSet<geography.RoadSegment>>  roads;
+	private final AtomicReference<RoadNetwork> network = new AtomicReference<RoadNetwork>();
+	private volatile boolean allPairs;
 	boolean currentlyDisplayed;
 
 	public DataSet (String path) {
         this.filePath = path;
-        graph = null;
-        roads = null;
         currentlyDisplayed = false;
 	}
 
-    public void setGraph(roadgraph.MapGraph graph) {
-    	this.graph = graph;
-    }
+    /** @return The current snapshot of the map, or null before it is loaded */
+    public RoadNetwork getNetwork() { return network.get(); }
+
+    /** Swap in a new snapshot of the map.
+     * @param next The snapshot to route on from now on
+     * @return The snapshot it replaces, which queries still running keep using
+     */
+    public RoadNetwork setNetwork(RoadNetwork next) { return network.getAndSet(next); }
+
+    /** Precompute every cheapest path of small maps when they are loaded,
+     * so that dijkstra on this data set is a walk through a memory-mapped
+     * table instead of a search.  Takes effect on the next reload().
+     * @param value Whether to precompute
+     * @see roadgraph.DistanceTable
+     */
+    public void setAllPairs(boolean value) { this.allPairs = value; }
 
-    public void setRoads(HashMap<geography.GeographicPoint,HashSet<geography.RoadSegment>>  roads) { this.roads = roads; }
-    public roadgraph.MapGraph getGraph(){ return graph; }
+    public boolean isAllPairs() { return allPairs; }
     
-    /** Return the intersections in this graph.
-     * In order to keep it consistent, if getVertices in the graph returns something 
-     * other than null (i.e. it's been implemented) we get the vertices from 
-     * the graph itself.  But if the graph hasn't been implemented, we return 
-     * the set of intersections we separately maintain specifically for this purpose.
+    /** Return the intersections in the current snapshot.
      * @return The set of road intersections (vertices in the graph)
      */
     public Set<GeographicPoint> getIntersections() {
-    	Set<GeographicPoint> intersectionsFromGraph = graph.getVertices();
-    	if (intersectionsFromGraph == null) {
-    		return intersections;
-    	}
-    	else {
-    		return intersectionsFromGraph;
-    	}
+    	return network.get().getVertices();
     }
     
-    public HashMap<geography.GeographicPoint,HashSet<geography.RoadSegment>>  getRoads() { return this.roads; }
+    public Map<GeographicPoint,Set<RoadSegment>> getRoads() {
+    	return network.get().getRoads();
+    }
 
     public void initializeGraph() {
-        graph = new roadgraph.MapGraph();
-        roads = new HashMap<geography.GeographicPoint, HashSet<geography.RoadSegment>>();
-        intersections = new HashSet<GeographicPoint>();
-        //TODO: change to use intersections for points in graph.
-    	GraphLoader.loadRoadMap(filePath, graph, roads, intersections);
+    	//the .map file is compiled to a binary graph file the first time
+    	//it is loaded, and that file is mapped into memory afterwards
+    	reload();
+    }
+
+    /** Load the .map file again, for example after it was fetched anew, 
+     * and swap it in without stopping the routes being computed.
+     * @return The new snapshot
+     */
+    public RoadNetwork reload() {
+    	RoadNetwork next = RoadNetwork.load(filePath, allPairs);
+    	network.set(next);
+    	return next;
     }
 
 	public String getFilePath() {
@@ -68,7 +85,7 @@ public class DataSet {
 
 
     public Object[] getPoints() {
-    	Set<geography.GeographicPoint> pointSet = roads.keySet();
+    	Set<geography.GeographicPoint> pointSet = getRoads().keySet();
     	return pointSet.toArray();
     }
 
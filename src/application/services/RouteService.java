@@ -5,8 +5,8 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.function.Consumer;
 
 
@@ -16,7 +16,6 @@ import application.MarkerManager;
 import application.RouteVisualization;
 import application.controllers.RouteController;
 
-import java.util.Iterator;
 
 import geography.GeographicPoint;
 import geography.RoadSegment;
@@ -27,6 +26,8 @@ import gmapsfx.javascript.object.LatLongBounds;
 import gmapsfx.javascript.object.MVCArray;
 import gmapsfx.shapes.Polyline;
 import javafx.scene.control.Button;
+import roadgraph.RoadNetwork;
+import roadgraph.RouteResult;
 
 public class RouteService {
 	private GoogleMap map;
@@ -107,15 +108,17 @@ public class RouteService {
         			toggle == RouteController.BFS) {
         		markerManager.initVisualization();
             	Consumer<geography.GeographicPoint> nodeAccepter = markerManager.getVisualization()::acceptPoint;
-            	List<geography.GeographicPoint> path = null;
+            	RouteResult path = null;
+            	//one snapshot for the whole route, even if the map is reloaded meanwhile
+            	RoadNetwork network = markerManager.getDataSet().getNetwork();
             	if (toggle == RouteController.BFS) {
-            		path = markerManager.getDataSet().getGraph().bfs(start, end, nodeAccepter);
+            		path = network.bfs(start, end, nodeAccepter);
             	}
             	else if (toggle == RouteController.DIJ) {
-            		path = markerManager.getDataSet().getGraph().dijkstra(start, end, nodeAccepter);
+            		path = network.dijkstra(start, end, nodeAccepter);
             	}
             	else if (toggle == RouteController.A_STAR) {
-            		path = markerManager.getDataSet().getGraph().aStarSearch(start, end, nodeAccepter);
+            		path = network.aStarSearch(start, end, nodeAccepter);
             	}
 
             	if(path == null) {
@@ -124,7 +127,7 @@ public class RouteService {
                 	return false;
                 }
                 // TODO -- debug road segments
-            	List<LatLong> mapPath = constructMapPath(path);
+            	List<LatLong> mapPath = constructMapPath(network, path);
                 //List<LatLong> mapPath = new ArrayList<LatLong>();
                 //for(geography.GeographicPoint point : path) {
                 //    mapPath.add(new LatLong(point.getX(), point.getY()));
@@ -145,51 +148,46 @@ public class RouteService {
 
     /**
      * Construct path including road regments
+     * @param network - the snapshot the path was found in
      * @param path - path with only intersections
      * @return list of LatLongs corresponding the path of route
      */
-    private List<LatLong> constructMapPath(List<geography.GeographicPoint> path) {
+    private List<LatLong> constructMapPath(RoadNetwork network, RouteResult path) {
     	List<LatLong> retVal = new ArrayList<LatLong>();
-        List<geography.GeographicPoint> segmentList = null;
+        double[] lats = path.getLatitudes();
+        double[] lons = path.getLongitudes();
     	geography.GeographicPoint curr;
-    	geography.GeographicPoint next;
-
-    	geography.RoadSegment chosenSegment = null;;
-
-        for(int i = 0; i < path.size() - 1; i++) {
-            double minLength = Double.MAX_VALUE;
-        	curr = path.get(i);
-        	next = path.get(i+1);
-
-        	if(markerManager.getDataSet().getRoads().containsKey(curr)) {
-        		HashSet<geography.RoadSegment> segments = markerManager.getDataSet().getRoads().get(curr);
-        		Iterator<geography.RoadSegment> it = segments.iterator();
-
-        		// get segments which are
-            	geography.RoadSegment currSegment;
-                while(it.hasNext()) {
-                    //System.out.println("new segment");
-                	currSegment = it.next();
-                	if(currSegment.getOtherPoint(curr).equals(next)) {
-                        //System.out.println("1st check passed : other point correct");
-                		if(currSegment.getLength() < minLength) {
-                            //System.out.println("2nd check passed : length less");
-                			chosenSegment = currSegment;
-                		}
-                	}
-                }
-
-                if(chosenSegment != null) {
-                    segmentList = chosenSegment.getPoints(curr, next);
-                    for(geography.GeographicPoint point : segmentList) {
-                        retVal.add(new LatLong(point.getX(), point.getY()));
-                    }
-                }
-                else {
-                	System.err.println("ERROR in constructMapPath : chosenSegment was null");
-                }
-        		// find
+    	geography.GeographicPoint next = path.size() > 0 ? new geography.GeographicPoint(lats[0], lons[0]) : null;
+
+        for(int i = 0; i < path.getNumLegs(); i++) {
+        	curr = next;
+        	next = new geography.GeographicPoint(lats[i+1], lons[i+1]);
+
+        	// the shortest segment to next, on the road the route takes if there is one
+        	geography.RoadSegment chosenSegment = null;
+        	Set<geography.RoadSegment> segments = network.getRoads().get(curr);
+        	if(segments != null) {
+        		String roadName = path.getRoadName(i);
+        		for(geography.RoadSegment currSegment : segments) {
+        			if(currSegment.getOtherPoint(curr).equals(next) && (chosenSegment == null
+        					|| better(currSegment, chosenSegment, roadName))) {
+        				chosenSegment = currSegment;
+        			}
+        		}
+        	}
 
+        	if(chosenSegment != null) {
+        		List<geography.GeographicPoint> segmentList = chosenSegment.getPoints(curr, next);
+        		for(geography.GeographicPoint point : segmentList) {
+        			retVal.add(new LatLong(point.getX(), point.getY()));
+        		}
+        	}
+        	else {
+        		// no segment drawn for this leg: a straight line between the intersections
+        		if(retVal.isEmpty()) {
+        			retVal.add(new LatLong(lats[i], lons[i]));
+        		}
+        		retVal.add(new LatLong(lats[i+1], lons[i+1]));
         	}
         }
 
@@ -197,6 +195,16 @@ public class RouteService {
     	return retVal;
     }
 
+    // Whether segment a fits a leg on roadName better than segment b
+    private static boolean better(geography.RoadSegment a, geography.RoadSegment b, String roadName) {
+    	boolean aOnRoad = roadName.equals(a.getRoadName());
+    	boolean bOnRoad = roadName.equals(b.getRoadName());
+    	if(aOnRoad != bOnRoad) {
+    		return aOnRoad;
+    	}
+    	return a.getLength() < b.getLength();
+    }
+
 
 	private void removeRouteLine() {
         if(routeLine != null) {
@@ -9,6 +9,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 
+import util.DirectionOptimizingBFS;
 import util.GraphLoader;
 
 /** An abstract class that implements a directed graph. 
@@ -28,6 +29,9 @@ public abstract class Graph {
 	private int numEdges;
 	//optional association of String labels to vertices 
 	private Map<Integer,String> vertexLabels;
+	//whole-graph BFS and the vertex and edge counts it was built at
+	private DirectionOptimizingBFS hopSearch;
+	private long hopSearchSize;
 	
 	/**
 	 * Create a new empty Graph
@@ -150,6 +154,33 @@ public abstract class Graph {
 	 */
 	public abstract List<Integer> getDistance2(int v); 
 
+	/**
+	 * A direction-optimizing breadth first search over the whole graph,
+	 * for hop distance histograms and connectivity checks.  It is built 
+	 * from getNeighbors on first use and again after vertices or edges 
+	 * are added.
+	 * @return The search
+	 */
+	public DirectionOptimizingBFS hopSearch() {
+		long size = ((long) numVertices << 32) | numEdges ;
+		if(hopSearch == null || hopSearchSize != size) {
+			int[] offsets = new int[numVertices + 1] ;
+			int[] targets = new int[numEdges] ;
+			int count = 0 ;
+			for(int v = 0 ; v < numVertices ; v++) {
+				for(int w : getNeighbors(v)) {
+					if(count == targets.length)
+						targets = Arrays.copyOf(targets, count * 2 + 1) ;
+					targets[count++] = w ;
+				}
+				offsets[v + 1] = count ;
+			}
+			hopSearch = new DirectionOptimizingBFS(numVertices, offsets, Arrays.copyOf(targets, count)) ;
+			hopSearchSize = size ;
+		}
+		return hopSearch ;
+	}
+
 	/** Return a String representation of the graph
 	 * @return A string representation of the graph
 	 */
@@ -108,6 +108,10 @@ public class RoadSegment {
 
 	// get the length of the road segment
 	public double getLength() { return this.length; }
+
+	// get the name and type of the road this segment is part of
+	public String getRoadName() { return this.roadName; }
+	public String getRoadType() { return this.roadType; }
 	
 	
 	// given one end, return the other.
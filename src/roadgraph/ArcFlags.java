@@ -0,0 +1,382 @@
+package roadgraph;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import geography.GeographicPoint;
+import util.GraphLoader;
+
+/**
+ * Arc-flags for Dijkstra on a CompactGraph: the graph is split into k
+ * cells, and every edge gets one flag per cell, set if the edge starts a
+ * shortest path into that cell or lies inside it.  A query to a target
+ * in cell T then only relaxes edges whose flag T is set, which cuts the
+ * search down to little more than a corridor towards T, most of all when
+ * T is far away.
+ *
+ * Cells come from a geometric partition: the intersections are split at
+ * the median of their latitude or longitude, whichever is spread wider,
+ * again and again until there are k cells of about equal size.  The
+ * flags of cell C are found by a backward Dijkstra from each boundary
+ * vertex of C, that is each vertex of C with an incoming edge from
+ * outside: an edge u -> v is on a shortest path to the boundary vertex
+ * if d(u) = cost + d(v) in that search.  These searches are independent
+ * and run in parallel.  Edges inside a cell always have its flag set, so
+ * a route is found whatever cell the start is in.
+ *
+ * Flags are packed in a long[] aligned with the edge arrays: the flags
+ * of edge e are the bits of words e * w .. e * w + w - 1, where w is
+ * (k + 63) / 64, and the flag of cell c is bit c % 64 of word c / 64.
+ *
+ * Flags are for the graph's costs at build time; isCurrent tells whether
+ * they still hold.
+ */
+public class ArcFlags {
+
+	/** The number of cells used when none is given */
+	public static final int DEFAULT_CELLS = 32 ;
+
+	private final CompactGraph graph ;
+	private final CompactGraph.EdgeCosts costs ; //the costs the flags were built for
+	private final int numCells ;
+	private final int words ; //longs of flags per edge
+	private final int[] cell ; //cell of each vertex
+	private final long[] flags ;
+	private final int numBoundary ;
+
+	private ArcFlags(CompactGraph graph, CompactGraph.EdgeCosts costs, int numCells,
+			int[] cell, long[] flags, int numBoundary) {
+		this.graph = graph ;
+		this.costs = costs ;
+		this.numCells = numCells ;
+		this.words = (numCells + 63) >>> 6 ;
+		this.cell = cell ;
+		this.flags = flags ;
+		this.numBoundary = numBoundary ;
+	}
+
+	/**
+	 * Partition graph into cells and compute the flags of every edge.
+	 * The searches from the boundary vertices run in parallel on the
+	 * common fork-join pool.
+	 * @param graph The road graph
+	 * @param cells The number of cells, from 1 to the number of vertices
+	 * @return The arc-flags for graph under its current costs
+	 */
+	public static ArcFlags build(CompactGraph graph, int cells) {
+		int n = graph.getNumVertices() ;
+		if(cells < 1 || cells > Math.max(n, 1))
+			throw new IllegalArgumentException("Cannot split " + n + " vertices into " + cells + " cells!") ;
+		CompactGraph.EdgeCosts c = graph.costs() ;
+		int words = (cells + 63) >>> 6 ;
+		int[] cell = partition(graph, cells) ;
+
+		//edges inside a cell lead to it from anywhere in it
+		int m = graph.getNumEdges() ;
+		AtomicLongArray shared = new AtomicLongArray(m * words) ;
+		for(int u = 0 ; u < n ; u++) {
+			for(int e = graph.offsets.get(u) ; e < graph.offsets.get(u + 1) ; e++) {
+				int to = cell[graph.targets.get(e)] ;
+				if(cell[u] == to)
+					flag(shared, e * words + (to >>> 6), 1L << to) ;
+			}
+		}
+
+		CompactGraph.ReverseEdges reverse = graph.reverse() ;
+		int[] boundary = IntStream.range(0, n).filter(v -> {
+			for(int i = reverse.offsets[v] ; i < reverse.offsets[v + 1] ; i++) {
+				if(cell[reverse.sources[i]] != cell[v])
+					return true ;
+			}
+			return false ;
+		}).toArray() ;
+		IntStream.of(boundary).parallel().forEach(b -> flagPathsTo(graph, c, reverse, cell, b, shared, words)) ;
+
+		long[] flags = new long[m * words] ;
+		for(int i = 0 ; i < flags.length ; i++)
+			flags[i] = shared.get(i) ;
+		return new ArcFlags(graph, c, cells, cell, flags, boundary.length) ;
+	}
+
+	/**
+	 * Partition graph into DEFAULT_CELLS cells, or one per vertex if there
+	 * are fewer vertices.
+	 * @see #build(CompactGraph, int)
+	 */
+	public static ArcFlags build(CompactGraph graph) {
+		return build(graph, Math.max(1, Math.min(DEFAULT_CELLS, graph.getNumVertices()))) ;
+	}
+
+	/**
+	 * Backward Dijkstra from boundary vertex b, setting the flag of b's
+	 * cell on every edge u -> v with d(u) = cost + d(v), that is every edge
+	 * on some shortest path to b.  An edge is checked once both its ends
+	 * are settled, when both distances are final.
+	 */
+	private static void flagPathsTo(CompactGraph graph, CompactGraph.EdgeCosts c,
+			CompactGraph.ReverseEdges reverse, int[] cell, int b,
+			AtomicLongArray flags, int words) {
+		long bit = 1L << cell[b] ;
+		int word = cell[b] >>> 6 ;
+		SearchContext context = graph.context() ;
+		IndexedHeap pq = context.queue ;
+		context.update(b, 0) ;
+		pq.offer(b, 0) ;
+		while(!pq.isEmpty()) {
+			int u = pq.poll() ;
+			context.settle(u) ;
+			double d = context.distance(u) ;
+			//allow for rounding when sums of the same costs are taken in another order
+			double slack = d * 1e-12 ;
+			for(int e = graph.offsets.get(u) ; e < graph.offsets.get(u + 1) ; e++) {
+				int v = graph.targets.get(e) ;
+				if(context.isSettled(v) && context.distance(v) + c.cost.get(e) <= d + slack)
+					flag(flags, e * words + word, bit) ;
+			}
+
+			for(int i = reverse.offsets[u] ; i < reverse.offsets[u + 1] ; i++) {
+				int prev = reverse.sources[i] ;
+				double newDist = d + c.cost.get(reverse.edges[i]) ;
+				if(context.isSettled(prev)) {
+					//only a zero cost edge can lead to a vertex settled before
+					if(newDist <= context.distance(prev) + slack)
+						flag(flags, reverse.edges[i] * words + word, bit) ;
+				}
+				else if(newDist < context.distance(prev)) {
+					context.update(prev, newDist) ;
+					pq.offer(prev, newDist) ;
+				}
+			}
+		}
+	}
+
+	private static void flag(AtomicLongArray flags, int i, long bit) {
+		if((flags.get(i) & bit) == 0)
+			flags.getAndAccumulate(i, bit, (x, y) -> x | y) ;
+	}
+
+	/**
+	 * Split the vertices into cells by recursive bisection at the median
+	 * of the coordinate with the widest spread, so cells are compact and
+	 * hold about n / cells vertices each.
+	 * @return The cell of each vertex
+	 */
+	private static int[] partition(CompactGraph graph, int cells) {
+		int n = graph.getNumVertices() ;
+		int[] cell = new int[n] ;
+		int[] vertices = IntStream.range(0, n).toArray() ;
+		bisect(graph, vertices, 0, n, 0, cells, cell) ;
+		return cell ;
+	}
+
+	// Assign vertices[from .. to-1] to the cells first .. first+count-1
+	private static void bisect(CompactGraph graph, int[] vertices, int from, int to,
+			int first, int count, int[] cell) {
+		if(count == 1) {
+			for(int i = from ; i < to ; i++)
+				cell[vertices[i]] = first ;
+			return ;
+		}
+
+		double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY ;
+		double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY ;
+		for(int i = from ; i < to ; i++) {
+			double lat = graph.getLatitude(vertices[i]) ;
+			double lon = graph.getLongitude(vertices[i]) ;
+			minLat = Math.min(minLat, lat) ;
+			maxLat = Math.max(maxLat, lat) ;
+			minLon = Math.min(minLon, lon) ;
+			maxLon = Math.max(maxLon, lon) ;
+		}
+		//a degree of longitude shrinks with the cosine of the latitude
+		double lonScale = Math.cos(Math.toRadians((minLat + maxLat) / 2)) ;
+		Comparator<Integer> byCoordinate = maxLat - minLat >= (maxLon - minLon) * lonScale
+				? Comparator.comparingDouble(graph::getLatitude)
+				: Comparator.comparingDouble(graph::getLongitude) ;
+		int[] sorted = IntStream.of(vertices).skip(from).limit(to - from).boxed()
+				.sorted(byCoordinate).mapToInt(Integer::intValue).toArray() ;
+		System.arraycopy(sorted, 0, vertices, from, sorted.length) ;
+
+		//split the vertices in proportion to the cells on each side
+		int half = count / 2 ;
+		int mid = from + (int) ((long) (to - from) * half / count) ;
+		bisect(graph, vertices, from, mid, first, half, cell) ;
+		bisect(graph, vertices, mid, to, first + half, count - half, cell) ;
+	}
+
+
+	/** @return The graph these flags were built for */
+	public CompactGraph getGraph() {
+		return graph ;
+	}
+
+	/**
+	 * @return Whether the graph's costs are still those the flags were
+	 *   built for, that is, no cost model was set and no edge updated since
+	 */
+	public boolean isCurrent() {
+		return graph.costs() == costs ;
+	}
+
+	/** @return The number of cells */
+	public int getNumCells() {
+		return numCells ;
+	}
+
+	/** @return The cell of vertex v */
+	public int getCell(int v) {
+		return cell[v] ;
+	}
+
+	/** @return The number of vertices with an incoming edge from another cell */
+	public int getNumBoundaryVertices() {
+		return numBoundary ;
+	}
+
+	/** @return Whether edge e is on a shortest path into the given cell */
+	public boolean isFlagged(int e, int toCell) {
+		return (flags[e * words + (toCell >>> 6)] & 1L << toCell) != 0 ;
+	}
+
+	/** @return The fraction of edge flags that are set */
+	public double getFlagDensity() {
+		long set = 0 ;
+		for(long word : flags)
+			set += Long.bitCount(word) ;
+		return (double) set / Math.max(1, (long) graph.getNumEdges() * numCells) ;
+	}
+
+	/** Find the path from start to goal using Dijkstra's algorithm,
+	 * relaxing only the edges flagged for the goal's cell, or all of them
+	 * once the graph's costs have changed since the flags were built.
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param nodeSearched A hook for visualization, called on each settled intersection.
+	 * @return The list of intersections that form the shortest path from
+	 *   start to goal (including both start and goal), or an empty list
+	 *   if goal is not reachable.
+	 */
+	public RouteResult dijkstra(GeographicPoint start, GeographicPoint goal,
+			Consumer<GeographicPoint> nodeSearched) {
+		if(!isCurrent())
+			return graph.dijkstra(start, goal, nodeSearched) ;
+		int source = graph.indexOf(start) ;
+		int target = graph.indexOf(goal) ;
+		if(source < 0 || target < 0
+				|| search(source, target, nodeSearched, true) == Double.POSITIVE_INFINITY)
+			return new RouteResult(graph, costs, new int[0]) ;
+		return graph.lastPath(source, target) ;
+	}
+
+	/**
+	 * Dijkstra's algorithm between two vertices, pruned by the flags of
+	 * the target's cell, or plain Dijkstra if the flags are not current.
+	 * Parents, when kept, and the settled count are left in the calling
+	 * thread's context of the graph, as for CompactGraph's own searches.
+	 * @return The cost of the cheapest path, or infinity if there is none
+	 */
+	double search(int source, int target, Consumer<GeographicPoint> nodeSearched, boolean parents) {
+		if(!isCurrent())
+			return graph.search(source, target, nodeSearched, false, null, parents) ;
+		SearchContext context = graph.context() ;
+		IndexedHeap pq = context.queue ;
+		DoubleBuffer cost = costs.cost ;
+		context.costs = costs ;
+		IntBuffer offsets = graph.offsets ;
+		IntBuffer targets = graph.targets ;
+		long bit = 1L << cell[target] ;
+		int word = cell[target] >>> 6 ;
+
+		context.update(source, 0, source) ;
+		pq.offer(source, 0) ;
+		while(!pq.isEmpty()) {
+			int curr = pq.poll() ;
+			context.settle(curr) ;
+			if(nodeSearched != CompactGraph.IGNORE)
+				nodeSearched.accept(graph.getLocation(curr)) ;
+
+			if(curr == target)
+				return context.distance(curr) ;
+
+			double currDist = context.distance(curr) ;
+			for(int e = offsets.get(curr) ; e < offsets.get(curr + 1) ; e++) {
+				if((flags[e * words + word] & bit) == 0)
+					continue ;
+				int next = targets.get(e) ;
+				double newDist = currDist + cost.get(e) ;
+				if(newDist < context.distance(next) && !context.isSettled(next)) {
+					if(parents)
+						context.update(next, newDist, curr) ;
+					else
+						context.update(next, newDist) ;
+					pq.offer(next, newDist) ;
+				}
+			}
+		}
+		return Double.POSITIVE_INFINITY ;
+	}
+
+	/**
+	 * Stats mode: for each map, report preprocessing time and how many
+	 * vertices and how much time a query takes with arc-flags, for a few
+	 * numbers of cells, compared to plain Dijkstra, checking that the
+	 * distances agree.
+	 */
+	public static void main(String[] args) {
+		String[] maps = args.length > 0 ? args : new String[] {"data/maps/utc.map",
+				"data/maps/san_diego.map", "data/maps/new_york.map",
+				"data/maps/hollywood_large.map", "data/maps/Monterrey.map"} ;
+		int queries = 2000 ;
+
+		for(String file : maps) {
+			CompactGraph.Builder builder = new CompactGraph.Builder() ;
+			GraphLoader.loadRoadMap(file, builder) ;
+			CompactGraph graph = builder.build() ;
+			int n = graph.getNumVertices() ;
+
+			Random random = new Random(3) ;
+			int[] sources = new int[queries] ;
+			int[] targets = new int[queries] ;
+			double[] expected = new double[queries] ;
+			long baseline = 0 ;
+			long begin = System.nanoTime() ;
+			for(int i = 0 ; i < queries ; i++) {
+				sources[i] = random.nextInt(n) ;
+				targets[i] = random.nextInt(n) ;
+				expected[i] = graph.search(sources[i], targets[i], CompactGraph.IGNORE, false, null, false) ;
+				baseline += graph.getLastSettledCount() ;
+			}
+			System.out.printf("%s: dijkstra settles %d vertices, %.1f us per query%n", file,
+					baseline / queries, (System.nanoTime() - begin) / 1e3 / queries) ;
+
+			for(int cells : new int[] {8, 32, 128}) {
+				if(cells > n)
+					continue ;
+				begin = System.nanoTime() ;
+				ArcFlags arcFlags = build(graph, cells) ;
+				double buildMs = (System.nanoTime() - begin) / 1e6 ;
+
+				long settled = 0 ;
+				int bad = 0 ;
+				begin = System.nanoTime() ;
+				for(int i = 0 ; i < queries ; i++) {
+					double d = arcFlags.search(sources[i], targets[i], CompactGraph.IGNORE, false) ;
+					settled += graph.getLastSettledCount() ;
+					if(d != expected[i] && Math.abs(d - expected[i]) > 1e-9 * expected[i])
+						bad++ ;
+				}
+				double queryUs = (System.nanoTime() - begin) / 1e3 / queries ;
+				System.out.printf("  k=%-3d built in %6.1f ms (%d boundary), %.1f%% flags set, "
+						+ "settles %4d, %.1f us per query, %d mismatches%n", cells, buildMs,
+						arcFlags.getNumBoundaryVertices(), 100 * arcFlags.getFlagDensity(),
+						settled / queries, queryUs, bad) ;
+			}
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package roadgraph;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import geography.GeographicPoint;
+import util.GraphLoader;
+
+/**
+ * Routes large batches of (start, goal) pairs in parallel with A* search,
+ * for jobs like nightly runs of millions of trips.
+ *
+ * Queries are fanned out as a parallel stream, so they run on the
+ * work-stealing fork-join pool of the terminal operation: the common pool,
+ * or a pool of your own if the terminal operation is run from a task in
+ * it (as main does below).  Every worker thread reuses its own search
+ * context of the graph, and with paths suppressed a query allocates
+ * nothing beyond the Route that holds its answer.
+ *
+ * The graph's cost model and live edge updates apply as for any search;
+ * each query sees the costs as they were when it started.
+ */
+public class BatchRouter {
+
+	private final CompactGraph graph ;
+	private final Landmarks landmarks ;
+	private final boolean withPaths ;
+
+	/**
+	 * A query of a batch, and its answer once routed.
+	 */
+	public static class Route {
+		private final GeographicPoint start ;
+		private final GeographicPoint goal ;
+		private double distance = Double.NaN ;
+		private List<GeographicPoint> path ;
+
+		public Route(GeographicPoint start, GeographicPoint goal) {
+			this.start = start ;
+			this.goal = goal ;
+		}
+
+		public GeographicPoint getStart() {
+			return start ;
+		}
+
+		public GeographicPoint getGoal() {
+			return goal ;
+		}
+
+		/**
+		 * @return The cost of the cheapest path from start to goal,
+		 *   infinity if there is none (or an end is not an intersection),
+		 *   or NaN before the route is computed
+		 */
+		public double getDistance() {
+			return distance ;
+		}
+
+		/**
+		 * @return The intersections of the path, empty if there is none,
+		 *   or null if the router suppresses paths
+		 */
+		public List<GeographicPoint> getPath() {
+			return path ;
+		}
+
+		public String toString() {
+			return start + " -> " + goal + ": " + distance ;
+		}
+	}
+
+	/**
+	 * @param graph The graph to route on
+	 * @param landmarks Landmark tables built for graph, or null to use the
+	 *   straight line distance alone
+	 * @param withPaths Whether to return paths; without them only the
+	 *   distances are computed, which allocates nothing per query
+	 * @throws IllegalArgumentException If landmarks were built for another graph
+	 */
+	public BatchRouter(CompactGraph graph, Landmarks landmarks, boolean withPaths) {
+		if(landmarks != null && landmarks.getGraph() != graph)
+			throw new IllegalArgumentException("Landmarks were built for a different graph!") ;
+		this.graph = graph ;
+		this.landmarks = landmarks ;
+		this.withPaths = withPaths ;
+	}
+
+	/**
+	 * Route a stream of queries in parallel.  Nothing is computed until
+	 * the returned stream is consumed, so the input may be read lazily,
+	 * for example from a file of millions of pairs.
+	 * @param queries The queries, which are filled in and returned
+	 * @return The routed queries, in the order given if queries is ordered
+	 */
+	public Stream<Route> route(Stream<Route> queries) {
+		return queries.parallel().map(this::route) ;
+	}
+
+	/**
+	 * Route one query on the calling thread.
+	 * @param query The query to fill in
+	 * @return query
+	 */
+	public Route route(Route query) {
+		int source = graph.indexOf(query.start) ;
+		int target = graph.indexOf(query.goal) ;
+		if(source < 0 || target < 0) {
+			query.distance = Double.POSITIVE_INFINITY ;
+		}
+		else {
+			query.distance = graph.search(source, target, CompactGraph.IGNORE, true, landmarks, withPaths) ;
+		}
+		if(withPaths) {
+			query.path = query.distance == Double.POSITIVE_INFINITY ? new ArrayList<GeographicPoint>()
+					: graph.lastPath(source, target) ;
+		}
+		return query ;
+	}
+
+	/**
+	 * Route queries given as vertex ids in parallel, writing only the
+	 * distances.  This allocates nothing per query at all.
+	 * @param sources The start vertex of each query
+	 * @param targets The goal vertex of each query
+	 * @param distances Gets the cost of the cheapest path of each query,
+	 *   or infinity where there is none or where an id is not a vertex of
+	 *   the graph, as route does for an end that is not an intersection
+	 * @throws IllegalArgumentException If the arrays are of different lengths
+	 */
+	public void distances(int[] sources, int[] targets, double[] distances) {
+		if(sources.length != targets.length || sources.length != distances.length)
+			throw new IllegalArgumentException("Need one source, target and distance per query!") ;
+		int n = graph.getNumVertices() ;
+		IntStream.range(0, sources.length).parallel().forEach(i -> {
+			int source = sources[i] ;
+			int target = targets[i] ;
+			if(source < 0 || source >= n || target < 0 || target >= n)
+				distances[i] = Double.POSITIVE_INFINITY ;
+			else
+				distances[i] = graph.search(source, target, CompactGraph.IGNORE, true, landmarks, false) ;
+		}) ;
+	}
+
+	/**
+	 * Route random pairs on each map with pools of 1, 2, 4 ... threads
+	 * up to the number of cores, and report the throughput and the bytes
+	 * allocated per query with and without paths.
+	 *
+	 * Run from the project root: java roadgraph.BatchRouter [queries] [map files]
+	 */
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 200000 ;
+		String[] maps = {"data/maps/san_diego.map", "data/maps/hollywood_large.map"} ;
+		if(args.length > 1)
+			maps = Arrays.copyOfRange(args, 1, args.length) ;
+		int cores = Runtime.getRuntime().availableProcessors() ;
+
+		for(String file : maps) {
+			CompactGraph.Builder builder = new CompactGraph.Builder() ;
+			GraphLoader.loadRoadMap(file, builder) ;
+			CompactGraph graph = builder.build() ;
+			Landmarks landmarks = Landmarks.build(graph, Landmarks.DEFAULT_COUNT, Landmarks.Strategy.AVOID) ;
+			Random random = new Random(7) ;
+			Route[] queries = new Route[count] ;
+			for(int i = 0 ; i < count ; i++) {
+				queries[i] = new Route(graph.getLocation(random.nextInt(graph.getNumVertices())),
+						graph.getLocation(random.nextInt(graph.getNumVertices()))) ;
+			}
+			System.out.printf("%s: %d queries%n", file, count) ;
+
+			for(boolean withPaths : new boolean[] {false, true}) {
+				BatchRouter router = new BatchRouter(graph, landmarks, withPaths) ;
+				//warm up, and measure allocation on this thread alone
+				for(int i = 0 ; i < Math.min(count, 20000) ; i++)
+					router.route(queries[i]) ;
+				long before = allocatedBytes() ;
+				int sample = Math.min(count, 20000) ;
+				for(int i = 0 ; i < sample ; i++)
+					router.route(queries[i]) ;
+				long perQuery = (allocatedBytes() - before) / sample ;
+				System.out.printf("  %s, %d bytes allocated per query%n",
+						withPaths ? "with paths" : "distances only", perQuery) ;
+
+				double single = 0 ;
+				for(int threads = 1 ; threads <= cores ; threads = threads < cores ? Math.min(threads * 2, cores) : cores + 1) {
+					ForkJoinPool pool = new ForkJoinPool(threads) ;
+					long begin = System.nanoTime() ;
+					pool.submit(() -> router.route(Stream.of(queries)).forEach(route -> {})).get() ;
+					double seconds = (System.nanoTime() - begin) / 1e9 ;
+					pool.shutdown() ;
+					double rate = count / seconds ;
+					if(threads == 1)
+						single = rate ;
+					System.out.printf("    %2d threads %10.0f queries/s, speedup %.2f%n", threads, rate, rate / single) ;
+				}
+			}
+		}
+	}
+
+	// Bytes allocated so far by the calling thread, or 0 where the JVM
+	// does not report it
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean() ;
+		if(bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId()) ;
+		return 0 ;
+	}
+}
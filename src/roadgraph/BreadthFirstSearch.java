@@ -0,0 +1,116 @@
+package roadgraph;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+import geography.GeographicPoint;
+
+/**
+ * Scratch state and loop of breadth first search on a CompactGraph, over
+ * plain int vertex ids: a ring buffer of ints as the queue, a bitset of
+ * the visited vertices and an int array of parents.  Nothing is allocated
+ * per query once the ring has grown to the widest frontier seen, and the
+ * visited set is cleared with one pass over n/64 longs.
+ *
+ * A search must only be used by one thread at a time; CompactGraph keeps
+ * one per thread.
+ */
+class BreadthFirstSearch {
+
+	private static final int INITIAL_RING = 64 ;
+
+	private final long[] visited ; //bit v set once v has been enqueued
+	private final int[] parent ; //vertex each visited vertex was reached from
+	private int[] ring = new int[INITIAL_RING] ; //queue, length a power of 2
+
+	/**
+	 * @param numVertices The number of vertices in the graph this searches
+	 */
+	BreadthFirstSearch(int numVertices) {
+		visited = new long[(numVertices + 63) >>> 6] ;
+		parent = new int[numVertices] ;
+	}
+
+	/**
+	 * Search from source in order of hops until target is dequeued, or
+	 * until everything reachable has been visited if target is -1.
+	 * @param graph The graph to search
+	 * @param closed The closed flag of each edge, or null if none are
+	 * @param source The vertex to start from
+	 * @param target The vertex to stop at, or -1
+	 * @param nodeSearched Called on each dequeued vertex, unless it is
+	 *   CompactGraph.IGNORE
+	 * @return Whether target was reached
+	 */
+	boolean search(CompactGraph graph, boolean[] closed, int source, int target,
+			Consumer<GeographicPoint> nodeSearched) {
+		Arrays.fill(visited, 0) ;
+		IntBuffer offsets = graph.offsets ;
+		IntBuffer targets = graph.targets ;
+		int[] queue = ring ;
+		int mask = queue.length - 1 ;
+		int head = 0 ;
+		int tail = 0 ;
+
+		queue[tail++ & mask] = source ;
+		visit(source, source) ;
+
+		while(head != tail) {
+			int curr = queue[head++ & mask] ;
+			if(nodeSearched != CompactGraph.IGNORE)
+				nodeSearched.accept(graph.getLocation(curr)) ;
+			if(curr == target)
+				return true ;
+
+			for(int e = offsets.get(curr) ; e < offsets.get(curr + 1) ; e++) {
+				int next = targets.get(e) ;
+				if(!isVisited(next) && (closed == null || !closed[e])) {
+					visit(next, curr) ;
+					if(tail - head == queue.length) {
+						queue = grow(queue, head) ;
+						tail -= head ;
+						head = 0 ;
+						mask = queue.length - 1 ;
+						ring = queue ;
+					}
+					queue[tail++ & mask] = next ;
+				}
+			}
+		}
+		return false ;
+	}
+
+	// A ring twice the size, holding the full one's contents from index 0
+	private static int[] grow(int[] queue, int head) {
+		int[] bigger = new int[queue.length * 2] ;
+		int start = head & (queue.length - 1) ;
+		System.arraycopy(queue, start, bigger, 0, queue.length - start) ;
+		System.arraycopy(queue, 0, bigger, queue.length - start, start) ;
+		return bigger ;
+	}
+
+	private void visit(int v, int p) {
+		visited[v >>> 6] |= 1L << v ;
+		parent[v] = p ;
+	}
+
+	/** @return Whether v was reached by the last search */
+	boolean isVisited(int v) {
+		return (visited[v >>> 6] & (1L << v)) != 0 ;
+	}
+
+	/**
+	 * @return The vertex ids from source to target, by the parents of the
+	 *   last search, which must have reached target from source
+	 */
+	int[] pathIds(int source, int target) {
+		int length = 1 ;
+		for(int v = target ; v != source ; v = parent[v])
+			length++ ;
+		int[] path = new int[length] ;
+		for(int v = target, i = length - 1 ; i >= 0 ; v = parent[v], i--)
+			path[i] = v ;
+		return path ;
+	}
+}
@@ -0,0 +1,1593 @@
+package roadgraph;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import geography.GeographicPoint;
+import util.DirectionOptimizingBFS;
+import util.GraphLoader;
+
+/**
+ * A frozen, int-indexed road graph in compressed sparse row (CSR) form.
+ *
+ * Vertices are numbered 0 .. n-1 in (lat, lon) order, so a GeographicPoint
+ * is turned into a vertex id with a binary search instead of a hash lookup.
+ * The outgoing edges of vertex v are the edge ids offsets[v] .. offsets[v+1]-1,
+ * and edge e goes to targets[e] with length weights[e] (in km).  Road names
+ * and types are stored once in string tables and referenced by index.
+ * The edge arrays are read through buffers, so that a graph opened from
+ * a GraphFile routes on the file's mapped pages without copying them.
+ *
+ * Searches minimize the cost of each edge under a CostModel, which is its
+ * length unless setCostModel says otherwise.
+ *
+ * Edges of a vertex keep the order in which they were added, so searches
+ * visit neighbors in the same order as they do on the MapGraph this was
+ * built from.
+ */
+public class CompactGraph {
+
+	private final int numVertices ;
+	private final int numEdges ;
+
+	final double[] lat ; //latitude of each vertex
+	final double[] lon ; //longitude of each vertex
+
+	final IntBuffer offsets ; //first edge id of each vertex, offsets[n] == numEdges
+	final IntBuffer targets ; //end vertex of each edge
+	final DoubleBuffer weights ; //length of each edge, in km
+
+	final int[] roadNames ; //index into nameTable for each edge
+	final int[] roadTypes ; //index into typeTable for each edge
+	final String[] nameTable ;
+	final String[] typeTable ;
+
+	//search scratch space, one per thread so that queries can run concurrently
+	private final ThreadLocal<SearchContext> contexts ;
+	private final ThreadLocal<BreadthFirstSearch> breadthFirst ;
+	private volatile int heapArity = IndexedHeap.DEFAULT_ARITY ;
+	private volatile EdgeCosts costs ; //what the searches minimize, see setCostModel
+	private final boolean readOnly ; //whether costs and heap arity are fixed
+
+	private volatile ReverseEdges reverse ; //incoming edges, built on first use
+	private volatile SpatialIndex spatialIndex ; //R-tree over the vertices, built on first use
+	private volatile HopSearch hopSearch ; //whole-graph BFS over the open edges, built on first use
+
+	/** A visualization hook that does nothing.  Searches passed this hook
+	 * skip creating a GeographicPoint for every settled vertex. */
+	public static final Consumer<GeographicPoint> IGNORE = (x) -> {};
+
+	/**
+	 * Create a CompactGraph directly from its arrays.  The arrays are not
+	 * copied, and vertices must already be sorted by (lat, lon).
+	 */
+	CompactGraph(double[] lat, double[] lon, int[] offsets, int[] targets,
+			double[] weights, int[] roadNames, int[] roadTypes,
+			String[] nameTable, String[] typeTable) {
+		this(lat, lon, IntBuffer.wrap(offsets), IntBuffer.wrap(targets), DoubleBuffer.wrap(weights),
+				roadNames, roadTypes, nameTable, typeTable) ;
+	}
+
+	/**
+	 * Create a CompactGraph on edge arrays held in buffers, such as views
+	 * of a mapped GraphFile, which are read in place and never written.
+	 */
+	CompactGraph(double[] lat, double[] lon, IntBuffer offsets, IntBuffer targets,
+			DoubleBuffer weights, int[] roadNames, int[] roadTypes,
+			String[] nameTable, String[] typeTable) {
+		this.numVertices = lat.length ;
+		this.numEdges = targets.capacity() ;
+		this.lat = lat ;
+		this.lon = lon ;
+		this.offsets = offsets ;
+		this.targets = targets ;
+		this.weights = weights ;
+		this.roadNames = roadNames ;
+		this.roadTypes = roadTypes ;
+		this.nameTable = nameTable ;
+		this.typeTable = typeTable ;
+		this.contexts = ThreadLocal.withInitial(() -> new SearchContext(numVertices, heapArity)) ;
+		this.breadthFirst = ThreadLocal.withInitial(() -> new BreadthFirstSearch(numVertices)) ;
+		this.costs = new EdgeCosts(CostModel.DISTANCE, weights, weights, null, 1, 1) ;
+		this.readOnly = false ;
+	}
+
+	// A copy of other sharing its vertices, edges and incoming edges,
+	// with its current costs and heap arity but search contexts of its own
+	private CompactGraph(CompactGraph other, boolean readOnly) {
+		this.numVertices = other.numVertices ;
+		this.numEdges = other.numEdges ;
+		this.lat = other.lat ;
+		this.lon = other.lon ;
+		this.offsets = other.offsets ;
+		this.targets = other.targets ;
+		this.weights = other.weights ;
+		this.roadNames = other.roadNames ;
+		this.roadTypes = other.roadTypes ;
+		this.nameTable = other.nameTable ;
+		this.typeTable = other.typeTable ;
+		this.contexts = ThreadLocal.withInitial(() -> new SearchContext(numVertices, heapArity)) ;
+		this.breadthFirst = ThreadLocal.withInitial(() -> new BreadthFirstSearch(numVertices)) ;
+		this.heapArity = other.heapArity ;
+		this.costs = other.costs ;
+		this.reverse = other.reverse ;
+		this.readOnly = readOnly ;
+	}
+
+	/**
+	 * Copy this graph, to change its costs for some searches only.  The
+	 * copy shares the vertices and edges, which never change, so it takes
+	 * constant time.  It starts with the current cost model, edge updates
+	 * and heap arity, and later changes to either graph are not seen by
+	 * the other.  A copy of a read-only graph may be changed.
+	 * @return The copy
+	 */
+	public CompactGraph copy() {
+		return new CompactGraph(this, false) ;
+	}
+
+	/** @return A copy of this graph, as copy() makes, whose costs and heap
+	 *   arity cannot be changed */
+	CompactGraph readOnlyCopy() {
+		return new CompactGraph(this, true) ;
+	}
+
+	/**
+	 * @return Whether this graph is read-only, as the graph of a
+	 *   RoadNetwork is: setCostModel, setHeapArity and the edge updates
+	 *   then throw UnsupportedOperationException
+	 */
+	public boolean isReadOnly() {
+		return readOnly ;
+	}
+
+	private void checkWritable() {
+		if(readOnly)
+			throw new UnsupportedOperationException("This graph is read-only; change a copy() of it instead!") ;
+	}
+
+	/**
+	 * Freeze a loaded MapGraph into CSR form.  The MapGraph is not modified.
+	 * @param graph The graph to copy
+	 * @return A CompactGraph with the same vertices and edges as graph
+	 */
+	public static CompactGraph fromMapGraph(MapGraph graph) {
+		Builder builder = new Builder() ;
+		for(MapNode node : graph.nodeList.values()) {
+			builder.addVertex(node.getNodeLocation()) ;
+		}
+		for(MapNode node : graph.nodeList.values()) {
+			for(MapEdge edge : node.getEdgeList()) {
+				builder.addEdge(node.getNodeLocation(), edge.getEndNode().getNodeLocation(),
+						edge.getStreet(), edge.getStreetType(), edge.getWeight()) ;
+			}
+		}
+		return builder.build() ;
+	}
+
+
+	//****GETTERS****//
+
+	/**
+	 * @return The number of vertices (road intersections) in the graph
+	 */
+	public int getNumVertices() {
+		return numVertices ;
+	}
+
+	/**
+	 * @return The number of directed edges (road segments) in the graph
+	 */
+	public int getNumEdges() {
+		return numEdges ;
+	}
+
+	/**
+	 * Find the vertex id of a location.
+	 * @param location The location of an intersection
+	 * @return The id of the vertex at location, or -1 if there is none
+	 */
+	public int indexOf(GeographicPoint location) {
+		if(location == null)
+			return -1 ;
+		return indexOf(location.getX(), location.getY()) ;
+	}
+
+	/**
+	 * Find the vertex id of a (lat, lon) pair by binary search.
+	 * @return The id of the vertex at (latitude, longitude), or -1 if there is none
+	 */
+	public int indexOf(double latitude, double longitude) {
+		int low = 0 ;
+		int high = numVertices - 1 ;
+		while(low <= high) {
+			int mid = (low + high) >>> 1 ;
+			int cmp = compare(lat[mid], lon[mid], latitude, longitude) ;
+			if(cmp < 0)
+				low = mid + 1 ;
+			else if(cmp > 0)
+				high = mid - 1 ;
+			else
+				return mid ;
+		}
+		return -1 ;
+	}
+
+	/**
+	 * @param v A vertex id
+	 * @return The location of vertex v as a new GeographicPoint
+	 */
+	public GeographicPoint getLocation(int v) {
+		return new GeographicPoint(lat[v], lon[v]) ;
+	}
+
+	public double getLatitude(int v) {
+		return lat[v] ;
+	}
+
+	public double getLongitude(int v) {
+		return lon[v] ;
+	}
+
+	/** @return The id of the first outgoing edge of vertex v */
+	public int firstEdge(int v) {
+		return offsets.get(v) ;
+	}
+
+	/** @return One past the id of the last outgoing edge of vertex v */
+	public int endEdge(int v) {
+		return offsets.get(v + 1) ;
+	}
+
+	public int getTarget(int e) {
+		return targets.get(e) ;
+	}
+
+	public double getWeight(int e) {
+		return weights.get(e) ;
+	}
+
+	public String getRoadName(int e) {
+		return nameTable[roadNames[e]] ;
+	}
+
+	public String getRoadType(int e) {
+		return typeTable[roadTypes[e]] ;
+	}
+
+	/**
+	 * Rough size of the arrays backing this graph, for comparing against
+	 * the object-based MapGraph.
+	 * @return The approximate number of bytes used by this graph
+	 */
+	public long estimateBytes() {
+		long bytes = 16L * numVertices + 4L * (numVertices + 1) ; //lat, lon, offsets
+		bytes += (4L + 8L + 4L + 4L) * numEdges ; //targets, weights, names, types
+		for(String s : nameTable)
+			bytes += 40 + 2L * s.length() ;
+		for(String s : typeTable)
+			bytes += 40 + 2L * s.length() ;
+		return bytes ;
+	}
+
+
+	//****SEARCHES****//
+
+	/** Find the path from start to goal using breadth first search
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @return The list of intersections that form the shortest (unweighted)
+	 *   path from start to goal (including both start and goal).
+	 */
+	public RouteResult bfs(GeographicPoint start, GeographicPoint goal) {
+		Consumer<GeographicPoint> temp = IGNORE ;
+		return bfs(start, goal, temp) ;
+	}
+
+	/** Find the path from start to goal using breadth first search
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param nodeSearched A hook for visualization, called on each dequeued intersection.
+	 * @return The list of intersections that form the shortest (unweighted)
+	 *   path from start to goal (including both start and goal), or an
+	 *   empty list if goal is not reachable.
+	 */
+	public RouteResult bfs(GeographicPoint start,
+			GeographicPoint goal, Consumer<GeographicPoint> nodeSearched) {
+
+		EdgeCosts c = costs ;
+		int source = indexOf(start) ;
+		int target = indexOf(goal) ;
+		if(source < 0 || target < 0)
+			return new RouteResult(this, c, new int[0]) ;
+
+		BreadthFirstSearch search = breadthFirst.get() ;
+		if(!search.search(this, c.closed, source, target, nodeSearched))
+			return new RouteResult(this, c, new int[0]) ;
+		return new RouteResult(this, c, search.pathIds(source, target)) ;
+	}
+
+	/** Whether goal can be reached from start over open edges, by breadth
+	 * first search without building a path
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @return true if there is a path from start to goal
+	 */
+	public boolean isReachable(GeographicPoint start, GeographicPoint goal) {
+		int source = indexOf(start) ;
+		int target = indexOf(goal) ;
+		if(source < 0 || target < 0)
+			return false ;
+		return breadthFirst.get().search(this, costs.closed, source, target, IGNORE) ;
+	}
+
+	/** Find the path from start to goal using Dijkstra's algorithm
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @return The list of intersections that form the shortest path from
+	 *   start to goal (including both start and goal).
+	 */
+	public RouteResult dijkstra(GeographicPoint start, GeographicPoint goal) {
+		Consumer<GeographicPoint> temp = IGNORE ;
+		return dijkstra(start, goal, temp) ;
+	}
+
+	/** Find the path from start to goal using Dijkstra's algorithm
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param nodeSearched A hook for visualization, called on each settled intersection.
+	 * @return The list of intersections that form the shortest path from
+	 *   start to goal (including both start and goal), or an empty list
+	 *   if goal is not reachable.
+	 */
+	public RouteResult dijkstra(GeographicPoint start,
+			GeographicPoint goal, Consumer<GeographicPoint> nodeSearched) {
+		return search(start, goal, nodeSearched, false, null) ;
+	}
+
+	/** Find the path from start to goal using A-Star search
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @return The list of intersections that form the shortest path from
+	 *   start to goal (including both start and goal).
+	 */
+	public RouteResult aStarSearch(GeographicPoint start, GeographicPoint goal) {
+		Consumer<GeographicPoint> temp = IGNORE ;
+		return aStarSearch(start, goal, temp) ;
+	}
+
+	/** Find the path from start to goal using A-Star search, with the
+	 * straight line distance to goal as the heuristic.
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param nodeSearched A hook for visualization, called on each settled intersection.
+	 * @return The list of intersections that form the shortest path from
+	 *   start to goal (including both start and goal), or an empty list
+	 *   if goal is not reachable.
+	 */
+	public RouteResult aStarSearch(GeographicPoint start,
+			GeographicPoint goal, Consumer<GeographicPoint> nodeSearched) {
+		return search(start, goal, nodeSearched, true, null) ;
+	}
+
+	/** Find the path from start to goal using A-Star search with the ALT
+	 * heuristic: the larger of the straight line distance to goal and the 
+	 * triangle inequality bounds from the given landmarks.
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param nodeSearched A hook for visualization, called on each settled intersection.
+	 * @param landmarks Landmark tables built for this graph, or null to 
+	 *   use the straight line distance alone
+	 * @return The list of intersections that form the shortest path from
+	 *   start to goal (including both start and goal), or an empty list
+	 *   if goal is not reachable.
+	 * @throws IllegalArgumentException If landmarks were built for another graph
+	 */
+	public RouteResult aStarSearch(GeographicPoint start, GeographicPoint goal,
+			Consumer<GeographicPoint> nodeSearched, Landmarks landmarks) {
+		if(landmarks != null && landmarks.getGraph() != this)
+			throw new IllegalArgumentException("Landmarks were built for a different graph!") ;
+		return search(start, goal, nodeSearched, true, landmarks) ;
+	}
+
+	/**
+	 * Find the cost of the cheapest path from start to goal with A* search,
+	 * for callers that do not need the path itself.  No parents are kept
+	 * and nothing is allocated; use pathIds if the path turns out to be 
+	 * wanted after all.
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param landmarks Landmark tables built for this graph, or null to 
+	 *   use the straight line distance alone
+	 * @return The cost of the cheapest path (its length in km unless a 
+	 *   cost model is set), or infinity if goal is not reachable
+	 * @throws IllegalArgumentException If landmarks were built for another graph
+	 */
+	public double distance(GeographicPoint start, GeographicPoint goal, Landmarks landmarks) {
+		if(landmarks != null && landmarks.getGraph() != this)
+			throw new IllegalArgumentException("Landmarks were built for a different graph!") ;
+		int source = indexOf(start) ;
+		int target = indexOf(goal) ;
+		if(source < 0 || target < 0)
+			return Double.POSITIVE_INFINITY ;
+		return search(source, target, IGNORE, true, landmarks, false) ;
+	}
+
+	/**
+	 * Find the cheapest path from start to goal with A* search, as the 
+	 * vertex ids along it: one int per intersection instead of a list 
+	 * node and a GeographicPoint.
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param landmarks Landmark tables built for this graph, or null to 
+	 *   use the straight line distance alone
+	 * @return The ids of the intersections from start to goal, both 
+	 *   included, or an empty array if goal is not reachable
+	 * @throws IllegalArgumentException If landmarks were built for another graph
+	 */
+	public int[] pathIds(GeographicPoint start, GeographicPoint goal, Landmarks landmarks) {
+		if(landmarks != null && landmarks.getGraph() != this)
+			throw new IllegalArgumentException("Landmarks were built for a different graph!") ;
+		int source = indexOf(start) ;
+		int target = indexOf(goal) ;
+		if(source < 0 || target < 0 
+				|| search(source, target, IGNORE, true, landmarks, true) == Double.POSITIVE_INFINITY)
+			return new int[0] ;
+		return lastPathIds(source, target) ;
+	}
+
+	/** Find the shortest path between two locations snapped onto roads 
+	 * with a SegmentIndex, using Dijkstra's algorithm.  The search starts 
+	 * from the snapped start along the partial edges leaving it and ends 
+	 * along the partial edges reaching the snapped goal.
+	 *
+	 * @param start The starting location, snapped onto this graph's roads
+	 * @param goal The goal location, snapped onto this graph's roads
+	 * @param nodeSearched A hook for visualization, called on each settled intersection.
+	 * @return The route from the snapped start, through the intersections
+	 *   on the path, to the snapped goal, or an empty route if goal is not
+	 *   reachable.  Its first and last legs run part way along their edges.
+	 */
+	public RouteResult dijkstra(SegmentIndex.Snap start, SegmentIndex.Snap goal,
+			Consumer<GeographicPoint> nodeSearched) {
+		return search(start, goal, nodeSearched, false, null) ;
+	}
+
+	/** Find the shortest path between two locations snapped onto roads 
+	 * with a SegmentIndex, using A-Star search with the ALT heuristic.
+	 *
+	 * @param start The starting location, snapped onto this graph's roads
+	 * @param goal The goal location, snapped onto this graph's roads
+	 * @param nodeSearched A hook for visualization, called on each settled intersection.
+	 * @param landmarks Landmark tables built for this graph, or null to 
+	 *   use the straight line distance alone
+	 * @return The route from the snapped start, through the intersections
+	 *   on the path, to the snapped goal, or an empty route if goal is not
+	 *   reachable.  Its first and last legs run part way along their edges.
+	 * @throws IllegalArgumentException If landmarks were built for another graph
+	 */
+	public RouteResult aStarSearch(SegmentIndex.Snap start, SegmentIndex.Snap goal,
+			Consumer<GeographicPoint> nodeSearched, Landmarks landmarks) {
+		if(landmarks != null && landmarks.getGraph() != this)
+			throw new IllegalArgumentException("Landmarks were built for a different graph!") ;
+		return search(start, goal, nodeSearched, true, landmarks) ;
+	}
+
+
+	/**
+	 * Find the costs of the cheapest paths from one location to many,
+	 * with a single Dijkstra search that stops once every target is settled.
+	 * @param source The starting location
+	 * @param targets The goal locations
+	 * @return The cost of the cheapest path to each target, in 
+	 *   the order given, or infinity where there is none (or where a 
+	 *   location is not an intersection)
+	 */
+	public double[] oneToMany(GeographicPoint source, List<GeographicPoint> targets) {
+		return distanceTable(Collections.singletonList(source), targets)[0] ;
+	}
+
+	/**
+	 * Find the costs of the cheapest paths from every source to every
+	 * target, which are their lengths unless a cost model is set.  Each source runs one Dijkstra search that stops once every
+	 * target is settled, and the sources are spread over the common 
+	 * fork-join pool; each thread searches in its own context.
+	 * @param sources The starting locations
+	 * @param targets The goal locations
+	 * @return table[i][j] is the cost of the cheapest path from 
+	 *   sources[i] to targets[j], or infinity where there is none (or 
+	 *   where a location is not an intersection)
+	 */
+	public double[][] distanceTable(List<GeographicPoint> sources, List<GeographicPoint> targets) {
+		int[] sourceIds = vertexIds(sources) ;
+		int[] targetIds = vertexIds(targets) ;
+		boolean[] isTarget = new boolean[numVertices] ;
+		int distinct = 0 ;
+		for(int t : targetIds) {
+			if(t >= 0 && !isTarget[t]) {
+				isTarget[t] = true ;
+				distinct++ ;
+			}
+		}
+
+		double[][] table = new double[sourceIds.length][targetIds.length] ;
+		int numTargets = distinct ;
+		IntStream.range(0, sourceIds.length).parallel().forEach(i ->
+				settleTargets(sourceIds[i], targetIds, isTarget, numTargets, table[i])) ;
+		return table ;
+	}
+
+	// Dijkstra from source until all numTargets vertices marked in isTarget
+	// are settled; row[j] gets the distance to to[j]
+	private void settleTargets(int source, int[] to, boolean[] isTarget, int numTargets, double[] row) {
+		Arrays.fill(row, Double.POSITIVE_INFINITY) ;
+		if(source < 0)
+			return ;
+
+		SearchContext context = context() ;
+		IndexedHeap pq = context.queue ;
+		DoubleBuffer cost = costs.cost ;
+		context.update(source, 0) ;
+		pq.offer(source, 0) ;
+		int remaining = numTargets ;
+		while(!pq.isEmpty() && remaining > 0) {
+			int curr = pq.poll() ;
+			context.settle(curr) ;
+			if(isTarget[curr])
+				remaining-- ;
+
+			double currDist = context.distance(curr) ;
+			for(int e = offsets.get(curr) ; e < offsets.get(curr + 1) ; e++) {
+				int next = targets.get(e) ;
+				double newDist = currDist + cost.get(e) ;
+				if(newDist < context.distance(next) && !context.isSettled(next)) {
+					context.update(next, newDist) ;
+					pq.offer(next, newDist) ;
+				}
+			}
+		}
+
+		for(int j = 0 ; j < to.length ; j++) {
+			if(to[j] >= 0 && context.isSettled(to[j]))
+				row[j] = context.distance(to[j]) ;
+		}
+	}
+
+	/**
+	 * Find everything reachable from a location within one or more 
+	 * distance budgets with a single Dijkstra search, which stops as soon
+	 * as the next vertex is beyond the largest budget.  Only the vertices
+	 * reached are touched; the search state is reset by the per-thread
+	 * context in O(1).
+	 * @param source The starting location
+	 * @param budgets The budgets in the units of the cost model (km by 
+	 *   default), in any order
+	 * @param roads The road geometry to clip segments along, or null to 
+	 *   clip straight lines between intersections
+	 * @return The intersections within the budgets, which is empty if 
+	 *   source is not an intersection
+	 * @throws IllegalArgumentException If there are no budgets, a budget 
+	 *   is negative or not a number, or roads were built for another graph
+	 */
+	public Isochrone isochrone(GeographicPoint source, double[] budgets, SegmentIndex roads) {
+		if(budgets.length == 0)
+			throw new IllegalArgumentException("At least one budget is needed!") ;
+		double[] sorted = budgets.clone() ;
+		Arrays.sort(sorted) ;
+		if(!(sorted[0] >= 0) || Double.isNaN(sorted[sorted.length - 1]))
+			throw new IllegalArgumentException("Budgets must not be negative!") ;
+		if(roads != null && roads.getGraph() != this)
+			throw new IllegalArgumentException("Road segments were indexed for a different graph!") ;
+
+		double limit = sorted[sorted.length - 1] ;
+		DoubleBuffer cost = costs.cost ;
+		int[] settled = new int[16] ;
+		double[] distances = new double[16] ;
+		int count = 0 ;
+		int start = source == null ? -1 : indexOf(source) ;
+		if(start >= 0) {
+			SearchContext context = context() ;
+			IndexedHeap pq = context.queue ;
+			context.update(start, 0) ;
+			pq.offer(start, 0) ;
+			while(!pq.isEmpty() && pq.peekKey() <= limit) {
+				int curr = pq.poll() ;
+				context.settle(curr) ;
+				double currDist = context.distance(curr) ;
+				if(count == settled.length) {
+					settled = Arrays.copyOf(settled, count * 2) ;
+					distances = Arrays.copyOf(distances, count * 2) ;
+				}
+				settled[count] = curr ;
+				distances[count] = currDist ;
+				count++ ;
+
+				for(int e = offsets.get(curr) ; e < offsets.get(curr + 1) ; e++) {
+					int next = targets.get(e) ;
+					double newDist = currDist + cost.get(e) ;
+					if(newDist < context.distance(next) && !context.isSettled(next)) {
+						context.update(next, newDist) ;
+						pq.offer(next, newDist) ;
+					}
+				}
+			}
+		}
+		return new Isochrone(this, roads, cost, sorted, Arrays.copyOf(settled, count),
+				Arrays.copyOf(distances, count)) ;
+	}
+
+	// The vertex id of each location, -1 for those that are not vertices
+	int[] vertexIds(List<GeographicPoint> locations) {
+		int[] ids = new int[locations.size()] ;
+		int i = 0 ;
+		for(GeographicPoint location : locations)
+			ids[i++] = location == null ? -1 : indexOf(location) ;
+		return ids ;
+	}
+
+	/** Find the path from start to goal with bidirectional Dijkstra
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @return The list of intersections that form the shortest path from
+	 *   start to goal (including both start and goal).
+	 */
+	public RouteResult bidirectionalDijkstra(GeographicPoint start, GeographicPoint goal) {
+		Consumer<GeographicPoint> temp = IGNORE ;
+		return bidirectionalDijkstra(start, goal, temp) ;
+	}
+
+	/** Find the path from start to goal with bidirectional Dijkstra: one
+	 * search runs forward from start and one runs backward from goal over 
+	 * the incoming edges, until they meet.
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param nodeSearched A hook for visualization, called on each settled
+	 *   intersection of either search.
+	 * @return The list of intersections that form the shortest path from
+	 *   start to goal (including both start and goal), or an empty list
+	 *   if goal is not reachable.
+	 */
+	public RouteResult bidirectionalDijkstra(GeographicPoint start,
+			GeographicPoint goal, Consumer<GeographicPoint> nodeSearched) {
+		return bidirectionalSearch(start, goal, nodeSearched, false) ;
+	}
+
+	/** Find the path from start to goal with bidirectional A-Star search
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @return The list of intersections that form the shortest path from
+	 *   start to goal (including both start and goal).
+	 */
+	public RouteResult bidirectionalAStar(GeographicPoint start, GeographicPoint goal) {
+		Consumer<GeographicPoint> temp = IGNORE ;
+		return bidirectionalAStar(start, goal, temp) ;
+	}
+
+	/** Find the path from start to goal with bidirectional A-Star search.
+	 * Both searches use the average of the straight line distances to goal 
+	 * and from start as their potential, which keeps them consistent with 
+	 * each other so the usual stopping criterion stays correct.
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param nodeSearched A hook for visualization, called on each settled
+	 *   intersection of either search.
+	 * @return The list of intersections that form the shortest path from
+	 *   start to goal (including both start and goal), or an empty list
+	 *   if goal is not reachable.
+	 */
+	public RouteResult bidirectionalAStar(GeographicPoint start,
+			GeographicPoint goal, Consumer<GeographicPoint> nodeSearched) {
+		return bidirectionalSearch(start, goal, nodeSearched, true) ;
+	}
+
+	// Dijkstra's algorithm, or A* when aStar is set, with landmark bounds
+	// if landmarks is not null
+	private RouteResult search(GeographicPoint start, GeographicPoint goal,
+			Consumer<GeographicPoint> nodeSearched, boolean aStar, Landmarks landmarks) {
+
+		int source = indexOf(start) ;
+		int target = indexOf(goal) ;
+		if(source < 0 || target < 0 
+				|| search(source, target, nodeSearched, aStar, landmarks, true) == Double.POSITIVE_INFINITY)
+			return new RouteResult(this, costs, new int[0]) ;
+		return buildPath(contexts.get(), source, target) ;
+	}
+
+	/**
+	 * Dijkstra's algorithm, or A* when aStar is set, between two vertices.
+	 * The relaxation loop only reads the targets and cost arrays, so no 
+	 * edge objects are touched, and nothing is allocated.  With parents 
+	 * set, the parents are left in the calling thread's context for 
+	 * lastPath; without, none are written at all.
+	 * @return The cost of the cheapest path, or infinity if there is none
+	 */
+	double search(int source, int target, Consumer<GeographicPoint> nodeSearched, 
+			boolean aStar, Landmarks landmarks, boolean parents) {
+
+		SearchContext context = context() ;
+		IndexedHeap pq = context.queue ;
+		EdgeCosts c = costs ;
+		DoubleBuffer cost = c.cost ;
+		context.costs = c ;
+
+		context.update(source, 0, source) ;
+		pq.offer(source, aStar ? heuristic(source, target, landmarks, c.scale) : 0) ;
+
+		while(!pq.isEmpty()) {
+			int curr = pq.poll() ;
+			context.settle(curr) ;
+			if(nodeSearched != IGNORE)
+				nodeSearched.accept(getLocation(curr)) ;
+
+			if(curr == target)
+				return context.distance(curr) ;
+
+			double currDist = context.distance(curr) ;
+			for(int e = offsets.get(curr) ; e < offsets.get(curr + 1) ; e++) {
+				int next = targets.get(e) ;
+				double newDist = currDist + cost.get(e) ;
+				if(newDist < context.distance(next) && !context.isSettled(next)) {
+					if(parents)
+						context.update(next, newDist, curr) ;
+					else
+						context.update(next, newDist) ;
+					double h = aStar ? heuristic(next, target, landmarks, c.scale) : 0 ;
+					pq.offer(next, newDist + h) ;
+				}
+			}
+		}
+
+		return Double.POSITIVE_INFINITY ;
+	}
+
+	/**
+	 * @return The path found by the last search(source, target, ...) made
+	 *   with parents by the calling thread, which must have reached target
+	 */
+	RouteResult lastPath(int source, int target) {
+		return buildPath(contexts.get(), source, target) ;
+	}
+
+	/**
+	 * @return The vertex ids of the path found by the last search(source, 
+	 *   target, ...) made with parents by the calling thread, which must 
+	 *   have reached target
+	 */
+	int[] lastPathIds(int source, int target) {
+		return pathIds(contexts.get(), source, target) ;
+	}
+
+	// Dijkstra or A* between points part way along edges.  The sources 
+	// are the ends of the start's edges, at the remaining part of each 
+	// edge, and a path ends at the goal as soon as the source of one of 
+	// its edges is settled; the search stops once no queued vertex can 
+	// lead to a shorter path than the best one found.
+	private RouteResult search(SegmentIndex.Snap start, SegmentIndex.Snap goal,
+			Consumer<GeographicPoint> nodeSearched, boolean aStar, Landmarks landmarks) {
+
+		SearchContext context = context() ;
+		IndexedHeap pq = context.queue ;
+		EdgeCosts c = costs ;
+		DoubleBuffer cost = c.cost ;
+		context.costs = c ;
+		double goalLat = goal.getLocation().getX() ;
+		double goalLon = goal.getLocation().getY() ;
+
+		//start and goal on the same edge, with the goal further along it
+		double best = Double.POSITIVE_INFINITY ;
+		int bestEdge = -1 ; //index into goal.edges, or -1 for the direct path
+		int directEdge = -1 ;
+		double directKm = 0 ;
+		for(int i = 0 ; i < start.edges.length ; i++) {
+			for(int j = 0 ; j < goal.edges.length ; j++) {
+				if(start.edges[i] == goal.edges[j] && start.offsets[i] <= goal.offsets[j]) {
+					double direct = part(c, goal.edges[j], goal.offsets[j] - start.offsets[i]) ;
+					if(direct < best) {
+						best = direct ;
+						directEdge = goal.edges[j] ;
+						directKm = goal.offsets[j] - start.offsets[i] ;
+					}
+				}
+			}
+		}
+
+		//sources are their own parents, which is where buildPath stops
+		for(int i = 0 ; i < start.edges.length ; i++) {
+			int e = start.edges[i] ;
+			int v = targets.get(e) ;
+			double dist = part(c, e, weights.get(e) - start.offsets[i]) ;
+			if(dist < context.distance(v)) {
+				context.update(v, dist, v) ;
+				pq.offer(v, dist + (aStar ? heuristic(v, goal, goalLat, goalLon, landmarks, c.scale) : 0)) ;
+			}
+		}
+
+		while(!pq.isEmpty() && pq.peekKey() < best) {
+			int curr = pq.poll() ;
+			context.settle(curr) ;
+			if(nodeSearched != IGNORE)
+				nodeSearched.accept(getLocation(curr)) ;
+
+			double currDist = context.distance(curr) ;
+			for(int j = 0 ; j < goal.edges.length ; j++) {
+				double through = currDist + part(c, goal.edges[j], goal.offsets[j]) ;
+				if(goal.sources[j] == curr && through < best) {
+					best = through ;
+					bestEdge = j ;
+				}
+			}
+
+			for(int e = offsets.get(curr) ; e < offsets.get(curr + 1) ; e++) {
+				int next = targets.get(e) ;
+				double newDist = currDist + cost.get(e) ;
+				if(newDist < context.distance(next) && !context.isSettled(next)) {
+					context.update(next, newDist, curr) ;
+					double h = aStar ? heuristic(next, goal, goalLat, goalLon, landmarks, c.scale) : 0 ;
+					pq.offer(next, newDist + h) ;
+				}
+			}
+		}
+
+		if(best == Double.POSITIVE_INFINITY)
+			return new RouteResult(this, c, new int[0]) ;
+		GeographicPoint from = start.getLocation() ;
+		GeographicPoint to = goal.getLocation() ;
+		if(bestEdge < 0) {
+			if(from.equals(to))
+				return new RouteResult(this, c, from, -1, 0, new int[0], null, -1, 0) ;
+			return new RouteResult(this, c, from, directEdge, directKm, new int[0], to, -1, 0) ;
+		}
+
+		//the virtual legs from the start to the first intersection, which
+		//is its own parent, and from the last intersection to the goal
+		int source = goal.sources[bestEdge] ;
+		int first = source ;
+		while(context.parent(first) != first)
+			first = context.parent(first) ;
+		int startEdge = -1 ;
+		double startKm = 0 ;
+		for(int i = 0 ; i < start.edges.length ; i++) {
+			int e = start.edges[i] ;
+			double km = weights.get(e) - start.offsets[i] ;
+			if(targets.get(e) == first && (startEdge < 0 || part(c, e, km) < part(c, startEdge, startKm))) {
+				startEdge = e ;
+				startKm = km ;
+			}
+		}
+		return new RouteResult(this, c, from.equals(getLocation(first)) ? null : from, startEdge, startKm,
+				pathIds(context, first, source), to.equals(getLocation(source)) ? null : to,
+				goal.edges[bestEdge], goal.offsets[bestEdge]) ;
+	}
+
+	// A* estimate of the cost from v to a goal part way along edges:
+	// the straight line distance, or with landmarks the smallest bound 
+	// through the source of any of the goal's edges, times the smallest 
+	// cost per km
+	private double heuristic(int v, SegmentIndex.Snap goal, double goalLat, double goalLon,
+			Landmarks landmarks, double scale) {
+		double h = GeographicPoint.distance(lat[v], lon[v], goalLat, goalLon) ;
+		if(landmarks != null) {
+			double bound = Double.POSITIVE_INFINITY ;
+			for(int j = 0 ; j < goal.edges.length ; j++)
+				bound = Math.min(bound, landmarks.lowerBound(v, goal.sources[j]) + goal.offsets[j]) ;
+			h = Math.max(h, bound) ;
+		}
+		return h * scale ;
+	}
+
+	// A* estimate of the cost from v to target: a lower bound on the 
+	// distance, times the smallest cost per km of any edge
+	private double heuristic(int v, int target, Landmarks landmarks, double scale) {
+		double h = GeographicPoint.distance(lat[v], lon[v], lat[target], lon[target]) ;
+		if(landmarks != null)
+			h = Math.max(h, landmarks.lowerBound(v, target)) ;
+		return h * scale ;
+	}
+
+	// Bidirectional Dijkstra, or bidirectional A* when aStar is set.
+	//
+	// mu is the length of the best path found so far through a vertex 
+	// reached by both searches.  Keys are dF(v) + p(v) forward and 
+	// dB(v) - p(v) backward, where p is 0 for Dijkstra and the average
+	// potential (h_goal(v) - h_start(v)) / 2 for A*.  Since the two 
+	// potentials sum to zero, no shorter path can exist once the two 
+	// smallest keys add up to mu.
+	private RouteResult bidirectionalSearch(GeographicPoint start, GeographicPoint goal,
+			Consumer<GeographicPoint> nodeSearched, boolean aStar) {
+
+		int source = indexOf(start) ;
+		int target = indexOf(goal) ;
+		EdgeCosts c = costs ;
+		if(source < 0 || target < 0)
+			return new RouteResult(this, c, new int[0]) ;
+
+		ReverseEdges in = reverse() ;
+		SearchContext forward = context() ;
+		SearchContext backward = forward.backward() ;
+		IndexedHeap fq = forward.queue ;
+		IndexedHeap bq = backward.queue ;
+		DoubleBuffer cost = c.cost ;
+		double scale = aStar ? c.scale : 0 ;
+
+		forward.update(source, 0, source) ;
+		backward.update(target, 0, target) ;
+		fq.offer(source, potential(source, source, target, scale)) ;
+		bq.offer(target, -potential(target, source, target, scale)) ;
+
+		double mu = source == target ? 0 : Double.POSITIVE_INFINITY ;
+		int meet = source == target ? source : -1 ;
+
+		while(!fq.isEmpty() && !bq.isEmpty()) {
+			if(fq.peekKey() + bq.peekKey() >= mu)
+				break ;
+
+			if(fq.peekKey() <= bq.peekKey()) {
+				int curr = fq.poll() ;
+				forward.settle(curr) ;
+				if(nodeSearched != IGNORE)
+					nodeSearched.accept(getLocation(curr)) ;
+
+				double currDist = forward.distance(curr) ;
+				for(int e = offsets.get(curr) ; e < offsets.get(curr + 1) ; e++) {
+					int next = targets.get(e) ;
+					double newDist = currDist + cost.get(e) ;
+					if(newDist < forward.distance(next) && !forward.isSettled(next)) {
+						forward.update(next, newDist, curr) ;
+						fq.offer(next, newDist + potential(next, source, target, scale)) ;
+					}
+					double through = forward.distance(next) + backward.distance(next) ;
+					if(through < mu) {
+						mu = through ;
+						meet = next ;
+					}
+				}
+			}
+			else {
+				int curr = bq.poll() ;
+				backward.settle(curr) ;
+				if(nodeSearched != IGNORE)
+					nodeSearched.accept(getLocation(curr)) ;
+
+				double currDist = backward.distance(curr) ;
+				for(int i = in.offsets[curr] ; i < in.offsets[curr + 1] ; i++) {
+					int prev = in.sources[i] ;
+					double newDist = currDist + cost.get(in.edges[i]) ;
+					if(newDist < backward.distance(prev) && !backward.isSettled(prev)) {
+						backward.update(prev, newDist, curr) ;
+						bq.offer(prev, newDist - potential(prev, source, target, scale)) ;
+					}
+					double through = forward.distance(prev) + backward.distance(prev) ;
+					if(through < mu) {
+						mu = through ;
+						meet = prev ;
+					}
+				}
+			}
+		}
+
+		forward.settledCount += backward.settledCount ;
+		if(meet < 0)
+			return new RouteResult(this, c, new int[0]) ;
+
+		//forward parents lead from meet back to source, and 
+		//backward parents lead from meet on to target
+		int[] half = pathIds(forward, source, meet) ;
+		int length = half.length ;
+		for(int curr = meet ; curr != target ; curr = backward.parent(curr))
+			length++ ;
+		int[] path = Arrays.copyOf(half, length) ;
+		for(int curr = meet, i = half.length ; curr != target ; i++) {
+			curr = backward.parent(curr) ;
+			path[i] = curr ;
+		}
+		return new RouteResult(this, c, path) ;
+	}
+
+	// The average potential of v for a bidirectional search from source 
+	// to target, with distances scaled to costs; 0 when scale is 0
+	private double potential(int v, int source, int target, double scale) {
+		if(scale == 0)
+			return 0 ;
+		double toGoal = GeographicPoint.distance(lat[v], lon[v], lat[target], lon[target]) ;
+		double fromStart = GeographicPoint.distance(lat[source], lon[source], lat[v], lon[v]) ;
+		return (toGoal - fromStart) / 2 * scale ;
+	}
+
+	/**
+	 * The incoming edges of every vertex, in CSR form: the edges into v 
+	 * are offsets[v] .. offsets[v+1]-1, and entry i is the edge edges[i] 
+	 * from sources[i].  Edge ids refer to the forward arrays, so weights
+	 * and road names are shared with them.
+	 */
+	static class ReverseEdges {
+		final int[] offsets ;
+		final int[] sources ;
+		final int[] edges ;
+
+		ReverseEdges(int[] offsets, int[] sources, int[] edges) {
+			this.offsets = offsets ;
+			this.sources = sources ;
+			this.edges = edges ;
+		}
+	}
+
+	/** @return The incoming edges of every vertex, built on first use */
+	ReverseEdges reverse() {
+		ReverseEdges result = reverse ;
+		if(result == null) {
+			synchronized(this) {
+				result = reverse ;
+				if(result == null) {
+					result = buildReverse() ;
+					reverse = result ;
+				}
+			}
+		}
+		return result ;
+	}
+
+	// A whole-graph search and the closed flags it left out
+	private static class HopSearch {
+		final boolean[] closed ;
+		final DirectionOptimizingBFS search ;
+
+		HopSearch(boolean[] closed, DirectionOptimizingBFS search) {
+			this.closed = closed ;
+			this.search = search ;
+		}
+	}
+
+	/**
+	 * A direction-optimizing breadth first search over the whole graph,
+	 * for hop distance histograms and connectivity checks by vertex id.
+	 * It is built on first use and again after edges are closed or
+	 * reopened, and leaves out the edges closed at that time.
+	 * @return The search
+	 */
+	public DirectionOptimizingBFS hopSearch() {
+		boolean[] closed = costs.closed ;
+		HopSearch result = hopSearch ;
+		if(result == null || result.closed != closed) {
+			int[] open = new int[numVertices + 1] ;
+			int[] to = new int[numEdges] ;
+			int count = 0 ;
+			for(int v = 0 ; v < numVertices ; v++) {
+				for(int e = offsets.get(v) ; e < offsets.get(v + 1) ; e++) {
+					if(closed == null || !closed[e])
+						to[count++] = targets.get(e) ;
+				}
+				open[v + 1] = count ;
+			}
+			if(count < numEdges)
+				to = Arrays.copyOf(to, count) ;
+			result = new HopSearch(closed, new DirectionOptimizingBFS(numVertices, open, to)) ;
+			hopSearch = result ;
+		}
+		return result.search ;
+	}
+
+	/** @return An R-tree over the vertices of this graph, built on first use */
+	public SpatialIndex spatialIndex() {
+		SpatialIndex result = spatialIndex ;
+		if(result == null) {
+			synchronized(this) {
+				result = spatialIndex ;
+				if(result == null) {
+					result = new SpatialIndex(this) ;
+					spatialIndex = result ;
+				}
+			}
+		}
+		return result ;
+	}
+
+	private ReverseEdges buildReverse() {
+		int[] inOffsets = new int[numVertices + 1] ;
+		for(int e = 0 ; e < numEdges ; e++)
+			inOffsets[targets.get(e) + 1]++ ;
+		for(int v = 0 ; v < numVertices ; v++)
+			inOffsets[v + 1] += inOffsets[v] ;
+
+		int[] next = Arrays.copyOf(inOffsets, numVertices) ;
+		int[] sources = new int[numEdges] ;
+		int[] edges = new int[numEdges] ;
+		for(int u = 0 ; u < numVertices ; u++) {
+			for(int e = offsets.get(u) ; e < offsets.get(u + 1) ; e++) {
+				int slot = next[targets.get(e)]++ ;
+				sources[slot] = u ;
+				edges[slot] = e ;
+			}
+		}
+		return new ReverseEdges(inOffsets, sources, edges) ;
+	}
+
+	/**
+	 * Set the arity of the heap used by dijkstra and aStarSearch.  Takes 
+	 * effect from the next search started on each thread.
+	 * @param arity The number of children per heap node, at least 2
+	 * @throws IllegalArgumentException If arity is less than 2
+	 * @throws UnsupportedOperationException If this graph is read-only
+	 */
+	public void setHeapArity(int arity) {
+		checkWritable() ;
+		if(arity < 2)
+			throw new IllegalArgumentException("Heap arity must be at least 2!") ;
+		heapArity = arity ;
+	}
+
+	public int getHeapArity() {
+		return heapArity ;
+	}
+
+	/**
+	 * Set what the searches minimize in place of length.  The model is 
+	 * evaluated once for every edge here, so searches only read an array.
+	 * Takes effect from the next search started on any thread; searches
+	 * already running finish on the costs they started with.
+	 *
+	 * dijkstra, aStarSearch, the bidirectional searches, distance tables 
+	 * and isochrones all follow the model.  A* scales its straight line 
+	 * estimate by the smallest cost per km of any edge, so it stays 
+	 * admissible and finds the same cost as Dijkstra under any model.
+	 * Contraction hierarchies and landmarks are built on lengths.
+	 *
+	 * @param model The cost of each edge from its road name, type and length
+	 * @throws IllegalArgumentException If model is null or gives an edge 
+	 *   a negative or NaN cost
+	 * @throws UnsupportedOperationException If this graph is read-only
+	 */
+	public synchronized void setCostModel(CostModel model) {
+		checkWritable() ;
+		if(model == null)
+			throw new IllegalArgumentException("Cost model must not be null!") ;
+		EdgeCosts c = costs ;
+		if(model == CostModel.DISTANCE && c.lengths == weights && c.closed == null) {
+			costs = new EdgeCosts(model, weights, weights, null, 1, 1) ;
+			return ;
+		}
+		double[] cost = new double[numEdges] ;
+		double scale = Double.POSITIVE_INFINITY ;
+		double shrink = 1 ;
+		for(int e = 0 ; e < numEdges ; e++) {
+			cost[e] = cost(model, e, c.lengths.get(e), c.closed != null && c.closed[e]) ;
+			if(weights.get(e) > 0) {
+				scale = Math.min(scale, cost[e] / weights.get(e)) ;
+				shrink = Math.min(shrink, c.lengths.get(e) / weights.get(e)) ;
+			}
+		}
+		costs = new EdgeCosts(model, DoubleBuffer.wrap(cost), c.lengths, c.closed, 
+				scale == Double.POSITIVE_INFINITY ? 0 : scale, shrink) ;
+	}
+
+	/** @return The cost model the searches minimize, CostModel.DISTANCE by default */
+	public CostModel getCostModel() {
+		return costs.model ;
+	}
+
+	/**
+	 * Change the length of an edge, for example to model roadworks, 
+	 * without rebuilding anything.  See updateEdges.
+	 * @param e An edge id
+	 * @param weight The new length in km
+	 */
+	public void setEdgeWeight(int e, double weight) {
+		updateEdges(new int[] {e}, new double[] {weight}, null) ;
+	}
+
+	/**
+	 * Close an edge to all searches, or open it again.  See updateEdges.
+	 * @param e An edge id
+	 * @param closed Whether the edge is closed
+	 */
+	public void setEdgeClosed(int e, boolean closed) {
+		updateEdges(new int[] {e}, null, new boolean[] {closed}) ;
+	}
+
+	/**
+	 * Change the lengths of edges and close or reopen them, all at once.
+	 * The cost arrays are copied on write: the new costs are published 
+	 * together, in time linear in the number of edges but with no locks 
+	 * taken by the searches.  Searches already running finish on the 
+	 * costs they started with, and later ones see every change.
+	 *
+	 * Closed edges cost infinity, so no search takes them, and the 
+	 * time-dependent searches of TrafficModel and bfs skip them too.  The 
+	 * A* scale only ever drops on an update, so aStarSearch stays exact 
+	 * with or without landmarks; it is tightened again by setCostModel.
+	 * Contraction hierarchies are repaired for the new lengths and 
+	 * closures by their next query; see ContractionHierarchy.customize.
+	 *
+	 * @param edges The edge ids to update
+	 * @param newWeights The new length in km of each edge, or null to 
+	 *   keep the lengths
+	 * @param closed Whether each edge is closed, or null to keep it as is
+	 * @throws IllegalArgumentException If the arrays are of different 
+	 *   lengths, an edge id is out of range, a length is negative or not 
+	 *   finite, or the cost model gives an edge a negative or NaN cost
+	 * @throws UnsupportedOperationException If this graph is read-only
+	 */
+	public synchronized void updateEdges(int[] edges, double[] newWeights, boolean[] closed) {
+		checkWritable() ;
+		if((newWeights != null && newWeights.length != edges.length) 
+				|| (closed != null && closed.length != edges.length))
+			throw new IllegalArgumentException("Need one update per edge!") ;
+		EdgeCosts c = costs ;
+		DoubleBuffer lengths = newWeights == null ? c.lengths : DoubleBuffer.wrap(toArray(c.lengths)) ;
+		boolean[] isClosed = closed == null ? c.closed 
+				: c.closed == null ? new boolean[numEdges] : c.closed.clone() ;
+		for(int i = 0 ; i < edges.length ; i++) {
+			int e = edges[i] ;
+			if(e < 0 || e >= numEdges)
+				throw new IllegalArgumentException("No edge " + e + "!") ;
+			if(newWeights != null) {
+				if(!(newWeights[i] >= 0) || Double.isInfinite(newWeights[i]))
+					throw new IllegalArgumentException("Length of edge " + e + " must be finite and not negative!") ;
+				lengths.put(e, newWeights[i]) ;
+			}
+			if(closed != null)
+				isClosed[e] = closed[i] ;
+		}
+
+		double[] cost = toArray(c.cost) ;
+		double scale = c.scale ;
+		double shrink = c.shrink ;
+		for(int e : edges) {
+			cost[e] = cost(c.model, e, lengths.get(e), isClosed != null && isClosed[e]) ;
+			if(weights.get(e) > 0) {
+				scale = Math.min(scale, cost[e] / weights.get(e)) ;
+				shrink = Math.min(shrink, lengths.get(e) / weights.get(e)) ;
+			}
+		}
+		costs = new EdgeCosts(c.model, DoubleBuffer.wrap(cost), lengths, isClosed, scale, shrink) ;
+	}
+
+	// A heap copy of a whole buffer, to be changed and wrapped anew
+	private static double[] toArray(DoubleBuffer buffer) {
+		double[] result = new double[buffer.capacity()] ;
+		for(int i = 0 ; i < result.length ; i++)
+			result[i] = buffer.get(i) ;
+		return result ;
+	}
+
+	/** @return The length of edge e in km after any updates */
+	public double getCurrentWeight(int e) {
+		return costs.lengths.get(e) ;
+	}
+
+	/** @return Whether edge e is closed */
+	public boolean isClosed(int e) {
+		boolean[] closed = costs.closed ;
+		return closed != null && closed[e] ;
+	}
+
+	/** @return What edge e costs the searches, infinity when it is closed */
+	public double getCost(int e) {
+		return costs.cost.get(e) ;
+	}
+
+	// The cost of edge e at a length, checked
+	private double cost(CostModel model, int e, double length, boolean closed) {
+		if(closed)
+			return Double.POSITIVE_INFINITY ;
+		double cost = model.cost(nameTable[roadNames[e]], typeTable[roadTypes[e]], length) ;
+		if(!(cost >= 0))
+			throw new IllegalArgumentException("Cost of edge " + e + " is " + cost + "!") ;
+		return cost ;
+	}
+
+	/** @return The current edge costs; read once per search */
+	EdgeCosts costs() {
+		return costs ;
+	}
+
+	/**
+	 * A snapshot of what the searches minimize: the cost of every edge 
+	 * under a model, with the updates made to the graph since it was 
+	 * built.  A new snapshot replaces the old one on every change, so a
+	 * search that reads it once sees a consistent graph throughout.
+	 */
+	static class EdgeCosts {
+		final CostModel model ;
+		final DoubleBuffer cost ; //what the searches add up, infinite on closed edges
+		final DoubleBuffer lengths ; //length of each edge after updates
+		final boolean[] closed ; //null while no edge was ever closed
+		final double scale ; //at most the cost per built km of any edge, for A*
+		final double shrink ; //at most the updated over built length of any edge, at most 1
+
+		EdgeCosts(CostModel model, DoubleBuffer cost, DoubleBuffer lengths, boolean[] closed, 
+				double scale, double shrink) {
+			this.model = model ;
+			this.cost = cost ;
+			this.lengths = lengths ;
+			this.closed = closed ;
+			this.scale = scale ;
+			this.shrink = shrink ;
+		}
+	}
+
+	// The cost of the first km of edge e (in built length), in 
+	// proportion to its whole cost
+	double part(EdgeCosts c, int e, double km) {
+		if(c.cost == weights)
+			return km ;
+		return km <= 0 || c.cost.get(e) == 0 ? 0 : c.cost.get(e) * km / weights.get(e) ;
+	}
+
+	// The calling thread's search context, reset for a new query
+	SearchContext context() {
+		SearchContext context = contexts.get() ;
+		context.begin(heapArity) ;
+		return context ;
+	}
+
+	/**
+	 * @return The number of vertices settled by the last Dijkstra or A* 
+	 *   search run on this graph by the calling thread
+	 */
+	public int getLastSettledCount() {
+		return contexts.get().settledCount ;
+	}
+
+	// Walk the parents back from target to source, on the costs the
+	// search that left them ran on
+	private RouteResult buildPath(SearchContext context, int source, int target) {
+		return new RouteResult(this, context.costs, pathIds(context, source, target)) ;
+	}
+
+	// The vertex ids from source to target, by the parents in context
+	private static int[] pathIds(SearchContext context, int source, int target) {
+		int length = 1 ;
+		for(int v = target ; v != source ; v = context.parent(v))
+			length++ ;
+		int[] path = new int[length] ;
+		for(int v = target, i = length - 1 ; i >= 0 ; v = context.parent(v), i--)
+			path[i] = v ;
+		return path ;
+	}
+
+	// Order on (lat, lon), used both for numbering vertices and for indexOf
+	static int compare(double lat1, double lon1, double lat2, double lon2) {
+		if(lat1 < lat2) return -1 ;
+		if(lat1 > lat2) return 1 ;
+		if(lon1 < lon2) return -1 ;
+		if(lon1 > lon2) return 1 ;
+		return 0 ;
+	}
+
+
+	/**
+	 * Collects vertices and edges and packs them into a CompactGraph.
+	 * Used by GraphLoader to load a .map file straight into CSR form
+	 * without creating MapNode and MapEdge objects.
+	 */
+	public static class Builder {
+
+		private HashMap<GeographicPoint, Integer> vertexIds = new HashMap<GeographicPoint, Integer>() ;
+		private double[] vLat = new double[64] ;
+		private double[] vLon = new double[64] ;
+		private int numVertices = 0 ;
+
+		private int[] from = new int[64] ;
+		private int[] to = new int[64] ;
+		private double[] length = new double[64] ;
+		private int[] name = new int[64] ;
+		private int[] type = new int[64] ;
+		private int numEdges = 0 ;
+
+		private HashMap<String, Integer> names = new HashMap<String, Integer>() ;
+		private HashMap<String, Integer> types = new HashMap<String, Integer>() ;
+
+		/** Add a vertex at location, unless there already is one.
+		 * @return true if a vertex was added
+		 */
+		public boolean addVertex(GeographicPoint location) {
+			if(location == null || vertexIds.containsKey(location))
+				return false ;
+			if(numVertices == vLat.length) {
+				vLat = Arrays.copyOf(vLat, numVertices * 2) ;
+				vLon = Arrays.copyOf(vLon, numVertices * 2) ;
+			}
+			vLat[numVertices] = location.getX() ;
+			vLon[numVertices] = location.getY() ;
+			vertexIds.put(location, numVertices++) ;
+			return true ;
+		}
+
+		/** Add a directed edge.  Both end points must already have been added.
+		 * @throws IllegalArgumentException If either point is not a vertex,
+		 *   any argument is null, or length is less than 0.
+		 */
+		public void addEdge(GeographicPoint start, GeographicPoint end, String roadName,
+				String roadType, double len) throws IllegalArgumentException {
+
+			if(start == null || end == null || roadName == null || roadType == null)
+				throw new IllegalArgumentException("Arguments to addEdge method cannot be null!") ;
+			if(len < 0)
+				throw new IllegalArgumentException("Length of road cannot be less than zero!") ;
+
+			Integer u = vertexIds.get(start) ;
+			Integer v = vertexIds.get(end) ;
+			if(u == null || v == null)
+				throw new IllegalArgumentException("Both end points must be added before the edge!") ;
+
+			if(numEdges == from.length) {
+				int cap = numEdges * 2 ;
+				from = Arrays.copyOf(from, cap) ;
+				to = Arrays.copyOf(to, cap) ;
+				length = Arrays.copyOf(length, cap) ;
+				name = Arrays.copyOf(name, cap) ;
+				type = Arrays.copyOf(type, cap) ;
+			}
+			from[numEdges] = u ;
+			to[numEdges] = v ;
+			length[numEdges] = len ;
+			name[numEdges] = intern(names, roadName) ;
+			type[numEdges] = intern(types, roadType) ;
+			numEdges++ ;
+		}
+
+		private static int intern(HashMap<String, Integer> table, String s) {
+			Integer id = table.get(s) ;
+			if(id == null) {
+				id = table.size() ;
+				table.put(s, id) ;
+			}
+			return id ;
+		}
+
+		private static String[] toArray(HashMap<String, Integer> table) {
+			String[] strings = new String[table.size()] ;
+			for(Map.Entry<String, Integer> entry : table.entrySet())
+				strings[entry.getValue()] = entry.getKey() ;
+			return strings ;
+		}
+
+		/**
+		 * Pack everything added so far into a new CompactGraph.
+		 * @return The frozen graph
+		 */
+		public CompactGraph build() {
+			int n = numVertices ;
+			int m = numEdges ;
+
+			//number the vertices in (lat, lon) order
+			Integer[] order = new Integer[n] ;
+			for(int i = 0 ; i < n ; i++)
+				order[i] = i ;
+			Arrays.sort(order, (a, b) -> compare(vLat[a], vLon[a], vLat[b], vLon[b])) ;
+			int[] newId = new int[n] ;
+			double[] lat = new double[n] ;
+			double[] lon = new double[n] ;
+			for(int i = 0 ; i < n ; i++) {
+				newId[order[i]] = i ;
+				lat[i] = vLat[order[i]] ;
+				lon[i] = vLon[order[i]] ;
+			}
+
+			//counting sort of the edges by start vertex, which keeps
+			//the edges of each vertex in the order they were added
+			int[] offsets = new int[n + 1] ;
+			for(int e = 0 ; e < m ; e++)
+				offsets[newId[from[e]] + 1]++ ;
+			for(int v = 0 ; v < n ; v++)
+				offsets[v + 1] += offsets[v] ;
+
+			int[] next = Arrays.copyOf(offsets, n) ;
+			int[] targets = new int[m] ;
+			double[] weights = new double[m] ;
+			int[] roadNames = new int[m] ;
+			int[] roadTypes = new int[m] ;
+			for(int e = 0 ; e < m ; e++) {
+				int slot = next[newId[from[e]]]++ ;
+				targets[slot] = newId[to[e]] ;
+				weights[slot] = length[e] ;
+				roadNames[slot] = name[e] ;
+				roadTypes[slot] = type[e] ;
+			}
+
+			return new CompactGraph(lat, lon, offsets, targets, weights,
+					roadNames, roadTypes, toArray(names), toArray(types)) ;
+		}
+	}
+
+
+	// Dijkstra over the MapNodes and MapEdges of map, with hash maps for
+	// distances and the visited set as MapGraph searched before it used
+	// a CompactGraph; returns the length of the shortest path
+	private static double referenceDijkstra(MapGraph map, GeographicPoint start, GeographicPoint goal) {
+		MapNode source = map.nodeList.get(start) ;
+		MapNode target = map.nodeList.get(goal) ;
+		HashMap<MapNode,Double> distance = new HashMap<MapNode,Double>() ;
+		HashSet<MapNode> visited = new HashSet<MapNode>() ;
+		PriorityQueue<Map.Entry<MapNode,Double>> pq = new PriorityQueue<Map.Entry<MapNode,Double>>(
+				(a, b) -> Double.compare(a.getValue(), b.getValue())) ;
+
+		distance.put(source, 0.0) ;
+		pq.offer(new AbstractMap.SimpleEntry<MapNode,Double>(source, 0.0)) ;
+		while(!pq.isEmpty()) {
+			Map.Entry<MapNode,Double> curr = pq.poll() ;
+			MapNode node = curr.getKey() ;
+			if(!visited.add(node))
+				continue ;
+			if(node == target)
+				return curr.getValue() ;
+			for(MapEdge edge : node.getEdgeList()) {
+				MapNode next = edge.getEndNode() ;
+				double newDist = curr.getValue() + edge.getWeight() ;
+				Double old = distance.get(next) ;
+				if(!visited.contains(next) && (old == null || newDist < old)) {
+					distance.put(next, newDist) ;
+					pq.offer(new AbstractMap.SimpleEntry<MapNode,Double>(next, newDist)) ;
+				}
+			}
+		}
+		return Double.POSITIVE_INFINITY ;
+	}
+
+	public static void main(String[] args) {
+		String[] maps = {"data/maps/utc.map", "data/maps/san_diego.map",
+				"data/maps/new_york.map", "data/maps/hollywood_large.map"} ;
+
+		for(String file : maps) {
+			MapGraph theMap = new MapGraph() ;
+			GraphLoader.loadRoadMap(file, theMap) ;
+
+			Builder builder = new Builder() ;
+			GraphLoader.loadRoadMap(file, builder) ;
+			CompactGraph compact = builder.build() ;
+
+			System.out.println(file + ": " + compact.getNumVertices() + " vertices, "
+					+ compact.getNumEdges() + " edges, about "
+					+ compact.estimateBytes() / Math.max(1, compact.getNumEdges()) + " bytes per edge") ;
+
+			//the CSR search should find routes as cheap as the MapNode one,
+			//which shares no code with it
+			GeographicPoint[] points = theMap.getVertices().toArray(new GeographicPoint[0]) ;
+			int mismatches = 0 ;
+			for(int i = 0 ; i + 1 < points.length && i < 200 ; i += 2) {
+				double expected = referenceDijkstra(theMap, points[i], points[i + 1]) ;
+				double actual = compact.dijkstra(points[i], points[i + 1]).getDistance() ;
+				if(expected != actual && !(Math.abs(expected - actual) <= 1e-9 * expected))
+					mismatches++ ;
+			}
+			System.out.println("  dijkstra cost mismatches against MapNode search: " + mismatches) ;
+
+			//settled vertices of the one- and two-directional searches
+			long[] settled = new long[4] ;
+			for(int i = 0 ; i + 1 < points.length ; i += 2) {
+				compact.dijkstra(points[i], points[i + 1]) ;
+				settled[0] += compact.getLastSettledCount() ;
+				compact.bidirectionalDijkstra(points[i], points[i + 1]) ;
+				settled[1] += compact.getLastSettledCount() ;
+				compact.aStarSearch(points[i], points[i + 1]) ;
+				settled[2] += compact.getLastSettledCount() ;
+				compact.bidirectionalAStar(points[i], points[i + 1]) ;
+				settled[3] += compact.getLastSettledCount() ;
+			}
+			System.out.println("  settled: dijkstra " + settled[0] + ", bidirectional " + settled[1]
+					+ "; aStar " + settled[2] + ", bidirectional " + settled[3]) ;
+		}
+	}
+}
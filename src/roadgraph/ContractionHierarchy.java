@@ -0,0 +1,644 @@
+package roadgraph;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import geography.GeographicPoint;
+import util.GraphLoader;
+
+/**
+ * A contraction hierarchy over a CompactGraph, for answering many
+ * point-to-point queries on a road network that does not change.
+ *
+ * Every vertex has a rank (the order in which it was contracted) and the
+ * hierarchy holds the original edges plus the shortcuts added during
+ * contraction.  A query runs Dijkstra upward from start and upward
+ * (against edge direction) from goal; the searches only ever move to
+ * higher ranked vertices, so they settle a tiny part of the graph.
+ * Shortcuts on the resulting path are then unpacked into the original
+ * edges, so the route is a list of intersections just like the one
+ * returned by MapGraph.dijkstra.
+ *
+ * Build one with build(CompactGraph), which contracts in parallel, and
+ * save it with save(String) to reload it with load(String, CompactGraph)
+ * at the next startup.
+ *
+ * Once edges of the graph are reweighted, closed or reopened, the next
+ * query first repairs the hierarchy for the new lengths, keeping the
+ * vertex order and shortcuts; see ContractionHierarchyCustomizer.  The
+ * repaired edges are published as a whole, so queries already running
+ * finish on the ones they started with.
+ */
+public class ContractionHierarchy {
+
+	private static final int MAGIC = 0x43484732 ; //"CHG2"
+
+	private final CompactGraph graph ;
+	private final int[] rank ;
+	private volatile Arcs arcs ; //for the graph's edges as of the last repair
+
+	private final ThreadLocal<SearchContext> contexts ;
+
+	/**
+	 * The edges of a hierarchy with their weights, for one set of lengths
+	 * and closures of the graph.  Never changed once published: a repair
+	 * builds new ones.
+	 */
+	static class Arcs {
+		final DoubleBuffer lengths ; //the graph's lengths these are for
+		final boolean[] closed ; //and its closed flags, or null
+
+		// hierarchy edges; see ContractionHierarchyBuilder for child1/child2
+		final int[] from ;
+		final int[] to ;
+		final double[] weight ;
+		final int[] child1 ;
+		final int[] child2 ;
+
+		// edges u -> x with rank[x] > rank[u], grouped by u
+		final int[] upOffsets ;
+		final int[] upEdges ;
+		// edges x -> v with rank[x] > rank[v], grouped by v
+		final int[] downOffsets ;
+		final int[] downEdges ;
+
+		Arcs(int[] rank, DoubleBuffer lengths, boolean[] closed,
+				int[] from, int[] to, double[] weight, int[] child1, int[] child2) {
+			this.lengths = lengths ;
+			this.closed = closed ;
+			this.from = from ;
+			this.to = to ;
+			this.weight = weight ;
+			this.child1 = child1 ;
+			this.child2 = child2 ;
+
+			int n = rank.length ;
+			upOffsets = new int[n + 1] ;
+			downOffsets = new int[n + 1] ;
+			for(int e = 0 ; e < from.length ; e++) {
+				if(rank[to[e]] > rank[from[e]])
+					upOffsets[from[e] + 1]++ ;
+				else
+					downOffsets[to[e] + 1]++ ;
+			}
+			for(int v = 0 ; v < n ; v++) {
+				upOffsets[v + 1] += upOffsets[v] ;
+				downOffsets[v + 1] += downOffsets[v] ;
+			}
+			upEdges = new int[upOffsets[n]] ;
+			downEdges = new int[downOffsets[n]] ;
+			int[] upNext = Arrays.copyOf(upOffsets, n) ;
+			int[] downNext = Arrays.copyOf(downOffsets, n) ;
+			for(int e = 0 ; e < from.length ; e++) {
+				if(rank[to[e]] > rank[from[e]])
+					upEdges[upNext[from[e]]++] = e ;
+				else
+					downEdges[downNext[to[e]]++] = e ;
+			}
+		}
+	}
+
+	ContractionHierarchy(CompactGraph graph, DoubleBuffer lengths, boolean[] closed, int[] rank,
+			int[] from, int[] to, double[] weight, int[] child1, int[] child2) {
+		this.graph = graph ;
+		this.rank = rank ;
+		this.arcs = new Arcs(rank, lengths, closed, from, to, weight, child1, child2) ;
+		int n = rank.length ;
+		contexts = ThreadLocal.withInitial(() -> new SearchContext(n, IndexedHeap.DEFAULT_ARITY)) ;
+	}
+
+	/**
+	 * Contract every vertex of graph.  Node ordering and shortcut
+	 * computation run in parallel on the common fork-join pool.
+	 * @param graph The road graph
+	 * @return The hierarchy for graph
+	 */
+	public static ContractionHierarchy build(CompactGraph graph) {
+		return new ContractionHierarchyBuilder(graph).build() ;
+	}
+
+	/** @return The graph this hierarchy was built for */
+	public CompactGraph getGraph() {
+		return graph ;
+	}
+
+	/**
+	 * @return Whether the hierarchy is for the graph's current edge lengths
+	 *   and closures, or the next query repairs it first; a new cost model
+	 *   does not matter, as the hierarchy answers by length
+	 */
+	public boolean isCurrent() {
+		Arcs a = arcs ;
+		CompactGraph.EdgeCosts c = graph.costs() ;
+		return c.lengths == a.lengths && c.closed == a.closed ;
+	}
+
+	/**
+	 * Repair the hierarchy for the graph's current edge lengths and
+	 * closures now, rather than in the next query.
+	 */
+	public void customize() {
+		current() ;
+	}
+
+	// The edges for the graph's current lengths and closures, repaired
+	// first if edges changed since the last repair
+	private Arcs current() {
+		Arcs a = arcs ;
+		CompactGraph.EdgeCosts c = graph.costs() ;
+		if(c.lengths == a.lengths && c.closed == a.closed)
+			return a ;
+		return repair() ;
+	}
+
+	// One repair at a time, each for the newest costs, so a slow one
+	// never publishes edges older than those of another
+	private synchronized Arcs repair() {
+		Arcs a = arcs ;
+		CompactGraph.EdgeCosts c = graph.costs() ;
+		if(c.lengths != a.lengths || c.closed != a.closed) {
+			a = new ContractionHierarchyCustomizer(this, c, a).customize() ;
+			arcs = a ;
+		}
+		return a ;
+	}
+
+	/** @return The rank of vertex v: higher was contracted later */
+	int getRank(int v) {
+		return rank[v] ;
+	}
+
+	/** @return The rank of every vertex */
+	int[] getRanks() {
+		return rank ;
+	}
+
+	/** @return The number of shortcut edges, added during contraction or repairs */
+	public int getNumShortcuts() {
+		int[] child2 = arcs.child2 ;
+		int count = 0 ;
+		for(int e = 0 ; e < child2.length ; e++) {
+			if(child2[e] >= 0)
+				count++ ;
+		}
+		return count ;
+	}
+
+	/**
+	 * @return The number of vertices settled by the last query run on
+	 *   this hierarchy by the calling thread
+	 */
+	public int getLastSettledCount() {
+		return contexts.get().settledCount ;
+	}
+
+	/** Find the shortest path from start to goal
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @return The list of intersections that form the shortest path from
+	 *   start to goal (including both start and goal), or an empty list
+	 *   if goal is not reachable or either point is not an intersection.
+	 */
+	public List<GeographicPoint> shortestPath(GeographicPoint start, GeographicPoint goal) {
+		int source = graph.indexOf(start) ;
+		int target = graph.indexOf(goal) ;
+		if(source < 0 || target < 0)
+			return new LinkedList<GeographicPoint>() ;
+
+		Arcs a = current() ;
+		int[] from = a.from ;
+		int[] to = a.to ;
+		int[] child1 = a.child1 ;
+		int[] child2 = a.child2 ;
+		SearchContext forward = contexts.get() ;
+		int meet = query(a, forward, source, target, Double.POSITIVE_INFINITY) ;
+		if(meet < 0)
+			return new LinkedList<GeographicPoint>() ;
+
+		//collect the hierarchy edges source -> meet -> target, then unpack them
+		LinkedList<Integer> edges = new LinkedList<Integer>() ;
+		for(int v = meet ; v != source ; v = from[forward.parent(v)])
+			edges.addFirst(forward.parent(v)) ;
+		SearchContext backward = forward.backward() ;
+		for(int v = meet ; v != target ; v = to[backward.parent(v)])
+			edges.addLast(backward.parent(v)) ;
+
+		LinkedList<GeographicPoint> path = new LinkedList<GeographicPoint>() ;
+		path.add(graph.getLocation(source)) ;
+		int[] stack = new int[64] ;
+		for(int edge : edges) {
+			int size = 0 ;
+			stack[size++] = edge ;
+			while(size > 0) {
+				int e = stack[--size] ;
+				if(child2[e] < 0) {
+					path.add(graph.getLocation(graph.getTarget(child1[e]))) ;
+				}
+				else {
+					if(size + 2 > stack.length)
+						stack = Arrays.copyOf(stack, stack.length * 2) ;
+					stack[size++] = child2[e] ;
+					stack[size++] = child1[e] ;
+				}
+			}
+		}
+		return path ;
+	}
+
+	/**
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @return The length of the shortest path from start to goal in km,
+	 *   or infinity if there is none
+	 */
+	public double distance(GeographicPoint start, GeographicPoint goal) {
+		int source = graph.indexOf(start) ;
+		int target = graph.indexOf(goal) ;
+		if(source < 0 || target < 0)
+			return Double.POSITIVE_INFINITY ;
+		SearchContext forward = contexts.get() ;
+		int meet = query(current(), forward, source, target, Double.POSITIVE_INFINITY) ;
+		return meet < 0 ? Double.POSITIVE_INFINITY
+				: forward.distance(meet) + forward.backward().distance(meet) ;
+	}
+
+	/**
+	 * Whether there is a path of at most bound from source to target that
+	 * goes up the hierarchy and then down, for the checks of a repair.
+	 * Its vertices all rank above any vertex ranked below both ends.
+	 */
+	boolean hasPathWithin(Arcs a, int source, int target, double bound) {
+		SearchContext forward = contexts.get() ;
+		int meet = query(a, forward, source, target, bound) ;
+		return meet >= 0 && forward.distance(meet) + forward.backward().distance(meet) <= bound ;
+	}
+
+	/**
+	 * Find the lengths of the shortest paths from every source to every
+	 * target with the bucket-based many-to-many algorithm.  An upward 
+	 * search against edge direction from each target leaves an entry 
+	 * (target, distance) in the bucket of every vertex it settles.  An 
+	 * upward search from each source then scans the buckets of the 
+	 * vertices it settles, so each source meets all targets at once in 
+	 * place of one query per pair.  Both rounds of searches are spread 
+	 * over the common fork-join pool.
+	 * @param sources The starting locations
+	 * @param targets The goal locations
+	 * @return table[i][j] is the length in km of the shortest path from 
+	 *   sources[i] to targets[j], or infinity where there is none (or 
+	 *   where a location is not an intersection)
+	 */
+	public double[][] distanceTable(List<GeographicPoint> sources, List<GeographicPoint> targets) {
+		Arcs a = current() ;
+		int[] sourceIds = graph.vertexIds(sources) ;
+		int[] targetIds = graph.vertexIds(targets) ;
+		int n = rank.length ;
+
+		//backward searches, one per target
+		int[][] spaceVertices = new int[targetIds.length][] ;
+		double[][] spaceDistances = new double[targetIds.length][] ;
+		IntStream.range(0, targetIds.length).parallel().forEach(j -> {
+			SearchContext context = contexts.get() ;
+			spaceVertices[j] = upwardSearch(a, context, targetIds[j], false) ;
+			spaceDistances[j] = new double[spaceVertices[j].length] ;
+			for(int k = 0 ; k < spaceVertices[j].length ; k++)
+				spaceDistances[j][k] = context.distance(spaceVertices[j][k]) ;
+		}) ;
+
+		//buckets: the entries of vertex v are bucketTarget/bucketDistance
+		//[bucketOffsets[v] .. bucketOffsets[v+1]-1]
+		int[] bucketOffsets = new int[n + 1] ;
+		for(int[] space : spaceVertices) {
+			for(int v : space)
+				bucketOffsets[v + 1]++ ;
+		}
+		for(int v = 0 ; v < n ; v++)
+			bucketOffsets[v + 1] += bucketOffsets[v] ;
+		int[] bucketTarget = new int[bucketOffsets[n]] ;
+		double[] bucketDistance = new double[bucketOffsets[n]] ;
+		int[] next = Arrays.copyOf(bucketOffsets, n) ;
+		for(int j = 0 ; j < targetIds.length ; j++) {
+			for(int k = 0 ; k < spaceVertices[j].length ; k++) {
+				int slot = next[spaceVertices[j][k]]++ ;
+				bucketTarget[slot] = j ;
+				bucketDistance[slot] = spaceDistances[j][k] ;
+			}
+		}
+
+		//forward searches, one per source
+		double[][] table = new double[sourceIds.length][targetIds.length] ;
+		IntStream.range(0, sourceIds.length).parallel().forEach(i -> {
+			double[] row = table[i] ;
+			Arrays.fill(row, Double.POSITIVE_INFINITY) ;
+			SearchContext context = contexts.get() ;
+			for(int u : upwardSearch(a, context, sourceIds[i], true)) {
+				double du = context.distance(u) ;
+				for(int b = bucketOffsets[u] ; b < bucketOffsets[u + 1] ; b++) {
+					double through = du + bucketDistance[b] ;
+					if(through < row[bucketTarget[b]])
+						row[bucketTarget[b]] = through ;
+				}
+			}
+		}) ;
+		return table ;
+	}
+
+	// Settle the whole upward search space of v, forward along up edges
+	// or backward along down edges.  Returns the settled vertices, whose
+	// distances are left in context; none if v is -1.
+	private int[] upwardSearch(Arcs a, SearchContext context, int v, boolean forward) {
+		if(v < 0)
+			return new int[0] ;
+		context.begin(IndexedHeap.DEFAULT_ARITY) ;
+		IndexedHeap queue = context.queue ;
+		int[] offsets = forward ? a.upOffsets : a.downOffsets ;
+		int[] edges = forward ? a.upEdges : a.downEdges ;
+		int[] ends = forward ? a.to : a.from ;
+		double[] weight = a.weight ;
+
+		int[] settled = new int[16] ;
+		int count = 0 ;
+		context.update(v, 0, -1) ;
+		queue.offer(v, 0) ;
+		while(!queue.isEmpty()) {
+			int curr = queue.poll() ;
+			context.settle(curr) ;
+			if(count == settled.length)
+				settled = Arrays.copyOf(settled, count * 2) ;
+			settled[count++] = curr ;
+			double currDist = context.distance(curr) ;
+			for(int i = offsets[curr] ; i < offsets[curr + 1] ; i++) {
+				int e = edges[i] ;
+				int next = ends[e] ;
+				double newDist = currDist + weight[e] ;
+				if(newDist < context.distance(next) && !context.isSettled(next)) {
+					context.update(next, newDist, e) ;
+					queue.offer(next, newDist) ;
+				}
+			}
+		}
+		return Arrays.copyOf(settled, count) ;
+	}
+
+	// The bidirectional upward search.  Parents are hierarchy edge ids.
+	// Returns the vertex where the best path meets, or -1 if there is none;
+	// paths longer than bound may be missed.
+	private int query(Arcs a, SearchContext forward, int source, int target, double bound) {
+		double[] weight = a.weight ;
+		forward.begin(IndexedHeap.DEFAULT_ARITY) ;
+		SearchContext backward = forward.backward() ;
+		IndexedHeap fq = forward.queue ;
+		IndexedHeap bq = backward.queue ;
+
+		forward.update(source, 0, -1) ;
+		backward.update(target, 0, -1) ;
+		fq.offer(source, 0) ;
+		bq.offer(target, 0) ;
+
+		double mu = Double.POSITIVE_INFINITY ;
+		int meet = -1 ;
+		if(source == target) {
+			mu = 0 ;
+			meet = source ;
+		}
+
+		while(true) {
+			boolean forwardDone = fq.isEmpty() || fq.peekKey() >= mu || fq.peekKey() > bound ;
+			boolean backwardDone = bq.isEmpty() || bq.peekKey() >= mu || bq.peekKey() > bound ;
+			if(forwardDone && backwardDone)
+				break ;
+
+			boolean goForward = !forwardDone && (backwardDone || fq.peekKey() <= bq.peekKey()) ;
+			SearchContext own = goForward ? forward : backward ;
+			SearchContext other = goForward ? backward : forward ;
+			IndexedHeap queue = goForward ? fq : bq ;
+			int[] offsets = goForward ? a.upOffsets : a.downOffsets ;
+			int[] edges = goForward ? a.upEdges : a.downEdges ;
+			int[] ends = goForward ? a.to : a.from ;
+
+			int curr = queue.poll() ;
+			own.settle(curr) ;
+			double currDist = own.distance(curr) ;
+			for(int i = offsets[curr] ; i < offsets[curr + 1] ; i++) {
+				int e = edges[i] ;
+				int next = ends[e] ;
+				double newDist = currDist + weight[e] ;
+				if(newDist < own.distance(next) && !own.isSettled(next)) {
+					own.update(next, newDist, e) ;
+					queue.offer(next, newDist) ;
+				}
+				double through = own.distance(next) + other.distance(next) ;
+				if(through < mu) {
+					mu = through ;
+					meet = next ;
+				}
+			}
+		}
+
+		forward.settledCount += backward.settledCount ;
+		return meet ;
+	}
+
+
+	/**
+	 * Write this hierarchy, repaired for the graph's current edges, to a
+	 * file, to be read back with load().
+	 * @param filename The file to write
+	 * @throws IOException If the file cannot be written
+	 */
+	public void save(String filename) throws IOException {
+		Arcs a = current() ;
+		//written beside the old file and renamed over it, so a crash or a
+		//concurrent load never sees a half-written hierarchy
+		File target = new File(filename).getAbsoluteFile() ;
+		File temp = File.createTempFile(target.getName(), ".tmp", target.getParentFile()) ;
+		DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp))) ;
+		try {
+			output.writeInt(MAGIC) ;
+			output.writeInt(graph.getNumVertices()) ;
+			output.writeInt(graph.getNumEdges()) ;
+			output.writeLong(fingerprint(graph, a.lengths, a.closed)) ;
+			output.writeInt(a.from.length) ;
+			for(int v = 0 ; v < rank.length ; v++)
+				output.writeInt(rank[v]) ;
+			for(int e = 0 ; e < a.from.length ; e++) {
+				output.writeInt(a.from[e]) ;
+				output.writeInt(a.to[e]) ;
+				output.writeDouble(a.weight[e]) ;
+				output.writeInt(a.child1[e]) ;
+				output.writeInt(a.child2[e]) ;
+			}
+			output.close() ;
+			Files.move(temp.toPath(), target.toPath(),
+					StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING) ;
+		}
+		finally {
+			output.close() ;
+			temp.delete() ; //only still there if writing failed
+		}
+	}
+
+	/**
+	 * Read a hierarchy written by save().
+	 * @param filename The file to read
+	 * @param graph The graph the hierarchy was built for
+	 * @return The hierarchy
+	 * @throws IOException If the file cannot be read, or was not built for
+	 *   graph under its current edge lengths and closures
+	 */
+	public static ContractionHierarchy load(String filename, CompactGraph graph) throws IOException {
+		DataInputStream input = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(filename))) ;
+		try {
+			if(input.readInt() != MAGIC)
+				throw new IOException(filename + " is not a contraction hierarchy file") ;
+			CompactGraph.EdgeCosts c = graph.costs() ;
+			if(input.readInt() != graph.getNumVertices() || input.readInt() != graph.getNumEdges()
+					|| input.readLong() != fingerprint(graph, c.lengths, c.closed))
+				throw new IOException(filename + " was built for a different graph") ;
+
+			int numEdges = input.readInt() ;
+			int[] rank = new int[graph.getNumVertices()] ;
+			for(int v = 0 ; v < rank.length ; v++)
+				rank[v] = input.readInt() ;
+			int[] from = new int[numEdges] ;
+			int[] to = new int[numEdges] ;
+			double[] weight = new double[numEdges] ;
+			int[] child1 = new int[numEdges] ;
+			int[] child2 = new int[numEdges] ;
+			for(int e = 0 ; e < numEdges ; e++) {
+				from[e] = input.readInt() ;
+				to[e] = input.readInt() ;
+				weight[e] = input.readDouble() ;
+				child1[e] = input.readInt() ;
+				child2[e] = input.readInt() ;
+			}
+			return new ContractionHierarchy(graph, c.lengths, c.closed, rank, from, to, weight, child1, child2) ;
+		}
+		finally {
+			input.close() ;
+		}
+	}
+
+	// A hash of the edges, their lengths and which are closed, so a
+	// hierarchy saved for a map that has been edited since, even keeping
+	// its counts, is not used: its shortcuts would give wrong paths
+	private static long fingerprint(CompactGraph graph, DoubleBuffer lengths, boolean[] closed) {
+		long hash = graph.getNumVertices() ;
+		for(int e = 0 ; e < graph.getNumEdges() ; e++) {
+			hash = hash * 31 + graph.targets.get(e) ;
+			hash = hash * 31 + Double.doubleToLongBits(lengths.get(e)) ;
+			hash = hash * 31 + (closed != null && closed[e] ? 1 : 0) ;
+		}
+		for(int v = 0 ; v <= graph.getNumVertices() ; v++)
+			hash = hash * 31 + graph.offsets.get(v) ;
+		return hash ;
+	}
+
+
+	public static void main(String[] args) throws IOException {
+		String[] maps = {"data/maps/utc.map", "data/maps/san_diego.map",
+				"data/maps/new_york.map", "data/maps/hollywood_large.map"} ;
+
+		for(String file : maps) {
+			CompactGraph.Builder builder = new CompactGraph.Builder() ;
+			GraphLoader.loadRoadMap(file, builder) ;
+			CompactGraph graph = builder.build() ;
+
+			long begin = System.nanoTime() ;
+			ContractionHierarchy ch = build(graph) ;
+			long buildTime = System.nanoTime() - begin ;
+
+			String chFile = file + ".ch" ;
+			ch.save(chFile) ;
+			ch = load(chFile, graph) ;
+			new File(chFile).delete() ;
+
+			Random random = new Random(7) ;
+			int queries = 2000 ;
+			int mismatches = 0 ;
+			long settledCH = 0 ;
+			long settledDijkstra = 0 ;
+			for(int i = 0 ; i < queries ; i++) {
+				GeographicPoint start = graph.getLocation(random.nextInt(graph.getNumVertices())) ;
+				GeographicPoint goal = graph.getLocation(random.nextInt(graph.getNumVertices())) ;
+				List<GeographicPoint> expected = graph.dijkstra(start, goal) ;
+				settledDijkstra += graph.getLastSettledCount() ;
+				List<GeographicPoint> actual = ch.shortestPath(start, goal) ;
+				settledCH += ch.getLastSettledCount() ;
+				if(expected.isEmpty() != actual.isEmpty()
+						|| Math.abs(pathLength(graph, actual) - pathLength(graph, expected)) > 1e-9)
+					mismatches++ ;
+			}
+
+			System.out.println(file + ": built in " + buildTime / 1000000 + " ms, "
+					+ ch.getNumShortcuts() + " shortcuts for " + graph.getNumEdges() + " edges") ;
+			System.out.println("  " + queries + " queries, " + mismatches + " mismatches, settled "
+					+ settledCH / queries + " vs " + settledDijkstra / queries + " for dijkstra") ;
+
+			//close some edges and make others longer, then repair
+			int updates = Math.max(1, graph.getNumEdges() / 100) ;
+			int[] edges = new int[2 * updates] ;
+			double[] lengths = new double[edges.length] ;
+			boolean[] closed = new boolean[edges.length] ;
+			for(int i = 0 ; i < edges.length ; i++) {
+				edges[i] = random.nextInt(graph.getNumEdges()) ;
+				lengths[i] = graph.getCurrentWeight(edges[i]) * (i < updates ? 1 : 3) ;
+				closed[i] = i < updates ;
+			}
+			graph.updateEdges(edges, lengths, closed) ;
+			begin = System.nanoTime() ;
+			ch.customize() ;
+			long repairTime = System.nanoTime() - begin ;
+			mismatches = 0 ;
+			for(int i = 0 ; i < queries ; i++) {
+				GeographicPoint start = graph.getLocation(random.nextInt(graph.getNumVertices())) ;
+				GeographicPoint goal = graph.getLocation(random.nextInt(graph.getNumVertices())) ;
+				List<GeographicPoint> expected = graph.dijkstra(start, goal) ;
+				List<GeographicPoint> actual = ch.shortestPath(start, goal) ;
+				if(expected.isEmpty() != actual.isEmpty()
+						|| Math.abs(pathLength(graph, actual) - pathLength(graph, expected)) > 1e-9)
+					mismatches++ ;
+			}
+			System.out.println("  " + updates + " edges closed and " + updates + " longer, repaired in "
+					+ repairTime / 1000 + " us to " + ch.getNumShortcuts() + " shortcuts, "
+					+ mismatches + " mismatches") ;
+		}
+	}
+
+	// Length of a path of intersections, using the shortest open edge between each pair
+	private static double pathLength(CompactGraph graph, List<GeographicPoint> path) {
+		double length = 0 ;
+		GeographicPoint prev = null ;
+		for(GeographicPoint p : path) {
+			if(prev != null) {
+				int u = graph.indexOf(prev) ;
+				int v = graph.indexOf(p) ;
+				double best = Double.POSITIVE_INFINITY ;
+				for(int e = graph.firstEdge(u) ; e < graph.endEdge(u) ; e++) {
+					if(graph.getTarget(e) == v && !graph.isClosed(e))
+						best = Math.min(best, graph.getCurrentWeight(e)) ;
+				}
+				length += best ;
+			}
+			prev = p ;
+		}
+		return length ;
+	}
+}
@@ -0,0 +1,346 @@
+package roadgraph;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Contracts the vertices of a CompactGraph one by one to build a
+ * ContractionHierarchy.
+ *
+ * Contracting v removes it from the remaining graph and adds a shortcut
+ * u -> w for every pair of neighbors whose shortest connection ran
+ * through v, unless a local witness search finds a path that is at least
+ * as short without v.  Vertices are contracted in order of priority,
+ * the edge difference (shortcuts added minus edges removed) plus the
+ * number of neighbors already contracted, which keeps the hierarchy
+ * sparse and evenly spread.
+ *
+ * Work proceeds in rounds.  Each round picks the vertices whose priority
+ * is a strict local minimum among their remaining neighbors; no two of
+ * them are adjacent, so their shortcuts are computed in parallel, with
+ * witness searches avoiding every vertex of the round.  Priorities of
+ * the touched neighbors are then recomputed in parallel too.
+ */
+class ContractionHierarchyBuilder {
+
+	// witness searches give up after settling this many vertices and
+	// add the shortcut, which is always safe
+	private static final int WITNESS_SETTLE_LIMIT = 500 ;
+
+	private final CompactGraph graph ;
+	private final CompactGraph.EdgeCosts costs ; //lengths and closures to contract
+	private final int n ;
+
+	// every edge of the hierarchy; original edges have child2 == -1 and
+	// the id of the CompactGraph edge in child1, shortcuts have the ids
+	// of the two hierarchy edges they skip over
+	int[] from ;
+	int[] to ;
+	double[] weight ;
+	int[] child1 ;
+	int[] child2 ;
+	int numEdges ;
+
+	// adjacency of the remaining (not yet contracted) graph, as hierarchy edge ids
+	private final int[][] out ;
+	private final int[] outSize ;
+	private final int[][] in ;
+	private final int[] inSize ;
+
+	final int[] rank ;
+	private final boolean[] inRound ;
+	private final int[] priority ;
+	private final int[] contractedNeighbors ;
+
+	private final ThreadLocal<SearchContext> witnessContexts ;
+
+	ContractionHierarchyBuilder(CompactGraph graph) {
+		this.graph = graph ;
+		this.costs = graph.costs() ;
+		this.n = graph.getNumVertices() ;
+
+		int capacity = Math.max(16, graph.getNumEdges() * 2) ;
+		from = new int[capacity] ;
+		to = new int[capacity] ;
+		weight = new double[capacity] ;
+		child1 = new int[capacity] ;
+		child2 = new int[capacity] ;
+		numEdges = 0 ;
+
+		out = new int[n][] ;
+		outSize = new int[n] ;
+		in = new int[n][] ;
+		inSize = new int[n] ;
+		for(int v = 0 ; v < n ; v++) {
+			int degree = graph.endEdge(v) - graph.firstEdge(v) ;
+			out[v] = new int[Math.max(2, degree)] ;
+			in[v] = new int[4] ;
+		}
+
+		rank = new int[n] ;
+		Arrays.fill(rank, -1) ;
+		inRound = new boolean[n] ;
+		priority = new int[n] ;
+		contractedNeighbors = new int[n] ;
+		witnessContexts = ThreadLocal.withInitial(() -> new SearchContext(n, IndexedHeap.DEFAULT_ARITY)) ;
+
+		//start with the open original edges at their current lengths,
+		//keeping the shortest of parallel edges
+		for(int u = 0 ; u < n ; u++) {
+			for(int e = graph.firstEdge(u) ; e < graph.endEdge(u) ; e++) {
+				int w = graph.getTarget(e) ;
+				if(w != u && (costs.closed == null || !costs.closed[e]))
+					addOrImprove(u, w, costs.lengths.get(e), e, -1) ;
+			}
+		}
+	}
+
+	/**
+	 * Contract every vertex.
+	 * @return The finished hierarchy
+	 */
+	ContractionHierarchy build() {
+		IntStream.range(0, n).parallel().forEach(v -> priority[v] = computePriority(v)) ;
+
+		int[] remaining = new int[n] ;
+		for(int v = 0 ; v < n ; v++)
+			remaining[v] = v ;
+		int numRemaining = n ;
+		int nextRank = 0 ;
+		int[] touched = new int[n] ;
+		boolean[] isTouched = new boolean[n] ;
+
+		while(numRemaining > 0) {
+			final int[] alive = remaining ;
+			int[] round = IntStream.range(0, numRemaining).map(i -> alive[i])
+					.filter(this::isLocalMinimum).toArray() ;
+			for(int v : round)
+				inRound[v] = true ;
+
+			Shortcuts[] shortcuts = new Shortcuts[round.length] ;
+			IntStream.range(0, round.length).parallel()
+					.forEach(i -> shortcuts[i] = findShortcuts(round[i], false)) ;
+
+			int numTouched = 0 ;
+			for(int i = 0 ; i < round.length ; i++) {
+				int v = round[i] ;
+				rank[v] = nextRank++ ;
+				numTouched = contract(v, shortcuts[i], touched, numTouched, isTouched) ;
+			}
+			for(int v : round)
+				inRound[v] = false ;
+
+			final int[] update = touched ;
+			IntStream.range(0, numTouched).parallel()
+					.forEach(i -> priority[update[i]] = computePriority(update[i])) ;
+			for(int i = 0 ; i < numTouched ; i++)
+				isTouched[touched[i]] = false ;
+
+			int kept = 0 ;
+			for(int i = 0 ; i < numRemaining ; i++) {
+				if(rank[remaining[i]] < 0)
+					remaining[kept++] = remaining[i] ;
+			}
+			numRemaining = kept ;
+		}
+
+		return new ContractionHierarchy(graph, costs.lengths, costs.closed, rank, Arrays.copyOf(from, numEdges),
+				Arrays.copyOf(to, numEdges), Arrays.copyOf(weight, numEdges),
+				Arrays.copyOf(child1, numEdges), Arrays.copyOf(child2, numEdges)) ;
+	}
+
+	// True if v comes before all of its remaining neighbors in (priority, id) order
+	private boolean isLocalMinimum(int v) {
+		for(int i = 0 ; i < outSize[v] ; i++) {
+			if(before(to[out[v][i]], v))
+				return false ;
+		}
+		for(int i = 0 ; i < inSize[v] ; i++) {
+			if(before(from[in[v][i]], v))
+				return false ;
+		}
+		return true ;
+	}
+
+	private boolean before(int a, int b) {
+		return priority[a] < priority[b] || (priority[a] == priority[b] && a < b) ;
+	}
+
+	// Edge difference plus contracted neighbors
+	private int computePriority(int v) {
+		Shortcuts shortcuts = findShortcuts(v, true) ;
+		return shortcuts.size - outSize[v] - inSize[v] + contractedNeighbors[v] ;
+	}
+
+	// Remove v from the remaining graph and add its shortcuts.  Returns the
+	// new number of vertices in touched, the neighbors whose priority changes.
+	private int contract(int v, Shortcuts shortcuts, int[] touched, int numTouched, boolean[] isTouched) {
+		for(int i = 0 ; i < shortcuts.size ; i++) {
+			int inEdge = shortcuts.inEdges[i] ;
+			int outEdge = shortcuts.outEdges[i] ;
+			addOrImprove(from[inEdge], to[outEdge], weight[inEdge] + weight[outEdge], inEdge, outEdge) ;
+		}
+
+		for(int i = 0 ; i < outSize[v] ; i++) {
+			int e = out[v][i] ;
+			int w = to[e] ;
+			remove(in, inSize, w, e) ;
+			contractedNeighbors[w]++ ;
+			if(!isTouched[w]) {
+				isTouched[w] = true ;
+				touched[numTouched++] = w ;
+			}
+		}
+		for(int i = 0 ; i < inSize[v] ; i++) {
+			int e = in[v][i] ;
+			int u = from[e] ;
+			remove(out, outSize, u, e) ;
+			contractedNeighbors[u]++ ;
+			if(!isTouched[u]) {
+				isTouched[u] = true ;
+				touched[numTouched++] = u ;
+			}
+		}
+		outSize[v] = 0 ;
+		inSize[v] = 0 ;
+		return numTouched ;
+	}
+
+	// Add the edge u -> w, or shorten the existing one if the new one is shorter
+	private void addOrImprove(int u, int w, double length, int c1, int c2) {
+		for(int i = 0 ; i < outSize[u] ; i++) {
+			int e = out[u][i] ;
+			if(to[e] == w) {
+				if(length < weight[e]) {
+					weight[e] = length ;
+					child1[e] = c1 ;
+					child2[e] = c2 ;
+				}
+				return ;
+			}
+		}
+
+		if(numEdges == from.length) {
+			int capacity = numEdges * 2 ;
+			from = Arrays.copyOf(from, capacity) ;
+			to = Arrays.copyOf(to, capacity) ;
+			weight = Arrays.copyOf(weight, capacity) ;
+			child1 = Arrays.copyOf(child1, capacity) ;
+			child2 = Arrays.copyOf(child2, capacity) ;
+		}
+		int e = numEdges++ ;
+		from[e] = u ;
+		to[e] = w ;
+		weight[e] = length ;
+		child1[e] = c1 ;
+		child2[e] = c2 ;
+		append(out, outSize, u, e) ;
+		append(in, inSize, w, e) ;
+	}
+
+	private static void append(int[][] lists, int[] sizes, int v, int e) {
+		if(sizes[v] == lists[v].length)
+			lists[v] = Arrays.copyOf(lists[v], sizes[v] * 2) ;
+		lists[v][sizes[v]++] = e ;
+	}
+
+	private static void remove(int[][] lists, int[] sizes, int v, int e) {
+		int[] list = lists[v] ;
+		for(int i = 0 ; i < sizes[v] ; i++) {
+			if(list[i] == e) {
+				list[i] = list[--sizes[v]] ;
+				return ;
+			}
+		}
+	}
+
+	/**
+	 * Find the shortcuts needed to contract v: for every remaining in-neighbor
+	 * u, a witness search checks which out-neighbors w can be reached at
+	 * least as cheaply without going through v (or any vertex contracted in
+	 * the same round).
+	 * @param countOnly Only count the shortcuts, for computing priorities
+	 */
+	private Shortcuts findShortcuts(int v, boolean countOnly) {
+		Shortcuts result = new Shortcuts(countOnly) ;
+		if(outSize[v] == 0 || inSize[v] == 0)
+			return result ;
+
+		double maxOut = 0 ;
+		for(int j = 0 ; j < outSize[v] ; j++)
+			maxOut = Math.max(maxOut, weight[out[v][j]]) ;
+
+		SearchContext context = witnessContexts.get() ;
+		for(int i = 0 ; i < inSize[v] ; i++) {
+			int inEdge = in[v][i] ;
+			int u = from[inEdge] ;
+			witnessSearch(context, u, v, weight[inEdge] + maxOut) ;
+
+			for(int j = 0 ; j < outSize[v] ; j++) {
+				int outEdge = out[v][j] ;
+				int w = to[outEdge] ;
+				if(w == u)
+					continue ;
+				if(context.distance(w) > weight[inEdge] + weight[outEdge])
+					result.add(inEdge, outEdge) ;
+			}
+		}
+		return result ;
+	}
+
+	// Dijkstra from u in the remaining graph, skipping v and every vertex of
+	// the current round, until maxDistance or the settle limit is reached
+	private void witnessSearch(SearchContext context, int u, int v, double maxDistance) {
+		context.begin(IndexedHeap.DEFAULT_ARITY) ;
+		IndexedHeap pq = context.queue ;
+		context.update(u, 0, u) ;
+		pq.offer(u, 0) ;
+
+		while(!pq.isEmpty() && context.settledCount < WITNESS_SETTLE_LIMIT) {
+			if(pq.peekKey() > maxDistance)
+				break ;
+			int curr = pq.poll() ;
+			context.settle(curr) ;
+			double currDist = context.distance(curr) ;
+			for(int i = 0 ; i < outSize[curr] ; i++) {
+				int e = out[curr][i] ;
+				int next = to[e] ;
+				if(next == v || inRound[next])
+					continue ;
+				double newDist = currDist + weight[e] ;
+				if(newDist < context.distance(next) && !context.isSettled(next)) {
+					context.update(next, newDist, curr) ;
+					pq.offer(next, newDist) ;
+				}
+			}
+		}
+	}
+
+	/** The shortcuts needed to contract one vertex, as (in edge, out edge) pairs */
+	private static class Shortcuts {
+		private final boolean countOnly ;
+		int[] inEdges ;
+		int[] outEdges ;
+		int size ;
+
+		Shortcuts(boolean countOnly) {
+			this.countOnly = countOnly ;
+			if(!countOnly) {
+				inEdges = new int[4] ;
+				outEdges = new int[4] ;
+			}
+		}
+
+		void add(int inEdge, int outEdge) {
+			if(!countOnly) {
+				if(size == inEdges.length) {
+					inEdges = Arrays.copyOf(inEdges, size * 2) ;
+					outEdges = Arrays.copyOf(outEdges, size * 2) ;
+				}
+				inEdges[size] = inEdge ;
+				outEdges[size] = outEdge ;
+			}
+			size++ ;
+		}
+	}
+}
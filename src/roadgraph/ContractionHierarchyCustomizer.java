@@ -0,0 +1,410 @@
+package roadgraph;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Repairs the edges of a ContractionHierarchy after edges of its graph
+ * were reweighted, closed or reopened, keeping the order of the vertices
+ * and the shortcuts already there.
+ *
+ * The weight of a hierarchy edge u -> w is the least of the lengths of
+ * the open graph edges u -> w and of w(u, x) + w(x, w) over its lower
+ * triangles, the hierarchy edges u -> x -> w through a vertex x ranked
+ * below both.  Weights are recomputed bottom-up, in rank order of the
+ * lower end of each edge, starting from the edges over changed graph
+ * edges; an edge whose weight changes has the edges it is a triangle
+ * side of recomputed in turn.  So only the shortcuts whose child chains
+ * reach a changed edge are touched.
+ *
+ * Contraction leaves out the shortcut u -> w for a pair u -> v -> w when
+ * a witness path avoiding v is as short, and an update can make that
+ * witness longer or the path through v shorter.  So once the weights are
+ * done, the pairs that may be affected are checked: those whose weight
+ * w(u, v) + w(v, w) dropped, and those where an edge that got longer lies
+ * in the upward search space of u, or of w against edge direction.  A
+ * pair still holds if those two upward searches meet within its weight,
+ * as such a path only runs through vertices ranked above v.  Pairs that
+ * fail get their shortcut (or have it shortened), after which weights and
+ * checks are repeated for what that changed, until no pair fails.  The
+ * checks run in parallel on the common fork-join pool.
+ */
+class ContractionHierarchyCustomizer {
+
+	private final ContractionHierarchy hierarchy ;
+	private final CompactGraph graph ;
+	private final CompactGraph.EdgeCosts costs ; //lengths and closures to repair for
+	private final ContractionHierarchy.Arcs old ;
+	private final int[] rank ;
+	private final int[] byRank ; //vertex of each rank
+	private final int n ;
+
+	// hierarchy edges as in ContractionHierarchy.Arcs, with room for
+	// shortcuts added by the repair
+	private int[] from ;
+	private int[] to ;
+	private double[] weight ;
+	private int[] child1 ;
+	private int[] child2 ;
+	private int numEdges ;
+
+	// the edges going up from each vertex, coming down into it, coming up
+	// into it and going down from it
+	private final EdgeLists upOut ;
+	private final EdgeLists downIn ;
+	private final EdgeLists upIn ;
+	private final EdgeLists downOut ;
+
+	// edges whose weight is to be recomputed, and vertices that are the
+	// lower end of one, from rank lowest on
+	private boolean[] stale ;
+	private final boolean[] pending ;
+	private int lowest ;
+
+	// edges whose weight dropped or grew since the last checks
+	private boolean[] decreased ;
+	private boolean[] increased ;
+	private int[] changed ;
+	private int numChanged ;
+
+	ContractionHierarchyCustomizer(ContractionHierarchy hierarchy, CompactGraph.EdgeCosts costs,
+			ContractionHierarchy.Arcs old) {
+		this.hierarchy = hierarchy ;
+		this.graph = hierarchy.getGraph() ;
+		this.costs = costs ;
+		this.old = old ;
+		this.rank = hierarchy.getRanks() ;
+		this.n = rank.length ;
+		byRank = new int[n] ;
+		for(int v = 0 ; v < n ; v++)
+			byRank[rank[v]] = v ;
+
+		numEdges = old.from.length ;
+		int capacity = Math.max(16, numEdges + numEdges / 4) ;
+		from = Arrays.copyOf(old.from, capacity) ;
+		to = Arrays.copyOf(old.to, capacity) ;
+		weight = Arrays.copyOf(old.weight, capacity) ;
+		child1 = Arrays.copyOf(old.child1, capacity) ;
+		child2 = Arrays.copyOf(old.child2, capacity) ;
+		stale = new boolean[capacity] ;
+		decreased = new boolean[capacity] ;
+		increased = new boolean[capacity] ;
+		changed = new int[16] ;
+
+		upOut = new EdgeLists(n) ;
+		downIn = new EdgeLists(n) ;
+		upIn = new EdgeLists(n) ;
+		downOut = new EdgeLists(n) ;
+		for(int e = 0 ; e < numEdges ; e++)
+			link(e) ;
+		pending = new boolean[n] ;
+		lowest = n ;
+	}
+
+	/**
+	 * Repair the edges.
+	 * @return The edges for the costs given
+	 */
+	ContractionHierarchy.Arcs customize() {
+		//start from the hierarchy edges over graph edges that changed,
+		//adding one where a graph edge closed at contraction is open now
+		for(int u = 0 ; u < n ; u++) {
+			for(int e = graph.firstEdge(u) ; e < graph.endEdge(u) ; e++) {
+				int w = graph.getTarget(e) ;
+				if(w == u || (old.lengths.get(e) == costs.lengths.get(e) && isClosed(old.closed, e) == isClosed(costs.closed, e)))
+					continue ;
+				int a = find(u, w) ;
+				if(a < 0 && !isClosed(costs.closed, e))
+					a = add(u, w, e, -1) ;
+				if(a >= 0)
+					markStale(a) ;
+			}
+		}
+
+		while(true) {
+			relax() ;
+			ContractionHierarchy.Arcs arcs = new ContractionHierarchy.Arcs(rank, costs.lengths, costs.closed,
+					Arrays.copyOf(from, numEdges), Arrays.copyOf(to, numEdges), Arrays.copyOf(weight, numEdges),
+					Arrays.copyOf(child1, numEdges), Arrays.copyOf(child2, numEdges)) ;
+			if(check(arcs) == 0)
+				return arcs ;
+		}
+	}
+
+	private static boolean isClosed(boolean[] closed, int e) {
+		return closed != null && closed[e] ;
+	}
+
+	// Recompute the stale edges bottom-up
+	private void relax() {
+		for(int r = lowest ; r < n ; r++) {
+			int v = byRank[r] ;
+			if(!pending[v])
+				continue ;
+			pending[v] = false ;
+			//the edges whose lower end is v; recomputing one only marks
+			//edges between higher vertices
+			for(int i = 0 ; i < upOut.size[v] ; i++) {
+				if(stale[upOut.edges[v][i]])
+					recompute(v, upOut.edges[v][i]) ;
+			}
+			for(int i = 0 ; i < downIn.size[v] ; i++) {
+				if(stale[downIn.edges[v][i]])
+					recompute(v, downIn.edges[v][i]) ;
+			}
+		}
+		lowest = n ;
+	}
+
+	// Set the weight of edge a, whose lower end is v, to the least of the
+	// open graph edges and lower triangles it stands for
+	private void recompute(int v, int a) {
+		stale[a] = false ;
+		int u = from[a] ;
+		int w = to[a] ;
+		double best = Double.POSITIVE_INFINITY ;
+		int c1 = child1[a] ;
+		int c2 = child2[a] ;
+		for(int e = graph.firstEdge(u) ; e < graph.endEdge(u) ; e++) {
+			if(graph.getTarget(e) == w && !isClosed(costs.closed, e) && costs.lengths.get(e) < best) {
+				best = costs.lengths.get(e) ;
+				c1 = e ;
+				c2 = -1 ;
+			}
+		}
+		for(int i = 0 ; i < downOut.size[u] ; i++) {
+			int ux = downOut.edges[u][i] ;
+			int x = to[ux] ;
+			if(rank[x] >= rank[w])
+				continue ;
+			int xw = find(x, w) ;
+			if(xw >= 0 && weight[ux] + weight[xw] < best) {
+				best = weight[ux] + weight[xw] ;
+				c1 = ux ;
+				c2 = xw ;
+			}
+		}
+
+		double before = weight[a] ;
+		weight[a] = best ;
+		child1[a] = c1 ;
+		child2[a] = c2 ;
+		if(best == before)
+			return ;
+		if(!decreased[a] && !increased[a]) {
+			if(numChanged == changed.length)
+				changed = Arrays.copyOf(changed, numChanged * 2) ;
+			changed[numChanged++] = a ;
+		}
+		if(best < before)
+			decreased[a] = true ;
+		else
+			increased[a] = true ;
+
+		//a is a lower triangle side of the edges between its other end
+		//and the other ends of v's edges on the other side
+		if(u == v) {
+			for(int i = 0 ; i < downIn.size[v] ; i++)
+				markStale(find(from[downIn.edges[v][i]], w)) ;
+		}
+		else {
+			for(int i = 0 ; i < upOut.size[v] ; i++)
+				markStale(find(u, to[upOut.edges[v][i]])) ;
+		}
+	}
+
+	/**
+	 * Check the pairs u -> v -> w the last changes may have broken, and
+	 * add or mark for recomputing the shortcut of each one that fails.
+	 * @param arcs The edges as they are now
+	 * @return The number of pairs that failed
+	 */
+	private int check(ContractionHierarchy.Arcs arcs) {
+		//vertices whose upward search spaces take an edge that got longer:
+		//going up to its start, or against edge direction up to its end
+		boolean[] forwardHit = new boolean[n] ;
+		boolean[] backwardHit = new boolean[n] ;
+		for(int i = 0 ; i < numChanged ; i++) {
+			int a = changed[i] ;
+			if(!increased[a])
+				continue ;
+			if(rank[from[a]] < rank[to[a]])
+				spread(from[a], upIn, true, forwardHit) ;
+			else
+				spread(to[a], downOut, false, backwardHit) ;
+		}
+
+		//vertices v with a pair to check: the lower end of an edge that
+		//dropped, or below a u hit going forward or a w hit backward
+		boolean[] atVertex = new boolean[n] ;
+		for(int i = 0 ; i < numChanged ; i++) {
+			int a = changed[i] ;
+			if(decreased[a])
+				atVertex[rank[from[a]] < rank[to[a]] ? from[a] : to[a]] = true ;
+		}
+		for(int x = 0 ; x < n ; x++) {
+			if(forwardHit[x]) {
+				for(int i = 0 ; i < downOut.size[x] ; i++)
+					atVertex[to[downOut.edges[x][i]]] = true ;
+			}
+			if(backwardHit[x]) {
+				for(int i = 0 ; i < upIn.size[x] ; i++)
+					atVertex[from[upIn.edges[x][i]]] = true ;
+			}
+		}
+
+		//the pairs at those vertices with no shortcut as short as them
+		int[] pairs = new int[16] ;
+		int numPairs = 0 ;
+		for(int v = 0 ; v < n ; v++) {
+			if(!atVertex[v])
+				continue ;
+			for(int i = 0 ; i < downIn.size[v] ; i++) {
+				int uv = downIn.edges[v][i] ;
+				int u = from[uv] ;
+				for(int j = 0 ; j < upOut.size[v] ; j++) {
+					int vw = upOut.edges[v][j] ;
+					int w = to[vw] ;
+					double sum = weight[uv] + weight[vw] ;
+					if(u == w || sum == Double.POSITIVE_INFINITY)
+						continue ;
+					if(!decreased[uv] && !decreased[vw] && !forwardHit[u] && !backwardHit[w])
+						continue ;
+					int a = find(u, w) ;
+					if(a >= 0 && weight[a] <= sum)
+						continue ;
+					if(numPairs + 2 > pairs.length)
+						pairs = Arrays.copyOf(pairs, pairs.length * 2) ;
+					pairs[numPairs++] = uv ;
+					pairs[numPairs++] = vw ;
+				}
+			}
+		}
+		for(int i = 0 ; i < numChanged ; i++) {
+			decreased[changed[i]] = false ;
+			increased[changed[i]] = false ;
+		}
+		numChanged = 0 ;
+
+		int[] toCheck = pairs ;
+		boolean[] failed = new boolean[numPairs / 2] ;
+		IntStream.range(0, failed.length).parallel().forEach(i -> {
+			int uv = toCheck[2 * i] ;
+			int vw = toCheck[2 * i + 1] ;
+			failed[i] = !hierarchy.hasPathWithin(arcs, from[uv], to[vw], weight[uv] + weight[vw]) ;
+		}) ;
+
+		int numFailed = 0 ;
+		for(int i = 0 ; i < failed.length ; i++) {
+			if(!failed[i])
+				continue ;
+			numFailed++ ;
+			int uv = pairs[2 * i] ;
+			int vw = pairs[2 * i + 1] ;
+			int a = find(from[uv], to[vw]) ;
+			if(a < 0)
+				a = add(from[uv], to[vw], uv, vw) ;
+			markStale(a) ;
+		}
+		return numFailed ;
+	}
+
+	// Mark start and every vertex below it reached by the edges of lists,
+	// going to their starts if toStart is set and to their ends if not
+	private void spread(int start, EdgeLists lists, boolean toStart, boolean[] hit) {
+		if(hit[start])
+			return ;
+		hit[start] = true ;
+		int[] stack = new int[16] ;
+		int size = 0 ;
+		stack[size++] = start ;
+		while(size > 0) {
+			int x = stack[--size] ;
+			for(int i = 0 ; i < lists.size[x] ; i++) {
+				int e = lists.edges[x][i] ;
+				int y = toStart ? from[e] : to[e] ;
+				if(!hit[y]) {
+					hit[y] = true ;
+					if(size == stack.length)
+						stack = Arrays.copyOf(stack, size * 2) ;
+					stack[size++] = y ;
+				}
+			}
+		}
+	}
+
+	private void markStale(int a) {
+		if(a < 0 || stale[a])
+			return ;
+		stale[a] = true ;
+		int v = rank[from[a]] < rank[to[a]] ? from[a] : to[a] ;
+		pending[v] = true ;
+		lowest = Math.min(lowest, rank[v]) ;
+	}
+
+	// The hierarchy edge u -> w, or -1 if there is none
+	private int find(int u, int w) {
+		boolean up = rank[u] < rank[w] ;
+		EdgeLists lists = up ? upOut : downIn ;
+		int v = up ? u : w ;
+		for(int i = 0 ; i < lists.size[v] ; i++) {
+			int e = lists.edges[v][i] ;
+			if(from[e] == u && to[e] == w)
+				return e ;
+		}
+		return -1 ;
+	}
+
+	// Add the edge u -> w, with an infinite weight until it is recomputed
+	private int add(int u, int w, int c1, int c2) {
+		if(numEdges == from.length) {
+			int capacity = numEdges * 2 ;
+			from = Arrays.copyOf(from, capacity) ;
+			to = Arrays.copyOf(to, capacity) ;
+			weight = Arrays.copyOf(weight, capacity) ;
+			child1 = Arrays.copyOf(child1, capacity) ;
+			child2 = Arrays.copyOf(child2, capacity) ;
+			stale = Arrays.copyOf(stale, capacity) ;
+			decreased = Arrays.copyOf(decreased, capacity) ;
+			increased = Arrays.copyOf(increased, capacity) ;
+		}
+		int e = numEdges++ ;
+		from[e] = u ;
+		to[e] = w ;
+		weight[e] = Double.POSITIVE_INFINITY ;
+		child1[e] = c1 ;
+		child2[e] = c2 ;
+		link(e) ;
+		return e ;
+	}
+
+	private void link(int e) {
+		if(rank[from[e]] < rank[to[e]]) {
+			upOut.add(from[e], e) ;
+			upIn.add(to[e], e) ;
+		}
+		else {
+			downIn.add(to[e], e) ;
+			downOut.add(from[e], e) ;
+		}
+	}
+
+	/** Edge ids grouped by vertex */
+	private static class EdgeLists {
+		final int[][] edges ;
+		final int[] size ;
+
+		EdgeLists(int n) {
+			edges = new int[n][] ;
+			size = new int[n] ;
+		}
+
+		void add(int v, int e) {
+			if(edges[v] == null)
+				edges[v] = new int[4] ;
+			else if(size[v] == edges[v].length)
+				edges[v] = Arrays.copyOf(edges[v], size[v] * 2) ;
+			edges[v][size[v]++] = e ;
+		}
+	}
+}
@@ -0,0 +1,55 @@
+package roadgraph;
+
+/**
+ * The cost of driving along an edge, used by the searches in place of
+ * its length.  A CompactGraph evaluates its model once per edge when the
+ * model is set (see CompactGraph.setCostModel) and the searches only read
+ * the resulting array, so a model may be as slow as it likes.
+ *
+ * Costs must not be negative.  They may be infinite, which keeps the
+ * searches off the edge altogether.
+ */
+public interface CostModel {
+
+	/**
+	 * @param roadName The name of the road the edge is part of
+	 * @param roadType The type of the road, as in the .map files
+	 * @param length The length of the edge in km
+	 * @return The cost of driving the whole edge
+	 */
+	double cost(String roadName, String roadType, double length) ;
+
+	/** Cost is length in km: the searches find shortest paths */
+	CostModel DISTANCE = (roadName, roadType, length) -> length ;
+
+	/** Cost is free flow travel time in seconds, at the speeds of TrafficProfiles.defaults() */
+	CostModel TRAVEL_TIME = travelTime(TrafficProfiles.defaults()) ;
+
+	/** Travel time, with motorways and trunk roads ten times slower */
+	CostModel AVOID_HIGHWAYS = avoidHighways(TRAVEL_TIME, 10) ;
+
+	/**
+	 * @param speeds The free flow speed of each road type
+	 * @return A model whose cost is the free flow travel time in seconds
+	 */
+	static CostModel travelTime(TrafficProfiles speeds) {
+		return (roadName, roadType, length) -> length / speeds.getSpeed(roadType) * 3600 ;
+	}
+
+	/**
+	 * @param base The model to penalize highways in
+	 * @param penalty The factor on the cost of motorways and trunk roads
+	 *   and their links, infinity to avoid them at any price
+	 * @return A model that costs the same as base except on highways
+	 * @throws IllegalArgumentException If penalty is less than 1
+	 */
+	static CostModel avoidHighways(CostModel base, double penalty) {
+		if(!(penalty >= 1))
+			throw new IllegalArgumentException("Highway penalty must be at least 1!") ;
+		return (roadName, roadType, length) -> {
+			double cost = base.cost(roadName, roadType, length) ;
+			boolean highway = roadType.startsWith("motorway") || roadType.startsWith("trunk") ;
+			return highway && cost > 0 ? cost * penalty : cost ;
+		} ;
+	}
+}
@@ -0,0 +1,361 @@
+package roadgraph;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import geography.GeographicPoint;
+import util.GraphLoader;
+
+/**
+ * Precomputed shortest paths between every pair of vertices of a small
+ * map, such as ucsd.map or utc.map, so that routing is a table lookup
+ * instead of a search.
+ *
+ * The table is built with one Dijkstra search from every vertex, run in
+ * parallel, under the graph's cost model and closures at that time.  It
+ * holds two n x n matrices in source-major order: the cost of the
+ * cheapest path as a float, and the first hop of that path as the index
+ * of the edge taken among the out-edges of the source (a short, -1 where
+ * there is no path).  A path is rebuilt by following first hops from the
+ * start, one lookup per intersection on it: any hop of a shortest path
+ * leads to a vertex from which the rest of it is again shortest.
+ *
+ * With 6 bytes per pair the table is meant for maps of a few thousand
+ * intersections; build refuses graphs of more than MAX_VERTICES.  Saved
+ * tables are opened with FileChannel.map and read in place, so opening
+ * one costs nothing and every JVM that opens it shares its pages.
+ */
+public class DistanceTable {
+
+	/** The largest graph a table is built for: 8192^2 pairs take 384 MB */
+	public static final int MAX_VERTICES = 8192 ;
+
+	private static final int MAGIC = 0x41505331 ; //"APS1"
+	private static final int HEADER_BYTES = 4 * 4 + 8 ;
+
+	private final CompactGraph graph ;
+	private final CompactGraph.EdgeCosts costs ; //the costs the table was built for
+	private final int n ;
+	private final FloatBuffer distances ; //cost from s to t at s * n + t
+	private final ShortBuffer hops ; //first out-edge of s towards t, as an index from offsets[s]
+
+	private DistanceTable(CompactGraph graph, CompactGraph.EdgeCosts costs,
+			FloatBuffer distances, ShortBuffer hops) {
+		this.graph = graph ;
+		this.costs = costs ;
+		this.n = graph.getNumVertices() ;
+		this.distances = distances ;
+		this.hops = hops ;
+	}
+
+	/**
+	 * Compute the table with a Dijkstra search from every vertex, on the
+	 * common fork-join pool.
+	 * @param graph The road graph
+	 * @return The table for graph under its current costs
+	 * @throws IllegalArgumentException If graph has more than MAX_VERTICES
+	 *   vertices, or a vertex has more out-edges than a short can index
+	 */
+	public static DistanceTable build(CompactGraph graph) {
+		int n = graph.getNumVertices() ;
+		if(n > MAX_VERTICES)
+			throw new IllegalArgumentException("A distance table of " + n + " vertices would take "
+					+ (6L * n * n >> 20) + " MB; at most " + MAX_VERTICES + " are allowed!") ;
+		for(int v = 0 ; v < n ; v++) {
+			if(graph.endEdge(v) - graph.firstEdge(v) > Short.MAX_VALUE)
+				throw new IllegalArgumentException("Vertex " + v + " has too many edges for a distance table!") ;
+		}
+
+		CompactGraph.EdgeCosts c = graph.costs() ;
+		float[] distances = new float[n * n] ;
+		short[] hops = new short[n * n] ;
+		IntStream.range(0, n).parallel().forEach(source -> row(graph, c, source, distances, hops)) ;
+		return new DistanceTable(graph, c, FloatBuffer.wrap(distances), ShortBuffer.wrap(hops)) ;
+	}
+
+	// Fill the row of source by Dijkstra from it, with the search context
+	// of the calling thread
+	private static void row(CompactGraph graph, CompactGraph.EdgeCosts c, int source,
+			float[] distances, short[] hops) {
+		int n = graph.getNumVertices() ;
+		int row = source * n ;
+		Arrays.fill(distances, row, row + n, Float.POSITIVE_INFINITY) ;
+		Arrays.fill(hops, row, row + n, (short) -1) ;
+
+		SearchContext context = graph.context() ;
+		IndexedHeap pq = context.queue ;
+		context.update(source, 0) ;
+		pq.offer(source, 0) ;
+		while(!pq.isEmpty()) {
+			int curr = pq.poll() ;
+			double currDist = context.distance(curr) ;
+			distances[row + curr] = (float) currDist ;
+			for(int e = graph.offsets.get(curr) ; e < graph.offsets.get(curr + 1) ; e++) {
+				int next = graph.targets.get(e) ;
+				double newDist = currDist + c.cost.get(e) ;
+				if(newDist < context.distance(next)) {
+					context.update(next, newDist) ;
+					pq.offer(next, newDist) ;
+					//the first hop towards next is that towards curr, or e itself
+					hops[row + next] = curr == source ? (short) (e - graph.offsets.get(source)) : hops[row + curr] ;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Open the table saved next to a .map file, or build it and save it
+	 * there if there is none yet (or it is for another graph or other
+	 * costs).
+	 * @param mapFile The .map file graph was loaded from
+	 * @param graph The road graph
+	 * @return The table for graph under its current costs
+	 * @throws IllegalArgumentException If the graph is too large for a table
+	 */
+	public static DistanceTable forMapFile(String mapFile, CompactGraph graph) {
+		String tableFile = mapFile + ".apsp" ;
+		if(new File(tableFile).exists()) {
+			try {
+				return open(tableFile, graph) ;
+			}
+			catch(IOException e) {
+				System.out.println("Rebuilding distance table: " + e.getMessage()) ;
+			}
+		}
+		DistanceTable result = build(graph) ;
+		try {
+			result.save(tableFile) ;
+			return open(tableFile, graph) ;
+		}
+		catch(IOException e) {
+			System.err.println("Problem saving distance table file: " + tableFile) ;
+			e.printStackTrace() ;
+		}
+		return result ;
+	}
+
+	/**
+	 * Write the table to a file, to be opened with open().
+	 * @param filename The file to write
+	 * @throws IOException If the file cannot be written
+	 */
+	public void save(String filename) throws IOException {
+		//written beside the old file and renamed over it, as other JVMs may
+		//have the old table mapped, and must not see a half-written one
+		File target = new File(filename).getAbsoluteFile() ;
+		File temp = File.createTempFile(target.getName(), ".tmp", target.getParentFile()) ;
+		DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp), 1 << 16)) ;
+		try {
+			output.writeInt(MAGIC) ;
+			output.writeInt(n) ;
+			output.writeInt(graph.getNumEdges()) ;
+			output.writeInt(0) ; //reserved
+			output.writeLong(fingerprint(graph, costs)) ;
+			for(int i = 0 ; i < n * n ; i++)
+				output.writeFloat(distances.get(i)) ;
+			for(int i = 0 ; i < n * n ; i++)
+				output.writeShort(hops.get(i)) ;
+			output.close() ;
+			Files.move(temp.toPath(), target.toPath(),
+					StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING) ;
+		}
+		finally {
+			output.close() ;
+			temp.delete() ; //only still there if writing failed
+		}
+	}
+
+	/**
+	 * Map a table written by save() into memory.  The matrices are read
+	 * in place from the mapping, not copied.
+	 * @param filename The file to open
+	 * @param graph The graph the table was built for
+	 * @return The table
+	 * @throws IOException If the file cannot be read, or was not built for
+	 *   graph under its current costs
+	 */
+	public static DistanceTable open(String filename, CompactGraph graph) throws IOException {
+		MappedByteBuffer buffer ;
+		FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ) ;
+		try {
+			if(channel.size() < HEADER_BYTES || channel.size() > Integer.MAX_VALUE)
+				throw new IOException(filename + " is not a distance table file") ;
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()) ;
+		}
+		finally {
+			channel.close() ; //the mapping stays valid after the channel is closed
+		}
+
+		if(buffer.getInt(0) != MAGIC)
+			throw new IOException(filename + " is not a distance table file") ;
+		int n = graph.getNumVertices() ;
+		CompactGraph.EdgeCosts c = graph.costs() ;
+		if(buffer.getInt(4) != n || buffer.getInt(8) != graph.getNumEdges()
+				|| buffer.getLong(16) != fingerprint(graph, c))
+			throw new IOException(filename + " was built for a different graph or costs") ;
+		if(buffer.capacity() != HEADER_BYTES + 6L * n * n)
+			throw new IOException(filename + " is truncated or corrupt") ;
+
+		ByteBuffer view = buffer.duplicate() ;
+		view.position(HEADER_BYTES) ;
+		FloatBuffer distances = view.asFloatBuffer() ;
+		view.position(HEADER_BYTES + 4 * n * n) ;
+		ShortBuffer hops = view.asShortBuffer() ;
+		return new DistanceTable(graph, c, distances, hops) ;
+	}
+
+	// A hash of the edges and their costs, so a saved table is not used
+	// once the map or the cost model has changed
+	private static long fingerprint(CompactGraph graph, CompactGraph.EdgeCosts c) {
+		long hash = graph.getNumVertices() ;
+		for(int e = 0 ; e < graph.getNumEdges() ; e++) {
+			hash = hash * 31 + graph.targets.get(e) ;
+			hash = hash * 31 + Double.doubleToLongBits(c.cost.get(e)) ;
+		}
+		for(int v = 0 ; v <= graph.getNumVertices() ; v++)
+			hash = hash * 31 + graph.offsets.get(v) ;
+		return hash ;
+	}
+
+	/** @return The graph this table was built for */
+	public CompactGraph getGraph() {
+		return graph ;
+	}
+
+	// The same table for a copy of the graph it was built for, current for
+	// as long as the costs of the copy are those the table was built for
+	DistanceTable forGraph(CompactGraph copy) {
+		return new DistanceTable(copy, costs, distances, hops) ;
+	}
+
+	/**
+	 * @return Whether the graph's costs are still those the table was
+	 *   built for, that is, no cost model was set and no edge updated since
+	 */
+	public boolean isCurrent() {
+		return graph.costs() == costs ;
+	}
+
+	/**
+	 * @return The cost of the cheapest path from source to target, to float
+	 *   precision, or infinity if there is none
+	 */
+	public double getDistance(int source, int target) {
+		return distances.get(source * n + target) ;
+	}
+
+	/**
+	 * Follow the first hops from source to target.
+	 * @return The vertex ids of a cheapest path from source to target,
+	 *   or an empty array if there is none
+	 */
+	public int[] pathIds(int source, int target) {
+		if(hops.get(source * n + target) < 0 && source != target)
+			return new int[0] ;
+		int[] path = new int[16] ;
+		int length = 0 ;
+		path[length++] = source ;
+		//a path never repeats a vertex, unless zero cost edges tie in a cycle
+		for(int v = source ; v != target && length <= n ; ) {
+			v = graph.targets.get(graph.offsets.get(v) + hops.get(v * n + target)) ;
+			if(length == path.length)
+				path = Arrays.copyOf(path, length * 2) ;
+			path[length++] = v ;
+		}
+		return length > n ? new int[0] : Arrays.copyOf(path, length) ;
+	}
+
+	/**
+	 * Look up the cheapest path from start to goal.
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param nodeSearched A hook for visualization, called on each
+	 *   intersection of the path, as nothing else is searched
+	 * @return The intersections of the path, or an empty list if there is
+	 *   none or an end is not an intersection
+	 */
+	public RouteResult route(GeographicPoint start, GeographicPoint goal,
+			Consumer<GeographicPoint> nodeSearched) {
+		int source = graph.indexOf(start) ;
+		int target = graph.indexOf(goal) ;
+		if(source < 0 || target < 0)
+			return new RouteResult(graph, costs, new int[0]) ;
+		int[] path = pathIds(source, target) ;
+		if(nodeSearched != CompactGraph.IGNORE) {
+			for(int v : path)
+				nodeSearched.accept(graph.getLocation(v)) ;
+		}
+		return new RouteResult(graph, costs, path) ;
+	}
+
+	/**
+	 * Stats mode: for each small map, report the time to build and open
+	 * the table and its size, and time table lookups against Dijkstra on
+	 * random pairs, checking that both find paths of the same cost.
+	 *
+	 * Run from the project root: java roadgraph.DistanceTable [map files]
+	 */
+	public static void main(String[] args) throws IOException {
+		String[] maps = args.length > 0 ? args : new String[] {"data/maps/ucsd.map",
+				"data/maps/utc.map", "data/maps/hollywood_small.map"} ;
+		int queries = 20000 ;
+
+		for(String file : maps) {
+			CompactGraph.Builder builder = new CompactGraph.Builder() ;
+			GraphLoader.loadRoadMap(file, builder) ;
+			CompactGraph graph = builder.build() ;
+			int n = graph.getNumVertices() ;
+
+			long begin = System.nanoTime() ;
+			DistanceTable built = build(graph) ;
+			double buildMs = (System.nanoTime() - begin) / 1e6 ;
+			File tableFile = File.createTempFile("table", ".apsp") ;
+			built.save(tableFile.getPath()) ;
+			begin = System.nanoTime() ;
+			DistanceTable table = open(tableFile.getPath(), graph) ;
+			double openMs = (System.nanoTime() - begin) / 1e6 ;
+			System.out.printf("%s: %d vertices, built in %.1f ms, %d KB, opened in %.2f ms%n",
+					file, n, buildMs, tableFile.length() >> 10, openMs) ;
+
+			Random random = new Random(3) ;
+			GeographicPoint[] starts = new GeographicPoint[queries] ;
+			GeographicPoint[] goals = new GeographicPoint[queries] ;
+			for(int i = 0 ; i < queries ; i++) {
+				starts[i] = graph.getLocation(random.nextInt(n)) ;
+				goals[i] = graph.getLocation(random.nextInt(n)) ;
+				RouteResult looked = table.route(starts[i], goals[i], CompactGraph.IGNORE) ;
+				RouteResult searched = graph.dijkstra(starts[i], goals[i]) ;
+				if(Math.abs(looked.getDistance() - searched.getDistance()) > 1e-9 * Math.max(1, searched.getDistance()))
+					throw new IllegalStateException("Table and Dijkstra differ from " + starts[i] + " to " + goals[i]) ;
+			}
+
+			begin = System.nanoTime() ;
+			for(int i = 0 ; i < queries ; i++)
+				graph.dijkstra(starts[i], goals[i]) ;
+			double dijkstraUs = (System.nanoTime() - begin) / 1e3 / queries ;
+			begin = System.nanoTime() ;
+			for(int i = 0 ; i < queries ; i++)
+				table.route(starts[i], goals[i], CompactGraph.IGNORE) ;
+			double tableUs = (System.nanoTime() - begin) / 1e3 / queries ;
+			System.out.printf("  dijkstra %.2f us/route, table %.2f us/route%n", dijkstraUs, tableUs) ;
+			tableFile.delete() ;
+		}
+	}
+}
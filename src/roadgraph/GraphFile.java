@@ -0,0 +1,407 @@
+package roadgraph;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import geography.GeographicPoint;
+import geography.RoadSegment;
+import util.GraphLoader;
+
+/**
+ * A road map compiled from its .map text file into a binary graph file,
+ * opened with FileChannel.map so that loading it is a few bulk copies
+ * and views instead of parsing and collapsing every line of the text file.
+ *
+ * The file holds, after a header of eight ints:
+ *   lat, lon (double per vertex), weights (double per edge),
+ *   geometry (lat, lon double pairs for the intermediate points of every edge),
+ *   offsets (n+1 ints), targets, roadNames, roadTypes (int per edge),
+ *   geometryOffsets (m+1 ints, in points), stringOffsets (one per string + 1),
+ *   and the UTF-8 bytes of the road name table followed by the type table.
+ * Every double section comes first, so they all stay 8-byte aligned.
+ *
+ * The CSR arrays (offsets, targets and weights) are not copied: the
+ * CompactGraph the searches run on reads them through views of the
+ * mapping.  The vertex locations and road names are copied to the heap.
+ * The road geometry stays in the mapping and is only read when a
+ * RoadSegment is asked for, so a map is ready to route as soon as it is
+ * opened, and every JVM that opens the same file shares its pages.
+ */
+public class GraphFile {
+
+	private static final int MAGIC = 0x52474631 ; //"RGF1"
+	private static final int HEADER_BYTES = 8 * 4 ;
+
+	private final CompactGraph graph ;
+	private final ByteBuffer buffer ;
+	private final int geometryStart ; //byte position of the geometry section
+	private final int geometryOffsetsStart ; //byte position of geometryOffsets
+
+	private GraphFile(CompactGraph graph, ByteBuffer buffer, int geometryStart, int geometryOffsetsStart) {
+		this.graph = graph ;
+		this.buffer = buffer ;
+		this.geometryStart = geometryStart ;
+		this.geometryOffsetsStart = geometryOffsetsStart ;
+	}
+
+	/**
+	 * Open the graph file compiled from a .map file, compiling it first if
+	 * there is none yet or the .map file has changed since.
+	 * @param mapFile The .map file
+	 * @return The opened graph file
+	 * @throws IOException If the graph file cannot be written or read
+	 */
+	public static GraphFile forMapFile(String mapFile) throws IOException {
+		File map = new File(mapFile) ;
+		File compiled = new File(mapFile + ".graph") ;
+		if(!compiled.exists() || compiled.lastModified() < map.lastModified())
+			compile(mapFile, compiled.getPath()) ;
+		return open(compiled.getPath()) ;
+	}
+
+	/**
+	 * Parse a .map file once and write it out as a graph file.
+	 * @param mapFile The .map file to read
+	 * @param graphFile The graph file to write
+	 * @throws IOException If the graph file cannot be written
+	 */
+	public static void compile(String mapFile, String graphFile) throws IOException {
+		MapGraph map = new MapGraph() ;
+		HashMap<GeographicPoint,HashSet<RoadSegment>> roads = new HashMap<GeographicPoint,HashSet<RoadSegment>>() ;
+		GraphLoader.loadRoadMap(mapFile, map, roads, null) ;
+		CompactGraph g = CompactGraph.fromMapGraph(map) ;
+		int n = g.getNumVertices() ;
+		int m = g.getNumEdges() ;
+
+		//intermediate points of each edge, from the segment it was loaded with
+		List<List<GeographicPoint>> geometry = new ArrayList<List<GeographicPoint>>(m) ;
+		int numPoints = 0 ;
+		for(int v = 0 ; v < n ; v++) {
+			GeographicPoint start = g.getLocation(v) ;
+			for(int e = g.firstEdge(v) ; e < g.endEdge(v) ; e++) {
+				List<GeographicPoint> points = innerPoints(roads.get(start), start,
+						g.getLocation(g.getTarget(e)), g.getRoadName(e), g.getWeight(e)) ;
+				geometry.add(points) ;
+				numPoints += points.size() ;
+			}
+		}
+
+		byte[][] strings = new byte[g.nameTable.length + g.typeTable.length][] ;
+		int stringBytes = 0 ;
+		for(int i = 0 ; i < strings.length ; i++) {
+			String s = i < g.nameTable.length ? g.nameTable[i] : g.typeTable[i - g.nameTable.length] ;
+			strings[i] = s.getBytes(StandardCharsets.UTF_8) ;
+			stringBytes += strings[i].length ;
+		}
+
+		//written beside the old file and renamed over it, as other JVMs may
+		//have the old file mapped, and must not see a half-written one
+		File target = new File(graphFile).getAbsoluteFile() ;
+		File temp = File.createTempFile(target.getName(), ".tmp", target.getParentFile()) ;
+		DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp))) ;
+		try {
+			output.writeInt(MAGIC) ;
+			output.writeInt(n) ;
+			output.writeInt(m) ;
+			output.writeInt(numPoints) ;
+			output.writeInt(g.nameTable.length) ;
+			output.writeInt(g.typeTable.length) ;
+			output.writeInt(stringBytes) ;
+			output.writeInt(0) ; //padding
+
+			for(int v = 0 ; v < n ; v++)
+				output.writeDouble(g.lat[v]) ;
+			for(int v = 0 ; v < n ; v++)
+				output.writeDouble(g.lon[v]) ;
+			for(int e = 0 ; e < m ; e++)
+				output.writeDouble(g.weights.get(e)) ;
+			for(List<GeographicPoint> points : geometry) {
+				for(GeographicPoint p : points) {
+					output.writeDouble(p.getX()) ;
+					output.writeDouble(p.getY()) ;
+				}
+			}
+
+			for(int v = 0 ; v <= n ; v++)
+				output.writeInt(g.offsets.get(v)) ;
+			for(int e = 0 ; e < m ; e++)
+				output.writeInt(g.targets.get(e)) ;
+			for(int e = 0 ; e < m ; e++)
+				output.writeInt(g.roadNames[e]) ;
+			for(int e = 0 ; e < m ; e++)
+				output.writeInt(g.roadTypes[e]) ;
+			int offset = 0 ;
+			output.writeInt(0) ;
+			for(List<GeographicPoint> points : geometry) {
+				offset += points.size() ;
+				output.writeInt(offset) ;
+			}
+			offset = 0 ;
+			output.writeInt(0) ;
+			for(byte[] s : strings) {
+				offset += s.length ;
+				output.writeInt(offset) ;
+			}
+			for(byte[] s : strings)
+				output.write(s) ;
+			output.close() ;
+			Files.move(temp.toPath(), target.toPath(),
+					StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING) ;
+		}
+		finally {
+			output.close() ;
+			temp.delete() ; //only still there if writing failed
+		}
+	}
+
+	// The points strictly between start and end on the road segment that
+	// the edge start -> end was built from
+	private static List<GeographicPoint> innerPoints(HashSet<RoadSegment> segments,
+			GeographicPoint start, GeographicPoint end, String roadName, double length) {
+		if(segments != null) {
+			for(RoadSegment segment : segments) {
+				if(segment.getLength() == length && segment.getRoadName().equals(roadName)
+						&& end.equals(segment.getOtherPoint(start))) {
+					List<GeographicPoint> points = segment.getPoints(start, end) ;
+					return points.subList(1, points.size() - 1) ;
+				}
+			}
+		}
+		return new ArrayList<GeographicPoint>() ;
+	}
+
+	/**
+	 * Map a graph file written by compile() into memory.
+	 * @param graphFile The graph file
+	 * @return The opened graph file
+	 * @throws IOException If the file cannot be read or is not a graph file
+	 */
+	public static GraphFile open(String graphFile) throws IOException {
+		MappedByteBuffer buffer ;
+		FileChannel channel = FileChannel.open(Paths.get(graphFile), StandardOpenOption.READ) ;
+		try {
+			if(channel.size() < HEADER_BYTES || channel.size() > Integer.MAX_VALUE)
+				throw new IOException(graphFile + " is not a graph file") ;
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()) ;
+		}
+		finally {
+			channel.close() ; //the mapping stays valid after the channel is closed
+		}
+
+		if(buffer.getInt(0) != MAGIC)
+			throw new IOException(graphFile + " is not a graph file") ;
+		int n = buffer.getInt(4) ;
+		int m = buffer.getInt(8) ;
+		int numPoints = buffer.getInt(12) ;
+		int numNames = buffer.getInt(16) ;
+		int numTypes = buffer.getInt(20) ;
+		int stringBytes = buffer.getInt(24) ;
+
+		long size = HEADER_BYTES + 8L * (2L * n + m + 2L * numPoints)
+				+ 4L * ((n + 1L) + 3L * m + (m + 1L) + (numNames + numTypes + 1L)) + stringBytes ;
+		if(n < 0 || m < 0 || numPoints < 0 || numNames < 0 || numTypes < 0 || size != buffer.capacity())
+			throw new IOException(graphFile + " is truncated or corrupt") ;
+
+		int position = HEADER_BYTES ;
+		double[] lat = new double[n] ;
+		position = copy(buffer, position, lat) ;
+		double[] lon = new double[n] ;
+		position = copy(buffer, position, lon) ;
+		DoubleBuffer weights = doubles(buffer, position, m) ;
+		position += 8 * m ;
+		int geometryStart = position ;
+		position += 16 * numPoints ;
+
+		IntBuffer offsets = ints(buffer, position, n + 1) ;
+		position += 4 * (n + 1) ;
+		IntBuffer targets = ints(buffer, position, m) ;
+		position += 4 * m ;
+		int[] roadNames = new int[m] ;
+		position = copy(buffer, position, roadNames) ;
+		int[] roadTypes = new int[m] ;
+		position = copy(buffer, position, roadTypes) ;
+		int geometryOffsetsStart = position ;
+		position += 4 * (m + 1) ;
+
+		int[] stringOffsets = new int[numNames + numTypes + 1] ;
+		position = copy(buffer, position, stringOffsets) ;
+		String[] nameTable = new String[numNames] ;
+		String[] typeTable = new String[numTypes] ;
+		byte[] bytes = new byte[stringBytes] ;
+		ByteBuffer view = buffer.duplicate() ;
+		view.position(position) ;
+		view.get(bytes) ;
+		for(int i = 0 ; i < numNames + numTypes ; i++) {
+			String s = new String(bytes, stringOffsets[i], stringOffsets[i + 1] - stringOffsets[i],
+					StandardCharsets.UTF_8) ;
+			if(i < numNames)
+				nameTable[i] = s ;
+			else
+				typeTable[i - numNames] = s ;
+		}
+
+		CompactGraph graph = new CompactGraph(lat, lon, offsets, targets, weights,
+				roadNames, roadTypes, nameTable, typeTable) ;
+		return new GraphFile(graph, buffer, geometryStart, geometryOffsetsStart) ;
+	}
+
+	private static int copy(ByteBuffer buffer, int position, double[] into) {
+		ByteBuffer view = buffer.duplicate() ;
+		view.position(position) ;
+		view.asDoubleBuffer().get(into) ;
+		return position + 8 * into.length ;
+	}
+
+	private static int copy(ByteBuffer buffer, int position, int[] into) {
+		ByteBuffer view = buffer.duplicate() ;
+		view.position(position) ;
+		view.asIntBuffer().get(into) ;
+		return position + 4 * into.length ;
+	}
+
+	// A read-only view of count doubles of the mapping, from position
+	private static DoubleBuffer doubles(ByteBuffer buffer, int position, int count) {
+		ByteBuffer view = buffer.duplicate() ;
+		view.position(position) ;
+		view.limit(position + 8 * count) ;
+		return view.slice().asDoubleBuffer().asReadOnlyBuffer() ;
+	}
+
+	// A read-only view of count ints of the mapping, from position
+	private static IntBuffer ints(ByteBuffer buffer, int position, int count) {
+		ByteBuffer view = buffer.duplicate() ;
+		view.position(position) ;
+		view.limit(position + 4 * count) ;
+		return view.slice().asIntBuffer().asReadOnlyBuffer() ;
+	}
+
+
+	/** @return The road graph stored in this file */
+	public CompactGraph getGraph() {
+		return graph ;
+	}
+
+	/**
+	 * The intermediate points of an edge, read from the mapped file.
+	 * @param e An edge id of getGraph()
+	 * @return The points strictly between the two ends of edge e, in order
+	 */
+	public List<GeographicPoint> getGeometry(int e) {
+		int first = buffer.getInt(geometryOffsetsStart + 4 * e) ;
+		int end = buffer.getInt(geometryOffsetsStart + 4 * (e + 1)) ;
+		List<GeographicPoint> points = new ArrayList<GeographicPoint>(end - first) ;
+		for(int i = first ; i < end ; i++) {
+			int at = geometryStart + 16 * i ;
+			points.add(new GeographicPoint(buffer.getDouble(at), buffer.getDouble(at + 8))) ;
+		}
+		return points ;
+	}
+
+	/**
+	 * @param e An edge id of getGraph()
+	 * @return The road segment, with its full geometry, of edge e
+	 */
+	public RoadSegment getSegment(int e) {
+		int v = source(e) ;
+		return new RoadSegment(graph.getLocation(v), graph.getLocation(graph.getTarget(e)),
+				getGeometry(e), graph.getRoadName(e), graph.getRoadType(e), graph.getWeight(e)) ;
+	}
+
+	/**
+	 * Build the road segments at each intersection, the same map that
+	 * GraphLoader.loadRoadMap fills in from the .map file.
+	 * @return A map from each intersection to the segments that touch it
+	 */
+	public HashMap<GeographicPoint,HashSet<RoadSegment>> getRoads() {
+		HashMap<GeographicPoint,HashSet<RoadSegment>> roads = new HashMap<GeographicPoint,HashSet<RoadSegment>>() ;
+		//one GeographicPoint per vertex, shared by all of its segments
+		GeographicPoint[] locations = new GeographicPoint[graph.getNumVertices()] ;
+		for(int v = 0 ; v < locations.length ; v++)
+			locations[v] = graph.getLocation(v) ;
+		for(int v = 0 ; v < locations.length ; v++) {
+			for(int e = graph.firstEdge(v) ; e < graph.endEdge(v) ; e++) {
+				GeographicPoint start = locations[v] ;
+				GeographicPoint end = locations[graph.getTarget(e)] ;
+				RoadSegment segment = new RoadSegment(start, end, getGeometry(e),
+						graph.getRoadName(e), graph.getRoadType(e), graph.getWeight(e)) ;
+				add(roads, start, segment) ;
+				add(roads, end, segment) ;
+			}
+		}
+		return roads ;
+	}
+
+	private static void add(HashMap<GeographicPoint,HashSet<RoadSegment>> roads,
+			GeographicPoint point, RoadSegment segment) {
+		HashSet<RoadSegment> segments = roads.get(point) ;
+		if(segments == null) {
+			segments = new HashSet<RoadSegment>() ;
+			roads.put(point, segments) ;
+		}
+		segments.add(segment) ;
+	}
+
+	// The vertex edge e starts from
+	private int source(int e) {
+		int low = 0 ;
+		int high = graph.getNumVertices() - 1 ;
+		while(low < high) {
+			int mid = (low + high + 1) >>> 1 ;
+			if(graph.firstEdge(mid) <= e)
+				low = mid ;
+			else
+				high = mid - 1 ;
+		}
+		return low ;
+	}
+
+
+	/**
+	 * Compile each map given on the command line (or every map in
+	 * data/maps) and compare the time to open the graph file against
+	 * parsing the .map file.
+	 */
+	public static void main(String[] args) throws IOException {
+		String[] maps = args.length > 0 ? args : new String[] {"data/maps/utc.map",
+				"data/maps/san_diego.map", "data/maps/new_york.map",
+				"data/maps/hollywood_large.map", "data/maps/Monterrey.map"} ;
+
+		for(String file : maps) {
+			long begin = System.nanoTime() ;
+			compile(file, file + ".graph") ;
+			long compileTime = System.nanoTime() - begin ;
+
+			begin = System.nanoTime() ;
+			MapGraph parsed = new MapGraph() ;
+			GraphLoader.loadRoadMap(file, parsed, new HashMap<GeographicPoint,HashSet<RoadSegment>>(), null) ;
+			long parseTime = System.nanoTime() - begin ;
+
+			begin = System.nanoTime() ;
+			GraphFile opened = open(file + ".graph") ;
+			long openTime = System.nanoTime() - begin ;
+
+			System.out.printf("%s: %d vertices, %d edges, %d bytes; compile %.1f ms, "
+					+ "parse .map %.1f ms, open graph file %.2f ms%n", file,
+					opened.getGraph().getNumVertices(), opened.getGraph().getNumEdges(),
+					new File(file + ".graph").length(), compileTime / 1e6, parseTime / 1e6, openTime / 1e6) ;
+		}
+	}
+}
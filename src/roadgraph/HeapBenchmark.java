@@ -0,0 +1,147 @@
+package roadgraph;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import util.GraphLoader;
+
+/**
+ * Compares the indexed d-ary heap used by CompactGraph.dijkstra against
+ * the java.util.PriorityQueue approach MapGraph used before: push a
+ * duplicate entry on every improvement and skip stale entries on poll.
+ * Both run on the graph's version-stamped SearchContext for distances
+ * and the settled set, so they differ only in the queue.
+ *
+ * Run from the project root: java roadgraph.HeapBenchmark [queries]
+ */
+public class HeapBenchmark {
+
+	private static final String[] MAPS = {"data/maps/new_york.map", "data/maps/hollywood_large.map"} ;
+	private static final int[] ARITIES = {2, 4, 8} ;
+
+	// An entry in the PriorityQueue baseline
+	private static class Entry implements Comparable<Entry> {
+		final int node ;
+		final double dist ;
+
+		Entry(int node, double dist) {
+			this.node = node ;
+			this.dist = dist ;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			return Double.compare(dist, other.dist) ;
+		}
+	}
+
+	// Dijkstra with duplicate entries in a PriorityQueue, like the old
+	// MapGraph.dijkstra, but with distances and the settled set in the
+	// graph's search context like indexedDijkstra.  Returns the distance;
+	// peak[0] gets the largest queue size seen.
+	private static double priorityQueueDijkstra(CompactGraph g, int source, int target, int[] peak) {
+		SearchContext context = g.context() ;
+		PriorityQueue<Entry> pq = new PriorityQueue<Entry>() ;
+
+		context.update(source, 0, source) ;
+		pq.offer(new Entry(source, 0)) ;
+		while(!pq.isEmpty()) {
+			peak[0] = Math.max(peak[0], pq.size()) ;
+			Entry curr = pq.remove() ;
+			if(context.isSettled(curr.node))
+				continue ;
+			context.settle(curr.node) ;
+			if(curr.node == target)
+				return curr.dist ;
+			for(int e = g.firstEdge(curr.node) ; e < g.endEdge(curr.node) ; e++) {
+				int next = g.getTarget(e) ;
+				double newDist = curr.dist + g.getWeight(e) ;
+				if(newDist < context.distance(next) && !context.isSettled(next)) {
+					context.update(next, newDist, curr.node) ;
+					pq.offer(new Entry(next, newDist)) ;
+				}
+			}
+		}
+		return Double.POSITIVE_INFINITY ;
+	}
+
+	// Dijkstra on the indexed heap, using the graph's own search context
+	private static double indexedDijkstra(CompactGraph g, int source, int target, int[] peak) {
+		SearchContext context = g.context() ;
+		IndexedHeap pq = context.queue ;
+		context.update(source, 0, source) ;
+		pq.offer(source, 0) ;
+		while(!pq.isEmpty()) {
+			peak[0] = Math.max(peak[0], pq.size()) ;
+			int curr = pq.poll() ;
+			context.settle(curr) ;
+			if(curr == target)
+				return context.distance(curr) ;
+			double currDist = context.distance(curr) ;
+			for(int e = g.firstEdge(curr) ; e < g.endEdge(curr) ; e++) {
+				int next = g.getTarget(e) ;
+				double newDist = currDist + g.getWeight(e) ;
+				if(newDist < context.distance(next) && !context.isSettled(next)) {
+					context.update(next, newDist, curr) ;
+					pq.offer(next, newDist) ;
+				}
+			}
+		}
+		return Double.POSITIVE_INFINITY ;
+	}
+
+	public static void main(String[] args) {
+		int queries = args.length > 0 ? Integer.parseInt(args[0]) : 20000 ;
+
+		for(String file : MAPS) {
+			CompactGraph.Builder builder = new CompactGraph.Builder() ;
+			GraphLoader.loadRoadMap(file, builder) ;
+			CompactGraph g = builder.build() ;
+			int n = g.getNumVertices() ;
+
+			Random random = new Random(42) ;
+			int[] sources = new int[queries] ;
+			int[] targets = new int[queries] ;
+			for(int i = 0 ; i < queries ; i++) {
+				sources[i] = random.nextInt(n) ;
+				targets[i] = random.nextInt(n) ;
+			}
+
+			System.out.println(file + ": " + n + " vertices, " + g.getNumEdges() + " edges, "
+					+ queries + " queries") ;
+
+			//two rounds, the first one only warms up the JIT
+			for(int round = 0 ; round < 2 ; round++) {
+				int[] peak = new int[1] ;
+				double check = 0 ;
+				long begin = System.nanoTime() ;
+				for(int i = 0 ; i < queries ; i++)
+					check += finite(priorityQueueDijkstra(g, sources[i], targets[i], peak)) ;
+				long time = System.nanoTime() - begin ;
+				if(round == 1)
+					report("PriorityQueue", time, queries, peak[0], check) ;
+
+				for(int arity : ARITIES) {
+					g.setHeapArity(arity) ;
+					peak[0] = 0 ;
+					check = 0 ;
+					begin = System.nanoTime() ;
+					for(int i = 0 ; i < queries ; i++)
+						check += finite(indexedDijkstra(g, sources[i], targets[i], peak)) ;
+					time = System.nanoTime() - begin ;
+					if(round == 1)
+						report("IndexedHeap d=" + arity, time, queries, peak[0], check) ;
+				}
+			}
+		}
+	}
+
+	private static double finite(double d) {
+		return Double.isInfinite(d) ? 0 : d ;
+	}
+
+	private static void report(String name, long nanos, int queries, int peak, double check) {
+		System.out.printf("  %-16s %8.2f us/query, peak queue %6d, checksum %.3f%n",
+				name, nanos / 1000.0 / queries, peak, check) ;
+	}
+}
@@ -0,0 +1,578 @@
+package roadgraph;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import geography.GeographicPoint;
+import util.GraphLoader;
+
+/**
+ * A hub labeling (2-hop cover) of a CompactGraph, for distance queries
+ * that take a merge of two short sorted lists instead of a search.
+ *
+ * Every vertex u has an out-label of hubs h with d(u, h) and an in-label
+ * of hubs h with d(h, u), such that every shortest path from s to t runs
+ * through a hub in both the out-label of s and the in-label of t.  Then
+ * d(s, t) is the least d(s, h) + d(h, t) over the hubs the two labels
+ * share.  Labels are built by pruned landmark labeling (Akiba, Iwata and
+ * Yoshida): vertices are taken in order of importance, and a Dijkstra
+ * search from each, forward and backward, adds it as a hub to every
+ * vertex it reaches, except where the labels so far already give a path
+ * as short, where it stops.  Important vertices come first, so later
+ * searches are cut off early and labels stay short.
+ *
+ * All labels live in flat arrays grouped by vertex, each label sorted by
+ * hub (numbered by order of importance): hub ids in an int array and
+ * distances in a float array, with the vertex next to the hub on the
+ * path in a third array when paths are kept.
+ *
+ * Construction runs the searches of a batch of consecutive vertices in
+ * parallel, each pruned by the labels of the batches before it, so a
+ * label may hold a few more hubs than the sequential labeling would.
+ * Batches start at one vertex and double up to MAX_BATCH, as the first
+ * vertices are the ones whose searches prune least.  Besides the labels,
+ * memory use is one search context per thread and the hubs found by the
+ * batch in progress, and construction stops once the labels exceed a
+ * given number of entries.
+ *
+ * Labels are for the graph's costs at build time; isCurrent tells whether
+ * they still hold.
+ */
+public class HubLabels {
+
+	/** How vertices are ordered for labeling */
+	public enum Order {
+		/** Most in and out edges first */
+		DEGREE,
+		/** Highest rank in a contraction hierarchy first: slower to
+		 * prepare, but gives much shorter labels on road graphs */
+		IMPORTANCE
+	}
+
+	/** The most vertices whose searches run in parallel, between merges */
+	public static final int MAX_BATCH = 64 ;
+
+	private final CompactGraph graph ;
+	private final CompactGraph.EdgeCosts costs ; //the costs the labels were built for
+	private final int[] order ; //vertex of each hub id
+
+	// label of v is entries offsets[v] .. offsets[v+1]-1, sorted by hub
+	private final int[] outOffsets ;
+	private final int[] outHubs ;
+	private final float[] outDist ; //d(v, hub)
+	private final int[] outNext ; //vertex after v on the path to hub, or null
+	private final int[] inOffsets ;
+	private final int[] inHubs ;
+	private final float[] inDist ; //d(hub, v)
+	private final int[] inPrev ; //vertex before v on the path from hub, or null
+
+	private HubLabels(CompactGraph graph, CompactGraph.EdgeCosts costs, int[] order,
+			Labels out, Labels in) {
+		this.graph = graph ;
+		this.costs = costs ;
+		this.order = order ;
+		this.outOffsets = out.offsets() ;
+		this.outHubs = out.flatHubs(outOffsets) ;
+		this.outDist = out.flatDist(outOffsets) ;
+		this.outNext = out.flatVia(outOffsets) ;
+		this.inOffsets = in.offsets() ;
+		this.inHubs = in.flatHubs(inOffsets) ;
+		this.inDist = in.flatDist(inOffsets) ;
+		this.inPrev = in.flatVia(inOffsets) ;
+	}
+
+	/**
+	 * Label every vertex of graph, with the searches of each batch run on
+	 * the common fork-join pool.
+	 * @param graph The road graph
+	 * @param order How to order the vertices
+	 * @param withPaths Whether to keep what path retrieval needs, which
+	 *   takes another int per label entry
+	 * @param maxEntries The most label entries, in and out together, to
+	 *   build before giving up
+	 * @return The labels for graph under its current costs
+	 * @throws IllegalArgumentException If the labels need more than
+	 *   maxEntries entries
+	 */
+	public static HubLabels build(CompactGraph graph, Order order, boolean withPaths, long maxEntries) {
+		int n = graph.getNumVertices() ;
+		CompactGraph.EdgeCosts c = graph.costs() ;
+		CompactGraph.ReverseEdges reverse = graph.reverse() ;
+		int[] ordered = order == Order.IMPORTANCE ? byImportance(graph) : byDegree(graph, reverse) ;
+
+		Labels out = new Labels(n, withPaths) ;
+		Labels in = new Labels(n, withPaths) ;
+		ThreadLocal<float[]> scratch = ThreadLocal.withInitial(() -> {
+			float[] rootDist = new float[n] ;
+			Arrays.fill(rootDist, Float.POSITIVE_INFINITY) ;
+			return rootDist ;
+		}) ;
+
+		for(int first = 0, batch = 1 ; first < n ; first += batch, batch = Math.min(batch * 2, MAX_BATCH)) {
+			int size = Math.min(batch, n - first) ;
+			int start = first ;
+			//searches 2i and 2i+1 are the forward and backward ones of hub first+i
+			Found[] found = new Found[2 * size] ;
+			IntStream.range(0, 2 * size).parallel().forEach(j -> {
+				boolean backward = (j & 1) != 0 ;
+				int hub = start + j / 2 ;
+				found[j] = backward ? search(graph, c, reverse, ordered[hub], true, in, out, scratch.get())
+						: search(graph, c, reverse, ordered[hub], false, out, in, scratch.get()) ;
+			}) ;
+			//forward searches fill in-labels, backward ones out-labels, in hub order
+			for(int j = 0 ; j < found.length ; j++)
+				((j & 1) != 0 ? out : in).add(found[j], start + j / 2) ;
+			if(out.entries + in.entries > maxEntries)
+				throw new IllegalArgumentException("Hub labels of " + graph.getNumVertices()
+						+ " vertices need more than " + maxEntries + " entries!") ;
+		}
+		return new HubLabels(graph, c, ordered, out, in) ;
+	}
+
+	/**
+	 * Label every vertex by importance, keeping paths, with at most
+	 * 2^31 - 1 entries.
+	 * @see #build(CompactGraph, Order, boolean, long)
+	 */
+	public static HubLabels build(CompactGraph graph) {
+		return build(graph, Order.IMPORTANCE, true, Integer.MAX_VALUE) ;
+	}
+
+	/**
+	 * Pruned Dijkstra from root, over incoming edges if backward is set.
+	 * A vertex u reached at distance d is pruned, and not expanded, when
+	 * the labels so far already give d or less between root and u.
+	 * @param rootLabels The labels on the root's side: out-labels going
+	 *   forward, in-labels going backward
+	 * @param reachedLabels The labels on the other side
+	 * @param rootDist All infinite; used to look up the root's label by hub
+	 */
+	private static Found search(CompactGraph graph, CompactGraph.EdgeCosts c,
+			CompactGraph.ReverseEdges reverse, int root, boolean backward,
+			Labels rootLabels, Labels reachedLabels, float[] rootDist) {
+		int[] rootHubs = rootLabels.hubs[root] ;
+		float[] rootDists = rootLabels.dist[root] ;
+		int rootSize = rootLabels.size[root] ;
+		for(int i = 0 ; i < rootSize ; i++)
+			rootDist[rootHubs[i]] = rootDists[i] ;
+
+		Found found = new Found() ;
+		SearchContext context = graph.context() ;
+		IndexedHeap pq = context.queue ;
+		context.update(root, 0, root) ;
+		pq.offer(root, 0) ;
+		while(!pq.isEmpty()) {
+			int u = pq.poll() ;
+			double d = context.distance(u) ;
+			if(covered(reachedLabels, u, rootDist, d))
+				continue ;
+			found.add(u, (float) d, context.parent(u)) ;
+
+			int first = backward ? reverse.offsets[u] : graph.offsets.get(u) ;
+			int end = backward ? reverse.offsets[u + 1] : graph.offsets.get(u + 1) ;
+			for(int i = first ; i < end ; i++) {
+				int e = backward ? reverse.edges[i] : i ;
+				int next = backward ? reverse.sources[i] : graph.targets.get(i) ;
+				double newDist = d + c.cost.get(e) ;
+				if(newDist < context.distance(next)) {
+					context.update(next, newDist, u) ;
+					pq.offer(next, newDist) ;
+				}
+			}
+		}
+
+		for(int i = 0 ; i < rootSize ; i++)
+			rootDist[rootHubs[i]] = Float.POSITIVE_INFINITY ;
+		return found ;
+	}
+
+	// Whether a hub shared by the root's label and u's already gives d
+	private static boolean covered(Labels labels, int u, float[] rootDist, double d) {
+		int[] hubs = labels.hubs[u] ;
+		float[] dist = labels.dist[u] ;
+		for(int i = labels.size[u] - 1 ; i >= 0 ; i--) {
+			if((double) rootDist[hubs[i]] + dist[i] <= d)
+				return true ;
+		}
+		return false ;
+	}
+
+	// Vertices by decreasing number of in and out edges
+	private static int[] byDegree(CompactGraph graph, CompactGraph.ReverseEdges reverse) {
+		int n = graph.getNumVertices() ;
+		long[] keys = new long[n] ;
+		for(int v = 0 ; v < n ; v++) {
+			long degree = graph.offsets.get(v + 1) - graph.offsets.get(v) + reverse.offsets[v + 1] - reverse.offsets[v] ;
+			keys[v] = -degree << 32 | v ;
+		}
+		Arrays.parallelSort(keys) ;
+		int[] order = new int[n] ;
+		for(int i = 0 ; i < n ; i++)
+			order[i] = (int) keys[i] ;
+		return order ;
+	}
+
+	// Vertices by decreasing rank in a contraction hierarchy
+	private static int[] byImportance(CompactGraph graph) {
+		ContractionHierarchy hierarchy = ContractionHierarchy.build(graph) ;
+		int n = graph.getNumVertices() ;
+		long[] keys = new long[n] ;
+		for(int v = 0 ; v < n ; v++)
+			keys[v] = -(long) hierarchy.getRank(v) << 32 | v ;
+		Arrays.parallelSort(keys) ;
+		int[] order = new int[n] ;
+		for(int i = 0 ; i < n ; i++)
+			order[i] = (int) keys[i] ;
+		return order ;
+	}
+
+	// The vertices one search reached unpruned, in the order settled
+	private static class Found {
+		int size ;
+		int[] vertices = new int[16] ;
+		float[] dist = new float[16] ;
+		int[] via = new int[16] ; //search tree parent
+
+		void add(int v, float d, int parent) {
+			if(size == vertices.length) {
+				vertices = Arrays.copyOf(vertices, size * 2) ;
+				dist = Arrays.copyOf(dist, size * 2) ;
+				via = Arrays.copyOf(via, size * 2) ;
+			}
+			vertices[size] = v ;
+			dist[size] = d ;
+			via[size++] = parent ;
+		}
+	}
+
+	// Labels under construction, one growable list per vertex
+	private static class Labels {
+		final int[][] hubs ;
+		final float[][] dist ;
+		final int[][] via ; //null without paths
+		final int[] size ;
+		long entries ;
+
+		Labels(int n, boolean withPaths) {
+			hubs = new int[n][] ;
+			dist = new float[n][] ;
+			via = withPaths ? new int[n][] : null ;
+			size = new int[n] ;
+			for(int v = 0 ; v < n ; v++) {
+				hubs[v] = new int[2] ;
+				dist[v] = new float[2] ;
+				if(withPaths)
+					via[v] = new int[2] ;
+			}
+		}
+
+		// Append hub to the label of every vertex a search found
+		void add(Found found, int hub) {
+			for(int i = 0 ; i < found.size ; i++) {
+				int v = found.vertices[i] ;
+				int k = size[v]++ ;
+				if(k == hubs[v].length) {
+					hubs[v] = Arrays.copyOf(hubs[v], k * 2) ;
+					dist[v] = Arrays.copyOf(dist[v], k * 2) ;
+					if(via != null)
+						via[v] = Arrays.copyOf(via[v], k * 2) ;
+				}
+				hubs[v][k] = hub ;
+				dist[v][k] = found.dist[i] ;
+				if(via != null)
+					via[v][k] = found.via[i] ;
+			}
+			entries += found.size ;
+		}
+
+		int[] offsets() {
+			int[] offsets = new int[size.length + 1] ;
+			for(int v = 0 ; v < size.length ; v++)
+				offsets[v + 1] = Math.addExact(offsets[v], size[v]) ;
+			return offsets ;
+		}
+
+		int[] flatHubs(int[] offsets) {
+			int[] flat = new int[offsets[size.length]] ;
+			for(int v = 0 ; v < size.length ; v++)
+				System.arraycopy(hubs[v], 0, flat, offsets[v], size[v]) ;
+			return flat ;
+		}
+
+		float[] flatDist(int[] offsets) {
+			float[] flat = new float[offsets[size.length]] ;
+			for(int v = 0 ; v < size.length ; v++)
+				System.arraycopy(dist[v], 0, flat, offsets[v], size[v]) ;
+			return flat ;
+		}
+
+		int[] flatVia(int[] offsets) {
+			if(via == null)
+				return null ;
+			int[] flat = new int[offsets[size.length]] ;
+			for(int v = 0 ; v < size.length ; v++)
+				System.arraycopy(via[v], 0, flat, offsets[v], size[v]) ;
+			return flat ;
+		}
+	}
+
+
+	/** @return The graph these labels were built for */
+	public CompactGraph getGraph() {
+		return graph ;
+	}
+
+	/**
+	 * @return Whether the graph's costs are still those the labels were
+	 *   built for, that is, no cost model was set and no edge updated since
+	 */
+	public boolean isCurrent() {
+		return graph.costs() == costs ;
+	}
+
+	/** @return Whether the labels can retrieve paths, not only distances */
+	public boolean hasPaths() {
+		return outNext != null ;
+	}
+
+	/** @return The number of label entries, in and out together */
+	public long getNumEntries() {
+		return (long) outHubs.length + inHubs.length ;
+	}
+
+	/** @return The size of the label arrays in bytes */
+	public long getSizeInBytes() {
+		long perEntry = hasPaths() ? 12 : 8 ;
+		return perEntry * getNumEntries() + 4L * (outOffsets.length + inOffsets.length + order.length) ;
+	}
+
+	/**
+	 * @return The cost of the cheapest path from source to target, to float
+	 *   precision, or infinity if there is none
+	 */
+	public double distance(int source, int target) {
+		return distance(source, target, null) ;
+	}
+
+	/**
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @return The cost of the cheapest path from start to goal, or
+	 *   infinity if there is none or an end is not an intersection
+	 */
+	public double distance(GeographicPoint start, GeographicPoint goal) {
+		int source = graph.indexOf(start) ;
+		int target = graph.indexOf(goal) ;
+		if(source < 0 || target < 0)
+			return Double.POSITIVE_INFINITY ;
+		return distance(source, target) ;
+	}
+
+	// Merge the out-label of source with the in-label of target, both
+	// sorted by hub; where[0] and [1] get the entries of the best hub
+	private double distance(int source, int target, int[] where) {
+		int i = outOffsets[source] ;
+		int iEnd = outOffsets[source + 1] ;
+		int j = inOffsets[target] ;
+		int jEnd = inOffsets[target + 1] ;
+		double best = Double.POSITIVE_INFINITY ;
+		while(i < iEnd && j < jEnd) {
+			int a = outHubs[i] ;
+			int b = inHubs[j] ;
+			if(a < b) {
+				i++ ;
+			}
+			else if(a > b) {
+				j++ ;
+			}
+			else {
+				double d = (double) outDist[i] + inDist[j] ;
+				if(d < best) {
+					best = d ;
+					if(where != null) {
+						where[0] = i ;
+						where[1] = j ;
+					}
+				}
+				i++ ;
+				j++ ;
+			}
+		}
+		return best ;
+	}
+
+	/**
+	 * Retrieve a cheapest path by splitting it at its hub, again and again:
+	 * where the hub is an end, one edge is peeled off with the vertex kept
+	 * next to the hub in the label.
+	 * @return The vertex ids of a cheapest path from source to target,
+	 *   or an empty array if there is none
+	 * @throws IllegalStateException If the labels were built without paths
+	 */
+	public int[] pathIds(int source, int target) {
+		if(!hasPaths())
+			throw new IllegalStateException("Hub labels were built without paths!") ;
+		int[] where = new int[2] ;
+		if(distance(source, target, where) == Double.POSITIVE_INFINITY)
+			return new int[0] ;
+
+		int n = graph.getNumVertices() ;
+		int[] path = new int[16] ;
+		int length = 0 ;
+		path[length++] = source ;
+		//pending segments (a, b) to append the path after a up to b of,
+		//or (-1, v) to append v alone; the top is appended first
+		int[] stack = new int[32] ;
+		int top = 0 ;
+		stack[top++] = source ;
+		stack[top++] = target ;
+		while(top > 0) {
+			int b = stack[--top] ;
+			int a = stack[--top] ;
+			if(a < 0 || a == b) {
+				if(a < 0) {
+					if(length == path.length)
+						path = Arrays.copyOf(path, length * 2) ;
+					path[length++] = b ;
+					//a path never repeats a vertex, unless zero cost edges tie in a cycle
+					if(length > n)
+						return new int[0] ;
+				}
+				continue ;
+			}
+			if(top + 4 > stack.length)
+				stack = Arrays.copyOf(stack, stack.length * 2) ;
+			distance(a, b, where) ;
+			int hub = order[outHubs[where[0]]] ;
+			if(hub == a) {
+				//the path from a ends in the edge prev -> b
+				int prev = inPrev[where[1]] ;
+				stack[top++] = -1 ;
+				stack[top++] = b ;
+				stack[top++] = a ;
+				stack[top++] = prev ;
+			}
+			else if(hub == b) {
+				//the path to b starts with the edge a -> next
+				int next = outNext[where[0]] ;
+				stack[top++] = next ;
+				stack[top++] = b ;
+				stack[top++] = -1 ;
+				stack[top++] = next ;
+			}
+			else {
+				stack[top++] = hub ;
+				stack[top++] = b ;
+				stack[top++] = a ;
+				stack[top++] = hub ;
+			}
+		}
+		return Arrays.copyOf(path, length) ;
+	}
+
+	/**
+	 * Find the cheapest path from start to goal.
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param nodeSearched A hook for visualization, called on each
+	 *   intersection of the path, as nothing else is searched
+	 * @return The intersections of the path, or an empty list if there is
+	 *   none or an end is not an intersection
+	 * @throws IllegalStateException If the labels were built without paths
+	 */
+	public RouteResult route(GeographicPoint start, GeographicPoint goal,
+			Consumer<GeographicPoint> nodeSearched) {
+		int source = graph.indexOf(start) ;
+		int target = graph.indexOf(goal) ;
+		if(source < 0 || target < 0)
+			return new RouteResult(graph, costs, new int[0]) ;
+		int[] path = pathIds(source, target) ;
+		if(nodeSearched != CompactGraph.IGNORE) {
+			for(int v : path)
+				nodeSearched.accept(graph.getLocation(v)) ;
+		}
+		return new RouteResult(graph, costs, path) ;
+	}
+
+	/**
+	 * Stats mode: for each map in data/maps, build labels with both
+	 * orders and report their size, build time and query latency against
+	 * Dijkstra, checking distances and paths on random pairs.
+	 *
+	 * Run from the project root: java roadgraph.HubLabels [map files]
+	 */
+	public static void main(String[] args) throws Exception {
+		String[] maps = args ;
+		if(maps.length == 0) {
+			maps = new File("data/maps").list((dir, name) -> name.endsWith(".map")) ;
+			Arrays.sort(maps) ;
+			for(int i = 0 ; i < maps.length ; i++)
+				maps[i] = "data/maps/" + maps[i] ;
+		}
+		int queries = 20000 ;
+		System.out.println("Parallelism " + ForkJoinPool.getCommonPoolParallelism()) ;
+
+		for(String file : maps) {
+			CompactGraph.Builder builder = new CompactGraph.Builder() ;
+			GraphLoader.loadRoadMap(file, builder) ;
+			CompactGraph graph = builder.build() ;
+			int n = graph.getNumVertices() ;
+			System.out.printf("%s: %d vertices, %d edges%n", file, n, graph.getNumEdges()) ;
+
+			Random random = new Random(3) ;
+			int[] sources = new int[queries] ;
+			int[] targets = new int[queries] ;
+			for(int i = 0 ; i < queries ; i++) {
+				sources[i] = random.nextInt(n) ;
+				targets[i] = random.nextInt(n) ;
+			}
+
+			for(Order order : Order.values()) {
+				long begin = System.nanoTime() ;
+				HubLabels labels = build(graph, order, true, Integer.MAX_VALUE) ;
+				double buildMs = (System.nanoTime() - begin) / 1e6 ;
+
+				int bad = 0 ;
+				for(int i = 0 ; i < Math.min(queries, 2000) ; i++) {
+					GeographicPoint start = graph.getLocation(sources[i]) ;
+					GeographicPoint goal = graph.getLocation(targets[i]) ;
+					double expected = graph.dijkstra(start, goal).getDistance() ;
+					RouteResult path = labels.route(start, goal, CompactGraph.IGNORE) ;
+					double tolerance = 1e-5 * Math.max(1, expected) ;
+					if(Math.abs(labels.distance(sources[i], targets[i]) - expected) > tolerance
+							|| Math.abs(path.getDistance() - expected) > 1e-9 * Math.max(1, expected))
+						bad++ ;
+				}
+
+				int reachable = 0 ;
+				for(int round = 0 ; round < 2 ; round++) {
+					reachable = 0 ;
+					begin = System.nanoTime() ;
+					for(int i = 0 ; i < queries ; i++) {
+						if(labels.distance(sources[i], targets[i]) < Double.POSITIVE_INFINITY)
+							reachable++ ;
+					}
+				}
+				double queryNs = (double) (System.nanoTime() - begin) / queries ;
+				begin = System.nanoTime() ;
+				for(int i = 0 ; i < queries ; i++)
+					labels.pathIds(sources[i], targets[i]) ;
+				double pathUs = (System.nanoTime() - begin) / 1e3 / queries ;
+
+				System.out.printf("  %-10s built in %7.1f ms, %.1f hubs per label, %d KB, "
+						+ "distance %.0f ns (%d%% reachable), path %.2f us, %d mismatches%n", order, buildMs,
+						labels.getNumEntries() / 2.0 / n, labels.getSizeInBytes() >> 10,
+						queryNs, 100 * reachable / queries, pathUs, bad) ;
+			}
+
+			long begin = System.nanoTime() ;
+			for(int i = 0 ; i < 2000 ; i++)
+				graph.search(sources[i], targets[i], CompactGraph.IGNORE, false, null, false) ;
+			System.out.printf("  dijkstra   %.1f us per distance%n", (System.nanoTime() - begin) / 1e3 / 2000) ;
+		}
+	}
+}
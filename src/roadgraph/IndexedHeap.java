@@ -0,0 +1,164 @@
+package roadgraph;
+
+import java.util.Arrays;
+
+/**
+ * A d-ary min-heap of vertex ids keyed by double priorities, with
+ * decrease-key.
+ *
+ * Each vertex is in the heap at most once: pos[v] tracks where it sits,
+ * so improving a tentative distance moves the existing entry up instead
+ * of pushing a duplicate.  The heap never holds more than one entry per
+ * vertex, and no stale entries have to be skipped when polling.
+ *
+ * A wider heap (arity 4 or 8) is shallower and keeps the children of a
+ * node in one cache line, at the price of more comparisons per sift-down.
+ */
+class IndexedHeap {
+
+	/** The arity used when none is given */
+	static final int DEFAULT_ARITY = 4 ;
+
+	private int arity ;
+
+	private int[] heap ; //vertex at each heap position
+	private double[] keys ; //priority at each heap position
+	private final int[] pos ; //heap position of each vertex, or -1
+	private int size ;
+
+	/**
+	 * @param capacity The number of vertices; ids must be in 0 .. capacity-1
+	 * @param arity The number of children of each heap node, at least 2
+	 */
+	IndexedHeap(int capacity, int arity) {
+		setArity(arity) ;
+		heap = new int[Math.max(16, Math.min(capacity, 1024))] ;
+		keys = new double[heap.length] ;
+		pos = new int[capacity] ;
+		Arrays.fill(pos, -1) ;
+		size = 0 ;
+	}
+
+	/**
+	 * Change the arity.  Only allowed while the heap is empty.
+	 * @throws IllegalArgumentException If arity is less than 2
+	 * @throws IllegalStateException If the heap is not empty
+	 */
+	void setArity(int arity) {
+		if(arity < 2)
+			throw new IllegalArgumentException("Heap arity must be at least 2!") ;
+		if(size != 0)
+			throw new IllegalStateException("Cannot change the arity of a non-empty heap!") ;
+		this.arity = arity ;
+	}
+
+	int getArity() {
+		return arity ;
+	}
+
+	boolean isEmpty() {
+		return size == 0 ;
+	}
+
+	int size() {
+		return size ;
+	}
+
+	boolean contains(int v) {
+		return pos[v] >= 0 ;
+	}
+
+	/** Remove everything, in time proportional to the current size */
+	void clear() {
+		for(int i = 0 ; i < size ; i++)
+			pos[heap[i]] = -1 ;
+		size = 0 ;
+	}
+
+	/**
+	 * Add v with the given key, or lower its key if it is already in
+	 * the heap with a larger one.
+	 * @return true if the heap changed
+	 */
+	boolean offer(int v, double key) {
+		int i = pos[v] ;
+		if(i < 0) {
+			if(size == heap.length) {
+				heap = Arrays.copyOf(heap, size * 2) ;
+				keys = Arrays.copyOf(keys, size * 2) ;
+			}
+			siftUp(size++, v, key) ;
+			return true ;
+		}
+		if(key < keys[i]) {
+			siftUp(i, v, key) ;
+			return true ;
+		}
+		return false ;
+	}
+
+	/** @return The smallest key in the heap */
+	double peekKey() {
+		return keys[0] ;
+	}
+
+	/** @return The vertex with the smallest key in the heap */
+	int peek() {
+		return heap[0] ;
+	}
+
+	/**
+	 * Remove and return the vertex with the smallest key.
+	 */
+	int poll() {
+		int top = heap[0] ;
+		pos[top] = -1 ;
+		size-- ;
+		if(size > 0)
+			siftDown(0, heap[size], keys[size]) ;
+		return top ;
+	}
+
+	// Move (v, key) from hole i towards the root until its parent is no larger
+	private void siftUp(int i, int v, double key) {
+		while(i > 0) {
+			int p = (i - 1) / arity ;
+			if(keys[p] <= key)
+				break ;
+			heap[i] = heap[p] ;
+			keys[i] = keys[p] ;
+			pos[heap[i]] = i ;
+			i = p ;
+		}
+		heap[i] = v ;
+		keys[i] = key ;
+		pos[v] = i ;
+	}
+
+	// Move (v, key) from hole i towards the leaves until no child is smaller
+	private void siftDown(int i, int v, double key) {
+		while(true) {
+			int first = i * arity + 1 ;
+			if(first >= size)
+				break ;
+			int last = Math.min(first + arity, size) ;
+			int min = first ;
+			double minKey = keys[first] ;
+			for(int c = first + 1 ; c < last ; c++) {
+				if(keys[c] < minKey) {
+					min = c ;
+					minKey = keys[c] ;
+				}
+			}
+			if(key <= minKey)
+				break ;
+			heap[i] = heap[min] ;
+			keys[i] = minKey ;
+			pos[heap[i]] = i ;
+			i = min ;
+		}
+		heap[i] = v ;
+		keys[i] = key ;
+		pos[v] = i ;
+	}
+}
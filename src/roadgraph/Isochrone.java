@@ -0,0 +1,157 @@
+package roadgraph;
+
+import java.nio.DoubleBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import geography.GeographicPoint;
+import geography.RoadSegment;
+
+/**
+ * What can be reached from a location within one or more budgets, found
+ * with a single Dijkstra search bounded by the largest budget (see
+ * CompactGraph.isochrone).  Budgets and distances are in the units of the
+ * graph's cost model, km unless it was given another one.
+ *
+ * The intersections reached are kept in the order they were settled,
+ * which is by increasing distance, so the intersections within any
+ * budget are a prefix of them and the rings between consecutive budgets
+ * are contiguous ranges.  The roads that run out of budget part way
+ * along are returned as RoadSegments clipped where the budget ends.
+ */
+public class Isochrone {
+
+	private final CompactGraph graph ;
+	private final SegmentIndex roads ;
+	private final DoubleBuffer cost ; //cost of each edge the search used
+	private final double[] budgets ;
+	private final int[] vertices ; //settled vertices, by increasing distance
+	private final double[] distances ;
+
+	Isochrone(CompactGraph graph, SegmentIndex roads, DoubleBuffer cost, double[] budgets,
+			int[] vertices, double[] distances) {
+		this.graph = graph ;
+		this.roads = roads ;
+		this.cost = cost ;
+		this.budgets = budgets ;
+		this.vertices = vertices ;
+		this.distances = distances ;
+	}
+
+	/** @return The budgets, smallest first */
+	public double[] getBudgets() {
+		return budgets.clone() ;
+	}
+
+	/** @return The number of intersections within the largest budget */
+	public int size() {
+		return vertices.length ;
+	}
+
+	/**
+	 * @param i An index from 0 to size()-1, in order of distance
+	 * @return The i-th closest intersection
+	 */
+	public GeographicPoint getLocation(int i) {
+		return graph.getLocation(vertices[i]) ;
+	}
+
+	/**
+	 * @param i An index from 0 to size()-1, in order of distance
+	 * @return The cost of the cheapest path to the i-th closest
+	 *   intersection
+	 */
+	public double getDistance(int i) {
+		return distances[i] ;
+	}
+
+	/**
+	 * @param budget A budget, at most the largest one searched
+	 * @return The intersections at most budget away, closest first
+	 * @throws IllegalArgumentException If budget is beyond the search
+	 */
+	public List<GeographicPoint> getReachable(double budget) {
+		return locations(0, count(budget)) ;
+	}
+
+	/**
+	 * @param k The index of a budget in getBudgets()
+	 * @return The intersections further than budget k-1 (or 0 for k = 0)
+	 *   but at most budget k away, closest first
+	 */
+	public List<GeographicPoint> getRing(int k) {
+		return locations(k == 0 ? 0 : count(budgets[k - 1]), count(budgets[k])) ;
+	}
+
+	/**
+	 * The roads along which the budget runs out: every edge leaving an
+	 * intersection within budget whose far end is further along it than
+	 * the budget allows, clipped at the point where the budget is used up.
+	 * The clipped segments follow the road geometry where the graph was
+	 * given its road segments, and straight lines otherwise.  Closed roads
+	 * are left out.
+	 * @param budget A budget, at most the largest one searched
+	 * @return The clipped segments, each from its intersection to the
+	 *   point where the budget runs out along the road
+	 * @throws IllegalArgumentException If budget is beyond the search
+	 */
+	public List<RoadSegment> getClippedSegments(double budget) {
+		List<RoadSegment> clipped = new ArrayList<RoadSegment>() ;
+		int n = count(budget) ;
+		for(int i = 0 ; i < n ; i++) {
+			int u = vertices[i] ;
+			for(int e = graph.firstEdge(u) ; e < graph.endEdge(u) ; e++) {
+				double left = budget - distances[i] ;
+				if(cost.get(e) <= left || cost.get(e) == Double.POSITIVE_INFINITY)
+					continue ;
+
+				//the cost left buys the same share of the edge's length
+				double km = graph.getWeight(e) * left / cost.get(e) ;
+				List<GeographicPoint> points = roads == null ? null : roads.clip(e, km) ;
+				if(points == null) {
+					//no geometry for this edge: a straight line toward its target
+					int v = graph.getTarget(e) ;
+					double t = km / graph.getWeight(e) ;
+					points = new ArrayList<GeographicPoint>() ;
+					points.add(graph.getLocation(u)) ;
+					points.add(new GeographicPoint(
+							graph.getLatitude(u) + t * (graph.getLatitude(v) - graph.getLatitude(u)),
+							graph.getLongitude(u) + t * (graph.getLongitude(v) - graph.getLongitude(u)))) ;
+				}
+				clipped.add(new RoadSegment(points.get(0), points.get(points.size() - 1),
+						points.subList(1, points.size() - 1), graph.getRoadName(e),
+						graph.getRoadType(e), km)) ;
+			}
+		}
+		return clipped ;
+	}
+
+	// The number of settled vertices at most budget away
+	private int count(double budget) {
+		if(!(budget <= budgets[budgets.length - 1]))
+			throw new IllegalArgumentException("Budget " + budget + " is beyond the search!") ;
+		int lo = 0 ;
+		int hi = distances.length ;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1 ;
+			if(distances[mid] <= budget)
+				lo = mid + 1 ;
+			else
+				hi = mid ;
+		}
+		return lo ;
+	}
+
+	private List<GeographicPoint> locations(int from, int to) {
+		List<GeographicPoint> result = new ArrayList<GeographicPoint>(to - from) ;
+		for(int i = from ; i < to ; i++)
+			result.add(graph.getLocation(vertices[i])) ;
+		return result ;
+	}
+
+	public String toString() {
+		return "Isochrone of " + vertices.length + " intersections within "
+				+ Arrays.toString(budgets) ;
+	}
+}
@@ -0,0 +1,461 @@
+package roadgraph;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import geography.GeographicPoint;
+import util.GraphLoader;
+
+/**
+ * Landmark distance tables for the ALT (A*, landmarks, triangle
+ * inequality) heuristic.
+ *
+ * For a few landmark vertices L we store d(L, v) and d(v, L) for every
+ * vertex v.  By the triangle inequality, d(v, t) is at least
+ * d(L, t) - d(L, v) and at least d(v, L) - d(t, L), so the largest of
+ * these bounds is an admissible and consistent A* heuristic.  Unlike the
+ * straight line distance it knows about rivers, freeways and one-way
+ * grids, so A* settles far fewer vertices.
+ *
+ * Landmarks are picked with the farthest strategy (each new landmark is
+ * the vertex farthest from those picked so far) or the avoid strategy
+ * (the leaf of the shortest path tree of a random root whose subtree is
+ * covered worst by the current landmarks).  Tables are stored vertex-major,
+ * so evaluating the heuristic for one vertex reads one contiguous block.
+ */
+public class Landmarks {
+
+	/** How landmarks are chosen */
+	public enum Strategy { FARTHEST, AVOID }
+
+	/** The number of landmarks used when none is given */
+	public static final int DEFAULT_COUNT = 8 ;
+
+	private static final int MAGIC = 0x414c5432 ; //"ALT2"
+
+	private final CompactGraph graph ;
+	private final int[] landmarks ;
+	private final int k ;
+	private final double[] fromLandmark ; //d(L_i, v) at v * k + i
+	private final double[] toLandmark ; //d(v, L_i) at v * k + i
+
+	private Landmarks(CompactGraph graph, int[] landmarks, double[] fromLandmark, double[] toLandmark) {
+		this.graph = graph ;
+		this.landmarks = landmarks ;
+		this.k = landmarks.length ;
+		this.fromLandmark = fromLandmark ;
+		this.toLandmark = toLandmark ;
+	}
+
+	/**
+	 * Pick count landmarks with the given strategy and compute their tables.
+	 * The forward and backward searches of the landmarks run in parallel.
+	 * @param graph The road graph
+	 * @param count The number of landmarks, at least 1
+	 * @param strategy How to pick the landmarks
+	 * @return The landmark tables for graph
+	 */
+	public static Landmarks build(CompactGraph graph, int count, Strategy strategy) {
+		if(count < 1)
+			throw new IllegalArgumentException("Need at least one landmark!") ;
+		int n = graph.getNumVertices() ;
+		count = Math.min(count, n) ;
+
+		int[] chosen = strategy == Strategy.AVOID
+				? chooseAvoid(graph, count) : chooseFarthest(graph, count) ;
+
+		double[][] forward = new double[chosen.length][] ;
+		double[][] backward = new double[chosen.length][] ;
+		IntStream.range(0, 2 * chosen.length).parallel().forEach(j -> {
+			if(j < chosen.length)
+				forward[j] = distances(graph, chosen[j], false, null, null) ;
+			else
+				backward[j - chosen.length] = distances(graph, chosen[j - chosen.length], true, null, null) ;
+		}) ;
+		return fromTables(graph, chosen, forward, backward) ;
+	}
+
+	/**
+	 * Load the landmark tables stored next to a .map file, or build them
+	 * and store them there if there are none yet (or they are for a
+	 * different graph).
+	 * @param mapFile The .map file graph was loaded from
+	 * @param graph The road graph
+	 * @param count The number of landmarks to build if none are stored
+	 * @return The landmark tables for graph
+	 */
+	public static Landmarks forMapFile(String mapFile, CompactGraph graph, int count) {
+		String tableFile = mapFile + ".landmarks" ;
+		if(new File(tableFile).exists()) {
+			try {
+				return load(tableFile, graph) ;
+			}
+			catch(IOException e) {
+				System.out.println("Rebuilding landmarks: " + e.getMessage()) ;
+			}
+		}
+		Landmarks result = build(graph, count, Strategy.AVOID) ;
+		try {
+			result.save(tableFile) ;
+		}
+		catch(IOException e) {
+			System.err.println("Problem saving landmarks file: " + tableFile) ;
+			e.printStackTrace() ;
+		}
+		return result ;
+	}
+
+	/** @return The graph these tables were built for */
+	public CompactGraph getGraph() {
+		return graph ;
+	}
+
+	// The same tables for a copy of the graph they were built for
+	Landmarks forGraph(CompactGraph copy) {
+		return new Landmarks(copy, landmarks, fromLandmark, toLandmark) ;
+	}
+
+	/** @return The number of landmarks */
+	public int size() {
+		return k ;
+	}
+
+	/** @return The location of landmark i */
+	public GeographicPoint getLandmark(int i) {
+		return graph.getLocation(landmarks[i]) ;
+	}
+
+	/**
+	 * A lower bound on the distance from v to t from the triangle
+	 * inequality over every landmark.
+	 * @param v A vertex id
+	 * @param t The target vertex id
+	 * @return A lower bound on d(v, t) in km, possibly infinite if t
+	 *   cannot be reached from v
+	 */
+	double lowerBound(int v, int t) {
+		double best = 0 ;
+		int vBase = v * k ;
+		int tBase = t * k ;
+		for(int i = 0 ; i < k ; i++) {
+			double lt = fromLandmark[tBase + i] ;
+			double lv = fromLandmark[vBase + i] ;
+			if(lv != Double.POSITIVE_INFINITY && lt - lv > best)
+				best = lt - lv ;
+			double vl = toLandmark[vBase + i] ;
+			double tl = toLandmark[tBase + i] ;
+			if(tl != Double.POSITIVE_INFINITY && vl - tl > best)
+				best = vl - tl ;
+		}
+		return best ;
+	}
+
+
+	// Farthest: start from the vertex farthest from a random one, then keep
+	// adding the vertex whose distance to the closest landmark is largest.
+	// Distances are taken in whichever direction is shorter, so that a 
+	// dead end of a one-way street does not look infinitely far away.
+	private static int[] chooseFarthest(CompactGraph graph, int count) {
+		int n = graph.getNumVertices() ;
+		Random random = new Random(n) ;
+		double[] closest = new double[n] ;
+		Arrays.fill(closest, Double.POSITIVE_INFINITY) ;
+		nearer(graph, random.nextInt(n), closest) ;
+
+		boolean[] isLandmark = new boolean[n] ;
+		int[] chosen = new int[count] ;
+		for(int i = 0 ; i < count ; i++) {
+			int best = farthest(closest, isLandmark) ;
+			chosen[i] = best ;
+			isLandmark[best] = true ;
+			if(i == 0)
+				Arrays.fill(closest, Double.POSITIVE_INFINITY) ;
+			nearer(graph, best, closest) ;
+		}
+		return chosen ;
+	}
+
+	// Lower closest[v] to the distance between source and v, in either direction
+	private static void nearer(CompactGraph graph, int source, double[] closest) {
+		double[] forward = distances(graph, source, false, null, null) ;
+		double[] backward = distances(graph, source, true, null, null) ;
+		for(int v = 0 ; v < closest.length ; v++)
+			closest[v] = Math.min(closest[v], Math.min(forward[v], backward[v])) ;
+	}
+
+	// The vertex that is not a landmark yet with the largest finite value,
+	// or any vertex that is not a landmark yet if none is finite
+	private static int farthest(double[] dist, boolean[] isLandmark) {
+		int best = -1 ;
+		for(int v = 0 ; v < dist.length ; v++) {
+			if(isLandmark[v])
+				continue ;
+			if(best < 0 || (dist[v] != Double.POSITIVE_INFINITY
+					&& (dist[best] == Double.POSITIVE_INFINITY || dist[v] > dist[best])))
+				best = v ;
+		}
+		return best ;
+	}
+
+	// Avoid: grow the shortest path tree of a random root, weigh every vertex
+	// by how much the current landmarks underestimate its distance from the
+	// root, and take the leaf at the end of the heaviest subtree that does
+	// not already contain a landmark
+	private static int[] chooseAvoid(CompactGraph graph, int count) {
+		int n = graph.getNumVertices() ;
+		Random random = new Random(n) ;
+		int[] chosen = new int[count] ;
+		boolean[] isLandmark = new boolean[n] ;
+		double[][] forward = new double[count][] ;
+		double[][] backward = new double[count][] ;
+
+		int[] parent = new int[n] ;
+		int[] order = new int[n + 1] ; //settle order, order[n] is the count
+		double[] size = new double[n] ;
+
+		for(int i = 0 ; i < count ; i++) {
+			int root = random.nextInt(n) ;
+			double[] dist = distances(graph, root, false, parent, order) ;
+			int settled = order[n] ;
+
+			Landmarks partial = i == 0 ? null : fromTables(graph, Arrays.copyOf(chosen, i),
+					Arrays.copyOf(forward, i), Arrays.copyOf(backward, i)) ;
+
+			//subtree sizes, leaves first; subtrees holding a landmark weigh nothing
+			boolean[] covered = new boolean[n] ;
+			for(int j = 0 ; j < settled ; j++) {
+				int v = order[j] ;
+				double bound = partial == null ? 0 : partial.lowerBound(root, v) ;
+				size[v] = dist[v] - bound ;
+				covered[v] = isLandmark[v] ;
+			}
+			for(int j = settled - 1 ; j > 0 ; j--) {
+				int v = order[j] ;
+				if(covered[v])
+					covered[parent[v]] = true ;
+				else
+					size[parent[v]] += size[v] ;
+			}
+
+			int best = -1 ;
+			for(int j = 0 ; j < settled ; j++) {
+				int v = order[j] ;
+				if(!covered[v] && (best < 0 || size[v] > size[best]))
+					best = v ;
+			}
+			if(best < 0) {
+				//every vertex reachable from root is covered; take any free vertex
+				best = 0 ;
+				while(isLandmark[best])
+					best++ ;
+			}
+			else {
+				//walk down the heaviest children to a leaf
+				int[] heaviest = new int[n] ;
+				Arrays.fill(heaviest, -1) ;
+				for(int j = 1 ; j < settled ; j++) {
+					int v = order[j] ;
+					int p = parent[v] ;
+					if(!covered[v] && (heaviest[p] < 0 || size[v] > size[heaviest[p]]))
+						heaviest[p] = v ;
+				}
+				while(heaviest[best] >= 0)
+					best = heaviest[best] ;
+			}
+
+			chosen[i] = best ;
+			isLandmark[best] = true ;
+			forward[i] = distances(graph, best, false, null, null) ;
+			backward[i] = distances(graph, best, true, null, null) ;
+		}
+		return chosen ;
+	}
+
+	// Interleave per-landmark tables into the vertex-major layout
+	private static Landmarks fromTables(CompactGraph graph, int[] chosen, double[][] forward, double[][] backward) {
+		int n = graph.getNumVertices() ;
+		int count = chosen.length ;
+		double[] from = new double[n * count] ;
+		double[] to = new double[n * count] ;
+		for(int i = 0 ; i < count ; i++) {
+			for(int v = 0 ; v < n ; v++) {
+				from[v * count + i] = forward[i][v] ;
+				to[v * count + i] = backward[i][v] ;
+			}
+		}
+		return new Landmarks(graph, chosen, from, to) ;
+	}
+
+	/**
+	 * Full Dijkstra from source, over incoming edges if backward is set.
+	 * If parent and order are given, they receive the shortest path tree
+	 * and the settle order (with the number of settled vertices in
+	 * order[n]).
+	 */
+	static double[] distances(CompactGraph graph, int source, boolean backward, int[] parent, int[] order) {
+		int n = graph.getNumVertices() ;
+		double[] dist = new double[n] ;
+		Arrays.fill(dist, Double.POSITIVE_INFINITY) ;
+		CompactGraph.ReverseEdges in = backward ? graph.reverse() : null ;
+		IndexedHeap pq = new IndexedHeap(n, IndexedHeap.DEFAULT_ARITY) ;
+		int settled = 0 ;
+
+		dist[source] = 0 ;
+		if(parent != null)
+			parent[source] = source ;
+		pq.offer(source, 0) ;
+		while(!pq.isEmpty()) {
+			int curr = pq.poll() ;
+			if(order != null)
+				order[settled] = curr ;
+			settled++ ;
+			double currDist = dist[curr] ;
+			int first = backward ? in.offsets[curr] : graph.offsets.get(curr) ;
+			int end = backward ? in.offsets[curr + 1] : graph.offsets.get(curr + 1) ;
+			for(int i = first ; i < end ; i++) {
+				int e = backward ? in.edges[i] : i ;
+				int next = backward ? in.sources[i] : graph.targets.get(i) ;
+				double newDist = currDist + graph.weights.get(e) ;
+				if(newDist < dist[next]) {
+					dist[next] = newDist ;
+					if(parent != null)
+						parent[next] = curr ;
+					pq.offer(next, newDist) ;
+				}
+			}
+		}
+		if(order != null)
+			order[n] = settled ;
+		return dist ;
+	}
+
+
+	/**
+	 * Write the landmark tables to a file, to be read back with load().
+	 * @param filename The file to write
+	 * @throws IOException If the file cannot be written
+	 */
+	public void save(String filename) throws IOException {
+		DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(filename))) ;
+		try {
+			output.writeInt(MAGIC) ;
+			output.writeInt(graph.getNumVertices()) ;
+			output.writeInt(graph.getNumEdges()) ;
+			output.writeLong(fingerprint(graph)) ;
+			output.writeInt(k) ;
+			for(int i = 0 ; i < k ; i++)
+				output.writeInt(landmarks[i]) ;
+			for(int j = 0 ; j < fromLandmark.length ; j++) {
+				output.writeDouble(fromLandmark[j]) ;
+				output.writeDouble(toLandmark[j]) ;
+			}
+		}
+		finally {
+			output.close() ;
+		}
+	}
+
+	/**
+	 * Read landmark tables written by save().
+	 * @param filename The file to read
+	 * @param graph The graph the tables were built for
+	 * @return The landmark tables
+	 * @throws IOException If the file cannot be read, or was not built for graph
+	 */
+	public static Landmarks load(String filename, CompactGraph graph) throws IOException {
+		DataInputStream input = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(filename))) ;
+		try {
+			if(input.readInt() != MAGIC)
+				throw new IOException(filename + " is not a landmarks file") ;
+			if(input.readInt() != graph.getNumVertices() || input.readInt() != graph.getNumEdges()
+					|| input.readLong() != fingerprint(graph))
+				throw new IOException(filename + " was built for a different graph") ;
+
+			int count = input.readInt() ;
+			int[] chosen = new int[count] ;
+			for(int i = 0 ; i < count ; i++)
+				chosen[i] = input.readInt() ;
+			double[] from = new double[count * graph.getNumVertices()] ;
+			double[] to = new double[from.length] ;
+			for(int j = 0 ; j < from.length ; j++) {
+				from[j] = input.readDouble() ;
+				to[j] = input.readDouble() ;
+			}
+			return new Landmarks(graph, chosen, from, to) ;
+		}
+		finally {
+			input.close() ;
+		}
+	}
+
+	// A hash of the edges and their lengths, so tables saved for a map
+	// that has been edited since, even keeping its counts, are not used:
+	// their bounds could overestimate, and A* would miss shorter paths
+	private static long fingerprint(CompactGraph graph) {
+		long hash = graph.getNumVertices() ;
+		for(int e = 0 ; e < graph.getNumEdges() ; e++) {
+			hash = hash * 31 + graph.targets.get(e) ;
+			hash = hash * 31 + Double.doubleToLongBits(graph.weights.get(e)) ;
+		}
+		for(int v = 0 ; v <= graph.getNumVertices() ; v++)
+			hash = hash * 31 + graph.offsets.get(v) ;
+		return hash ;
+	}
+
+
+	/**
+	 * Stats mode: for each map, report how many vertices A* settles with
+	 * landmarks compared to the straight line heuristic alone.
+	 */
+	public static void main(String[] args) {
+		String[] maps = args.length > 0 ? args : new String[] {"data/maps/utc.map",
+				"data/maps/san_diego.map", "data/maps/new_york.map",
+				"data/maps/hollywood_large.map", "data/maps/Monterrey.map"} ;
+		int queries = 2000 ;
+
+		for(String file : maps) {
+			CompactGraph.Builder builder = new CompactGraph.Builder() ;
+			GraphLoader.loadRoadMap(file, builder) ;
+			CompactGraph graph = builder.build() ;
+			int n = graph.getNumVertices() ;
+
+			Random random = new Random(3) ;
+			GeographicPoint[] starts = new GeographicPoint[queries] ;
+			GeographicPoint[] goals = new GeographicPoint[queries] ;
+			long baseline = 0 ;
+			for(int i = 0 ; i < queries ; i++) {
+				starts[i] = graph.getLocation(random.nextInt(n)) ;
+				goals[i] = graph.getLocation(random.nextInt(n)) ;
+				graph.aStarSearch(starts[i], goals[i]) ;
+				baseline += graph.getLastSettledCount() ;
+			}
+			System.out.println(file + ": A* with straight line distance settles "
+					+ baseline / queries + " vertices per query") ;
+
+			for(Strategy strategy : Strategy.values()) {
+				for(int count : new int[] {4, 8, 16}) {
+					Landmarks landmarks = build(graph, count, strategy) ;
+					long settled = 0 ;
+					for(int i = 0 ; i < queries ; i++) {
+						graph.aStarSearch(starts[i], goals[i], CompactGraph.IGNORE, landmarks) ;
+						settled += graph.getLastSettledCount() ;
+					}
+					System.out.printf("  %-8s k=%-2d settles %4d per query, %.1f%% fewer%n",
+							strategy, count, settled / queries,
+							100.0 * (baseline - settled) / Math.max(1, baseline)) ;
+				}
+			}
+		}
+	}
+}
@@ -17,6 +17,8 @@ public class MapEdge {
 
 	private String roadType ; //like 'city', 'main', etc.
 	private String roadName ; 
+	private int trafficProfile = -1 ; //TrafficProfiles id overriding the road type's, or -1
+	private boolean closed ; //closed to traffic, see MapGraph.closeEdge
 	
 	
 	/**
@@ -65,6 +67,19 @@ public class MapEdge {
 		roadType = type ; 
 	}
 	
+	/**
+	 * Override the traffic profile of this edge's road type.
+	 * @param profile The id of a profile in the graph's TrafficProfiles,
+	 *   or -1 to use the road type's profile again
+	 */
+	public void setTrafficProfile(int profile) {
+		trafficProfile = profile ;
+	}
+	
+	public void setClosed(boolean closed) {
+		this.closed = closed ;
+	}
+	
 	//***GETTERS***//
 	
 	public MapNode getStartNode() {
@@ -87,5 +102,13 @@ public class MapEdge {
 		return roadType ; 
 	}
 	
+	public int getTrafficProfile() {
+		return trafficProfile ;
+	}
+	
+	public boolean isClosed() {
+		return closed ;
+	}
+	
 	
 }
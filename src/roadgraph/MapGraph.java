@@ -8,17 +8,18 @@
 package roadgraph;
 
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Queue;
 import java.util.Set;
 import java.util.function.Consumer;
 
 import geography.GeographicPoint;
+import geography.RoadSegment;
 import util.GraphLoader;
 
 /**
@@ -35,8 +36,14 @@ public class MapGraph {
 	int numVertices ;
 	int numEdges ; 
 	
-	static int dijkstraCount ;
-	static int aStarCount ;
+	private volatile CompactGraph frozen ; //CSR copy used by the searches, see frozen()
+	private volatile int heapArity = IndexedHeap.DEFAULT_ARITY ;
+	private volatile CostModel costModel = CostModel.DISTANCE ; //what the searches minimize, applied to frozen
+	private volatile Landmarks landmarks ; //ALT tables for aStarSearch, only used while frozen is unchanged
+	private volatile HashMap<GeographicPoint,HashSet<RoadSegment>> roads ; //road geometry, see setRoadSegments
+	private volatile SegmentIndex segmentIndex ; //R-tree over roads, built on first use for frozen
+	private volatile TrafficProfiles trafficProfiles ; //speeds and profiles for the time-dependent searches
+	private volatile TrafficModel traffic ; //resolved for frozen on first use, see trafficModel()
 	
 	/** 
 	 * Create a new empty MapGraph 
@@ -105,6 +112,7 @@ public class MapGraph {
 		//MapNode ctor takes care of initializing the new nodes edge list
 		
 		numVertices++ ; 
+		frozen = null ;
 		
 		return true ;
 	}
@@ -142,6 +150,7 @@ public class MapGraph {
 		start.updateEdgeList(newEdge);
 	
 		numEdges++ ; 
+		frozen = null ;
 		
 	}
 	
@@ -170,113 +179,65 @@ public class MapGraph {
 	public List<GeographicPoint> bfs(GeographicPoint start, 
 			 					     GeographicPoint goal, Consumer<GeographicPoint> nodeSearched)
 	{
-		
-		// Hook for visualization.  
-		//nodeSearched.accept(next.getLocation());
-		
-		Queue<MapNode> bfsQueue = new LinkedList<MapNode>() ; 
-		HashSet<MapNode> visited = new HashSet<MapNode>() ; 
-		HashMap<MapNode, MapNode> parentMap = new HashMap<MapNode, MapNode>() ;
-			
-		boolean status = bfsSetup(bfsQueue, visited, start, goal) ; 
-		
-		
-		if(status == false)
-			return new LinkedList<GeographicPoint>() ;
-		
-		//else, setup has gone as planned, so continue --
-		
-
-		boolean found = false ;
-		
-		while(!bfsQueue.isEmpty()) {
-			MapNode curr = bfsQueue.remove() ; 
-			
-			
-			if(curr == nodeList.get(goal)) {
-				found = true ;
-				break ; //match found, can display/return the path
-			}
-			
-			//visit neighbors of curr Node
-			List<MapEdge> curNeighbors = curr.getEdgeList() ; 
-			
-		
-			for(int i = 0 ; i < curNeighbors.size() ; i++) {
-				
-				MapNode curNeighbor = curNeighbors.get(i).getEndNode() ; 
-				
-				if(!(visited.contains(curNeighbor))) {
-					visited.add(curNeighbor) ;
-					bfsQueue.offer(curNeighbor) ;
-					parentMap.put(curNeighbor, curr) ; 
-				}
-				
-			}//done visiting neighbors of curr
-		}
-		
-		if(found == false) {
-			System.out.println("Goal not reachable!!") ;
-			return new LinkedList<GeographicPoint>() ;//return empty list
-		}
-		//find path from start to goal
-		return findPath(parentMap, nodeList.get(start), nodeList.get(goal)) ;
-	}
-	
-	
-	/** This method takes care of the 'housekeeping' that needs to be done before doing the actual breadth-first search..
-	 * ...Including adding the source node to 'visited' set and the underlying queue
-	 * @param bfsQueue FIFO data structure for unexplored nodes
-	 * @param visited  HashSet containing visited nodes
-	 * @param parentMap maps visited MapNodes to their parents (just previously visited)
-	 * @param goal destination GeographicPoint
-	 * @param start source GeographicPoint
-	 * @return whether input is valid or not/can move on to search part or not
-	 */
-	
-	
-	private boolean bfsSetup(Queue<MapNode> bfsQueue, 
-			HashSet<MapNode> visited, GeographicPoint start, GeographicPoint goal) {
-	
 		//check for invalid input
 		if(goal == null || start == null) {
 			System.out.println("Argument null; goal not reachable!!") ;
-			return false ;
+			return new LinkedList<GeographicPoint>() ;
 		}
 		
-		MapNode source = nodeList.get(start) ;
+		//the search runs over int vertex ids of the frozen CSR copy, with an 
+		//int ring buffer as the queue, a bitset of visited vertices and an 
+		//int array of parents, all reused by the calling thread
+		List<GeographicPoint> path = frozen().bfs(start, goal, nodeSearched) ;
 		
-		bfsQueue.offer(source) ;
-		visited.add(source) ;
-		
-		return true ;
+		if(path.isEmpty())
+			System.out.println("Goal not reachable!!") ;
 		
+		return path ;
 	}
-
-
-	/** To backtrack the path taken from 'goal' to 'start'...
-	 * ..using parentMap, and add to head of LinkedList
-	 * @param parentMap
-	 * @param start
-	 * @param goal
-	 * @return
+	
+	/** Whether goal can be reached from start, by breadth first search 
+	 * without building a path
+	 * 
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @return true if there is a path from start to goal
 	 */
+	public boolean isReachable(GeographicPoint start, GeographicPoint goal) {
+		return frozen().isReachable(start, goal) ;
+	}
 	
-	private List<GeographicPoint> findPath(HashMap<MapNode, MapNode> parentMap, MapNode start, MapNode goal) {
-		
-		LinkedList<GeographicPoint> path = new LinkedList<GeographicPoint>() ;
-		
-		MapNode curr = goal ; 
-		
-		while(curr != start) {
-			GeographicPoint currPoint = curr.getNodeLocation() ;
-			path.addFirst(currPoint) ;
-			curr = parentMap.get(curr) ;
+	/** Count the intersections at each number of hops from each source, 
+	 * by direction-optimizing breadth first search over the whole graph
+	 * 
+	 * @param sources The intersections to search from
+	 * @return counts[h] is the number of (source, intersection) pairs h 
+	 *   edges apart; intersections a source cannot reach are not counted
+	 * @throws IllegalArgumentException If a source is not an intersection
+	 */
+	public long[] hopHistogram(Collection<GeographicPoint> sources) {
+		CompactGraph graph = frozen() ;
+		int[] ids = new int[sources.size()] ;
+		int i = 0 ;
+		for(GeographicPoint source : sources) {
+			ids[i] = graph.indexOf(source) ;
+			if(ids[i++] < 0)
+				throw new IllegalArgumentException("No intersection at " + source + "!") ;
 		}
-		
-		path.addFirst(start.getNodeLocation()) ;
-		
-		return path ; 
+		return graph.hopSearch().hopHistogram(ids) ;
+	}
+	
+	/** Count the intersections that can be reached from start, for 
+	 * connectivity checks
+	 * 
+	 * @param start The intersection to search from
+	 * @return The number of intersections reachable from start, itself 
+	 *   included, or 0 if start is not an intersection
+	 */
+	public int countReachable(GeographicPoint start) {
+		CompactGraph graph = frozen() ;
+		int source = graph.indexOf(start) ;
+		return source < 0 ? 0 : graph.hopSearch().countReachable(source) ;
 	}
 
 	/** Find the path from start to goal using Dijkstra's algorithm
@@ -289,7 +250,7 @@ public class MapGraph {
 	public List<GeographicPoint> dijkstra(GeographicPoint start, GeographicPoint goal) {
 		// Dummy variable for calling the search algorithms
 		// You do not need to change this method.
-        Consumer<GeographicPoint> temp = (x) -> {};
+        Consumer<GeographicPoint> temp = CompactGraph.IGNORE;
         return dijkstra(start, goal, temp);
 	}
 	
@@ -304,115 +265,441 @@ public class MapGraph {
 	public List<GeographicPoint> dijkstra(GeographicPoint start, 
 										  GeographicPoint goal, Consumer<GeographicPoint> nodeSearched)
 	{
-		
-		// Hook for visualization.  See writeup.
-		//nodeSearched.accept(next.getLocation());
-		
-	
-		dijkstraCount=0;
-		LinkedList<GeographicPoint> path = new LinkedList<GeographicPoint>();
-		
 		//check for invalid input
 		if(goal == null || start == null) {
 			System.out.println("Argument null; goal not reachable!!") ;
-			return path ;
+			return new LinkedList<GeographicPoint>() ;
 		}
 		
-		boolean found = false;
-		
-		HashSet<MapNode> visited = new HashSet<MapNode>() ; 
-		HashMap<MapNode, MapNode> parentMap = new HashMap<MapNode, MapNode>() ;
-		
-		PriorityQueue<MapNode> pq = new PriorityQueue<MapNode>() ;
+		//the search runs on the frozen CSR copy with its scratch state in a 
+		//per-thread context, so concurrent queries don't interfere
+		List<GeographicPoint> path = frozen().dijkstra(start, goal, nodeSearched) ;
 		
-		//make sure to init all distances to infinity first
+		if(path.isEmpty())
+			System.out.println("Dijkstra - No path found.") ;
 		
-		initDistancesFromSource(0) ; //zero to indicate it's not aStar but dijkstra
+		return path ;
+	}
+
+	/** Find the path from start to goal using A-Star search
+	 * 
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @return The list of intersections that form the shortest path from 
+	 *   start to goal (including both start and goal).
+	 */
+	public List<GeographicPoint> aStarSearch(GeographicPoint start, GeographicPoint goal) {
+		// Dummy variable for calling the search algorithms
+        Consumer<GeographicPoint> temp = CompactGraph.IGNORE;
+        return aStarSearch(start, goal, temp);
+	}
+	
+	/** Find the path from start to goal using A-Star search
+	 * 
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param nodeSearched A hook for visualization.  See assignment instructions for how to use it.
+	 * @return The list of intersections that form the shortest path from 
+	 *   start to goal (including both start and goal).
+	 */
+	public List<GeographicPoint> aStarSearch(GeographicPoint start, 
+											 GeographicPoint goal, Consumer<GeographicPoint> nodeSearched)
+	{
+		//check for invalid input
+		if(goal == null || start == null) {
+			System.out.println("Argument null; goal not reachable!!") ;
+			return new LinkedList<GeographicPoint>() ;
+		}
 		
+		//landmark tables built before the graph last changed no longer apply
+		CompactGraph graph = frozen() ;
+		Landmarks alt = landmarks ;
+		if(alt != null && alt.getGraph() != graph)
+			alt = null ;
+		List<GeographicPoint> path = graph.aStarSearch(start, goal, nodeSearched, alt) ;
 		
-		MapNode source = nodeList.get(start) ;
+		if(path.isEmpty())
+			System.out.println("AStar- No path found.") ;
 		
-		source.distance = 0 ; 
+		return path ;
+	}
 	
+	/** Find the fastest path from start to goal when leaving at a given 
+	 * time of day, using Dijkstra's algorithm on travel times from the 
+	 * traffic profiles (TrafficProfiles.defaults() unless others were set).
+	 * 
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param departure The departure time in seconds since midnight
+	 * @return The list of intersections that form the fastest path from 
+	 *   start to goal (including both start and goal).
+	 */
+	public List<GeographicPoint> dijkstra(GeographicPoint start, GeographicPoint goal, double departure) {
+		return timeDependentSearch(start, goal, departure, false) ;
+	}
+	
+	/** Find the fastest path from start to goal when leaving at a given 
+	 * time of day, using A-Star search on travel times from the traffic 
+	 * profiles.  The heuristic is the straight line distance at the 
+	 * fastest speed any road allows.
+	 * 
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param departure The departure time in seconds since midnight
+	 * @return The list of intersections that form the fastest path from 
+	 *   start to goal (including both start and goal).
+	 */
+	public List<GeographicPoint> aStarSearch(GeographicPoint start, GeographicPoint goal, double departure) {
+		return timeDependentSearch(start, goal, departure, true) ;
+	}
+	
+	/**
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param departure The departure time in seconds since midnight
+	 * @return The earliest arrival time at goal in seconds since midnight 
+	 *   of the day of departure, or infinity if goal is not reachable
+	 */
+	public double arrivalTime(GeographicPoint start, GeographicPoint goal, double departure) {
+		if(goal == null || start == null)
+			return Double.POSITIVE_INFINITY ;
+		double[] arrival = new double[1] ;
+		trafficModel().search(start, goal, departure, true, CompactGraph.IGNORE, arrival) ;
+		return arrival[0] ;
+	}
+	
+	private List<GeographicPoint> timeDependentSearch(GeographicPoint start, GeographicPoint goal, 
+			double departure, boolean aStar) {
+		//check for invalid input
+		if(goal == null || start == null) {
+			System.out.println("Argument null; goal not reachable!!") ;
+			return new LinkedList<GeographicPoint>() ;
+		}
 		
-		pq.offer(source) ;//MapNode implements Comparable interface
-		
+		List<GeographicPoint> path = trafficModel().search(start, goal, departure, aStar, 
+				CompactGraph.IGNORE, null) ;
 		
-		while(!pq.isEmpty()) {
-			MapNode curr = pq.remove() ; 
-			dijkstraCount++;
+		if(path.isEmpty())
+			System.out.println("Time-dependent search - No path found.") ;
 		
-		    if(!(visited.contains(curr))) {
-		    	visited.add(curr) ;
-		    	if(curr == nodeList.get(goal)) {
-		    		found = true ; 
-		    		break ; 
-		    	}
-		    	
-		    	//for each of currs neighbors
-		    	List<MapEdge> curNeighbors = curr.getEdgeList() ; 
-				
-				
-				for(int i = 0 ; i < curNeighbors.size() ; i++) {
-					
-					MapNode curNeighbor = curNeighbors.get(i).getEndNode() ; 
-					
-					if(!(visited.contains(curNeighbor))) {
-						//if path thru cur to n is shorter, updates distance[n]
-						double edgeWeight = curNeighbors.get(i).getWeight() ;
-						if(curNeighbor.distance > curr.distance + edgeWeight) {
-							curNeighbor.distance = curr.distance + edgeWeight; 
-							pq.offer(curNeighbor) ;
-							parentMap.put(curNeighbor, curr) ;
-						}
+		return path ;
+	}
+	
+	/**
+	 * Use these road type speeds and traffic profiles for the searches 
+	 * that take a departure time.
+	 * @param profiles The profiles, or null for TrafficProfiles.defaults()
+	 */
+	public void setTrafficProfiles(TrafficProfiles profiles) {
+		synchronized(this) {
+			trafficProfiles = profiles ;
+			traffic = null ;
+		}
+	}
+	
+	/**
+	 * Override the traffic profile of the road type on the edges from one 
+	 * intersection to another.
+	 * @param from The start of the edges
+	 * @param to The end of the edges
+	 * @param profile The id of a profile in the graph's TrafficProfiles, 
+	 *   or -1 to use the road type's profile again
+	 * @throws IllegalArgumentException If there is no edge from from to to
+	 */
+	public void setTrafficProfile(GeographicPoint from, GeographicPoint to, int profile) {
+		MapNode start = from == null ? null : nodeList.get(from) ;
+		boolean found = false ;
+		if(start != null) {
+			for(MapEdge edge : start.getEdgeList()) {
+				if(edge.getEndNode().getNodeLocation().equals(to)) {
+					edge.setTrafficProfile(profile) ;
+					found = true ;
+				}
+			}
+		}
+		if(!found)
+			throw new IllegalArgumentException("No edge from " + from + " to " + to + "!") ;
+		synchronized(this) {
+			traffic = null ;
+		}
+	}
+	
+	/**
+	 * Close the road from one intersection to another, as reported by a 
+	 * closure feed.  No search takes it until it is reopened.  Searches 
+	 * already running are not disturbed and finish on the graph as it was
+	 * when they started; the next ones see the closure at once.
+	 * @param from The start of the edges
+	 * @param to The end of the edges
+	 * @throws IllegalArgumentException If there is no edge from from to to
+	 */
+	public void closeEdge(GeographicPoint from, GeographicPoint to) {
+		setClosed(from, to, true) ;
+	}
+	
+	/**
+	 * Open a road closed by closeEdge again.
+	 * @param from The start of the edges
+	 * @param to The end of the edges
+	 * @throws IllegalArgumentException If there is no edge from from to to
+	 */
+	public void reopenEdge(GeographicPoint from, GeographicPoint to) {
+		setClosed(from, to, false) ;
+	}
+	
+	/**
+	 * Change the length of the road from one intersection to another in 
+	 * place, without reloading the map or rebuilding the searches' 
+	 * indexes.  Like closeEdge, it is seen by the next searches started 
+	 * and not by those already running.
+	 * @param from The start of the edges
+	 * @param to The end of the edges
+	 * @param weight The new length in km
+	 * @throws IllegalArgumentException If there is no edge from from to 
+	 *   to, or weight is negative or not finite
+	 */
+	public void setEdgeWeight(GeographicPoint from, GeographicPoint to, double weight) {
+		if(!(weight >= 0) || Double.isInfinite(weight))
+			throw new IllegalArgumentException("Edge weight must be finite and not negative!") ;
+		CompactGraph graph = frozen() ;
+		int[] edges = updateEdges(graph, from, to, edge -> edge.setWeight(weight)) ;
+		double[] weights = new double[edges.length] ;
+		Arrays.fill(weights, weight) ;
+		graph.updateEdges(edges, weights, null) ;
+	}
+	
+	private void setClosed(GeographicPoint from, GeographicPoint to, boolean closed) {
+		CompactGraph graph = frozen() ;
+		int[] edges = updateEdges(graph, from, to, edge -> edge.setClosed(closed)) ;
+		boolean[] flags = new boolean[edges.length] ;
+		Arrays.fill(flags, closed) ;
+		graph.updateEdges(edges, null, flags) ;
+	}
+	
+	// Apply update to the MapEdges from from to to, and return their ids 
+	// in graph, whose edges of each vertex are in MapNode order
+	private int[] updateEdges(CompactGraph graph, GeographicPoint from, GeographicPoint to, 
+			Consumer<MapEdge> update) {
+		MapNode start = from == null ? null : nodeList.get(from) ;
+		int[] edges = new int[0] ;
+		if(start != null) {
+			int e = graph.firstEdge(graph.indexOf(from)) ;
+			for(MapEdge edge : start.getEdgeList()) {
+				if(edge.getEndNode().getNodeLocation().equals(to)) {
+					update.accept(edge) ;
+					edges = Arrays.copyOf(edges, edges.length + 1) ;
+					edges[edges.length - 1] = e ;
+				}
+				e++ ;
+			}
+		}
+		if(edges.length == 0)
+			throw new IllegalArgumentException("No edge from " + from + " to " + to + "!") ;
+		return edges ;
+	}
+	
+	/** The travel time model for the current frozen graph, resolved from 
+	 * the traffic profiles and the edges' overrides on first use.
+	 */
+	TrafficModel trafficModel() {
+		CompactGraph graph = frozen() ;
+		TrafficModel model = traffic ;
+		if(model == null || model.getGraph() != graph) {
+			synchronized(this) {
+				model = traffic ;
+				if(model == null || model.getGraph() != graph) {
+					TrafficProfiles profiles = trafficProfiles ;
+					if(profiles == null) {
+						profiles = TrafficProfiles.defaults() ;
+						trafficProfiles = profiles ;
 					}
-					
-				}//done visiting neighbors of curr
-		    	
-		    }//end of 'if curr not visited'
-			
-			
-		}//end while loop
-		
-		if(found == false) {
-			System.out.println("Dijkstra - No path found.") ;
-			return path ;
+					//the edges of each vertex are in the same order in graph 
+					//as in its MapNode
+					int[] overrides = new int[graph.getNumEdges()] ;
+					for(int v = 0 ; v < graph.getNumVertices() ; v++) {
+						int e = graph.firstEdge(v) ;
+						for(MapEdge edge : nodeList.get(graph.getLocation(v)).getEdgeList())
+							overrides[e++] = edge.getTrafficProfile() ;
+					}
+					model = new TrafficModel(graph, profiles, overrides) ;
+					traffic = model ;
+				}
+			}
 		}
-		
-		return findPath(parentMap, nodeList.get(start), nodeList.get(goal)) ;
+		return model ;
 	}
-
 	
-	/** Method to set all distances from the source to infinity
-	 * @author Spatika
+	/** Find the path between two arbitrary locations using Dijkstra's 
+	 * algorithm.  Once road segments have been set, both ends are snapped 
+	 * onto the closest point of any road, and the path starts and ends 
+	 * part way along the roads they snap to.  Otherwise both ends are 
+	 * snapped to the closest intersections.  Either way snapping takes 
+	 * O(log n) time.
 	 * 
+	 * @param startLat The latitude of the starting location
+	 * @param startLon The longitude of the starting location
+	 * @param goalLat The latitude of the goal location
+	 * @param goalLon The longitude of the goal location
+	 * @return The route from the snapped start, through the intersections 
+	 *   on the shortest path, to the snapped goal, with the legs part way 
+	 *   along the first and last roads; empty if there is none.
 	 */
-	private void initDistancesFromSource(int aStarFlag) {
-		
-		for(Map.Entry<GeographicPoint, MapNode> entry : nodeList.entrySet()) {
-			entry.getValue().distance = Double.POSITIVE_INFINITY ;
-			
-			if(aStarFlag == 1)
-				entry.getValue().distToGoal = Double.POSITIVE_INFINITY; //h-score
-			else
-				entry.getValue().distToGoal = 0.0 ; //h-score
+	public RouteResult dijkstra(double startLat, double startLon, 
+								double goalLat, double goalLon) {
+		SegmentIndex index = segmentIndex() ;
+		RouteResult path ;
+		if(index == null) {
+			path = frozen().dijkstra(nearest(startLat, startLon), nearest(goalLat, goalLon), 
+					CompactGraph.IGNORE) ;
 		}
+		else {
+			SegmentIndex.Snap start = index.snap(startLat, startLon) ;
+			SegmentIndex.Snap goal = index.snap(goalLat, goalLon) ;
+			path = index.getGraph().dijkstra(start, goal, CompactGraph.IGNORE) ;
+		}
+		if(path.isEmpty())
+			System.out.println("Dijkstra - No path found.") ;
+		return path ;
 	}
-
-	/** Find the path from start to goal using A-Star search
+	
+	/** Find the path between two arbitrary locations using A-Star search.
+	 * The ends are snapped as for dijkstra(double, double, double, double).
+	 * 
+	 * @param startLat The latitude of the starting location
+	 * @param startLon The longitude of the starting location
+	 * @param goalLat The latitude of the goal location
+	 * @param goalLon The longitude of the goal location
+	 * @return The route from the snapped start, through the intersections 
+	 *   on the shortest path, to the snapped goal, with the legs part way 
+	 *   along the first and last roads; empty if there is none.
+	 */
+	public RouteResult aStarSearch(double startLat, double startLon, 
+								   double goalLat, double goalLon) {
+		SegmentIndex index = segmentIndex() ;
+		CompactGraph graph = index == null ? frozen() : index.getGraph() ;
+		Landmarks alt = landmarks ;
+		if(alt != null && alt.getGraph() != graph)
+			alt = null ;
+		RouteResult path ;
+		if(index == null) {
+			path = graph.aStarSearch(nearest(startLat, startLon), nearest(goalLat, goalLon), 
+					CompactGraph.IGNORE, alt) ;
+		}
+		else {
+			SegmentIndex.Snap start = index.snap(startLat, startLon) ;
+			SegmentIndex.Snap goal = index.snap(goalLat, goalLon) ;
+			path = graph.aStarSearch(start, goal, CompactGraph.IGNORE, alt) ;
+		}
+		if(path.isEmpty())
+			System.out.println("AStar- No path found.") ;
+		return path ;
+	}
+	
+	/**
+	 * Snap a location onto the closest point of any road.
+	 * @param latitude The latitude of the location
+	 * @param longitude The longitude of the location
+	 * @return The closest point on a road, or null if no road segments 
+	 *   have been set
+	 */
+	public GeographicPoint snapToRoad(double latitude, double longitude) {
+		SegmentIndex index = segmentIndex() ;
+		SegmentIndex.Snap snap = index == null ? null : index.snap(latitude, longitude) ;
+		return snap == null ? null : snap.getLocation() ;
+	}
+	
+	/**
+	 * Give the graph the road geometry that GraphLoader loaded with it, 
+	 * so that queries on raw coordinates snap onto roads rather than 
+	 * intersections.  The segment index over it is built on first use.
+	 * @param roads The road segments at each intersection, or null to 
+	 *   snap to intersections again
+	 */
+	public void setRoadSegments(HashMap<GeographicPoint,HashSet<RoadSegment>> roads) {
+		synchronized(this) {
+			this.roads = roads ;
+			segmentIndex = null ;
+		}
+	}
+	
+	/** The segment index over the road segments for the current frozen 
+	 * graph, or null if no road segments have been set.  It is rebuilt 
+	 * after a vertex or edge is added.
+	 */
+	SegmentIndex segmentIndex() {
+		CompactGraph graph = frozen() ;
+		SegmentIndex index = segmentIndex ;
+		if(index == null || index.getGraph() != graph) {
+			synchronized(this) {
+				index = segmentIndex ;
+				if(roads == null)
+					return null ;
+				if(index == null || index.getGraph() != graph) {
+					index = new SegmentIndex(graph, roads) ;
+					segmentIndex = index ;
+				}
+			}
+		}
+		return index ;
+	}
+	
+	/**
+	 * Find the intersection closest to a location.
+	 * @param latitude The latitude of the location
+	 * @param longitude The longitude of the location
+	 * @return The closest intersection, or null if the graph is empty
+	 */
+	public GeographicPoint nearest(double latitude, double longitude) {
+		CompactGraph graph = frozen() ;
+		int v = graph.spatialIndex().nearest(latitude, longitude) ;
+		return v < 0 ? null : graph.getLocation(v) ;
+	}
+	
+	/**
+	 * Find the k intersections closest to a location.
+	 * @param latitude The latitude of the location
+	 * @param longitude The longitude of the location
+	 * @param k The number of intersections to find
+	 * @return The min(k, number of vertices) closest intersections, closest first
+	 */
+	public List<GeographicPoint> kNearest(double latitude, double longitude, int k) {
+		CompactGraph graph = frozen() ;
+		return locations(graph, graph.spatialIndex().kNearest(latitude, longitude, k)) ;
+	}
+	
+	/**
+	 * Find every intersection within a distance of a location.
+	 * @param latitude The latitude of the location
+	 * @param longitude The longitude of the location
+	 * @param radius The distance in km
+	 * @return The intersections at most radius km away, closest first
+	 */
+	public List<GeographicPoint> withinRadius(double latitude, double longitude, double radius) {
+		CompactGraph graph = frozen() ;
+		return locations(graph, graph.spatialIndex().withinRadius(latitude, longitude, radius)) ;
+	}
+	
+	private static List<GeographicPoint> locations(CompactGraph graph, int[] vertices) {
+		List<GeographicPoint> result = new ArrayList<GeographicPoint>(vertices.length) ;
+		for(int v : vertices)
+			result.add(graph.getLocation(v)) ;
+		return result ;
+	}
+	
+	/** Find the path from start to goal with bidirectional Dijkstra
 	 * 
 	 * @param start The starting location
 	 * @param goal The goal location
 	 * @return The list of intersections that form the shortest path from 
 	 *   start to goal (including both start and goal).
 	 */
-	public List<GeographicPoint> aStarSearch(GeographicPoint start, GeographicPoint goal) {
-		// Dummy variable for calling the search algorithms
-        Consumer<GeographicPoint> temp = (x) -> {};
-        return aStarSearch(start, goal, temp);
+	public List<GeographicPoint> bidirectionalDijkstra(GeographicPoint start, GeographicPoint goal) {
+        Consumer<GeographicPoint> temp = CompactGraph.IGNORE;
+        return bidirectionalDijkstra(start, goal, temp);
 	}
 	
-	/** Find the path from start to goal using A-Star search
+	/** Find the path from start to goal with bidirectional Dijkstra, 
+	 * searching forward from start and backward from goal at the same time.
 	 * 
 	 * @param start The starting location
 	 * @param goal The goal location
@@ -420,90 +707,316 @@ public class MapGraph {
 	 * @return The list of intersections that form the shortest path from 
 	 *   start to goal (including both start and goal).
 	 */
-	public List<GeographicPoint> aStarSearch(GeographicPoint start, 
-											 GeographicPoint goal, Consumer<GeographicPoint> nodeSearched)
+	public List<GeographicPoint> bidirectionalDijkstra(GeographicPoint start, 
+										  GeographicPoint goal, Consumer<GeographicPoint> nodeSearched)
 	{
-		aStarCount = 0 ;
-		// Hook for visualization.  See writeup.
-		//nodeSearched.accept(next.getLocation());
+		//check for invalid input
+		if(goal == null || start == null) {
+			System.out.println("Argument null; goal not reachable!!") ;
+			return new LinkedList<GeographicPoint>() ;
+		}
 		
-		List<GeographicPoint> path = new LinkedList<GeographicPoint>() ;
-		initDistancesFromSource(1) ; //one to indicate it's aStar
+		List<GeographicPoint> path = frozen().bidirectionalDijkstra(start, goal, nodeSearched) ;
 		
-
+		if(path.isEmpty())
+			System.out.println("Bidirectional Dijkstra - No path found.") ;
+		
+		return path ;
+	}
+	
+	/** Find the path from start to goal with bidirectional A-Star search
+	 * 
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @return The list of intersections that form the shortest path from 
+	 *   start to goal (including both start and goal).
+	 */
+	public List<GeographicPoint> bidirectionalAStar(GeographicPoint start, GeographicPoint goal) {
+        Consumer<GeographicPoint> temp = CompactGraph.IGNORE;
+        return bidirectionalAStar(start, goal, temp);
+	}
+	
+	/** Find the path from start to goal with bidirectional A-Star search, 
+	 * searching forward from start and backward from goal at the same time.
+	 * 
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param nodeSearched A hook for visualization.  See assignment instructions for how to use it.
+	 * @return The list of intersections that form the shortest path from 
+	 *   start to goal (including both start and goal).
+	 */
+	public List<GeographicPoint> bidirectionalAStar(GeographicPoint start, 
+											 GeographicPoint goal, Consumer<GeographicPoint> nodeSearched)
+	{
 		//check for invalid input
 		if(goal == null || start == null) {
 			System.out.println("Argument null; goal not reachable!!") ;
-			return path ;
+			return new LinkedList<GeographicPoint>() ;
 		}
 		
-		boolean found = false;
-		
-		HashSet<MapNode> visited = new HashSet<MapNode>() ; 
-		HashMap<MapNode, MapNode> parentMap = new HashMap<MapNode, MapNode>() ;
-		
-		PriorityQueue<MapNode> pq = new PriorityQueue<MapNode>() ;
-		
-		MapNode source = nodeList.get(start) ;
-		MapNode target = nodeList.get(goal);
-		
-		source.distance = 0 ; 
-		source.distToGoal = 0; //h-score for source node
-		
-		pq.offer(source) ;//MapNode implements Comparable interface
-		
-		
-		while(!pq.isEmpty()) {
-			MapNode curr = pq.remove() ; 
-			aStarCount++;
-		
-		    if(!(visited.contains(curr))) {
-		    	visited.add(curr) ;
-		    	if(curr == nodeList.get(goal)) {
-		    		found = true ; 
-		    		break ; 
-		    	}
-		    	
-		    	//for each of currs neighbors
-		    	List<MapEdge> curNeighbors = curr.getEdgeList() ; 
-				
-				
-				for(int i = 0 ; i < curNeighbors.size() ; i++) {
-					
-					MapNode curNeighbor = curNeighbors.get(i).getEndNode() ; 
-					
-					if(!(visited.contains(curNeighbor))) {
-						//if path thru cur to n is shorter, updates distance[n]
-						double gScore = curNeighbors.get(i).getWeight() ; //g score
-						
-						//calculate distance between GeographicLocation goal - GeographicLocation curNeighbor.getNodeLocation()
-						double hScore = goal.distance(curNeighbor.getNodeLocation()); 
-						//curNeighbor to source + curNeighbor to goal
-						curNeighbor.distToGoal = hScore ; 
-						
-						if(curNeighbor.distance > curr.distance + gScore) {
-							curNeighbor.distance = curr.distance + gScore; 
-							pq.offer(curNeighbor) ;
-							parentMap.put(curNeighbor, curr) ;
-						}
-					}
-					
-				}//done visiting neighbors of curr
-		    	
-		    }//end of 'if curr not visited'
-			
-			
-		}//end while loop
-		
-		if(found == false) {
-			System.out.println("AStar- No path found.") ;
-			return path ;
-		}
+		List<GeographicPoint> path = frozen().bidirectionalAStar(start, goal, nodeSearched) ;
 		
+		if(path.isEmpty())
+			System.out.println("Bidirectional AStar - No path found.") ;
 		
-		return findPath(parentMap, nodeList.get(start), nodeList.get(goal)) ;
+		return path ;
+	}
+	
+	/**
+	 * Find everything reachable from start within one or more distance 
+	 * budgets, for example 1, 2 and 5 km rings, with a single search.  
+	 * Roads cut off by a budget are clipped along the road geometry once 
+	 * road segments have been set.
+	 * @param start The starting location
+	 * @param budgets The budgets in km, or in the units of the cost model 
+	 *   if one was set
+	 * @return The intersections within the budgets, closest first
+	 * @throws IllegalArgumentException If there are no budgets or one is negative
+	 */
+	public Isochrone isochrone(GeographicPoint start, double... budgets) {
+		CompactGraph graph = frozen() ;
+		if(start == null) {
+			System.out.println("Argument null; nothing reachable!!") ;
+			double[] sorted = budgets.clone() ;
+			Arrays.sort(sorted) ;
+			return new Isochrone(graph, null, graph.costs().cost, sorted, new int[0], new double[0]) ;
+		}
+		SegmentIndex index = segmentIndex() ;
+		return graph.isochrone(start, budgets, index != null && index.getGraph() == graph ? index : null) ;
+	}
+	
+	/**
+	 * Find the costs of the cheapest paths from every source to every 
+	 * target, with one Dijkstra search per source that stops as soon as 
+	 * all targets are settled.  Sources are searched in parallel.
+	 * @param sources The starting locations
+	 * @param targets The goal locations
+	 * @return table[i][j] is the cost of the cheapest path from sources[i]
+	 *   to targets[j] under the cost model (its length in km by default),
+	 *   or infinity where there is none
+	 */
+	public double[][] distanceMatrix(List<GeographicPoint> sources, List<GeographicPoint> targets) {
+		return frozen().distanceTable(sources, targets) ;
+	}
+	
+	/**
+	 * Find the lengths of the shortest paths from every source to every 
+	 * target with the bucket-based many-to-many search on a contraction 
+	 * hierarchy, which is much faster for large tables.  The hierarchy is 
+	 * built on lengths, whatever the cost model.
+	 * @param sources The starting locations
+	 * @param targets The goal locations
+	 * @param hierarchy A hierarchy from buildContractionHierarchy()
+	 * @return table[i][j] is the length in km of the shortest path from 
+	 *   sources[i] to targets[j], or infinity where there is none
+	 * @throws IllegalArgumentException If hierarchy was built for another graph
+	 */
+	public double[][] distanceMatrix(List<GeographicPoint> sources, List<GeographicPoint> targets,
+									 ContractionHierarchy hierarchy) {
+		if(hierarchy.getGraph() != frozen())
+			throw new IllegalArgumentException("Hierarchy was built for a different graph!") ;
+		return hierarchy.distanceTable(sources, targets) ;
+	}
+	
+	/**
+	 * Find the length of the shortest path from start to goal (its cost,
+	 * if a cost model is set) without building the path, for callers such
+	 * as ETA estimates that only need the number.  Runs aStarSearch with 
+	 * the landmarks, keeping no parents and allocating nothing.
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @return The length of the shortest path, or infinity if goal is 
+	 *   not reachable
+	 */
+	public double distance(GeographicPoint start, GeographicPoint goal) {
+		if(start == null || goal == null)
+			return Double.POSITIVE_INFINITY ;
+		CompactGraph graph = frozen() ;
+		Landmarks alt = landmarks ;
+		return graph.distance(start, goal, alt != null && alt.getGraph() == graph ? alt : null) ;
+	}
+	
+	/**
+	 * A router for batches of queries, which runs aStarSearch with this 
+	 * graph's landmarks over all cores.  It keeps routing on the graph 
+	 * as it is now, even after vertices or edges are added.
+	 * @param withPaths Whether to return paths, or only distances
+	 * @return A router on the current graph
+	 */
+	public BatchRouter batchRouter(boolean withPaths) {
+		CompactGraph graph = frozen() ;
+		Landmarks alt = landmarks ;
+		return new BatchRouter(graph, alt != null && alt.getGraph() == graph ? alt : null, withPaths) ;
+	}
+	
+	/**
+	 * @return The number of nodes settled by the last dijkstra, aStarSearch 
+	 *   or bidirectional search made by the calling thread
+	 */
+	public int getLastSearchCount() {
+		return frozen().getLastSettledCount() ;
+	}
+	
+	/**
+	 * Choose the arity of the indexed heap that dijkstra and aStarSearch 
+	 * use as their priority queue.  The default is 4.
+	 * @param arity The number of children per heap node, at least 2
+	 * @throws IllegalArgumentException If arity is less than 2
+	 */
+	public void setHeapArity(int arity) {
+		frozen().setHeapArity(arity) ;
+		heapArity = arity ;
+	}
+	
+	/**
+	 * Choose what dijkstra, aStarSearch, the bidirectional searches, 
+	 * distance matrices and isochrones minimize, for example 
+	 * CostModel.TRAVEL_TIME for the fastest rather than the shortest 
+	 * routes.  Distances they report are then in the model's units.  
+	 * Contraction hierarchies and landmarks stay on lengths.
+	 * @param model The cost of an edge from its road name, type and length
+	 * @throws IllegalArgumentException If model is null or gives an edge 
+	 *   a negative or NaN cost
+	 */
+	public void setCostModel(CostModel model) {
+		frozen().setCostModel(model) ;
+		costModel = model ;
+	}
+	
+	/** @return The cost model the searches minimize, CostModel.DISTANCE by default */
+	public CostModel getCostModel() {
+		return costModel ;
+	}
+	
+	/**
+	 * Use landmark tables to sharpen the aStarSearch heuristic.  They are
+	 * ignored again once a vertex or edge is added.
+	 * @param landmarks Tables built for toCompactGraph(), or null to use 
+	 *   the straight line distance alone
+	 * @throws IllegalArgumentException If landmarks were built for another graph
+	 */
+	public void setLandmarks(Landmarks landmarks) {
+		if(landmarks != null && landmarks.getGraph() != frozen())
+			throw new IllegalArgumentException("Landmarks were built for a different graph!") ;
+		this.landmarks = landmarks ;
+	}
+	
+	/** The CSR copy of this graph that the searches run on.  It is built 
+	 * on first use and dropped whenever a vertex or edge is added.
+	 */
+	CompactGraph frozen() {
+		CompactGraph graph = frozen ;
+		if(graph == null) {
+			synchronized(this) {
+				graph = frozen ;
+				if(graph == null) {
+					graph = CompactGraph.fromMapGraph(this) ;
+					graph.setHeapArity(heapArity) ;
+					if(costModel != CostModel.DISTANCE)
+						graph.setCostModel(costModel) ;
+					closeEdges(graph) ;
+					frozen = graph ;
+				}
+			}
+		}
+		return graph ;
+	}
+
+	// Carry the closed MapEdges over to a newly frozen graph
+	private void closeEdges(CompactGraph graph) {
+		int[] closed = new int[graph.getNumEdges()] ;
+		int count = 0 ;
+		for(int v = 0 ; v < graph.getNumVertices() ; v++) {
+			int e = graph.firstEdge(v) ;
+			for(MapEdge edge : nodeList.get(graph.getLocation(v)).getEdgeList()) {
+				if(edge.isClosed())
+					closed[count++] = e ;
+				e++ ;
+			}
+		}
+		if(count > 0) {
+			boolean[] flags = new boolean[count] ;
+			Arrays.fill(flags, true) ;
+			graph.updateEdges(Arrays.copyOf(closed, count), null, flags) ;
+		}
 	}
 
+	/** Freeze this graph into the compact, int-indexed form used for 
+	 * memory-hungry maps.  Later changes to this graph are not reflected 
+	 * in the returned CompactGraph.
+	 * @return A CSR copy of this graph
+	 */
+	public CompactGraph toCompactGraph() {
+		return frozen() ;
+	}
+
+	/** Build a MapGraph with the same vertices and edges as a CompactGraph,
+	 * such as one opened from a GraphFile.  The searches of the new graph 
+	 * run on the given CompactGraph, or on a copy of it if it is read-only,
+	 * until a vertex or edge is added.
+	 * @param graph The graph to copy
+	 * @return A MapGraph with the same vertices and edges as graph
+	 */
+	public static MapGraph fromCompactGraph(CompactGraph graph) {
+		MapGraph map = new MapGraph() ;
+		GeographicPoint[] locations = new GeographicPoint[graph.getNumVertices()] ;
+		for(int v = 0 ; v < locations.length ; v++) {
+			locations[v] = graph.getLocation(v) ;
+			map.addVertex(locations[v]) ;
+		}
+		for(int v = 0 ; v < locations.length ; v++) {
+			for(int e = graph.firstEdge(v) ; e < graph.endEdge(v) ; e++) {
+				map.addEdge(locations[v], locations[graph.getTarget(e)], 
+						graph.getRoadName(e), graph.getRoadType(e), graph.getCurrentWeight(e)) ;
+				if(graph.isClosed(e)) {
+					List<MapEdge> edges = map.nodeList.get(locations[v]).getEdgeList() ;
+					edges.get(edges.size() - 1).setClosed(true) ;
+				}
+			}
+		}
+		map.heapArity = graph.getHeapArity() ;
+		map.costModel = graph.getCostModel() ;
+		map.frozen = graph.isReadOnly() ? graph.copy() : graph ;
+		return map ;
+	}
+
+	/** Preprocess this graph into a contraction hierarchy, which answers 
+	 * shortest path queries far faster than dijkstra.  Save it with 
+	 * ContractionHierarchy.save to avoid repeating the preprocessing at the
+	 * next startup.  The hierarchy answers by length whatever the cost 
+	 * model, and repairs itself for edges closed or reweighted after it 
+	 * was built, keeping its vertex order rather than contracting again.
+	 * @return A contraction hierarchy for the current graph
+	 */
+	public ContractionHierarchy buildContractionHierarchy() {
+		return ContractionHierarchy.build(frozen()) ;
+	}
+
+	/** Preprocess this graph into hub labels, which answer a distance
+	 * query by merging two short sorted lists, with no search at all.
+	 * Unlike a contraction hierarchy, the labels are for the current cost
+	 * model; check HubLabels.isCurrent after closing or reweighting edges.
+	 * @param order How to order the vertices for labeling
+	 * @param withPaths Whether the labels should retrieve paths too
+	 * @param maxEntries The most label entries to build
+	 * @return Hub labels for the current graph
+	 * @throws IllegalArgumentException If the labels need more than
+	 *   maxEntries entries
+	 */
+	public HubLabels buildHubLabels(HubLabels.Order order, boolean withPaths, long maxEntries) {
+		return HubLabels.build(frozen(), order, withPaths, maxEntries) ;
+	}
+
+	/** Preprocess this graph into arc-flags over the given number of
+	 * cells, with which ArcFlags.dijkstra relaxes only the edges that lead
+	 * towards the goal's cell.  The flags are for the current cost model;
+	 * check ArcFlags.isCurrent after closing or reweighting edges.
+	 * @param cells The number of cells, from 1 to the number of vertices
+	 * @return Arc-flags for the current graph
+	 */
+	public ArcFlags buildArcFlags(int cells) {
+		return ArcFlags.build(frozen(), cells) ;
+	}
 	
 	
 	public static void main(String[] args)
@@ -573,9 +1086,11 @@ public class MapGraph {
 		System.out.println(route) ;
 		System.out.println(route2) ;
 		
-		System.out.println(dijkstraCount);
+		theMap.dijkstra(start,end);
+		System.out.println(theMap.getLastSearchCount());
 
-		System.out.println(aStarCount);
+		theMap.aStarSearch(start,end);
+		System.out.println(theMap.getLastSearchCount());
 
 		
 	}
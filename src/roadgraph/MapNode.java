@@ -12,15 +12,15 @@ import geography.GeographicPoint;
  * Neighbors of a MapNode can be accessed via edgeList member variable
  */
 
-public class MapNode implements Comparable<MapNode> {
+public class MapNode {
 	
 	
 	private GeographicPoint location ; //Lat. & Lon.
 	
 	private List<MapEdge> edgeList ; //list of edges originating from this node
 	
-	double distance ; //from the 'source' that you're checking! - g score
-	double distToGoal ; //dist from 'goal' that you're checking! - h score
+	//search state (g and h scores) lives in the per-query SearchContext,
+	//so that several searches can run on the same graph at once
 
 	
 	/**
@@ -30,8 +30,6 @@ public class MapNode implements Comparable<MapNode> {
 	public MapNode(GeographicPoint location) {
 		this.location = location ;
 		edgeList = new ArrayList<MapEdge>() ; 
-		distance = Double.POSITIVE_INFINITY ;
-		distToGoal = Double.POSITIVE_INFINITY ;
 	}
 	
 	/**
@@ -62,11 +60,4 @@ public class MapNode implements Comparable<MapNode> {
 	public GeographicPoint getNodeLocation() {
 		return this.location ;
 	}
-
-	@Override
-	public int compareTo(MapNode other) {
-		
-		//compare the two predicted distances - f scores
-		return Double.compare((this.distance+this.distToGoal), (other.distance+other.distToGoal)) ;
-	}
 }
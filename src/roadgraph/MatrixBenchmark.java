@@ -0,0 +1,91 @@
+package roadgraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import geography.GeographicPoint;
+import util.GraphLoader;
+
+/**
+ * Times distance tables between random intersections: one point to point
+ * dijkstra per pair (on a sample of the rows), CompactGraph.distanceTable
+ * with one search per source, and the bucket-based many-to-many search of
+ * ContractionHierarchy.distanceTable, and checks that all of them agree.
+ *
+ * Run from the project root: java roadgraph.MatrixBenchmark [size] [map files]
+ */
+public class MatrixBenchmark {
+
+	private static final int SAMPLE_ROWS = 10 ;
+
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000 ;
+		String[] maps = {"data/maps/san_diego.map", "data/maps/hollywood_large.map"} ;
+		if(args.length > 1)
+			maps = Arrays.copyOfRange(args, 1, args.length) ;
+		System.out.println("Parallelism " + ForkJoinPool.getCommonPoolParallelism()) ;
+
+		for(String file : maps) {
+			CompactGraph.Builder builder = new CompactGraph.Builder() ;
+			GraphLoader.loadRoadMap(file, builder) ;
+			CompactGraph graph = builder.build() ;
+			ContractionHierarchy ch = ContractionHierarchy.build(graph) ;
+
+			Random random = new Random(13) ;
+			List<GeographicPoint> sources = new ArrayList<GeographicPoint>() ;
+			List<GeographicPoint> targets = new ArrayList<GeographicPoint>() ;
+			for(int i = 0 ; i < size ; i++) {
+				sources.add(graph.getLocation(random.nextInt(graph.getNumVertices()))) ;
+				targets.add(graph.getLocation(random.nextInt(graph.getNumVertices()))) ;
+			}
+
+			//warm up, then time each method once
+			graph.distanceTable(sources.subList(0, 10), targets) ;
+			ch.distanceTable(sources.subList(0, 10), targets) ;
+
+			long begin = System.nanoTime() ;
+			double[][] dijkstra = graph.distanceTable(sources, targets) ;
+			long tableTime = System.nanoTime() - begin ;
+
+			begin = System.nanoTime() ;
+			double[][] buckets = ch.distanceTable(sources, targets) ;
+			long bucketTime = System.nanoTime() - begin ;
+
+			//point to point queries for a few rows, scaled up to the whole table
+			int mismatches = 0 ;
+			begin = System.nanoTime() ;
+			for(int i = 0 ; i < SAMPLE_ROWS ; i++) {
+				for(int j = 0 ; j < size ; j++) {
+					double expected = ch.distance(sources.get(i), targets.get(j)) ;
+					if(!close(expected, dijkstra[i][j]))
+						mismatches++ ;
+				}
+			}
+			for(int i = 0 ; i < size ; i++) {
+				for(int j = 0 ; j < size ; j++) {
+					if(!close(dijkstra[i][j], buckets[i][j]))
+						mismatches++ ;
+				}
+			}
+			long pairTime = 0 ;
+			begin = System.nanoTime() ;
+			for(int i = 0 ; i < SAMPLE_ROWS ; i++) {
+				for(int j = 0 ; j < size ; j++)
+					graph.dijkstra(sources.get(i), targets.get(j)) ;
+			}
+			pairTime = (System.nanoTime() - begin) / SAMPLE_ROWS * size ;
+
+			System.out.printf("%s: %dx%d table, %d mismatches%n", file, size, size, mismatches) ;
+			System.out.printf("  dijkstra per pair    %10.1f ms (estimated from %d rows)%n", pairTime / 1e6, SAMPLE_ROWS) ;
+			System.out.printf("  dijkstra per source  %10.1f ms%n", tableTime / 1e6) ;
+			System.out.printf("  CH buckets           %10.1f ms%n", bucketTime / 1e6) ;
+		}
+	}
+
+	private static boolean close(double a, double b) {
+		return a == b || Math.abs(a - b) < 1e-9 ;
+	}
+}
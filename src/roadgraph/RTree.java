@@ -0,0 +1,351 @@
+package roadgraph;
+
+import java.util.Arrays;
+import java.util.function.IntToDoubleFunction;
+
+/**
+ * A static R-tree over items numbered 0 .. n-1, each with a bounding box
+ * in (lat, lon), bulk loaded with the Sort-Tile-Recursive (STR) method:
+ * items are cut into vertical slices by longitude, each slice is sorted
+ * by latitude and packed into full leaves, and the same is repeated on
+ * the leaf boxes until one root is left.  The tree is immutable, packed
+ * into flat arrays, and safe to query from any number of threads.
+ *
+ * Queries walk the tree best-first, ordered by a lower bound on the
+ * great circle distance from the query point to each bounding box.  The
+ * caller supplies the exact distance to an item, which must never be
+ * less than the distance to the item's box.  Distances are in km, as
+ * computed by GeographicPoint.
+ *
+ * SpatialIndex uses it over vertices (boxes of a single point) and
+ * SegmentIndex over the pieces of road polylines.
+ */
+class RTree {
+
+	private static final int NODE_CAPACITY = 16 ;
+	private static final double R = 6373 ; //radius of the earth in km, as in GeographicPoint
+
+	private final int size ;
+
+	// nodes 0 .. numLeaves-1 are leaves, whose children are the items
+	// items[first[i]] .. items[first[i] + count[i] - 1]; the children of
+	// other nodes are the nodes first[i] .. first[i] + count[i] - 1
+	private final int[] items ;
+	private final int numLeaves ;
+	final int root ;
+	private final int[] first ;
+	private final int[] count ;
+	final double[] minLat ;
+	final double[] maxLat ;
+	final double[] minLon ;
+	final double[] maxLon ;
+
+	/**
+	 * Bulk load the tree.  The arrays are only read while building.
+	 * @param itemMinLat The smallest latitude of each item
+	 * @param itemMaxLat The largest latitude of each item
+	 * @param itemMinLon The smallest longitude of each item
+	 * @param itemMaxLon The largest longitude of each item
+	 */
+	RTree(double[] itemMinLat, double[] itemMaxLat, double[] itemMinLon, double[] itemMaxLon) {
+		int n = itemMinLat.length ;
+		size = n ;
+
+		//the boxes of all levels, leaves first
+		int capacity = Math.max(1, 2 * (n / NODE_CAPACITY + 1)) ;
+		int[] nodeFirst = new int[capacity] ;
+		int[] nodeCount = new int[capacity] ;
+		double[][] box = new double[4][capacity] ;
+
+		//leaves: pack the items in STR order of their centers
+		items = new int[n] ;
+		double[] itemLat = new double[n] ;
+		double[] itemLon = new double[n] ;
+		for(int i = 0 ; i < n ; i++) {
+			items[i] = i ;
+			itemLat[i] = (itemMinLat[i] + itemMaxLat[i]) / 2 ;
+			itemLon[i] = (itemMinLon[i] + itemMaxLon[i]) / 2 ;
+		}
+		strSort(items, 0, n, itemLon, itemLat) ;
+		int numNodes = 0 ;
+		for(int i = 0 ; i < n ; i += NODE_CAPACITY) {
+			int end = Math.min(n, i + NODE_CAPACITY) ;
+			nodeFirst[numNodes] = i ;
+			nodeCount[numNodes] = end - i ;
+			emptyBox(box, numNodes) ;
+			for(int j = i ; j < end ; j++) {
+				int item = items[j] ;
+				box[0][numNodes] = Math.min(box[0][numNodes], itemMinLat[item]) ;
+				box[1][numNodes] = Math.max(box[1][numNodes], itemMaxLat[item]) ;
+				box[2][numNodes] = Math.min(box[2][numNodes], itemMinLon[item]) ;
+				box[3][numNodes] = Math.max(box[3][numNodes], itemMaxLon[item]) ;
+			}
+			numNodes++ ;
+		}
+		numLeaves = numNodes ;
+
+		//upper levels: pack the nodes of the level below by their centers
+		int levelStart = 0 ;
+		int levelEnd = numNodes ;
+		while(levelEnd - levelStart > 1) {
+			int levelSize = levelEnd - levelStart ;
+			int[] order = new int[levelSize] ;
+			double[] centerLat = new double[numNodes] ;
+			double[] centerLon = new double[numNodes] ;
+			for(int i = 0 ; i < levelSize ; i++) {
+				int node = levelStart + i ;
+				order[i] = node ;
+				centerLat[node] = (box[0][node] + box[1][node]) / 2 ;
+				centerLon[node] = (box[2][node] + box[3][node]) / 2 ;
+			}
+			strSort(order, 0, levelSize, centerLon, centerLat) ;
+
+			//children must be contiguous, so rewrite this level in STR order
+			int[] oldFirst = Arrays.copyOfRange(nodeFirst, levelStart, levelEnd) ;
+			int[] oldCount = Arrays.copyOfRange(nodeCount, levelStart, levelEnd) ;
+			double[][] oldBox = new double[4][] ;
+			for(int b = 0 ; b < 4 ; b++)
+				oldBox[b] = Arrays.copyOfRange(box[b], levelStart, levelEnd) ;
+			for(int i = 0 ; i < levelSize ; i++) {
+				int from = order[i] - levelStart ;
+				nodeFirst[levelStart + i] = oldFirst[from] ;
+				nodeCount[levelStart + i] = oldCount[from] ;
+				for(int b = 0 ; b < 4 ; b++)
+					box[b][levelStart + i] = oldBox[b][from] ;
+			}
+
+			for(int i = levelStart ; i < levelEnd ; i += NODE_CAPACITY) {
+				int end = Math.min(levelEnd, i + NODE_CAPACITY) ;
+				if(numNodes == nodeFirst.length) {
+					nodeFirst = Arrays.copyOf(nodeFirst, numNodes * 2) ;
+					nodeCount = Arrays.copyOf(nodeCount, numNodes * 2) ;
+					for(int b = 0 ; b < 4 ; b++)
+						box[b] = Arrays.copyOf(box[b], numNodes * 2) ;
+				}
+				nodeFirst[numNodes] = i ;
+				nodeCount[numNodes] = end - i ;
+				emptyBox(box, numNodes) ;
+				for(int child = i ; child < end ; child++) {
+					box[0][numNodes] = Math.min(box[0][numNodes], box[0][child]) ;
+					box[1][numNodes] = Math.max(box[1][numNodes], box[1][child]) ;
+					box[2][numNodes] = Math.min(box[2][numNodes], box[2][child]) ;
+					box[3][numNodes] = Math.max(box[3][numNodes], box[3][child]) ;
+				}
+				numNodes++ ;
+			}
+			levelStart = levelEnd ;
+			levelEnd = numNodes ;
+		}
+
+		root = numNodes - 1 ;
+		first = Arrays.copyOf(nodeFirst, numNodes) ;
+		count = Arrays.copyOf(nodeCount, numNodes) ;
+		minLat = Arrays.copyOf(box[0], numNodes) ;
+		maxLat = Arrays.copyOf(box[1], numNodes) ;
+		minLon = Arrays.copyOf(box[2], numNodes) ;
+		maxLon = Arrays.copyOf(box[3], numNodes) ;
+	}
+
+	private static void emptyBox(double[][] box, int node) {
+		box[0][node] = Double.POSITIVE_INFINITY ;
+		box[1][node] = Double.NEGATIVE_INFINITY ;
+		box[2][node] = Double.POSITIVE_INFINITY ;
+		box[3][node] = Double.NEGATIVE_INFINITY ;
+	}
+
+	// Sort ids[from .. to-1] into STR order: slices by x, each slice by y
+	private static void strSort(int[] ids, int from, int to, double[] x, double[] y) {
+		int size = to - from ;
+		if(size <= NODE_CAPACITY)
+			return ;
+		sortBy(ids, from, to, x) ;
+		int leaves = (size + NODE_CAPACITY - 1) / NODE_CAPACITY ;
+		int slices = (int) Math.ceil(Math.sqrt(leaves)) ;
+		int sliceSize = slices * NODE_CAPACITY ;
+		for(int i = from ; i < to ; i += sliceSize)
+			sortBy(ids, i, Math.min(to, i + sliceSize), y) ;
+	}
+
+	// Sort ids[from .. to-1] by key[id], ties by id
+	private static void sortBy(int[] ids, int from, int to, double[] key) {
+		Integer[] boxed = new Integer[to - from] ;
+		for(int i = from ; i < to ; i++)
+			boxed[i - from] = ids[i] ;
+		Arrays.sort(boxed, (a, b) -> {
+			int cmp = Double.compare(key[a], key[b]) ;
+			return cmp != 0 ? cmp : Integer.compare(a, b) ;
+		}) ;
+		for(int i = from ; i < to ; i++)
+			ids[i] = boxed[i - from] ;
+	}
+
+	/** @return The number of items in the tree */
+	int size() {
+		return size ;
+	}
+
+	/**
+	 * Find the k items closest to a location.
+	 * @param latitude The latitude of the location
+	 * @param longitude The longitude of the location
+	 * @param k The number of items to find
+	 * @param distance The distance from the location to each item
+	 * @return The ids of the min(k, n) closest items, closest first
+	 */
+	int[] kNearest(double latitude, double longitude, int k, IntToDoubleFunction distance) {
+		if(k < 0)
+			throw new IllegalArgumentException("k must not be negative!") ;
+		int[] result = new int[Math.min(k, size)] ;
+		if(result.length == 0)
+			return result ;
+
+		//best-first search; entries >= 0 are nodes, entries < 0 are item -1-i
+		double cosLat = Math.cos(Math.toRadians(latitude)) ;
+		Queue queue = new Queue() ;
+		queue.add(0, root) ;
+		int found = 0 ;
+		while(found < result.length) {
+			int entry = queue.pollValue() ;
+			if(entry < 0) {
+				result[found++] = -1 - entry ;
+				continue ;
+			}
+			if(entry < numLeaves) {
+				for(int i = first[entry] ; i < first[entry] + count[entry] ; i++) {
+					int item = items[i] ;
+					queue.add(distance.applyAsDouble(item), -1 - item) ;
+				}
+			}
+			else {
+				for(int child = first[entry] ; child < first[entry] + count[entry] ; child++)
+					queue.add(lowerBound(child, latitude, longitude, cosLat), child) ;
+			}
+		}
+		return result ;
+	}
+
+	/**
+	 * Find every item within a distance of a location.
+	 * @param latitude The latitude of the location
+	 * @param longitude The longitude of the location
+	 * @param radius The distance in km
+	 * @param distance The distance from the location to each item
+	 * @return The ids of the items at most radius km away, closest first
+	 */
+	int[] withinRadius(double latitude, double longitude, double radius, IntToDoubleFunction distance) {
+		if(size == 0)
+			return new int[0] ;
+
+		double cosLat = Math.cos(Math.toRadians(latitude)) ;
+		Queue found = new Queue() ;
+		int[] stack = new int[64] ;
+		int top = 0 ;
+		stack[top++] = root ;
+		while(top > 0) {
+			int node = stack[--top] ;
+			if(lowerBound(node, latitude, longitude, cosLat) > radius)
+				continue ;
+			if(node < numLeaves) {
+				for(int i = first[node] ; i < first[node] + count[node] ; i++) {
+					int item = items[i] ;
+					double d = distance.applyAsDouble(item) ;
+					if(d <= radius)
+						found.add(d, item) ;
+				}
+			}
+			else {
+				for(int child = first[node] ; child < first[node] + count[node] ; child++) {
+					if(top == stack.length)
+						stack = Arrays.copyOf(stack, top * 2) ;
+					stack[top++] = child ;
+				}
+			}
+		}
+
+		int[] result = new int[found.size] ;
+		for(int i = 0 ; i < result.length ; i++)
+			result[i] = found.pollValue() ;
+		return result ;
+	}
+
+	/**
+	 * A lower bound on the distance from (latitude, longitude) to any point
+	 * in the box of node.  In the haversine formula
+	 *   hav(d/R) = hav(dLat) + cos(lat1) cos(lat2) hav(dLon)
+	 * each term is at least its value for the smallest latitude and
+	 * longitude differences to the box and the smallest cosine of a
+	 * latitude in the box.
+	 */
+	private double lowerBound(int node, double latitude, double longitude, double cosLat) {
+		double dLat = 0 ;
+		if(latitude < minLat[node])
+			dLat = minLat[node] - latitude ;
+		else if(latitude > maxLat[node])
+			dLat = latitude - maxLat[node] ;
+		double dLon = 0 ;
+		if(longitude < minLon[node])
+			dLon = minLon[node] - longitude ;
+		else if(longitude > maxLon[node])
+			dLon = longitude - maxLon[node] ;
+		if(dLat == 0 && dLon == 0)
+			return 0 ;
+
+		double cosBox = Math.min(Math.cos(Math.toRadians(minLat[node])), Math.cos(Math.toRadians(maxLat[node]))) ;
+		double sinLat = Math.sin(Math.toRadians(dLat) / 2) ;
+		double sinLon = Math.sin(Math.toRadians(dLon) / 2) ;
+		double a = sinLat * sinLat + cosLat * cosBox * sinLon * sinLon ;
+		return R * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a)) ;
+	}
+
+	/**
+	 * A binary min-heap of (distance, value) pairs, small enough to be
+	 * created for every query.
+	 */
+	private static class Queue {
+		private double[] keys = new double[32] ;
+		private int[] values = new int[32] ;
+		int size ;
+
+		void add(double key, int value) {
+			if(size == keys.length) {
+				keys = Arrays.copyOf(keys, size * 2) ;
+				values = Arrays.copyOf(values, size * 2) ;
+			}
+			int i = size++ ;
+			while(i > 0) {
+				int parent = (i - 1) / 2 ;
+				if(keys[parent] <= key)
+					break ;
+				keys[i] = keys[parent] ;
+				values[i] = values[parent] ;
+				i = parent ;
+			}
+			keys[i] = key ;
+			values[i] = value ;
+		}
+
+		// Remove the pair with the smallest key and return its value
+		int pollValue() {
+			int top = values[0] ;
+			size-- ;
+			double key = keys[size] ;
+			int value = values[size] ;
+			int i = 0 ;
+			while(true) {
+				int child = 2 * i + 1 ;
+				if(child >= size)
+					break ;
+				if(child + 1 < size && keys[child + 1] < keys[child])
+					child++ ;
+				if(key <= keys[child])
+					break ;
+				keys[i] = keys[child] ;
+				values[i] = values[child] ;
+				i = child ;
+			}
+			keys[i] = key ;
+			values[i] = value ;
+			return top ;
+		}
+	}
+}
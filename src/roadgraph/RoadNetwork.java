@@ -0,0 +1,317 @@
+package roadgraph;
+
+import java.io.IOException;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import geography.GeographicPoint;
+import geography.RoadSegment;
+import util.GraphLoader;
+
+/**
+ * A snapshot of a road map for routing: a CompactGraph, the road
+ * segments drawn along its edges and the landmark tables for A*.  No
+ * intersection, edge or segment can be added to or removed from a
+ * snapshot once it is made, so any number of threads may query it
+ * without locks.
+ *
+ * A map is built with CompactGraph.Builder (or a MapGraph) and then
+ * frozen into a RoadNetwork.  To refresh a map while routes are running,
+ * readers hold the current snapshot through an AtomicReference and a new
+ * one is swapped in; queries already running finish against the old
+ * snapshot, which is collected once the last of them lets go of it.
+ * Every snapshot gets an epoch larger than that of any made before it,
+ * so a result can be told apart from one computed on an older map.
+ *
+ * Nor can its costs change: getGraph returns a read-only copy of the
+ * graph, whose setCostModel, setHeapArity and edge updates throw.  To
+ * close a road or change the cost model, withEdgeUpdates, withCostModel
+ * and withHeapArity make a new snapshot, sharing the vertices, edges,
+ * segments and landmarks of this one, and the caller swaps it in through
+ * the AtomicReference (DataSet.setNetwork).  Readers of the old snapshot
+ * never see the change.
+ *
+ * A snapshot of a small map may also hold a DistanceTable of every
+ * cheapest path, and dijkstra then looks paths up in it instead of
+ * searching, for as long as the edge costs are those it was built for.
+ */
+public class RoadNetwork {
+
+	private static final AtomicLong epochs = new AtomicLong() ;
+
+	private final long epoch ;
+	private final CompactGraph graph ;
+	private final Landmarks landmarks ;
+	private final DistanceTable table ; //all pairs paths for dijkstra, or null
+	private final GraphFile file ; //source of the road segments when they are not given
+	private volatile Map<GeographicPoint,Set<RoadSegment>> roads ; //built from file on first use
+	private volatile Set<GeographicPoint> vertices ; //built on first use
+
+	/**
+	 * Freeze a graph and its road segments into a snapshot.  The segments
+	 * are copied, so later changes to roads are not seen.
+	 * @param graph The road graph
+	 * @param roads The segments touching each intersection, or null
+	 *   if there are none
+	 * @param landmarks Tables built for graph to sharpen aStarSearch, or null
+	 * @throws IllegalArgumentException If landmarks were built for another graph
+	 */
+	public RoadNetwork(CompactGraph graph, Map<GeographicPoint,? extends Set<RoadSegment>> roads,
+			Landmarks landmarks) {
+		this(graph, roads, landmarks, null) ;
+	}
+
+	/**
+	 * Freeze a graph, its road segments and its all pairs table into a
+	 * snapshot.  The segments are copied, so later changes to roads are
+	 * not seen.
+	 * @param graph The road graph
+	 * @param roads The segments touching each intersection, or null
+	 *   if there are none
+	 * @param landmarks Tables built for graph to sharpen aStarSearch, or null
+	 * @param table Paths between all pairs of vertices of graph for 
+	 *   dijkstra to look up, or null to search
+	 * @throws IllegalArgumentException If landmarks or table were built 
+	 *   for another graph
+	 */
+	public RoadNetwork(CompactGraph graph, Map<GeographicPoint,? extends Set<RoadSegment>> roads,
+			Landmarks landmarks, DistanceTable table) {
+		this(graph, landmarks, table, null) ;
+		this.roads = roads == null ? Collections.<GeographicPoint,Set<RoadSegment>>emptyMap() : copy(roads) ;
+	}
+
+	private RoadNetwork(CompactGraph graph, Landmarks landmarks, DistanceTable table, GraphFile file) {
+		if(landmarks != null && landmarks.getGraph() != graph)
+			throw new IllegalArgumentException("Landmarks were built for a different graph!") ;
+		if(table != null && table.getGraph() != graph)
+			throw new IllegalArgumentException("Distance table was built for a different graph!") ;
+		this.epoch = epochs.incrementAndGet() ;
+		this.graph = graph.readOnlyCopy() ;
+		this.landmarks = landmarks == null ? null : landmarks.forGraph(this.graph) ;
+		this.table = table == null ? null : table.forGraph(this.graph) ;
+		this.file = file ;
+	}
+
+	// A snapshot of graph, a changed copy of the graph of from, sharing
+	// everything else with from
+	private RoadNetwork(RoadNetwork from, CompactGraph graph) {
+		this.epoch = epochs.incrementAndGet() ;
+		this.graph = graph.readOnlyCopy() ;
+		this.landmarks = from.landmarks == null ? null : from.landmarks.forGraph(this.graph) ;
+		this.table = from.table == null ? null : from.table.forGraph(this.graph) ;
+		this.file = from.file ;
+		this.roads = from.getRoads() ; //read once and shared by every later snapshot
+		this.vertices = from.vertices ;
+	}
+
+	/**
+	 * Load a snapshot of a .map file, from its compiled graph file if it
+	 * can be (see GraphFile.forMapFile) and from the text otherwise.  The
+	 * landmark tables are loaded from next to the .map file, or built and
+	 * stored there.
+	 * @param mapFile The .map file
+	 * @return A new snapshot of the map
+	 */
+	public static RoadNetwork load(String mapFile) {
+		return load(mapFile, false) ;
+	}
+
+	/**
+	 * Load a snapshot of a .map file as load(String) does, and with 
+	 * allPairs also its DistanceTable, mapped from next to the .map file 
+	 * or computed and stored there.
+	 * @param mapFile The .map file
+	 * @param allPairs Whether to precompute every path for dijkstra; 
+	 *   ignored for maps of more than DistanceTable.MAX_VERTICES
+	 * @return A new snapshot of the map
+	 */
+	public static RoadNetwork load(String mapFile, boolean allPairs) {
+		CompactGraph graph ;
+		GraphFile file = null ;
+		HashMap<GeographicPoint,HashSet<RoadSegment>> roads = null ;
+		try {
+			file = GraphFile.forMapFile(mapFile) ;
+			graph = file.getGraph() ;
+		}
+		catch (IOException e) {
+			System.err.println("Problem with the graph file for " + mapFile + ", reading the .map file instead") ;
+			MapGraph map = new MapGraph() ;
+			roads = new HashMap<GeographicPoint,HashSet<RoadSegment>>() ;
+			GraphLoader.loadRoadMap(mapFile, map, roads, null) ;
+			graph = CompactGraph.fromMapGraph(map) ;
+		}
+		Landmarks landmarks = Landmarks.forMapFile(mapFile, graph, Landmarks.DEFAULT_COUNT) ;
+		DistanceTable table = null ;
+		if(allPairs && graph.getNumVertices() > DistanceTable.MAX_VERTICES)
+			System.out.println(mapFile + " is too large for a distance table, searching instead") ;
+		else if(allPairs)
+			table = DistanceTable.forMapFile(mapFile, graph) ;
+		if(file != null)
+			return new RoadNetwork(graph, landmarks, table, file) ;
+		return new RoadNetwork(graph, roads, landmarks, table) ;
+	}
+
+	/** @return The epoch of this snapshot; later snapshots have larger ones */
+	public long getEpoch() {
+		return epoch ;
+	}
+
+	/** @return The road graph of this snapshot, read-only; see 
+	 *   CompactGraph.copy for one that may be changed */
+	public CompactGraph getGraph() {
+		return graph ;
+	}
+
+	/**
+	 * Make a snapshot of this map with some edges changed, as
+	 * CompactGraph.updateEdges changes them.  This snapshot is unchanged.
+	 * @param edges The edge indexes to change
+	 * @param newWeights The new length of each edge, or null to keep them
+	 * @param closed Whether each edge is closed, or null to keep them
+	 * @return A new snapshot, with a later epoch
+	 * @see CompactGraph#updateEdges(int[], double[], boolean[])
+	 */
+	public RoadNetwork withEdgeUpdates(int[] edges, double[] newWeights, boolean[] closed) {
+		CompactGraph changed = graph.copy() ;
+		changed.updateEdges(edges, newWeights, closed) ;
+		return new RoadNetwork(this, changed) ;
+	}
+
+	/**
+	 * Make a snapshot of this map whose searches minimize the cost of
+	 * model.  This snapshot is unchanged.
+	 * @param model The cost of each edge
+	 * @return A new snapshot, with a later epoch
+	 * @see CompactGraph#setCostModel(CostModel)
+	 */
+	public RoadNetwork withCostModel(CostModel model) {
+		CompactGraph changed = graph.copy() ;
+		changed.setCostModel(model) ;
+		return new RoadNetwork(this, changed) ;
+	}
+
+	/**
+	 * Make a snapshot of this map whose searches use heaps of the given
+	 * arity.  This snapshot is unchanged.
+	 * @param arity The number of children per heap node, at least 2
+	 * @return A new snapshot, with a later epoch
+	 * @see CompactGraph#setHeapArity(int)
+	 */
+	public RoadNetwork withHeapArity(int arity) {
+		CompactGraph changed = graph.copy() ;
+		changed.setHeapArity(arity) ;
+		return new RoadNetwork(this, changed) ;
+	}
+
+	/** @return The landmark tables of this snapshot, or null if it has none */
+	public Landmarks getLandmarks() {
+		return landmarks ;
+	}
+
+	/** @return The all pairs table of this snapshot, or null if it has none */
+	public DistanceTable getDistanceTable() {
+		return table ;
+	}
+
+	public int getNumVertices() {
+		return graph.getNumVertices() ;
+	}
+
+	public int getNumEdges() {
+		return graph.getNumEdges() ;
+	}
+
+	/** @return The intersections, as a read-only set backed by the graph */
+	public Set<GeographicPoint> getVertices() {
+		Set<GeographicPoint> result = vertices ;
+		if(result == null) {
+			//one GeographicPoint per vertex, so iterating twice gives the same objects
+			GeographicPoint[] locations = new GeographicPoint[graph.getNumVertices()] ;
+			for(int v = 0 ; v < locations.length ; v++)
+				locations[v] = graph.getLocation(v) ;
+			result = new AbstractSet<GeographicPoint>() {
+				public Iterator<GeographicPoint> iterator() {
+					return Arrays.asList(locations).iterator() ;
+				}
+
+				public int size() {
+					return locations.length ;
+				}
+
+				public boolean contains(Object o) {
+					return o instanceof GeographicPoint && graph.indexOf((GeographicPoint) o) >= 0 ;
+				}
+			} ;
+			vertices = result ;
+		}
+		return result ;
+	}
+
+	/**
+	 * @return A read-only map from each intersection to the road segments
+	 *   that touch it, built on first use for a snapshot loaded from a
+	 *   graph file
+	 */
+	public Map<GeographicPoint,Set<RoadSegment>> getRoads() {
+		Map<GeographicPoint,Set<RoadSegment>> result = roads ;
+		if(result == null) {
+			synchronized(this) {
+				result = roads ;
+				if(result == null) {
+					result = copy(file.getRoads()) ;
+					roads = result ;
+				}
+			}
+		}
+		return result ;
+	}
+
+	private static Map<GeographicPoint,Set<RoadSegment>> copy(Map<GeographicPoint,? extends Set<RoadSegment>> roads) {
+		HashMap<GeographicPoint,Set<RoadSegment>> result = new HashMap<GeographicPoint,Set<RoadSegment>>() ;
+		for(Map.Entry<GeographicPoint,? extends Set<RoadSegment>> entry : roads.entrySet())
+			result.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<RoadSegment>(entry.getValue()))) ;
+		return Collections.unmodifiableMap(result) ;
+	}
+
+	/** Find the path from start to goal using breadth first search
+	 * @see CompactGraph#bfs(GeographicPoint, GeographicPoint, Consumer)
+	 */
+	public RouteResult bfs(GeographicPoint start, GeographicPoint goal,
+			Consumer<GeographicPoint> nodeSearched) {
+		return graph.bfs(start, goal, nodeSearched) ;
+	}
+
+	/** Find the cheapest path from start to goal using Dijkstra's algorithm,
+	 * or by following the all pairs table while it matches the edge costs
+	 * @see CompactGraph#dijkstra(GeographicPoint, GeographicPoint, Consumer)
+	 * @see DistanceTable#route(GeographicPoint, GeographicPoint, Consumer)
+	 */
+	public RouteResult dijkstra(GeographicPoint start, GeographicPoint goal,
+			Consumer<GeographicPoint> nodeSearched) {
+		if(table != null && table.isCurrent())
+			return table.route(start, goal, nodeSearched) ;
+		return graph.dijkstra(start, goal, nodeSearched) ;
+	}
+
+	/** Find the cheapest path from start to goal using A* search, with
+	 * the landmark tables when the snapshot has them
+	 * @see CompactGraph#aStarSearch(GeographicPoint, GeographicPoint, Consumer, Landmarks)
+	 */
+	public RouteResult aStarSearch(GeographicPoint start, GeographicPoint goal,
+			Consumer<GeographicPoint> nodeSearched) {
+		return graph.aStarSearch(start, goal, nodeSearched, landmarks) ;
+	}
+
+	public String toString() {
+		return "RoadNetwork #" + epoch + " of " + getNumVertices() + " intersections and "
+				+ getNumEdges() + " roads" ;
+	}
+}
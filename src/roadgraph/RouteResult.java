@@ -0,0 +1,203 @@
+package roadgraph;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+import geography.GeographicPoint;
+
+/**
+ * A route through a CompactGraph, stored as the ids of its intersections
+ * and of the edge taken on each leg: two ints per hop instead of a list
+ * node and a GeographicPoint.
+ *
+ * A RouteResult is a read-only List of the intersections, so it can be
+ * used wherever a path of GeographicPoints was.  get(i) creates the point
+ * it returns; callers that go over every point, such as map rendering,
+ * should use getLatitudes and getLongitudes instead, which are decoded
+ * once on first use.
+ *
+ * A route between locations snapped onto roads (see SegmentIndex.snap)
+ * starts and ends part way along an edge.  Its first point is then the
+ * snapped start and its last the snapped goal, which are not 
+ * intersections, and the first and last legs cover only part of their
+ * edge.  A start and goal on the same edge, with nothing in between, 
+ * make a route of one such leg.
+ */
+public class RouteResult extends AbstractList<GeographicPoint> implements RandomAccess {
+
+	private final CompactGraph graph ;
+	private final CompactGraph.EdgeCosts costs ; //the costs the route was found under
+	private final int[] vertices ; //intersections from start to goal
+	private final GeographicPoint first ; //snapped start before the intersections, or null
+	private final GeographicPoint last ; //snapped goal after them, or null
+	private final int[] edges ; //edges[leg] goes from point leg to point leg+1
+	private final double firstKm ; //built km of edge edges[0] taken from first
+	private final double lastKm ; //built km of the last edge taken up to last
+	private final double distance ;
+	private volatile double[] latitudes ; //decoded on first use
+	private volatile double[] longitudes ;
+
+	/**
+	 * @param graph The graph the route runs through
+	 * @param costs The snapshot of the graph's costs the search ran on,
+	 *   so edges updated since do not change the route's legs or cost
+	 * @param vertices The ids of the intersections from start to goal,
+	 *   consecutive ones joined by an edge, or empty for no route
+	 */
+	RouteResult(CompactGraph graph, CompactGraph.EdgeCosts costs, int[] vertices) {
+		this(graph, costs, null, -1, 0, vertices, null, -1, 0) ;
+	}
+
+	/**
+	 * A route that may start and end part way along edges.
+	 * @param graph The graph the route runs through
+	 * @param costs The snapshot of the graph's costs the search ran on
+	 * @param first The snapped start, or null to start at vertices[0]
+	 * @param firstEdge The edge first lies on, towards vertices[0] (or
+	 *   towards last if there are no vertices)
+	 * @param firstKm The km of firstEdge taken from first, scaled to the
+	 *   edge's built length like the offsets of a Snap
+	 * @param vertices The ids of the intersections in between
+	 * @param last The snapped goal, or null to end at the last vertex
+	 * @param lastEdge The edge from the last vertex that last lies on
+	 * @param lastKm The km of lastEdge taken up to last, scaled likewise
+	 */
+	RouteResult(CompactGraph graph, CompactGraph.EdgeCosts costs, 
+			GeographicPoint first, int firstEdge, double firstKm, int[] vertices,
+			GeographicPoint last, int lastEdge, double lastKm) {
+		this.graph = graph ;
+		this.costs = costs ;
+		this.vertices = vertices ;
+		this.first = first ;
+		this.last = last ;
+		this.firstKm = firstKm ;
+		this.lastKm = lastKm ;
+		int points = vertices.length + (first != null ? 1 : 0) + (last != null ? 1 : 0) ;
+		this.edges = new int[Math.max(points - 1, 0)] ;
+
+		CompactGraph.EdgeCosts c = costs ;
+		double total = points == 0 ? Double.POSITIVE_INFINITY : 0 ;
+		int leg = 0 ;
+		if(first != null && edges.length > 0) {
+			edges[leg++] = firstEdge ;
+			total += graph.part(c, firstEdge, firstKm) ;
+		}
+		//the cheapest edge of each leg, under the costs the route was found under
+		for(int i = 0 ; i + 1 < vertices.length ; i++) {
+			int best = -1 ;
+			for(int e = graph.firstEdge(vertices[i]) ; e < graph.endEdge(vertices[i]) ; e++) {
+				if(graph.targets.get(e) == vertices[i + 1] && (best < 0 || c.cost.get(e) < c.cost.get(best)))
+					best = e ;
+			}
+			edges[leg++] = best ;
+			total += c.cost.get(best) ;
+		}
+		if(last != null && vertices.length > 0) {
+			edges[leg++] = lastEdge ;
+			total += graph.part(c, lastEdge, lastKm) ;
+		}
+		this.distance = total ;
+	}
+
+	/** @return The graph the route runs through */
+	public CompactGraph getGraph() {
+		return graph ;
+	}
+
+	/**
+	 * @return The cost of the route under the graph's cost model (its
+	 *   length in km by default), 0 if start is goal, or infinity if
+	 *   there is no route
+	 */
+	public double getDistance() {
+		return distance ;
+	}
+
+	/** @return The number of points on the route: its intersections, and
+	 *   the snapped start and goal if it has them */
+	public int size() {
+		return vertices.length + (first != null ? 1 : 0) + (last != null ? 1 : 0) ;
+	}
+
+	/** @return The i-th point on the route, as a new point for an 
+	 *   intersection */
+	public GeographicPoint get(int i) {
+		int v = getVertex(i) ;
+		if(v >= 0)
+			return graph.getLocation(v) ;
+		return i == 0 && first != null ? first : last ;
+	}
+
+	/** @return The vertex id of the i-th point, or -1 for a snapped start
+	 *   or goal */
+	public int getVertex(int i) {
+		if(i < 0 || i >= size())
+			throw new IndexOutOfBoundsException("No point " + i + " on a route of " + size()) ;
+		int k = first != null ? i - 1 : i ;
+		return k >= 0 && k < vertices.length ? vertices[k] : -1 ;
+	}
+
+	/** @return The number of legs, one less than the points */
+	public int getNumLegs() {
+		return edges.length ;
+	}
+
+	/** @return The id of the edge taken from point leg to leg+1; the 
+	 *   first and last legs of a snapped route cover part of it */
+	public int getEdge(int leg) {
+		return edges[leg] ;
+	}
+
+	/** @return The name of the road taken on a leg */
+	public String getRoadName(int leg) {
+		return graph.getRoadName(edges[leg]) ;
+	}
+
+	/** @return The type of the road taken on a leg */
+	public String getRoadType(int leg) {
+		return graph.getRoadType(edges[leg]) ;
+	}
+
+	/** @return The length of a leg in km, when the route was found */
+	public double getLength(int leg) {
+		int e = edges[leg] ;
+		double length = costs.lengths.get(e) ;
+		double km ;
+		if(leg == 0 && first != null)
+			km = firstKm ;
+		else if(leg == edges.length - 1 && last != null)
+			km = lastKm ;
+		else
+			return length ;
+		double weight = graph.getWeight(e) ;
+		return weight > 0 ? length * km / weight : 0 ;
+	}
+
+	/** @return The latitude of every point, in order; do not modify */
+	public double[] getLatitudes() {
+		double[] result = latitudes ;
+		if(result == null) {
+			result = new double[size()] ;
+			for(int i = 0 ; i < result.length ; i++) {
+				int v = getVertex(i) ;
+				result[i] = v >= 0 ? graph.getLatitude(v) : get(i).getX() ;
+			}
+			latitudes = result ;
+		}
+		return result ;
+	}
+
+	/** @return The longitude of every point, in order; do not modify */
+	public double[] getLongitudes() {
+		double[] result = longitudes ;
+		if(result == null) {
+			result = new double[size()] ;
+			for(int i = 0 ; i < result.length ; i++) {
+				int v = getVertex(i) ;
+				result[i] = v >= 0 ? graph.getLongitude(v) : get(i).getY() ;
+			}
+			longitudes = result ;
+		}
+		return result ;
+	}
+}
@@ -0,0 +1,113 @@
+package roadgraph;
+
+import java.util.Arrays;
+
+/**
+ * Per-query scratch state for the searches on a CompactGraph: tentative
+ * distances, parents, the settled set and the priority queue.
+ *
+ * Each entry is tagged with the version of the query that wrote it, and
+ * starting a new query just bumps the version, so a context can be reused
+ * without an O(V) reset.  A context must only be used by one thread at
+ * a time; CompactGraph keeps one per thread.
+ */
+class SearchContext {
+
+	private final double[] distance ;
+	private final int[] parent ;
+	private final int[] reached ; //version in which distance/parent were last written
+	private final int[] settled ; //version in which the vertex was settled
+
+	private int version ;
+
+	final IndexedHeap queue ;
+	private SearchContext backward ; //second context for bidirectional searches
+
+	/** number of vertices settled by the current (or last) query */
+	int settledCount ;
+
+	/** the costs the current (or last) query ran on, for the path it leaves */
+	CompactGraph.EdgeCosts costs ;
+
+	/**
+	 * @param numVertices The number of vertices in the graph this context searches
+	 * @param arity The arity of the priority queue
+	 */
+	SearchContext(int numVertices, int arity) {
+		distance = new double[numVertices] ;
+		parent = new int[numVertices] ;
+		reached = new int[numVertices] ;
+		settled = new int[numVertices] ;
+		version = 0 ;
+		queue = new IndexedHeap(numVertices, arity) ;
+	}
+
+	/**
+	 * Start a new query, forgetting everything from the previous one.
+	 * @param arity The heap arity to use for this query
+	 */
+	void begin(int arity) {
+		if(version == Integer.MAX_VALUE) {
+			//only happens once every 2^31 queries
+			Arrays.fill(reached, 0) ;
+			Arrays.fill(settled, 0) ;
+			version = 0 ;
+		}
+		version++ ;
+		settledCount = 0 ;
+		queue.clear() ;
+		if(queue.getArity() != arity)
+			queue.setArity(arity) ;
+		if(backward != null)
+			backward.begin(arity) ;
+	}
+
+	/** @return The tentative distance of v, or infinity if v has not been reached */
+	double distance(int v) {
+		return reached[v] == version ? distance[v] : Double.POSITIVE_INFINITY ;
+	}
+
+	/** @return The vertex v was reached from, or -1 if v has not been reached */
+	int parent(int v) {
+		return reached[v] == version ? parent[v] : -1 ;
+	}
+
+	boolean isReached(int v) {
+		return reached[v] == version ;
+	}
+
+	/** Record a new tentative distance for v, reached from p */
+	void update(int v, double dist, int p) {
+		distance[v] = dist ;
+		parent[v] = p ;
+		reached[v] = version ;
+	}
+
+	/** Record a new tentative distance for v, keeping no parent, for 
+	 * queries that only want distances; parent(v) is then undefined */
+	void update(int v, double dist) {
+		distance[v] = dist ;
+		reached[v] = version ;
+	}
+
+	/**
+	 * The context for the backward half of a bidirectional search, reset 
+	 * together with this one.  Created on first use.
+	 */
+	SearchContext backward() {
+		if(backward == null) {
+			backward = new SearchContext(parent.length, queue.getArity()) ;
+			backward.begin(queue.getArity()) ;
+		}
+		return backward ;
+	}
+
+	boolean isSettled(int v) {
+		return settled[v] == version ;
+	}
+
+	void settle(int v) {
+		settled[v] = version ;
+		settledCount++ ;
+	}
+}
@@ -0,0 +1,387 @@
+package roadgraph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import geography.GeographicPoint;
+import geography.RoadSegment;
+import util.GraphLoader;
+
+/**
+ * An R-tree over the road geometry of a CompactGraph, used to snap a
+ * location onto the closest point of any road instead of the closest
+ * intersection.  Each RoadSegment polyline is cut into its straight
+ * pieces and every piece is one item of an STR-packed RTree.
+ *
+ * Every segment is matched to the edges of the graph that run along it,
+ * in either direction, so a snapped location becomes a position part way
+ * along one or two edges (see Snap).  The searches then start or end at
+ * that position through virtual edges covering the partial lengths.
+ *
+ * The index is immutable and safe to query from any number of threads.
+ */
+public class SegmentIndex {
+
+	private final CompactGraph graph ;
+	private final RTree tree ;
+
+	// piece i runs from (lat1[i], lon1[i]) to (lat2[i], lon2[i]), which is
+	// km along[i] to km along[i] + length[i] of segment segment[i]
+	private final double[] lat1 ;
+	private final double[] lon1 ;
+	private final double[] lat2 ;
+	private final double[] lon2 ;
+	private final double[] along ;
+	private final double[] length ;
+	private final int[] segment ;
+
+	// segment s runs from vertex start[s] to vertex end[s], with
+	// polyline length total[s]; forward[s] is the edge start -> end
+	// and backward[s] the edge end -> start, or -1 where there is none
+	private final int[] start ;
+	private final int[] end ;
+	private final double[] total ;
+	private final int[] forward ;
+	private final int[] backward ;
+	private final int[] firstPiece ; //pieces of segment s are firstPiece[s] .. firstPiece[s+1]-1
+	private final int[] edgeSegment ; //the segment each edge runs along, or -1
+
+	/**
+	 * Bulk load the index over the road segments GraphLoader produced for
+	 * graph.  Segments whose ends are not vertices of graph, or which no
+	 * edge of graph runs along, are left out.
+	 * @param graph The graph the segments belong to
+	 * @param roads The road segments at each intersection, as filled in by
+	 *   GraphLoader.loadRoadMap
+	 */
+	public SegmentIndex(CompactGraph graph, Map<GeographicPoint, ? extends Collection<RoadSegment>> roads) {
+		this.graph = graph ;
+
+		//every segment is listed at both of its ends
+		IdentityHashMap<RoadSegment,Boolean> seen = new IdentityHashMap<RoadSegment,Boolean>() ;
+		List<List<GeographicPoint>> polylines = new ArrayList<List<GeographicPoint>>() ;
+		List<int[]> ends = new ArrayList<int[]>() ;
+		int numPieces = 0 ;
+		for(Map.Entry<GeographicPoint, ? extends Collection<RoadSegment>> entry : roads.entrySet()) {
+			for(RoadSegment road : entry.getValue()) {
+				if(seen.put(road, Boolean.TRUE) != null)
+					continue ;
+				GeographicPoint a = entry.getKey() ;
+				GeographicPoint b = road.getOtherPoint(a) ;
+				int u = graph.indexOf(a) ;
+				int v = b == null ? -1 : graph.indexOf(b) ;
+				if(u < 0 || v < 0)
+					continue ;
+				int fwd = findEdge(u, v, road) ;
+				int bwd = findEdge(v, u, road) ;
+				if(fwd < 0 && bwd < 0)
+					continue ;
+				List<GeographicPoint> points = road.getPoints(a, b) ;
+				polylines.add(points) ;
+				ends.add(new int[] {u, v, fwd, bwd}) ;
+				numPieces += points.size() - 1 ;
+			}
+		}
+
+		int numSegments = polylines.size() ;
+		start = new int[numSegments] ;
+		end = new int[numSegments] ;
+		total = new double[numSegments] ;
+		forward = new int[numSegments] ;
+		backward = new int[numSegments] ;
+		firstPiece = new int[numSegments + 1] ;
+		edgeSegment = new int[graph.getNumEdges()] ;
+		Arrays.fill(edgeSegment, -1) ;
+		lat1 = new double[numPieces] ;
+		lon1 = new double[numPieces] ;
+		lat2 = new double[numPieces] ;
+		lon2 = new double[numPieces] ;
+		along = new double[numPieces] ;
+		length = new double[numPieces] ;
+		segment = new int[numPieces] ;
+
+		int p = 0 ;
+		for(int s = 0 ; s < numSegments ; s++) {
+			int[] e = ends.get(s) ;
+			start[s] = e[0] ;
+			end[s] = e[1] ;
+			forward[s] = e[2] ;
+			backward[s] = e[3] ;
+			firstPiece[s] = p ;
+			if(forward[s] >= 0)
+				edgeSegment[forward[s]] = s ;
+			if(backward[s] >= 0)
+				edgeSegment[backward[s]] = s ;
+			List<GeographicPoint> points = polylines.get(s) ;
+			GeographicPoint prev = null ;
+			double km = 0 ;
+			for(GeographicPoint point : points) {
+				if(prev != null) {
+					lat1[p] = prev.getX() ;
+					lon1[p] = prev.getY() ;
+					lat2[p] = point.getX() ;
+					lon2[p] = point.getY() ;
+					along[p] = km ;
+					length[p] = prev.distance(point) ;
+					segment[p] = s ;
+					km += length[p] ;
+					p++ ;
+				}
+				prev = point ;
+			}
+			total[s] = km ;
+		}
+		firstPiece[numSegments] = p ;
+
+		double[] minLat = new double[numPieces] ;
+		double[] maxLat = new double[numPieces] ;
+		double[] minLon = new double[numPieces] ;
+		double[] maxLon = new double[numPieces] ;
+		for(int i = 0 ; i < numPieces ; i++) {
+			minLat[i] = Math.min(lat1[i], lat2[i]) ;
+			maxLat[i] = Math.max(lat1[i], lat2[i]) ;
+			minLon[i] = Math.min(lon1[i], lon2[i]) ;
+			maxLon[i] = Math.max(lon1[i], lon2[i]) ;
+		}
+		tree = new RTree(minLat, maxLat, minLon, maxLon) ;
+	}
+
+	// The edge from u to v with the road's name, closest in length to it
+	private int findEdge(int u, int v, RoadSegment road) {
+		int best = -1 ;
+		for(int e = graph.firstEdge(u) ; e < graph.endEdge(u) ; e++) {
+			if(graph.getTarget(e) != v || !graph.getRoadName(e).equals(road.getRoadName()))
+				continue ;
+			if(best < 0 || Math.abs(graph.getWeight(e) - road.getLength())
+					< Math.abs(graph.getWeight(best) - road.getLength()))
+				best = e ;
+		}
+		return best ;
+	}
+
+	/** @return The graph whose roads are indexed */
+	public CompactGraph getGraph() {
+		return graph ;
+	}
+
+	/** @return The number of straight road pieces in the index */
+	public int size() {
+		return tree.size() ;
+	}
+
+	/**
+	 * Snap a location onto the closest point of any road.
+	 * @param latitude The latitude of the location
+	 * @param longitude The longitude of the location
+	 * @return Where the location snaps to, or null if there are no roads
+	 */
+	public Snap snap(double latitude, double longitude) {
+		double cosLat = Math.cos(Math.toRadians(latitude)) ;
+		int[] found = tree.kNearest(latitude, longitude, 1,
+				i -> distance(i, latitude, longitude, cosLat)) ;
+		if(found.length == 0)
+			return null ;
+
+		int i = found[0] ;
+		double t = project(i, latitude, longitude, cosLat) ;
+		double snapLat = lat1[i] + t * (lat2[i] - lat1[i]) ;
+		double snapLon = lon1[i] + t * (lon2[i] - lon1[i]) ;
+		int s = segment[i] ;
+		double fraction = total[s] > 0 ? (along[i] + t * length[i]) / total[s] : 0 ;
+
+		//the partial lengths are scaled to the edge weights, so that the
+		//two parts of an edge always add up to its weight
+		int n = (forward[s] >= 0 ? 1 : 0) + (backward[s] >= 0 ? 1 : 0) ;
+		int[] edges = new int[n] ;
+		int[] sources = new int[n] ;
+		double[] offsets = new double[n] ;
+		int k = 0 ;
+		if(forward[s] >= 0) {
+			edges[k] = forward[s] ;
+			sources[k] = start[s] ;
+			offsets[k] = fraction * graph.getWeight(forward[s]) ;
+			k++ ;
+		}
+		if(backward[s] >= 0) {
+			edges[k] = backward[s] ;
+			sources[k] = end[s] ;
+			offsets[k] = (1 - fraction) * graph.getWeight(backward[s]) ;
+		}
+		GeographicPoint location = new GeographicPoint(snapLat, snapLon) ;
+		return new Snap(location, GeographicPoint.distance(latitude, longitude, snapLat, snapLon),
+				edges, sources, offsets) ;
+	}
+
+	/**
+	 * The road geometry of an edge from its source up to a distance along
+	 * it, with the last point interpolated where the distance runs out.
+	 * @param edge The edge id in the indexed graph
+	 * @param km The distance along the edge, scaled to its weight like the
+	 *   offsets of a Snap
+	 * @return The points from the edge's source to km along it, or null
+	 *   if no indexed segment runs along the edge
+	 */
+	List<GeographicPoint> clip(int edge, double km) {
+		int s = edgeSegment[edge] ;
+		if(s < 0)
+			return null ;
+		double weight = graph.getWeight(edge) ;
+		double fraction = weight > 0 ? Math.max(0, Math.min(1, km / weight)) : 1 ;
+		List<GeographicPoint> points = new ArrayList<GeographicPoint>() ;
+		if(forward[s] == edge) {
+			double cut = fraction * total[s] ;
+			points.add(new GeographicPoint(lat1[firstPiece[s]], lon1[firstPiece[s]])) ;
+			for(int i = firstPiece[s] ; i < firstPiece[s + 1] ; i++) {
+				if(along[i] + length[i] <= cut) {
+					points.add(new GeographicPoint(lat2[i], lon2[i])) ;
+				}
+				else {
+					points.add(pointOn(i, (cut - along[i]) / length[i])) ;
+					break ;
+				}
+			}
+		}
+		else {
+			double cut = (1 - fraction) * total[s] ;
+			int last = firstPiece[s + 1] - 1 ;
+			points.add(new GeographicPoint(lat2[last], lon2[last])) ;
+			for(int i = last ; i >= firstPiece[s] ; i--) {
+				if(along[i] >= cut) {
+					points.add(new GeographicPoint(lat1[i], lon1[i])) ;
+				}
+				else {
+					points.add(pointOn(i, (cut - along[i]) / length[i])) ;
+					break ;
+				}
+			}
+		}
+		return points ;
+	}
+
+	// The point a fraction t of the way along piece i
+	private GeographicPoint pointOn(int i, double t) {
+		return new GeographicPoint(lat1[i] + t * (lat2[i] - lat1[i]), lon1[i] + t * (lon2[i] - lon1[i])) ;
+	}
+
+	/**
+	 * The position along piece i, from 0 at its first end to 1 at its
+	 * second, closest to the location.  Over the few meters to a few
+	 * hundred meters of a piece the earth is flat enough to project in
+	 * an equirectangular frame, with longitudes scaled by cos(latitude).
+	 */
+	private double project(int i, double latitude, double longitude, double cosLat) {
+		double dx = (lon2[i] - lon1[i]) * cosLat ;
+		double dy = lat2[i] - lat1[i] ;
+		double squared = dx * dx + dy * dy ;
+		if(squared == 0)
+			return 0 ;
+		double t = ((longitude - lon1[i]) * cosLat * dx + (latitude - lat1[i]) * dy) / squared ;
+		return Math.max(0, Math.min(1, t)) ;
+	}
+
+	// Distance in km from the location to its projection onto piece i
+	private double distance(int i, double latitude, double longitude, double cosLat) {
+		double t = project(i, latitude, longitude, cosLat) ;
+		return GeographicPoint.distance(latitude, longitude,
+				lat1[i] + t * (lat2[i] - lat1[i]), lon1[i] + t * (lon2[i] - lon1[i])) ;
+	}
+
+	/**
+	 * A location snapped onto a road: the point on the road and, for each
+	 * edge that runs along the road through it (one for a one way road,
+	 * two otherwise), the km from the edge's source to the point.
+	 */
+	public static class Snap {
+		private final GeographicPoint location ;
+		private final double distance ;
+
+		final int[] edges ;
+		final int[] sources ; //source vertex of each edge
+		final double[] offsets ; //km along each edge from its source
+
+		Snap(GeographicPoint location, double distance, int[] edges, int[] sources, double[] offsets) {
+			this.location = location ;
+			this.distance = distance ;
+			this.edges = edges ;
+			this.sources = sources ;
+			this.offsets = offsets ;
+		}
+
+		/** @return The point on the road */
+		public GeographicPoint getLocation() {
+			return location ;
+		}
+
+		/** @return The distance in km from the snapped location to the road */
+		public double getDistance() {
+			return distance ;
+		}
+
+		public String toString() {
+			return location + " on edges " + Arrays.toString(edges) + " at " + Arrays.toString(offsets) ;
+		}
+	}
+
+	/**
+	 * Check snap against a linear scan over every road piece on the sample
+	 * maps, and time it.
+	 */
+	public static void main(String[] args) {
+		String[] maps = args.length > 0 ? args : new String[] {"data/maps/utc.map",
+				"data/maps/san_diego.map", "data/maps/new_york.map",
+				"data/maps/hollywood_large.map", "data/maps/Monterrey.map"} ;
+		int queries = 20000 ;
+
+		for(String file : maps) {
+			MapGraph map = new MapGraph() ;
+			HashMap<GeographicPoint,HashSet<RoadSegment>> roads =
+					new HashMap<GeographicPoint,HashSet<RoadSegment>>() ;
+			GraphLoader.loadRoadMap(file, map, roads, null) ;
+			CompactGraph graph = map.toCompactGraph() ;
+			long begin = System.nanoTime() ;
+			SegmentIndex index = new SegmentIndex(graph, roads) ;
+			long buildTime = System.nanoTime() - begin ;
+			RTree tree = index.tree ;
+			if(tree.size() == 0)
+				continue ;
+
+			//query points in and a little around the map's bounding box
+			double[] box = {tree.minLat[tree.root], tree.maxLat[tree.root],
+					tree.minLon[tree.root], tree.maxLon[tree.root]} ;
+			Random random = new Random(11) ;
+			double[] lat = new double[queries] ;
+			double[] lon = new double[queries] ;
+			for(int i = 0 ; i < queries ; i++) {
+				lat[i] = box[0] + (box[1] - box[0]) * (1.2 * random.nextDouble() - 0.1) ;
+				lon[i] = box[2] + (box[3] - box[2]) * (1.2 * random.nextDouble() - 0.1) ;
+			}
+
+			int mismatches = 0 ;
+			for(int i = 0 ; i < 500 ; i++) {
+				double cosLat = Math.cos(Math.toRadians(lat[i])) ;
+				double best = Double.POSITIVE_INFINITY ;
+				for(int p = 0 ; p < tree.size() ; p++)
+					best = Math.min(best, index.distance(p, lat[i], lon[i], cosLat)) ;
+				if(index.snap(lat[i], lon[i]).getDistance() != best)
+					mismatches++ ;
+			}
+
+			begin = System.nanoTime() ;
+			double check = 0 ;
+			for(int i = 0 ; i < queries ; i++)
+				check += index.snap(lat[i], lon[i]).getDistance() ;
+			long snapTime = System.nanoTime() - begin ;
+
+			System.out.printf("%s: %d road pieces, built in %.1f ms, %d mismatches, "
+					+ "snap %.2f us/query, mean distance %.4f km%n", file, tree.size(),
+					buildTime / 1e6, mismatches, snapTime / 1000.0 / queries, check / queries) ;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package roadgraph;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import geography.GeographicPoint;
+import util.GraphLoader;
+
+/**
+ * An R-tree over the vertices of a CompactGraph, bulk loaded with the
+ * Sort-Tile-Recursive (STR) method (see RTree).  The index is immutable
+ * and safe to query from any number of threads.
+ *
+ * Queries walk the tree best-first, ordered by a lower bound on the
+ * great circle distance from the query point to each bounding box, so
+ * finding the nearest vertex touches O(log n) nodes instead of scanning
+ * every vertex.  Distances are in km, as computed by GeographicPoint.
+ */
+public class SpatialIndex {
+
+	private final CompactGraph graph ;
+	private final RTree tree ;
+
+	/**
+	 * Bulk load the index over every vertex of graph.
+	 * @param graph The graph to index
+	 */
+	public SpatialIndex(CompactGraph graph) {
+		this.graph = graph ;
+		tree = new RTree(graph.lat, graph.lat, graph.lon, graph.lon) ;
+	}
+
+	/** @return The graph whose vertices are indexed */
+	public CompactGraph getGraph() {
+		return graph ;
+	}
+
+	/**
+	 * Find the vertex closest to a location.
+	 * @param latitude The latitude of the location
+	 * @param longitude The longitude of the location
+	 * @return The id of the closest vertex, or -1 if the graph is empty
+	 */
+	public int nearest(double latitude, double longitude) {
+		int[] result = kNearest(latitude, longitude, 1) ;
+		return result.length == 0 ? -1 : result[0] ;
+	}
+
+	/**
+	 * Find the k vertices closest to a location.
+	 * @param latitude The latitude of the location
+	 * @param longitude The longitude of the location
+	 * @param k The number of vertices to find
+	 * @return The ids of the min(k, n) closest vertices, closest first
+	 */
+	public int[] kNearest(double latitude, double longitude, int k) {
+		return tree.kNearest(latitude, longitude, k, v ->
+				GeographicPoint.distance(latitude, longitude, graph.lat[v], graph.lon[v])) ;
+	}
+
+	/**
+	 * Find every vertex within a distance of a location.
+	 * @param latitude The latitude of the location
+	 * @param longitude The longitude of the location
+	 * @param radius The distance in km
+	 * @return The ids of the vertices at most radius km away, closest first
+	 */
+	public int[] withinRadius(double latitude, double longitude, double radius) {
+		return tree.withinRadius(latitude, longitude, radius, v ->
+				GeographicPoint.distance(latitude, longitude, graph.lat[v], graph.lon[v])) ;
+	}
+
+	/**
+	 * Check nearest, kNearest and withinRadius against a linear scan over
+	 * every vertex on the sample maps, and compare their speed.
+	 */
+	public static void main(String[] args) {
+		String[] maps = args.length > 0 ? args : new String[] {"data/maps/utc.map",
+				"data/maps/san_diego.map", "data/maps/new_york.map",
+				"data/maps/hollywood_large.map", "data/maps/Monterrey.map"} ;
+		int queries = 20000 ;
+
+		for(String file : maps) {
+			CompactGraph.Builder builder = new CompactGraph.Builder() ;
+			GraphLoader.loadRoadMap(file, builder) ;
+			CompactGraph graph = builder.build() ;
+			SpatialIndex index = graph.spatialIndex() ;
+			int n = graph.getNumVertices() ;
+
+			//query points in and a little around the map's bounding box
+			RTree tree = index.tree ;
+			double[] box = {tree.minLat[tree.root], tree.maxLat[tree.root],
+					tree.minLon[tree.root], tree.maxLon[tree.root]} ;
+			Random random = new Random(5) ;
+			double[] lat = new double[queries] ;
+			double[] lon = new double[queries] ;
+			for(int i = 0 ; i < queries ; i++) {
+				lat[i] = box[0] + (box[1] - box[0]) * (1.2 * random.nextDouble() - 0.1) ;
+				lon[i] = box[2] + (box[3] - box[2]) * (1.2 * random.nextDouble() - 0.1) ;
+			}
+
+			int mismatches = 0 ;
+			for(int i = 0 ; i < 500 ; i++) {
+				double[] d = new double[n] ;
+				for(int v = 0 ; v < n ; v++)
+					d[v] = GeographicPoint.distance(lat[i], lon[i], graph.lat[v], graph.lon[v]) ;
+				double[] sorted = d.clone() ;
+				Arrays.sort(sorted) ;
+				int[] k = index.kNearest(lat[i], lon[i], 5) ;
+				for(int j = 0 ; j < k.length ; j++) {
+					if(d[k[j]] != sorted[j])
+						mismatches++ ;
+				}
+				double radius = sorted[Math.min(n - 1, 20)] ;
+				if(index.withinRadius(lat[i], lon[i], radius).length != Math.min(n, 21))
+					mismatches++ ;
+			}
+
+			long begin = System.nanoTime() ;
+			long check = 0 ;
+			for(int i = 0 ; i < queries ; i++) {
+				int best = 0 ;
+				double bestDistance = Double.POSITIVE_INFINITY ;
+				for(int v = 0 ; v < n ; v++) {
+					double d = GeographicPoint.distance(lat[i], lon[i], graph.lat[v], graph.lon[v]) ;
+					if(d < bestDistance) {
+						best = v ;
+						bestDistance = d ;
+					}
+				}
+				check += best ;
+			}
+			long scanTime = System.nanoTime() - begin ;
+
+			begin = System.nanoTime() ;
+			for(int i = 0 ; i < queries ; i++)
+				check -= index.nearest(lat[i], lon[i]) ;
+			long indexTime = System.nanoTime() - begin ;
+
+			System.out.printf("%s: %d vertices, %d mismatches, nearest %.2f us/query "
+					+ "(linear scan %.2f us/query), checksum %d%n", file, n, mismatches,
+					indexTime / 1000.0 / queries, scanTime / 1000.0 / queries, check) ;
+		}
+	}
+}
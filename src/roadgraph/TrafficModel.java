@@ -0,0 +1,166 @@
+package roadgraph;
+
+import java.nio.DoubleBuffer;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import geography.GeographicPoint;
+
+/**
+ * Time-dependent travel times on a CompactGraph: the free flow time and
+ * traffic profile of every edge, resolved once from a TrafficProfiles
+ * store, and Dijkstra and A* searches by arrival time from a departure
+ * time.
+ *
+ * Edge arrival functions are FIFO (see TrafficProfiles.arrival), so the
+ * earliest arrival at each vertex can be settled in order just as for
+ * static weights.  Times are in seconds since midnight of the day of
+ * departure.
+ *
+ * Free flow times are kept per km, so the searches follow the edge 
+ * lengths and closures of the graph's latest updates (see 
+ * CompactGraph.updateEdges) without the model being resolved again.
+ */
+public class TrafficModel {
+
+	private final CompactGraph graph ;
+	private final TrafficProfiles profiles ;
+	private final double[] pace ; //free flow time of each edge, in seconds per km
+	private final int[] profile ; //profile id of each edge
+	private final double maxSpeed ; //fastest any edge can be driven, in km per second
+
+	/**
+	 * @param graph The graph to route on
+	 * @param profiles The road type speeds and traffic profiles
+	 * @param overrides The profile id of each edge, or -1 to use its road
+	 *   type's profile; null for no overrides
+	 * @throws IllegalArgumentException If overrides is not one per edge,
+	 *   or names a profile that is not in profiles
+	 */
+	public TrafficModel(CompactGraph graph, TrafficProfiles profiles, int[] overrides) {
+		int m = graph.getNumEdges() ;
+		if(overrides != null && overrides.length != m)
+			throw new IllegalArgumentException("Need one profile override per edge!") ;
+		this.graph = graph ;
+		this.profiles = profiles ;
+		pace = new double[m] ;
+		profile = new int[m] ;
+
+		//speeds and profiles are looked up once per road type, not per edge
+		int numTypes = graph.typeTable.length ;
+		double[] typeSpeed = new double[numTypes] ;
+		int[] typeProfile = new int[numTypes] ;
+		for(int i = 0 ; i < numTypes ; i++) {
+			typeSpeed[i] = profiles.getSpeed(graph.typeTable[i]) ;
+			typeProfile[i] = profiles.getProfile(graph.typeTable[i]) ;
+		}
+
+		double fastest = 0 ;
+		for(int e = 0 ; e < m ; e++) {
+			int type = graph.roadTypes[e] ;
+			pace[e] = 3600 / typeSpeed[type] ;
+			profile[e] = typeProfile[type] ;
+			if(overrides != null && overrides[e] >= 0) {
+				profiles.checkProfile(overrides[e]) ;
+				profile[e] = overrides[e] ;
+			}
+			fastest = Math.max(fastest, 1 / (pace[e] * profiles.minFactor(profile[e]))) ;
+		}
+		maxSpeed = fastest ;
+	}
+
+	/** @return The graph this model was built for */
+	public CompactGraph getGraph() {
+		return graph ;
+	}
+
+	/**
+	 * @param e An edge id
+	 * @param time The time edge e is entered, in seconds
+	 * @return The earliest arrival at the end of e, or infinity if it is closed
+	 */
+	public double arrival(int e, double time) {
+		CompactGraph.EdgeCosts c = graph.costs() ;
+		if(c.closed != null && c.closed[e])
+			return Double.POSITIVE_INFINITY ;
+		return profiles.arrival(profile[e], c.lengths.get(e) * pace[e], time) ;
+	}
+
+	/**
+	 * Find the path from start to goal that arrives earliest when leaving
+	 * at a given time, with Dijkstra's algorithm, or A* search with the
+	 * straight line distance at the fastest speed of any edge as the
+	 * heuristic.
+	 *
+	 * @param start The starting location
+	 * @param goal The goal location
+	 * @param departure The departure time in seconds since midnight
+	 * @param aStar Whether to use A* search
+	 * @param nodeSearched A hook for visualization, called on each settled intersection.
+	 * @param arrival If not null, arrival[0] gets the arrival time at goal,
+	 *   or infinity if it is not reachable
+	 * @return The list of intersections that form the fastest path from
+	 *   start to goal (including both start and goal), or an empty list
+	 *   if goal is not reachable.
+	 */
+	public List<GeographicPoint> search(GeographicPoint start, GeographicPoint goal, double departure,
+			boolean aStar, Consumer<GeographicPoint> nodeSearched, double[] arrival) {
+		if(arrival != null)
+			arrival[0] = Double.POSITIVE_INFINITY ;
+		int source = graph.indexOf(start) ;
+		int target = graph.indexOf(goal) ;
+		if(source < 0 || target < 0)
+			return new LinkedList<GeographicPoint>() ;
+
+		//distances in the context are arrival times
+		SearchContext context = graph.context() ;
+		IndexedHeap pq = context.queue ;
+		CompactGraph.EdgeCosts c = graph.costs() ;
+		DoubleBuffer lengths = c.lengths ;
+		boolean[] closed = c.closed ;
+		double shrink = aStar ? c.shrink : 0 ;
+		context.update(source, departure, source) ;
+		pq.offer(source, departure + heuristic(source, target, shrink)) ;
+
+		while(!pq.isEmpty()) {
+			int curr = pq.poll() ;
+			context.settle(curr) ;
+			if(nodeSearched != CompactGraph.IGNORE)
+				nodeSearched.accept(graph.getLocation(curr)) ;
+
+			if(curr == target) {
+				if(arrival != null)
+					arrival[0] = context.distance(curr) ;
+				LinkedList<GeographicPoint> path = new LinkedList<GeographicPoint>() ;
+				for(int v = target ; v != source ; v = context.parent(v))
+					path.addFirst(graph.getLocation(v)) ;
+				path.addFirst(graph.getLocation(source)) ;
+				return path ;
+			}
+
+			double time = context.distance(curr) ;
+			for(int e = graph.firstEdge(curr) ; e < graph.endEdge(curr) ; e++) {
+				if(closed != null && closed[e])
+					continue ;
+				int next = graph.targets.get(e) ;
+				double newTime = profiles.arrival(profile[e], lengths.get(e) * pace[e], time) ;
+				if(newTime < context.distance(next) && !context.isSettled(next)) {
+					context.update(next, newTime, curr) ;
+					pq.offer(next, newTime + heuristic(next, target, shrink)) ;
+				}
+			}
+		}
+
+		return new LinkedList<GeographicPoint>() ;
+	}
+
+	// A lower bound on the travel time from v to target, with the straight 
+	// line shrunk as much as any edge was by updates; 0 when shrink is 0
+	private double heuristic(int v, int target, double shrink) {
+		if(maxSpeed == 0 || shrink == 0)
+			return 0 ;
+		return GeographicPoint.distance(graph.lat[v], graph.lon[v], graph.lat[target], graph.lon[target]) 
+				* shrink / maxSpeed ;
+	}
+}
@@ -0,0 +1,241 @@
+package roadgraph;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A shared store of traffic profiles and the free flow speed of each road
+ * type, for routing by travel time at a given time of day.
+ *
+ * A profile is a piecewise linear slowdown factor over the day: the time
+ * to drive an edge entered at time t is its free flow time (length over
+ * the speed of its road type) times the factor at t.  Breakpoints are
+ * given in seconds since midnight and the curve wraps around midnight.
+ * Every road type refers to one profile, and single edges can override
+ * it (see MapGraph.setTrafficProfile).
+ *
+ * Identical profiles are stored once, and all breakpoints live in two
+ * flat arrays, so a graph needs only a profile id per edge however many
+ * edges share a 24h curve.
+ *
+ * Profiles and road types should be set up before routing starts; the
+ * store is not meant to be changed while searches read it.
+ */
+public class TrafficProfiles {
+
+	/** Seconds in a day, the period of every profile */
+	public static final int DAY = 24 * 60 * 60 ;
+	/** The id of the profile with factor 1 all day */
+	public static final int FLAT = 0 ;
+	/** The free flow speed of road types without one, in km/h */
+	public static final double DEFAULT_SPEED = 30 ;
+
+	// breakpoints of profile p are times/factors[start[p] .. start[p+1]-1]
+	private int[] start = new int[8] ;
+	private int[] times = new int[32] ;
+	private float[] factors = new float[32] ;
+	private float[] minFactor = new float[8] ;
+	private int numProfiles ;
+	private final HashMap<String,Integer> ids = new HashMap<String,Integer>() ; //profile contents to id
+
+	private final HashMap<String,Double> typeSpeed = new HashMap<String,Double>() ;
+	private final HashMap<String,Integer> typeProfile = new HashMap<String,Integer>() ;
+
+	/** Create a store holding only the FLAT profile */
+	public TrafficProfiles() {
+		addProfile(new int[] {0}, new double[] {1}) ;
+	}
+
+	/**
+	 * Typical free flow speeds for the OpenStreetMap road types in the
+	 * .map files, with morning and evening rush hours on major roads.
+	 * @return A new store with the defaults
+	 */
+	public static TrafficProfiles defaults() {
+		TrafficProfiles profiles = new TrafficProfiles() ;
+		int[] hours = {0, 6 * 3600, 8 * 3600, 10 * 3600, 16 * 3600, 18 * 3600, 20 * 3600} ;
+		int major = profiles.addProfile(hours, new double[] {1, 1.1, 1.8, 1.2, 1.3, 1.9, 1.1}) ;
+		int minor = profiles.addProfile(hours, new double[] {1, 1.05, 1.3, 1.1, 1.15, 1.35, 1.05}) ;
+
+		profiles.setRoadType("motorway", 100, major) ;
+		profiles.setRoadType("motorway_link", 60, major) ;
+		profiles.setRoadType("trunk", 80, major) ;
+		profiles.setRoadType("trunk_link", 50, major) ;
+		profiles.setRoadType("primary", 60, major) ;
+		profiles.setRoadType("primary_link", 40, major) ;
+		profiles.setRoadType("secondary", 50, major) ;
+		profiles.setRoadType("secondary_link", 40, major) ;
+		profiles.setRoadType("tertiary", 40, minor) ;
+		profiles.setRoadType("tertiary_link", 30, minor) ;
+		profiles.setRoadType("unclassified", 30, minor) ;
+		profiles.setRoadType("residential", 25, minor) ;
+		profiles.setRoadType("living_street", 10, FLAT) ;
+		return profiles ;
+	}
+
+	/**
+	 * Add a profile to the store, or find the identical one already in it.
+	 * @param secondsOfDay The breakpoint times, increasing, in [0, DAY)
+	 * @param slowdown The factor on the free flow time at each breakpoint
+	 * @return The id of the profile
+	 * @throws IllegalArgumentException If the arrays are empty or of
+	 *   different lengths, the times are out of order or range, or a
+	 *   factor is not positive
+	 */
+	public int addProfile(int[] secondsOfDay, double[] slowdown) {
+		if(secondsOfDay.length == 0 || secondsOfDay.length != slowdown.length)
+			throw new IllegalArgumentException("A profile needs one factor per breakpoint!") ;
+		float[] f = new float[slowdown.length] ;
+		for(int i = 0 ; i < secondsOfDay.length ; i++) {
+			if(secondsOfDay[i] < 0 || secondsOfDay[i] >= DAY || (i > 0 && secondsOfDay[i] <= secondsOfDay[i - 1]))
+				throw new IllegalArgumentException("Breakpoints must increase within one day!") ;
+			if(!(slowdown[i] > 0) || Double.isInfinite(slowdown[i]))
+				throw new IllegalArgumentException("Slowdown factors must be positive!") ;
+			f[i] = (float) slowdown[i] ;
+		}
+
+		String key = Arrays.toString(secondsOfDay) + Arrays.toString(f) ;
+		Integer id = ids.get(key) ;
+		if(id != null)
+			return id ;
+
+		int first = numProfiles == 0 ? 0 : start[numProfiles] ;
+		int end = first + f.length ;
+		if(numProfiles + 2 > start.length) {
+			start = Arrays.copyOf(start, start.length * 2) ;
+			minFactor = Arrays.copyOf(minFactor, minFactor.length * 2) ;
+		}
+		if(end > times.length) {
+			times = Arrays.copyOf(times, Math.max(end, times.length * 2)) ;
+			factors = Arrays.copyOf(factors, times.length) ;
+		}
+		System.arraycopy(secondsOfDay, 0, times, first, f.length) ;
+		System.arraycopy(f, 0, factors, first, f.length) ;
+		float min = f[0] ;
+		for(float x : f)
+			min = Math.min(min, x) ;
+		minFactor[numProfiles] = min ;
+		start[numProfiles] = first ;
+		start[numProfiles + 1] = end ;
+		ids.put(key, numProfiles) ;
+		return numProfiles++ ;
+	}
+
+	/**
+	 * Set the free flow speed and traffic profile of a road type.
+	 * @param roadType The road type, as in the .map files
+	 * @param speed The free flow speed in km/h
+	 * @param profile The id of the profile for roads of this type
+	 * @throws IllegalArgumentException If speed is not positive or there
+	 *   is no such profile
+	 */
+	public void setRoadType(String roadType, double speed, int profile) {
+		if(!(speed > 0) || Double.isInfinite(speed))
+			throw new IllegalArgumentException("Speed must be positive!") ;
+		checkProfile(profile) ;
+		typeSpeed.put(roadType, speed) ;
+		typeProfile.put(roadType, profile) ;
+	}
+
+	/** @return The free flow speed of roadType in km/h */
+	public double getSpeed(String roadType) {
+		Double speed = typeSpeed.get(roadType) ;
+		return speed == null ? DEFAULT_SPEED : speed ;
+	}
+
+	/** @return The id of the profile of roadType, FLAT if it has none */
+	public int getProfile(String roadType) {
+		Integer profile = typeProfile.get(roadType) ;
+		return profile == null ? FLAT : profile ;
+	}
+
+	/** @return The number of distinct profiles in the store */
+	public int getNumProfiles() {
+		return numProfiles ;
+	}
+
+	/** @return The number of breakpoints over all profiles */
+	public int getNumBreakpoints() {
+		return start[numProfiles] ;
+	}
+
+	void checkProfile(int profile) {
+		if(profile < 0 || profile >= getNumProfiles())
+			throw new IllegalArgumentException("No traffic profile " + profile + "!") ;
+	}
+
+	/** @return The smallest factor of profile over the day */
+	double minFactor(int profile) {
+		return minFactor[profile] ;
+	}
+
+	/**
+	 * The slowdown factor of a profile at a time, interpolated between
+	 * the breakpoints around it.
+	 * @param profile The profile id
+	 * @param time Seconds since midnight of the departure day; later days
+	 *   repeat the same profile
+	 */
+	double factor(int profile, double time) {
+		int first = start[profile] ;
+		int last = start[profile + 1] - 1 ;
+		if(first == last)
+			return factors[first] ;
+
+		double t = time - Math.floor(time / DAY) * DAY ;
+		int i = first - 1 ; //the last breakpoint at or before t
+		for(int lo = first, hi = last ; lo <= hi ; ) {
+			int mid = (lo + hi) >>> 1 ;
+			if(times[mid] <= t) {
+				i = mid ;
+				lo = mid + 1 ;
+			}
+			else {
+				hi = mid - 1 ;
+			}
+		}
+
+		//interpolate between the breakpoints around t, across midnight if need be
+		int i0 = i < first ? last : i ;
+		int i1 = i < first ? first : (i == last ? first : i + 1) ;
+		double t0 = i < first ? times[last] - DAY : times[i0] ;
+		double t1 = i == last ? times[first] + DAY : times[i1] ;
+		return factors[i0] + (factors[i1] - factors[i0]) * (t - t0) / (t1 - t0) ;
+	}
+
+	/**
+	 * The arrival time at the end of an edge entered at a time.  Waiting
+	 * at the start is allowed, so this is the earliest of t' + travel(t')
+	 * over all t' from time on.  That makes arrival times FIFO: entering
+	 * later never gets you there earlier.  As travel is linear between
+	 * breakpoints, only time itself and the breakpoints that come before
+	 * the best arrival so far need checking.
+	 * @param profile The profile id of the edge
+	 * @param base The free flow travel time of the edge in seconds
+	 * @param time The time the edge is entered, in seconds
+	 * @return The arrival time in seconds
+	 */
+	double arrival(int profile, double base, double time) {
+		double best = time + base * factor(profile, time) ;
+		int first = start[profile] ;
+		int last = start[profile + 1] - 1 ;
+		if(first == last)
+			return best ;
+
+		double day = Math.floor(time / DAY) * DAY ;
+		int k = first ;
+		while(k <= last && day + times[k] <= time)
+			k++ ;
+		while(true) {
+			if(k > last) {
+				k = first ;
+				day += DAY ;
+			}
+			double t = day + times[k] ;
+			if(t >= best)
+				return best ;
+			best = Math.min(best, t + base * factors[k]) ;
+			k++ ;
+		}
+	}
+}
@@ -0,0 +1,422 @@
+package util;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntToLongFunction;
+import java.util.stream.IntStream;
+
+import basicgraph.GraphAdjList;
+import roadgraph.CompactGraph;
+
+/**
+ * Whole-graph breadth first search in levels, for analytics such as hop
+ * distance histograms and connectivity checks over every vertex reachable
+ * from a source.
+ *
+ * Each level is expanded either top-down, from every frontier vertex along
+ * its out-edges, or bottom-up, from every unvisited vertex along its
+ * in-edges until one of them is in the frontier (Beamer, Asanovic and
+ * Patterson's direction-optimizing BFS).  Bottom-up wins once the frontier
+ * holds a large share of the graph, because most in-edge scans stop at
+ * the first hit.  The search switches to it while the frontier grows, if
+ * the edges out of the frontier exceed those out of unvisited vertices
+ * over ALPHA and it holds at least n/BETA vertices, and switches back once
+ * the frontier shrinks below n/BETA vertices.  The vertex bound keeps road
+ * graphs, whose frontiers are thin but long, top-down nearly throughout;
+ * with it, BETA is a third of the 24 of the paper, which on the maps in
+ * data/maps sent even small road graphs bottom-up for a third of their
+ * levels at twice the cost.
+ *
+ * The visited set is a bitset, and so is the frontier while going
+ * bottom-up.  Top-down levels keep the frontier as a list of vertex ids
+ * instead, because road graphs go through hundreds of levels with small
+ * frontiers, and scanning a bitset of the whole graph on each of them
+ * costs more than the search itself.  Levels are split across the common
+ * fork-join pool (or the pool the call runs in) in 64-vertex tasks:
+ * bottom-up, a word of the next frontier is only written by the task that
+ * owns it, and top-down, vertices are claimed with a compare-and-set on
+ * their visited word.
+ *
+ * The graph is copied into forward and reverse CSR arrays when this is
+ * made, so later changes to the graph are not seen.
+ */
+public class DirectionOptimizingBFS {
+
+	/** Go bottom-up only once the frontier's out-edges exceed the unvisited vertices' over ALPHA */
+	public static final int ALPHA = 14 ;
+	/** Go bottom-up only with a frontier of n/BETA vertices, and back top-down below that */
+	public static final int BETA = 8 ;
+	/** Vertices per task of a top-down level; bottom-up, a task is one bitset word */
+	private static final int CHUNK = 64 ;
+	/** Levels of fewer tasks than this run on the calling thread */
+	private static final int PARALLEL_TASKS = 64 ;
+
+	private final int numVertices ;
+	private final int words ; //longs per bitset
+	private final int[] offsets ; //out-edges of v are targets[offsets[v] .. offsets[v+1]-1]
+	private final int[] targets ;
+	private final int[] inOffsets ; //in-edges of v are sources[inOffsets[v] .. inOffsets[v+1]-1]
+	private final int[] sources ;
+
+	/**
+	 * @param numVertices The number of vertices, numbered 0 .. n-1
+	 * @param offsets The first out-edge of each vertex, n+1 entries ending
+	 *   with the number of edges
+	 * @param targets The end vertex of each edge
+	 * @throws IllegalArgumentException If the arrays do not fit together
+	 */
+	public DirectionOptimizingBFS(int numVertices, int[] offsets, int[] targets) {
+		if(offsets.length != numVertices + 1 || offsets[numVertices] != targets.length)
+			throw new IllegalArgumentException("Need n+1 offsets ending with the number of edges!") ;
+		this.numVertices = numVertices ;
+		this.words = (numVertices + 63) >>> 6 ;
+		this.offsets = offsets ;
+		this.targets = targets ;
+
+		inOffsets = new int[numVertices + 1] ;
+		for(int v : targets) {
+			if(v < 0 || v >= numVertices)
+				throw new IllegalArgumentException("Edge to vertex " + v + " out of range!") ;
+			inOffsets[v + 1]++ ;
+		}
+		for(int v = 0 ; v < numVertices ; v++)
+			inOffsets[v + 1] += inOffsets[v] ;
+		int[] next = Arrays.copyOf(inOffsets, numVertices) ;
+		sources = new int[targets.length] ;
+		for(int u = 0 ; u < numVertices ; u++) {
+			for(int e = offsets[u] ; e < offsets[u + 1] ; e++)
+				sources[next[targets[e]]++] = u ;
+		}
+	}
+
+	public int getNumVertices() {
+		return numVertices ;
+	}
+
+	public int getNumEdges() {
+		return targets.length ;
+	}
+
+	/**
+	 * The hop distance of every vertex from source, switching directions
+	 * and splitting levels across cores as described above.
+	 * @param source The vertex to start from
+	 * @return The number of edges on a shortest path from source to each
+	 *   vertex, or -1 where there is none
+	 * @throws IllegalArgumentException If source is not a vertex
+	 */
+	public int[] distances(int source) {
+		checkVertex(source) ;
+		int[] dist = new int[numVertices] ;
+		Arrays.fill(dist, -1) ;
+		AtomicLongArray visited = new AtomicLongArray(words) ;
+		int[] queue = new int[numVertices] ; //the frontier while top-down
+		int[] nextQueue = new int[numVertices] ;
+		AtomicLongArray frontier = null ; //the frontier while bottom-up
+		AtomicLongArray next = null ;
+
+		dist[source] = 0 ;
+		visited.set(source >>> 6, 1L << source) ;
+		queue[0] = source ;
+		int frontierSize = 1 ;
+		long frontierEdges = degree(source) ;
+		long unvisitedEdges = targets.length - frontierEdges ;
+		int lastSize = 0 ;
+		boolean bottomUp = false ;
+		//the parallelism of the pool that parallel streams here would run in
+		boolean parallel = (ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool().getParallelism()
+				: ForkJoinPool.getCommonPoolParallelism()) > 1 ;
+
+		for(int level = 1 ; frontierSize > 0 ; level++) {
+			boolean growing = frontierSize > lastSize ;
+			lastSize = frontierSize ;
+			if(!bottomUp && growing && frontierEdges > unvisitedEdges / ALPHA
+					&& frontierSize >= numVertices / BETA) {
+				bottomUp = true ;
+				if(frontier == null) {
+					frontier = new AtomicLongArray(words) ;
+					next = new AtomicLongArray(words) ;
+				}
+				for(int w = 0 ; w < words ; w++)
+					frontier.set(w, 0) ;
+				for(int i = 0 ; i < frontierSize ; i++)
+					frontier.set(queue[i] >>> 6, frontier.get(queue[i] >>> 6) | 1L << queue[i]) ;
+			}
+			else if(bottomUp && !growing && frontierSize < numVertices / BETA) {
+				bottomUp = false ;
+				frontierSize = 0 ;
+				for(int w = 0 ; w < words ; w++) {
+					for(long bits = frontier.get(w) ; bits != 0 ; bits &= bits - 1)
+						queue[frontierSize++] = (w << 6) + Long.numberOfTrailingZeros(bits) ;
+				}
+			}
+
+			int hop = level ;
+			if(bottomUp) {
+				AtomicLongArray current = frontier ;
+				AtomicLongArray found = next ;
+				frontierEdges = levels(words, parallel,
+						w -> bottomUp(w, hop, dist, visited, current, found)) ;
+				frontier = found ;
+				next = current ;
+				frontierSize = 0 ;
+				for(int w = 0 ; w < words ; w++)
+					frontierSize += Long.bitCount(frontier.get(w)) ;
+			}
+			else {
+				int[] current = queue ;
+				int[] found = nextQueue ;
+				int size = frontierSize ;
+				int tasks = (size + CHUNK - 1) / CHUNK ;
+				AtomicInteger tail = new AtomicInteger() ;
+				if(!parallel || tasks < PARALLEL_TASKS)
+					frontierEdges = topDown(current, 0, size, hop, dist, visited, found, tail, false) ;
+				else
+					frontierEdges = levels(tasks, true, chunk -> topDown(current, chunk * CHUNK,
+							Math.min(size, (chunk + 1) * CHUNK), hop, dist, visited, found, tail, true)) ;
+				queue = found ;
+				nextQueue = current ;
+				frontierSize = tail.get() ;
+			}
+			unvisitedEdges -= frontierEdges ;
+		}
+		return dist ;
+	}
+
+	/**
+	 * The hop distance of every vertex from source by plain top-down
+	 * search with an int queue on the calling thread: the baseline that
+	 * distances is measured against.
+	 * @see #distances(int)
+	 */
+	public int[] distancesTopDown(int source) {
+		checkVertex(source) ;
+		int[] dist = new int[numVertices] ;
+		Arrays.fill(dist, -1) ;
+		int[] queue = new int[numVertices] ;
+		int head = 0 ;
+		int tail = 0 ;
+		queue[tail++] = source ;
+		dist[source] = 0 ;
+		while(head < tail) {
+			int u = queue[head++] ;
+			for(int e = offsets[u] ; e < offsets[u + 1] ; e++) {
+				int v = targets[e] ;
+				if(dist[v] < 0) {
+					dist[v] = dist[u] + 1 ;
+					queue[tail++] = v ;
+				}
+			}
+		}
+		return dist ;
+	}
+
+	/**
+	 * Count the vertices at each hop distance from each of the sources.
+	 * Unreachable vertices are not counted.
+	 * @param sources The vertices to search from, one after the other
+	 * @return counts[h] is the number of (source, vertex) pairs h hops apart
+	 * @throws IllegalArgumentException If a source is not a vertex
+	 */
+	public long[] hopHistogram(int... sources) {
+		long[] counts = new long[0] ;
+		for(int source : sources) {
+			for(int d : distances(source)) {
+				if(d >= counts.length)
+					counts = Arrays.copyOf(counts, Math.max(d + 1, counts.length * 2)) ;
+				if(d >= 0)
+					counts[d]++ ;
+			}
+		}
+		int length = counts.length ;
+		while(length > 0 && counts[length - 1] == 0)
+			length-- ;
+		return Arrays.copyOf(counts, length) ;
+	}
+
+	/**
+	 * @return The number of vertices reachable from source, itself included
+	 * @throws IllegalArgumentException If source is not a vertex
+	 */
+	public int countReachable(int source) {
+		int count = 0 ;
+		for(int d : distances(source)) {
+			if(d >= 0)
+				count++ ;
+		}
+		return count ;
+	}
+
+	// Run a step on each of a number of tasks and sum what they return,
+	// in parallel if allowed and there are enough tasks
+	private static long levels(int tasks, boolean parallel, IntToLongFunction step) {
+		if(parallel && tasks >= PARALLEL_TASKS)
+			return IntStream.range(0, tasks).parallel().mapToLong(step).sum() ;
+		long sum = 0 ;
+		for(int task = 0 ; task < tasks ; task++)
+			sum += step.applyAsLong(task) ;
+		return sum ;
+	}
+
+	// Expand frontier[from .. to-1] along their out-edges, appending the
+	// vertices newly reached to next; returns their out-degree.  Unless
+	// shared, this is the only task of the level and needs no atomics.
+	private long topDown(int[] frontier, int from, int to, int hop, int[] dist,
+			AtomicLongArray visited, int[] next, AtomicInteger tail, boolean shared) {
+		long found = 0 ;
+		int count = 0 ;
+		for(int i = from ; i < to ; i++) {
+			int u = frontier[i] ;
+			for(int e = offsets[u] ; e < offsets[u + 1] ; e++) {
+				int v = targets[e] ;
+				//a set distance is final, so only unset ones need the compare-and-set
+				if(dist[v] >= 0)
+					continue ;
+				if(shared) {
+					if(!claim(visited, v))
+						continue ;
+					next[tail.getAndIncrement()] = v ;
+				}
+				else {
+					visited.lazySet(v >>> 6, visited.get(v >>> 6) | 1L << v) ;
+					next[count++] = v ;
+				}
+				dist[v] = hop ;
+				found += degree(v) ;
+			}
+		}
+		if(!shared)
+			tail.set(count) ;
+		return found ;
+	}
+
+	// Look for a frontier in-neighbor of each unvisited vertex of word w;
+	// only this call writes word w, so no compare-and-set is needed
+	private long bottomUp(int w, int hop, int[] dist, AtomicLongArray visited,
+			AtomicLongArray frontier, AtomicLongArray next) {
+		long seen = visited.get(w) ;
+		long unvisited = ~seen ;
+		if(w == words - 1 && (numVertices & 63) != 0)
+			unvisited &= (1L << numVertices) - 1 ;
+		long reached = 0 ;
+		long found = 0 ;
+		for( ; unvisited != 0 ; unvisited &= unvisited - 1) {
+			int v = (w << 6) + Long.numberOfTrailingZeros(unvisited) ;
+			for(int e = inOffsets[v] ; e < inOffsets[v + 1] ; e++) {
+				int u = sources[e] ;
+				if((frontier.get(u >>> 6) & (1L << u)) != 0) {
+					reached |= 1L << v ;
+					dist[v] = hop ;
+					found += degree(v) ;
+					break ;
+				}
+			}
+		}
+		if(reached != 0)
+			visited.set(w, seen | reached) ;
+		next.set(w, reached) ;
+		return found ;
+	}
+
+	// Set bit v, returning whether this call was the one to set it
+	private static boolean claim(AtomicLongArray bits, int v) {
+		int w = v >>> 6 ;
+		long bit = 1L << v ;
+		for(long old = bits.get(w) ; (old & bit) == 0 ; old = bits.get(w)) {
+			if(bits.compareAndSet(w, old, old | bit))
+				return true ;
+		}
+		return false ;
+	}
+
+	private int degree(int v) {
+		return offsets[v + 1] - offsets[v] ;
+	}
+
+	private void checkVertex(int v) {
+		if(v < 0 || v >= numVertices)
+			throw new IllegalArgumentException("No vertex " + v + "!") ;
+	}
+
+	/**
+	 * Time whole-graph searches from random sources on road maps, the
+	 * airport graph and a large grid, top-down against direction-optimizing
+	 * with pools of 1, 2, 4 ... threads up to the number of cores.
+	 *
+	 * Run from the project root: java util.DirectionOptimizingBFS [sources] [map files]
+	 */
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000 ;
+		String[] maps = {"data/maps/san_diego.map", "data/maps/hollywood_large.map"} ;
+		if(args.length > 1)
+			maps = Arrays.copyOfRange(args, 1, args.length) ;
+
+		for(String file : maps) {
+			CompactGraph.Builder builder = new CompactGraph.Builder() ;
+			GraphLoader.loadRoadMap(file, builder) ;
+			benchmark(file, builder.build().hopSearch(), count) ;
+		}
+
+		GraphAdjList airports = new GraphAdjList() ;
+		GraphLoader.loadRoutes("data/airports/routesUA.dat", airports) ;
+		benchmark("data/airports/routesUA.dat", airports.hopSearch(), count) ;
+
+		//a 1000 x 1000 street grid, large enough for levels to go parallel
+		int side = 1000 ;
+		int[] offsets = new int[side * side + 1] ;
+		int[] targets = new int[4 * side * side] ;
+		int edges = 0 ;
+		for(int v = 0 ; v < side * side ; v++) {
+			int row = v / side ;
+			int col = v % side ;
+			if(row > 0) targets[edges++] = v - side ;
+			if(row < side - 1) targets[edges++] = v + side ;
+			if(col > 0) targets[edges++] = v - 1 ;
+			if(col < side - 1) targets[edges++] = v + 1 ;
+			offsets[v + 1] = edges ;
+		}
+		benchmark("grid " + side + "x" + side,
+				new DirectionOptimizingBFS(side * side, offsets, Arrays.copyOf(targets, edges)),
+				Math.max(1, count / 200)) ;
+	}
+
+	private static void benchmark(String name, DirectionOptimizingBFS bfs, int count) throws Exception {
+		Random random = new Random(7) ;
+		int[] starts = new int[count] ;
+		for(int i = 0 ; i < count ; i++)
+			starts[i] = random.nextInt(bfs.getNumVertices()) ;
+		System.out.printf("%s: %d vertices, %d edges, %d sources%n", name,
+				bfs.getNumVertices(), bfs.getNumEdges(), count) ;
+
+		//check against the baseline, and warm up
+		for(int round = 0 ; round < 3 ; round++) {
+			for(int start : starts) {
+				if(!Arrays.equals(bfs.distances(start), bfs.distancesTopDown(start)))
+					throw new IllegalStateException("Distances differ from " + start + "!") ;
+			}
+		}
+
+		long begin = System.nanoTime() ;
+		for(int start : starts)
+			bfs.distancesTopDown(start) ;
+		double topDown = (System.nanoTime() - begin) / 1e6 / count ;
+		System.out.printf("  top-down            %8.3f ms/search%n", topDown) ;
+
+		int cores = Runtime.getRuntime().availableProcessors() ;
+		for(int threads = 1 ; threads <= cores ; threads = threads < cores ? Math.min(threads * 2, cores) : cores + 1) {
+			ForkJoinPool pool = new ForkJoinPool(threads) ;
+			begin = System.nanoTime() ;
+			pool.submit(() -> {
+				for(int start : starts)
+					bfs.distances(start) ;
+			}).get() ;
+			double time = (System.nanoTime() - begin) / 1e6 / count ;
+			pool.shutdown() ;
+			System.out.printf("  optimizing %2d threads %8.3f ms/search, speedup %.2f%n", threads, time, topDown / time) ;
+		}
+	}
+}
@@ -10,19 +10,25 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import basicgraph.Graph;
 import geography.GeographicPoint;
 import geography.RoadSegment;
+import roadgraph.CompactGraph;
 import roadgraph.MapGraph;
 
 
@@ -46,7 +52,7 @@ public class GraphLoader
 	public static void createIntersectionsFile(String roadDataFile, String intersectionsFile)
 	{
 		Collection<GeographicPoint> nodes = new HashSet<GeographicPoint>();
-        HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>> pointMap = 
+        PointMap pointMap = 
         		buildPointMapOneWay(roadDataFile);
 		
         // Print the intersections to the file
@@ -60,21 +66,8 @@ public class GraphLoader
 
 			// Now we need to add the edges
 			// This is the tricky part
-			for (GeographicPoint pt : nodes) {
-				// Trace the node to its next node, building up the points 
-				// on the edge as you go.
-				List<LinkedList<RoadLineInfo>> inAndOut = pointMap.get(pt);
-				LinkedList<RoadLineInfo> outgoing = inAndOut.get(0);
-				for (RoadLineInfo info : outgoing) {
-					HashSet<GeographicPoint> used = new HashSet<GeographicPoint>();
-					used.add(pt);
-				
-					List<GeographicPoint> pointsOnEdge = 
-							findPointsOnEdge(pointMap, info, nodes);
-					GeographicPoint end = pointsOnEdge.remove(pointsOnEdge.size()-1);
-					writer.println(pt + " " + end);
-				}
-				
+			for (TracedEdge edge : traceEdges(pointMap, nodes)) {
+				writer.println(edge.start + " " + edge.end);
 			}
 			writer.flush();
 			writer.close();
@@ -135,7 +128,7 @@ public class GraphLoader
 			Set<GeographicPoint> intersectionsToLoad)
 	{
 		Collection<GeographicPoint> nodes = new HashSet<GeographicPoint>();
-        HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>> pointMap = 
+        PointMap pointMap = 
         		buildPointMapOneWay(filename);
 		
         // Add the nodes to the graph
@@ -153,6 +146,36 @@ public class GraphLoader
 	}
 
 	
+	/**
+	 * Read in a file specifying a map straight into the CSR form used 
+	 * by roadgraph.CompactGraph, without building a MapGraph first.
+	 *
+	 * The file format and the collapsing of points to intersections
+	 * are the same as for loadRoadMap(String, MapGraph).
+	 * 
+	 * @param filename The file containing the road data
+	 * @param builder The builder to add the intersections and road 
+	 *   segments to.  Call build() on it afterwards to get the graph.
+	 */
+	public static void loadRoadMap(String filename, CompactGraph.Builder builder)
+	{
+		Collection<GeographicPoint> nodes = new HashSet<GeographicPoint>();
+        PointMap pointMap = 
+        		buildPointMapOneWay(filename);
+		
+		List<GeographicPoint> intersections = findIntersections(pointMap);
+		for (GeographicPoint pt : intersections) {
+			builder.addVertex(pt);
+			nodes.add(pt);
+		}
+		
+		for (TracedEdge edge : traceEdges(pointMap, nodes)) {
+			builder.addEdge(edge.start, edge.end, edge.info.roadName, 
+					edge.info.roadType, edge.length);
+		}
+	}
+
+	
 	/**
 	 * 
 	 *  Read in a file specifying a map.
@@ -173,7 +196,7 @@ public class GraphLoader
 	 */
 	public static void loadRoadMap(String filename, basicgraph.Graph theGraph)
 	{
-		HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>> pointMap = 
+		PointMap pointMap = 
         		buildPointMapOneWay(filename);
 		
 		HashMap<Integer,GeographicPoint> vertexMap = 
@@ -323,50 +346,73 @@ public class GraphLoader
 	// add the edges and build the road segments if the segments
 	// map is not null.
 	private static void addEdgesAndSegments(Collection<GeographicPoint> nodes, 
-			HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>> pointMap,
+			PointMap pointMap,
 			MapGraph map, 
 			HashMap<GeographicPoint,HashSet<RoadSegment>> segments)
 	{
 	
-		// Now we need to add the edges
-		// This is the tricky part
-		for (GeographicPoint pt : nodes) {
-			// Trace the node to its next node, building up the points 
-			// on the edge as you go.
-			List<LinkedList<RoadLineInfo>> inAndOut = pointMap.get(pt);
-			LinkedList<RoadLineInfo> outgoing = inAndOut.get(0);
-			for (RoadLineInfo info : outgoing) {
-				HashSet<GeographicPoint> used = new HashSet<GeographicPoint>();
-				used.add(pt);
-				
-				List<GeographicPoint> pointsOnEdge = 
-						findPointsOnEdge(pointMap, info, nodes);
-				GeographicPoint end = pointsOnEdge.remove(pointsOnEdge.size()-1);
-				double length = getRoadLength(pt, end, pointsOnEdge);
-				map.addEdge(pt, end, info.roadName, info.roadType, length);
+		// Now we need to add the edges.  Tracing them is the tricky
+		// part, and is done for all edges at once in parallel.
+		for (TracedEdge edge : traceEdges(pointMap, nodes)) {
+			GeographicPoint pt = edge.start;
+			GeographicPoint end = edge.end;
+			RoadLineInfo info = edge.info;
+			map.addEdge(pt, end, info.roadName, info.roadType, edge.length);
 
-				// If the segments variable is not null, then we 
-				// save the road geometry
-				if (segments != null) {
-					// Now create road Segments for each edge
-					HashSet<RoadSegment> segs = segments.get(pt);
-					if (segs == null) {
-						segs = new HashSet<RoadSegment>();
-						segments.put(pt,segs);
-					}
-					RoadSegment seg = new RoadSegment(pt, end, pointsOnEdge, 
-							info.roadName, info.roadType, length);
-					segs.add(seg);
-					segs = segments.get(end);
-					if (segs == null) {
-						segs = new HashSet<RoadSegment>();
-						segments.put(end,segs);
-					}
-					segs.add(seg);
+			// If the segments variable is not null, then we 
+			// save the road geometry
+			if (segments != null) {
+				// Now create road Segments for each edge
+				HashSet<RoadSegment> segs = segments.get(pt);
+				if (segs == null) {
+					segs = new HashSet<RoadSegment>();
+					segments.put(pt,segs);
+				}
+				RoadSegment seg = new RoadSegment(pt, end, edge.pointsOnEdge, 
+						info.roadName, info.roadType, edge.length);
+				segs.add(seg);
+				segs = segments.get(end);
+				if (segs == null) {
+					segs = new HashSet<RoadSegment>();
+					segments.put(end,segs);
 				}
+				segs.add(seg);
 			}
 		}
 	}
+	
+	// A road traced from an intersection to the next one
+	private static class TracedEdge
+	{
+		GeographicPoint start;
+		RoadLineInfo info;
+		List<GeographicPoint> pointsOnEdge;
+		GeographicPoint end;
+		double length;
+	}
+	
+	// Trace every road leaving the nodes to the node it ends at, in 
+	// the order the nodes iterate.  The tracing runs in parallel; the 
+	// order of the result does not depend on it.
+	private static List<TracedEdge> traceEdges(PointMap pointMap,
+			Collection<GeographicPoint> nodes)
+	{
+		List<TracedEdge> edges = new ArrayList<TracedEdge>();
+		for (GeographicPoint pt : nodes) {
+			for (RoadLineInfo info : pointMap.get(pt).get(0)) {
+				TracedEdge edge = new TracedEdge();
+				edge.start = pt;
+				edge.info = info;
+				edges.add(edge);
+			}
+		}
+		edges.parallelStream().forEach(edge -> {
+			edge.pointsOnEdge = findPointsOnEdge(pointMap, edge.info, nodes);
+			edge.end = edge.pointsOnEdge.remove(edge.pointsOnEdge.size()-1);
+			edge.length = getRoadLength(edge.start, edge.end, edge.pointsOnEdge);
+		});
+		return edges;
+	}
 			
 	
 	// Calculate the length of this road segment taking into account all of the 
@@ -385,7 +431,7 @@ public class GraphLoader
 	}
 	
 	private static List<GeographicPoint>
-	findPointsOnEdge(HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>> pointMap,
+	findPointsOnEdge(PointMap pointMap,
 		RoadLineInfo info, Collection<GeographicPoint> nodes) 
 	{
 		List<GeographicPoint> toReturn = new LinkedList<GeographicPoint>();
@@ -417,7 +463,7 @@ public class GraphLoader
 	// Find the other end of the road segment.  Trace through the pointMap 
 	// starting from the first point in this info until you get to the second.
 	private static GeographicPoint
-	findEndOfEdge(HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>> pointMap,
+	findEndOfEdge(PointMap pointMap,
 		RoadLineInfo info, basicgraph.Graph graph, 
 		HashMap<GeographicPoint, Integer> reverseMap) 
 	{
@@ -450,152 +496,176 @@ public class GraphLoader
 	// or intersections between two different roads, or where three
 	// or more segments of the same road meet.
 	private static List<GeographicPoint> 
-	findIntersections(HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>> pointMap) {
+	findIntersections(PointMap pointMap) {
 		// Now find the intersections.  These are roads that do not have
 		// Exactly 1 or 2 roads coming in and out, where the roads in
 		// match the roads out.
-		List<GeographicPoint> intersections = new LinkedList<GeographicPoint>();
-		for (GeographicPoint pt : pointMap.keySet()) {
-			List<LinkedList<RoadLineInfo>> roadsInAndOut = pointMap.get(pt);
-			LinkedList<RoadLineInfo> roadsOut = roadsInAndOut.get(0);
-			LinkedList<RoadLineInfo> roadsIn = roadsInAndOut.get(1);
-			
-			boolean isNode = true;
-			
-			if (roadsIn.size() == 1 && roadsOut.size() == 1) {
-				// If these are the reverse of each other, then this is
-				// and intersection (dead end)
-				if (!(roadsIn.get(0).point1.equals(roadsOut.get(0).point2) &&
-						roadsIn.get(0).point2.equals(roadsOut.get(0).point1))
-						&& roadsIn.get(0).roadName.equals(roadsOut.get(0).roadName)) {
-					isNode = false;
-				}
+		// Each point is checked on its own, so they are checked in parallel,
+		// keeping the order of pointMap.keys().
+		return Arrays.stream(pointMap.keys()).parallel()
+				.filter(pt -> isIntersection(pointMap, pt))
+				.collect(Collectors.toCollection(LinkedList::new));
+	}
+
+	private static boolean isIntersection(PointMap pointMap, GeographicPoint pt) {
+		List<LinkedList<RoadLineInfo>> roadsInAndOut = pointMap.get(pt);
+		LinkedList<RoadLineInfo> roadsOut = roadsInAndOut.get(0);
+		LinkedList<RoadLineInfo> roadsIn = roadsInAndOut.get(1);
+		
+		boolean isNode = true;
+		
+		if (roadsIn.size() == 1 && roadsOut.size() == 1) {
+			// If these are the reverse of each other, then this is
+			// and intersection (dead end)
+			if (!(roadsIn.get(0).point1.equals(roadsOut.get(0).point2) &&
+					roadsIn.get(0).point2.equals(roadsOut.get(0).point1))
+					&& roadsIn.get(0).roadName.equals(roadsOut.get(0).roadName)) {
+				isNode = false;
 			}
-			if (roadsIn.size() == 2 && roadsOut.size() == 2) {
-				// If all the road segments have the same name, 
-				// And there are two pairs of reversed nodes, then 
-				// this is not an intersection because the roads pass
-				// through.
-			
-				String name = roadsIn.get(0).roadName;
-				boolean sameName = true;
-				for (RoadLineInfo info : roadsIn) {
-					if (!info.roadName.equals(name)) {
-						sameName = false;
-					}
+		}
+		if (roadsIn.size() == 2 && roadsOut.size() == 2) {
+			// If all the road segments have the same name, 
+			// And there are two pairs of reversed nodes, then 
+			// this is not an intersection because the roads pass
+			// through.
+		
+			String name = roadsIn.get(0).roadName;
+			boolean sameName = true;
+			for (RoadLineInfo info : roadsIn) {
+				if (!info.roadName.equals(name)) {
+					sameName = false;
 				}
-				for (RoadLineInfo info : roadsOut) {
-					if (!info.roadName.equals(name)) {
-						sameName = false;
-					}
+			}
+			for (RoadLineInfo info : roadsOut) {
+				if (!info.roadName.equals(name)) {
+					sameName = false;
 				}
+			}
+			
+			RoadLineInfo in1 = roadsIn.get(0);
+			RoadLineInfo in2 = roadsIn.get(1);
+			RoadLineInfo out1 = roadsOut.get(0);
+			RoadLineInfo out2 = roadsOut.get(1);
+	
+			boolean passThrough = false;
+			if ((in1.isReverse(out1) && in2.isReverse(out2)) ||
+					(in1.isReverse(out2) && in2.isReverse(out1))) {
 				
-				RoadLineInfo in1 = roadsIn.get(0);
-				RoadLineInfo in2 = roadsIn.get(1);
-				RoadLineInfo out1 = roadsOut.get(0);
-				RoadLineInfo out2 = roadsOut.get(1);
-		
-				boolean passThrough = false;
-				if ((in1.isReverse(out1) && in2.isReverse(out2)) ||
-						(in1.isReverse(out2) && in2.isReverse(out1))) {
-					
-					passThrough = true;
-				} 
-				
-				if (sameName && passThrough) {
-					isNode = false;
-				} 
-
+				passThrough = true;
 			} 
-			if (isNode) {
-				intersections.add(pt);
-			}
-		}
-		return intersections;
+			
+			if (sameName && passThrough) {
+				isNode = false;
+			} 
+
+		} 
+		return isNode;
 	}
 		
 	// Build the map from points to lists of lists of lines.
 	// The map returned is indexed by a GeographicPoint.  The values
 	// are lists of length two where each entry in the list is a list.
 	// The first list stores the outgoing roads while the second 
-	// stores the outgoing roads.
-	private static HashMap<GeographicPoint, List<LinkedList<RoadLineInfo>>>
-	buildPointMapOneWay(String filename)
+	// stores the incoming roads.
+	private static PointMap buildPointMapOneWay(String filename)
 	{
-		BufferedReader reader = null;
-        HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>> pointMap = 
-        		new HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>>();
+		RoadLineInfo[][] chunks = new RoadLineInfo[0][];
 		try {
-            String nextLine;
-            reader = new BufferedReader(new FileReader(filename));
-            // Read the lines out of the file and put them in a HashMap by points
-            while ((nextLine = reader.readLine()) != null) {
-            	RoadLineInfo line = splitInputString(nextLine);
-            	addToPointsMapOneWay(line, pointMap);
-            }
-            reader.close();
-        } catch (IOException e) {
+			chunks = readChunks(filename);
+		} catch (IOException e) {
             System.err.println("Problem loading dictionary file: " + filename);
             e.printStackTrace();
         }
 		
-		return pointMap;
+		return PointMap.build(chunks);
 	}
-
-
-	// Add the next line read from the file to the points map.
-	private static void 
-	addToPointsMapOneWay(RoadLineInfo line,
-						HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>> map)
+	
+	// The size of the pieces a .map file is split into for parsing
+	private static final int CHUNK_SIZE = 1 << 20;
+	
+	// Split the file into chunks of about CHUNK_SIZE bytes that end right 
+	// after a newline, and parse the chunks in parallel, interning the road 
+	// names and types of every chunk in one shared table.  Returns the 
+	// lines of each chunk, in file order.
+	static RoadLineInfo[][] readChunks(String filename) throws IOException
 	{
-		List<LinkedList<RoadLineInfo>> pt1Infos = map.get(line.point1);
-		if (pt1Infos == null) {
-			pt1Infos = new ArrayList<LinkedList<RoadLineInfo>>();
-			pt1Infos.add(new LinkedList<RoadLineInfo>());
-			pt1Infos.add(new LinkedList<RoadLineInfo>());
-			map.put(line.point1, pt1Infos);
+		FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			List<Long> starts = new ArrayList<Long>();
+			starts.add(0L);
+			long next = CHUNK_SIZE;
+			while (next < size) {
+				long lineStart = afterNewline(channel, next, size);
+				if (lineStart >= size) {
+					break;
+				}
+				starts.add(lineStart);
+				next = lineStart + CHUNK_SIZE;
+			}
+			starts.add(size);
+			
+			RoadLineInfo[][] chunks = new RoadLineInfo[starts.size() - 1][];
+			RoadLineScanner.StringTable strings = new RoadLineScanner.StringTable();
+			IOException[] failure = new IOException[1];
+			IntStream.range(0, chunks.length).parallel().forEach(c -> {
+				try {
+					chunks[c] = parseChunk(channel, starts.get(c), starts.get(c + 1), strings);
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			});
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+			return chunks;
 		}
-		List<RoadLineInfo> outgoing = pt1Infos.get(0);
-		outgoing.add(line);
-		
-		List<LinkedList<RoadLineInfo>> pt2Infos = map.get(line.point2);
-		if (pt2Infos == null) {
-			pt2Infos = new ArrayList<LinkedList<RoadLineInfo>>();
-			pt2Infos.add(new LinkedList<RoadLineInfo>());
-			pt2Infos.add(new LinkedList<RoadLineInfo>());
-			map.put(line.point2, pt2Infos);
+		finally {
+			channel.close();
 		}
-		List<RoadLineInfo> incoming = pt2Infos.get(1);
-		incoming.add(line);
-		
 	}
 	
-	// Split the input string into the line information
-	private static RoadLineInfo splitInputString(String input)
-	{	
-		
-		ArrayList<String> tokens = new ArrayList<String>();
-		Pattern tokSplitter = Pattern.compile("[^\\s\"']+|\"([^\"]*)\"");
-		Matcher m = tokSplitter.matcher(input);
-		
-		while (m.find()) {
-			if (m.group(1) != null) {
-				tokens.add(m.group(1));	
+	// The position just after the first newline at or after from, or size
+	private static long afterNewline(FileChannel channel, long from, long size) 
+			throws IOException
+	{
+		ByteBuffer window = ByteBuffer.allocate(4096);
+		long position = from;
+		while (position < size) {
+			window.clear();
+			int read = channel.read(window, position);
+			if (read <= 0) {
+				break;
 			}
-			else {
-				tokens.add(m.group());
+			for (int i = 0; i < read; i++) {
+				if (window.get(i) == '\n') {
+					return position + i + 1;
+				}
+			}
+			position += read;
+		}
+		return size;
+	}
+	
+	// Parse the lines between start and end of the file
+	private static RoadLineInfo[] parseChunk(FileChannel channel, long start, long end,
+			RoadLineScanner.StringTable strings) throws IOException
+	{
+		byte[] bytes = new byte[(int) (end - start)];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, start + buffer.position()) < 0) {
+				throw new IOException("File changed while it was read");
 			}
 		}
-
-    	double lat1 = Double.parseDouble(tokens.get(0));
-        double lon1 = Double.parseDouble(tokens.get(1));
-        double lat2 = Double.parseDouble(tokens.get(2));
-        double lon2 = Double.parseDouble(tokens.get(3));
-        GeographicPoint p1 = new GeographicPoint(lat1, lon1);
-        GeographicPoint p2 = new GeographicPoint(lat2, lon2);
-
-        return new RoadLineInfo(p1, p2, tokens.get(4), tokens.get(5));
 		
+		List<RoadLineInfo> lines = new ArrayList<RoadLineInfo>();
+		RoadLineScanner scanner = new RoadLineScanner(bytes, bytes.length, strings);
+		RoadLineInfo line;
+		while ((line = scanner.next()) != null) {
+			lines.add(line);
+		}
+		return lines.toArray(new RoadLineInfo[lines.size()]);
 	}
 	
 	public static void main(String[] args)
@@ -613,104 +683,4 @@ public class GraphLoader
 
 	}
 	
-}	
-	
-
-// A class to store information about the lines in the road files.
-class RoadLineInfo
-{
-	GeographicPoint point1;
-	GeographicPoint point2;
-	
-	String roadName;
-	String roadType;
-	
-	/** Create a new RoadLineInfo object to store information about the line 
-	 * read from the file
-	 * @param p1 One of the points
-	 * @param p2 The other point
-	 * @param roadName The name of the road
-	 * @param roadType The type of the road
-	 */
-	RoadLineInfo(GeographicPoint p1, GeographicPoint p2, String roadName, String roadType) 
-	{
-		point1 = p1;
-		point2 = p2;
-		this.roadName = roadName;
-		this.roadType = roadType;
-	}
-	
-	
-	/** Get the other point from this roadLineInfo */
-	public GeographicPoint getOtherPoint(GeographicPoint pt)
-	{
-		if (pt == null) throw new IllegalArgumentException();
-		if (pt.equals(point1)) {
-			return point2;
-		}
-		else if (pt.equals(point2)) {
-			return point1;
-		}
-		else throw new IllegalArgumentException();
-	}
-	
-	/** Two RoadLineInfo objects are considered equal if they have the same
-	 * two points and the same roadName and roadType.
-	 */
-	public boolean equals(Object o)
-	{
-		if (o == null || !(o instanceof RoadLineInfo))
-		{
-			return false;
-		}
-		RoadLineInfo info = (RoadLineInfo)o;
-		return info.point1.equals(this.point1) && info.point2.equals(this.point2)  &&
-				info.roadType.equals(this.roadType) && info.roadName.equals(this.roadName);
-				
-	}
-	
-	/** Calculate the hashCode based on the hashCodes of the two points
-	 * @return The hashcode for this object.
-	 */
-	public int hashCode()
-	{
-		return point1.hashCode() + point2.hashCode();
-		
-	}
-	
-	/** Returns whether these segments are part of the same road in terms of
-	 * road name and road type.
-	 * @param info The RoadLineInfo to compare against.
-	 * @return true if these represent the same road, false otherwise.
-	 */
-	public boolean sameRoad(RoadLineInfo info)
-	{
-		return info.roadName.equals(this.roadName) && info.roadType.equals(this.roadType);
-	}
-	
-	/** Return a copy of this LineInfo in the other direction */
-	public RoadLineInfo getReverseCopy()
-	{
-		return new RoadLineInfo(this.point2, this.point1, this.roadName, this.roadType);
-	}
-	
-	/** Return true if this road is the same segment as other, but in reverse
-	 *   Otherwise return false.
-	 */
-	public boolean isReverse(RoadLineInfo other)
-	{
-		return this.point1.equals(other.point2) && this.point2.equals(other.point1) &&
-				this.roadName.equals(other.roadName) && this.roadType.equals(other.roadType);
-	}
-	
-	/** Return the string representation of this LineInfo. */
-	public String toString()
-	{
-		return this.point1 + " " + this.point2 + " " + this.roadName + " " + this.roadType;
-		
-	}
-	
-	
-	
-	
 }
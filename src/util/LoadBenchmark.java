@@ -0,0 +1,43 @@
+package util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.ForkJoinPool;
+
+import geography.GeographicPoint;
+import geography.RoadSegment;
+import roadgraph.MapGraph;
+
+/**
+ * Times GraphLoader.loadRoadMap on .map files.  The parsing, intersection
+ * and edge tracing stages run on the common fork-join pool, so compare
+ * runs with different values of
+ * -Djava.util.concurrent.ForkJoinPool.common.parallelism=N
+ * to see how loading scales with cores.
+ *
+ * Run from the project root: java util.LoadBenchmark [map files]
+ */
+public class LoadBenchmark {
+
+	private static final int ROUNDS = 10 ;
+
+	public static void main(String[] args) {
+		String[] maps = args.length > 0 ? args : new String[] {"data/maps/san_diego.map",
+				"data/maps/hollywood_large.map", "data/maps/Monterrey.map"} ;
+		System.out.println("Parallelism " + ForkJoinPool.getCommonPoolParallelism()) ;
+
+		for(String file : maps) {
+			long best = Long.MAX_VALUE ;
+			MapGraph graph = null ;
+			for(int round = 0 ; round < ROUNDS ; round++) {
+				long begin = System.nanoTime() ;
+				graph = new MapGraph() ;
+				GraphLoader.loadRoadMap(file, graph,
+						new HashMap<GeographicPoint,HashSet<RoadSegment>>(), null) ;
+				best = Math.min(best, System.nanoTime() - begin) ;
+			}
+			System.out.printf("%s: %d vertices, %d edges, best of %d loads %.1f ms%n", file,
+					graph.getNumVertices(), graph.getNumEdges(), ROUNDS, best / 1e6) ;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import geography.GeographicPoint;
+
+/**
+ * The points of a .map file, each with the lines leaving it (list 0) and
+ * the lines arriving at it (list 1), in file order.
+ *
+ * The map is split into shards by the hash of the point, and the shards
+ * are filled in parallel: each one walks the parsed chunks in file order
+ * and only handles its own points, so the lists come out in the same
+ * order as when the file was read line by line.
+ *
+ * keys() lists the points in exactly the order that the keySet of a
+ * single HashMap filled line by line would: by hash bucket of the final
+ * table size, then by first appearance in the file.  Everything that
+ * iterates the points (and so numbers the vertices or picks which of two
+ * equal RoadSegments is kept) therefore sees the same order as before
+ * loading was parallel.
+ */
+class PointMap {
+
+	private static final int SHARDS = 64 ;
+
+	private final List<HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>>> shards ;
+	private final GeographicPoint[] keys ;
+
+	private PointMap(List<HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>>> shards,
+			GeographicPoint[] keys) {
+		this.shards = shards ;
+		this.keys = keys ;
+	}
+
+	/**
+	 * @return The lines leaving (list 0) and arriving at (list 1) point,
+	 *   or null if point is not on any line
+	 */
+	List<LinkedList<RoadLineInfo>> get(GeographicPoint point) {
+		return shards.get(shard(point)).get(point) ;
+	}
+
+	/** @return Every point, in HashMap iteration order (see above) */
+	GeographicPoint[] keys() {
+		return keys ;
+	}
+
+	private static int spread(GeographicPoint point) {
+		int h = point.hashCode() ;
+		return h ^ (h >>> 16) ;
+	}
+
+	private static int shard(GeographicPoint point) {
+		return (spread(point) >>> 24) & (SHARDS - 1) ;
+	}
+
+	/**
+	 * Build the map from the lines of a file, split into chunks.
+	 * @param chunks The lines of each chunk, chunks in file order
+	 * @return The point map
+	 */
+	static PointMap build(RoadLineInfo[][] chunks) {
+		int[] base = new int[chunks.length + 1] ; //index of the first line of each chunk
+		for(int c = 0 ; c < chunks.length ; c++)
+			base[c + 1] = base[c] + chunks[c].length ;
+
+		//group the ends of each chunk's lines by shard, keeping file order;
+		//end 2i is point1 of line i of the chunk, end 2i+1 is point2
+		int[][] shardStart = new int[chunks.length][] ;
+		int[][] ends = new int[chunks.length][] ;
+		IntStream.range(0, chunks.length).parallel().forEach(c -> {
+			RoadLineInfo[] lines = chunks[c] ;
+			int[] shardOf = new int[2 * lines.length] ;
+			int[] start = new int[SHARDS + 1] ;
+			for(int i = 0 ; i < lines.length ; i++) {
+				shardOf[2 * i] = shard(lines[i].point1) ;
+				shardOf[2 * i + 1] = shard(lines[i].point2) ;
+				start[shardOf[2 * i] + 1]++ ;
+				start[shardOf[2 * i + 1] + 1]++ ;
+			}
+			for(int s = 0 ; s < SHARDS ; s++)
+				start[s + 1] += start[s] ;
+			int[] next = Arrays.copyOf(start, SHARDS) ;
+			int[] grouped = new int[shardOf.length] ;
+			for(int j = 0 ; j < shardOf.length ; j++)
+				grouped[next[shardOf[j]]++] = j ;
+			shardStart[c] = start ;
+			ends[c] = grouped ;
+		}) ;
+
+		//fill the shards, recording where each point first appears
+		List<HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>>> shards =
+				new ArrayList<HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>>>() ;
+		long[][] firstSeen = new long[SHARDS][] ;
+		for(int s = 0 ; s < SHARDS ; s++)
+			shards.add(null) ;
+		IntStream.range(0, SHARDS).parallel().forEach(s -> {
+			HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>> map =
+					new HashMap<GeographicPoint,List<LinkedList<RoadLineInfo>>>() ;
+			long[] first = new long[16] ;
+			int size = 0 ;
+			for(int c = 0 ; c < chunks.length ; c++) {
+				for(int j = shardStart[c][s] ; j < shardStart[c][s + 1] ; j++) {
+					int end = ends[c][j] ;
+					RoadLineInfo line = chunks[c][end >> 1] ;
+					GeographicPoint point = (end & 1) == 0 ? line.point1 : line.point2 ;
+					List<LinkedList<RoadLineInfo>> infos = map.get(point) ;
+					if(infos == null) {
+						infos = new ArrayList<LinkedList<RoadLineInfo>>() ;
+						infos.add(new LinkedList<RoadLineInfo>()) ;
+						infos.add(new LinkedList<RoadLineInfo>()) ;
+						map.put(point, infos) ;
+						if(size == first.length)
+							first = Arrays.copyOf(first, size * 2) ;
+						first[size++] = 2L * (base[c] + (end >> 1)) + (end & 1) ;
+					}
+					infos.get(end & 1).add(line) ;
+				}
+			}
+			shards.set(s, map) ;
+			firstSeen[s] = Arrays.copyOf(first, size) ;
+		}) ;
+
+		//order the points by bucket in a HashMap of the final size, then
+		//by first appearance; both fit in one long
+		int size = 0 ;
+		for(long[] first : firstSeen)
+			size += first.length ;
+		int capacity = 16 ;
+		while(size > capacity / 4 * 3 && capacity < (1 << 30))
+			capacity *= 2 ;
+		long[] order = new long[size] ;
+		int k = 0 ;
+		for(long[] first : firstSeen) {
+			for(long f : first) {
+				GeographicPoint point = pointAt(chunks, base, f) ;
+				order[k++] = ((long) (spread(point) & (capacity - 1)) << 33) | f ;
+			}
+		}
+		Arrays.parallelSort(order) ;
+
+		GeographicPoint[] keys = new GeographicPoint[size] ;
+		IntStream.range(0, size).parallel().forEach(i ->
+				keys[i] = pointAt(chunks, base, order[i] & ((1L << 33) - 1))) ;
+		return new PointMap(shards, keys) ;
+	}
+
+	// The point at end f (2 * line + 0 or 1) of the file's lines
+	private static GeographicPoint pointAt(RoadLineInfo[][] chunks, int[] base, long f) {
+		int line = (int) (f >> 1) ;
+		int c = Arrays.binarySearch(base, line) ;
+		if(c < 0)
+			c = -c - 2 ;
+		while(chunks[c].length == 0 || line >= base[c + 1])
+			c++ ; //empty chunks share their base with the next one
+		RoadLineInfo info = chunks[c][line - base[c]] ;
+		return (f & 1) == 0 ? info.point1 : info.point2 ;
+	}
+}
@@ -0,0 +1,347 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import geography.GeographicPoint;
+
+/**
+ * Reads the lines of a .map file straight from its bytes, without a
+ * regular expression, a String per line or a String per token.
+ *
+ * A line is split into tokens the same way the old regex
+ * [^\s"']+|"([^"]*)" split it: a token is either a run of characters
+ * that are not whitespace or quotes, or the text between two double
+ * quotes.  The four coordinates are parsed where they lie in the buffer,
+ * and road names and types are looked up in a StringTable, so each
+ * distinct name is decoded only once.
+ *
+ * Only ASCII bytes separate tokens, so multi-byte characters in road
+ * names pass through untouched; they are decoded with the platform
+ * charset, like the FileReader this replaces did.
+ */
+class RoadLineScanner implements Closeable {
+
+	private static final int TOKENS = 6 ;
+
+	// exact powers of ten, see parseDouble
+	private static final double[] POWERS_OF_TEN = new double[23] ;
+	static {
+		POWERS_OF_TEN[0] = 1 ;
+		for(int i = 1 ; i < POWERS_OF_TEN.length ; i++)
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10 ;
+	}
+
+	private final InputStream input ;
+	private final StringTable strings ;
+
+	private byte[] buffer ;
+	private int position ; //start of the next line in buffer
+	private int limit ; //end of the bytes read so far
+	private boolean endOfInput ;
+
+	private final int[] tokenStart = new int[TOKENS] ;
+	private final int[] tokenEnd = new int[TOKENS] ;
+
+	/**
+	 * Scan lines from a stream, reading it in windows of 64 KB.
+	 * @param input The .map file contents.  It is closed by close().
+	 * @param strings The table to intern road names and types in
+	 */
+	RoadLineScanner(InputStream input, StringTable strings) {
+		this.input = input ;
+		this.strings = strings ;
+		this.buffer = new byte[1 << 16] ;
+	}
+
+	/**
+	 * Scan lines that are already in memory, such as one chunk of a file.
+	 * @param bytes The lines; the array is scanned in place, not copied
+	 * @param length The number of bytes of the array to scan
+	 * @param strings The table to intern road names and types in
+	 */
+	RoadLineScanner(byte[] bytes, int length, StringTable strings) {
+		this.input = null ;
+		this.strings = strings ;
+		this.buffer = bytes ;
+		this.limit = length ;
+		this.endOfInput = true ;
+	}
+
+	/**
+	 * Read the next line.
+	 * @return The information on the next line, or null at the end of the input
+	 * @throws IOException If the input cannot be read
+	 * @throws IndexOutOfBoundsException If the line has fewer than six tokens,
+	 *   as with the regex based splitter
+	 * @throws NumberFormatException If a coordinate is not a number
+	 */
+	RoadLineInfo next() throws IOException {
+		int end = findLineEnd() ;
+		if(end < 0)
+			return null ;
+
+		int count = tokenize(position, end) ;
+		//skip the line terminator: \n, \r or \r\n, like BufferedReader.readLine
+		if(end == limit)
+			position = end ;
+		else if(buffer[end] == '\r' && end + 1 < limit && buffer[end + 1] == '\n')
+			position = end + 2 ;
+		else
+			position = end + 1 ;
+
+		//same order of checks as the regex splitter: coordinates first
+		double lat1 = parseDouble(token(0, count)) ;
+		double lon1 = parseDouble(token(1, count)) ;
+		double lat2 = parseDouble(token(2, count)) ;
+		double lon2 = parseDouble(token(3, count)) ;
+		int name = token(4, count) ;
+		int type = token(5, count) ;
+		return new RoadLineInfo(new GeographicPoint(lat1, lon1), new GeographicPoint(lat2, lon2),
+				strings.intern(buffer, tokenStart[name], tokenEnd[name]),
+				strings.intern(buffer, tokenStart[type], tokenEnd[type])) ;
+	}
+
+	// Check that token i exists on a line with count tokens
+	private static int token(int i, int count) {
+		if(i >= count)
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + count) ;
+		return i ;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(input != null)
+			input.close() ;
+	}
+
+	// The end of the line starting at position, reading more input as
+	// needed, or -1 if there are no more lines.  A \r at the very end of
+	// the buffer is only taken as the end of the line once we know whether
+	// a \n follows it.
+	private int findLineEnd() throws IOException {
+		int scan = position ;
+		while(true) {
+			for( ; scan < limit ; scan++) {
+				byte b = buffer[scan] ;
+				if(b == '\n' || (b == '\r' && (scan + 1 < limit || endOfInput)))
+					return scan ;
+			}
+			if(endOfInput)
+				return position < limit ? limit : -1 ;
+			int scanned = scan - position ;
+			fill() ;
+			scan = position + scanned ;
+		}
+	}
+
+	// Move the unread bytes to the front of the buffer, growing it if a
+	// single line fills it, and read more input after them
+	private void fill() throws IOException {
+		int remaining = limit - position ;
+		if(remaining == buffer.length)
+			buffer = Arrays.copyOf(buffer, buffer.length * 2) ;
+		else if(position > 0)
+			System.arraycopy(buffer, position, buffer, 0, remaining) ;
+		position = 0 ;
+		limit = remaining ;
+		int read = input.read(buffer, limit, buffer.length - limit) ;
+		if(read < 0)
+			endOfInput = true ;
+		else
+			limit += read ;
+	}
+
+	// Find the first TOKENS tokens between from and to.  Returns how many
+	// tokens there are, up to TOKENS.
+	private int tokenize(int from, int to) {
+		int count = 0 ;
+		int i = from ;
+		while(i < to && count < TOKENS) {
+			byte b = buffer[i] ;
+			if(b == '"') {
+				int close = i + 1 ;
+				while(close < to && buffer[close] != '"')
+					close++ ;
+				if(close < to) {
+					tokenStart[count] = i + 1 ;
+					tokenEnd[count] = close ;
+					count++ ;
+					i = close + 1 ;
+				}
+				else {
+					i++ ; //an unmatched quote is skipped
+				}
+			}
+			else if(isSeparator(b)) {
+				i++ ;
+			}
+			else {
+				int start = i ;
+				while(i < to && !isSeparator(buffer[i]) && buffer[i] != '"')
+					i++ ;
+				tokenStart[count] = start ;
+				tokenEnd[count] = i ;
+				count++ ;
+			}
+		}
+		return count ;
+	}
+
+	// Whitespace as in the regex \s, or a single quote
+	private static boolean isSeparator(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == 0x0B || b == '\f' || b == '\r' || b == '\'' ;
+	}
+
+	// Parse token i as a double.  Plain decimals with at most 15 significant
+	// digits and 22 fraction digits are computed as one exact long divided
+	// by an exact power of ten, which is correctly rounded and therefore
+	// equal to Double.parseDouble.  Anything else is handed to parseDouble.
+	private double parseDouble(int token) {
+		int i = tokenStart[token] ;
+		int end = tokenEnd[token] ;
+		boolean negative = false ;
+		if(i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+			negative = buffer[i] == '-' ;
+			i++ ;
+		}
+
+		long mantissa = 0 ;
+		int digits = 0 ;
+		int significant = 0 ;
+		int scale = -1 ; //fraction digits, -1 until the decimal point
+		for( ; i < end ; i++) {
+			byte b = buffer[i] ;
+			if(b >= '0' && b <= '9') {
+				mantissa = mantissa * 10 + (b - '0') ;
+				digits++ ;
+				if(mantissa != 0)
+					significant++ ;
+				if(scale >= 0)
+					scale++ ;
+			}
+			else if(b == '.' && scale < 0) {
+				scale = 0 ;
+			}
+			else {
+				break ;
+			}
+		}
+
+		if(i == end && digits > 0 && significant <= 15 && scale <= 22) {
+			double value = scale > 0 ? mantissa / POWERS_OF_TEN[scale] : mantissa ;
+			return negative ? -value : value ;
+		}
+		return Double.parseDouble(new String(buffer, tokenStart[token],
+				tokenEnd[token] - tokenStart[token], Charset.defaultCharset())) ;
+	}
+
+
+	/**
+	 * Interns byte ranges as Strings: equal byte ranges give the same
+	 * String object, which is created the first time the range is seen.
+	 * Open addressing on the hash of the bytes; no String or array is
+	 * allocated for a range that is already in the table.
+	 *
+	 * One table is shared by the scanners of every chunk of a file, which
+	 * run on different threads, so it is split into stripes by the top
+	 * bits of the hash, each with its own lock.  A map has few distinct
+	 * names and the threads rarely look up the same stripe at once.
+	 */
+	static class StringTable {
+
+		private static final int STRIPES = 16 ;
+
+		private final Stripe[] stripes = new Stripe[STRIPES] ;
+
+		StringTable() {
+			for(int i = 0 ; i < STRIPES ; i++)
+				stripes[i] = new Stripe() ;
+		}
+
+		/**
+		 * @return The String for bytes[start .. end-1], decoded with the
+		 *   platform charset
+		 */
+		String intern(byte[] bytes, int start, int end) {
+			int hash = hash(bytes, start, end) ;
+			Stripe stripe = stripes[hash >>> 28] ;
+			synchronized(stripe) {
+				return stripe.intern(hash, bytes, start, end) ;
+			}
+		}
+
+		/** @return The number of distinct strings in the table */
+		int size() {
+			int size = 0 ;
+			for(Stripe stripe : stripes) {
+				synchronized(stripe) {
+					size += stripe.size ;
+				}
+			}
+			return size ;
+		}
+
+		private static int hash(byte[] bytes, int start, int end) {
+			int h = 1 ;
+			for(int i = start ; i < end ; i++)
+				h = 31 * h + bytes[i] ;
+			return h ^ (h >>> 16) ;
+		}
+
+		private static boolean matches(byte[] key, byte[] bytes, int start, int end) {
+			if(key.length != end - start)
+				return false ;
+			for(int i = 0 ; i < key.length ; i++) {
+				if(key[i] != bytes[start + i])
+					return false ;
+			}
+			return true ;
+		}
+
+		// One part of the table, only used with its lock held
+		private static class Stripe {
+
+			private byte[][] keys = new byte[16][] ;
+			private String[] values = new String[16] ;
+			private int size ;
+
+			String intern(int hash, byte[] bytes, int start, int end) {
+				int mask = keys.length - 1 ;
+				for(int slot = hash & mask ; ; slot = (slot + 1) & mask) {
+					byte[] key = keys[slot] ;
+					if(key == null) {
+						String value = new String(bytes, start, end - start, Charset.defaultCharset()) ;
+						keys[slot] = Arrays.copyOfRange(bytes, start, end) ;
+						values[slot] = value ;
+						if(++size * 2 > keys.length)
+							grow() ;
+						return value ;
+					}
+					if(matches(key, bytes, start, end))
+						return values[slot] ;
+				}
+			}
+
+			private void grow() {
+				byte[][] oldKeys = keys ;
+				String[] oldValues = values ;
+				keys = new byte[oldKeys.length * 2][] ;
+				values = new String[keys.length] ;
+				int mask = keys.length - 1 ;
+				for(int j = 0 ; j < oldKeys.length ; j++) {
+					if(oldKeys[j] == null)
+						continue ;
+					int slot = hash(oldKeys[j], 0, oldKeys[j].length) & mask ;
+					while(keys[slot] != null)
+						slot = (slot + 1) & mask ;
+					keys[slot] = oldKeys[j] ;
+					values[slot] = oldValues[j] ;
+				}
+			}
+		}
+	}
+}
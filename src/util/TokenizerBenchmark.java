@@ -0,0 +1,126 @@
+package util;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import geography.GeographicPoint;
+
+/**
+ * Compares the RoadLineScanner that GraphLoader uses to read .map files
+ * against the regex splitter it replaced: checks that both give the same
+ * RoadLineInfo sequence and reports lines per second for each.  The
+ * scanner is timed on one thread, and as GraphLoader runs it: on chunks
+ * of the file in parallel, all interning in one shared StringTable.
+ *
+ * Run from the project root: java util.TokenizerBenchmark [map files]
+ */
+public class TokenizerBenchmark {
+
+	private static final int ROUNDS = 20 ;
+
+	// The old GraphLoader.splitInputString
+	private static RoadLineInfo regexSplit(String input) {
+		ArrayList<String> tokens = new ArrayList<String>() ;
+		Pattern tokSplitter = Pattern.compile("[^\\s\"']+|\"([^\"]*)\"") ;
+		Matcher m = tokSplitter.matcher(input) ;
+		while(m.find()) {
+			if(m.group(1) != null)
+				tokens.add(m.group(1)) ;
+			else
+				tokens.add(m.group()) ;
+		}
+		GeographicPoint p1 = new GeographicPoint(Double.parseDouble(tokens.get(0)),
+				Double.parseDouble(tokens.get(1))) ;
+		GeographicPoint p2 = new GeographicPoint(Double.parseDouble(tokens.get(2)),
+				Double.parseDouble(tokens.get(3))) ;
+		return new RoadLineInfo(p1, p2, tokens.get(4), tokens.get(5)) ;
+	}
+
+	private static List<RoadLineInfo> readWithRegex(byte[] file) throws IOException {
+		List<RoadLineInfo> lines = new ArrayList<RoadLineInfo>() ;
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(file))) ;
+		String nextLine ;
+		while((nextLine = reader.readLine()) != null)
+			lines.add(regexSplit(nextLine)) ;
+		reader.close() ;
+		return lines ;
+	}
+
+	private static List<RoadLineInfo> readWithScanner(byte[] file) throws IOException {
+		List<RoadLineInfo> lines = new ArrayList<RoadLineInfo>() ;
+		RoadLineScanner scanner = new RoadLineScanner(new ByteArrayInputStream(file),
+				new RoadLineScanner.StringTable()) ;
+		RoadLineInfo line ;
+		while((line = scanner.next()) != null)
+			lines.add(line) ;
+		scanner.close() ;
+		return lines ;
+	}
+
+	// The lines as GraphLoader reads them, chunk by chunk
+	private static List<RoadLineInfo> readWithChunks(String file) throws IOException {
+		List<RoadLineInfo> lines = new ArrayList<RoadLineInfo>() ;
+		for(RoadLineInfo[] chunk : GraphLoader.readChunks(file))
+			lines.addAll(Arrays.asList(chunk)) ;
+		return lines ;
+	}
+
+	// The number of lines of actual that differ from expected
+	private static int mismatches(List<RoadLineInfo> expected, List<RoadLineInfo> actual) {
+		int mismatches = Math.abs(expected.size() - actual.size()) ;
+		for(int i = 0 ; i < Math.min(expected.size(), actual.size()) ; i++) {
+			RoadLineInfo a = expected.get(i) ;
+			RoadLineInfo b = actual.get(i) ;
+			if(!a.equals(b) || a.point1.getX() != b.point1.getX() || a.point1.getY() != b.point1.getY()
+					|| a.point2.getX() != b.point2.getX() || a.point2.getY() != b.point2.getY())
+				mismatches++ ;
+		}
+		return mismatches ;
+	}
+
+	public static void main(String[] args) throws IOException {
+		String[] maps = args.length > 0 ? args : new String[] {"data/maps/utc.map",
+				"data/maps/san_diego.map", "data/maps/new_york.map",
+				"data/maps/hollywood_large.map", "data/maps/Monterrey.map"} ;
+
+		for(String file : maps) {
+			byte[] contents = Files.readAllBytes(Paths.get(file)) ;
+			List<RoadLineInfo> expected = readWithRegex(contents) ;
+			int mismatches = mismatches(expected, readWithScanner(contents))
+					+ mismatches(expected, readWithChunks(file)) ;
+			System.out.println(file + ": " + expected.size() + " lines, " + mismatches + " mismatches") ;
+
+			//the first half of the rounds only warms up the JIT
+			long regexTime = 0 ;
+			long scannerTime = 0 ;
+			long chunkTime = 0 ;
+			for(int round = 0 ; round < ROUNDS ; round++) {
+				long begin = System.nanoTime() ;
+				readWithRegex(contents) ;
+				long middle = System.nanoTime() ;
+				readWithScanner(contents) ;
+				long chunked = System.nanoTime() ;
+				readWithChunks(file) ;
+				long end = System.nanoTime() ;
+				if(round >= ROUNDS / 2) {
+					regexTime += middle - begin ;
+					scannerTime += chunked - middle ;
+					chunkTime += end - chunked ;
+				}
+			}
+			double lines = expected.size() * (double) (ROUNDS - ROUNDS / 2) ;
+			System.out.printf("  regex   %12.0f lines/s%n", lines / (regexTime / 1e9)) ;
+			System.out.printf("  scanner %12.0f lines/s%n", lines / (scannerTime / 1e9)) ;
+			System.out.printf("  chunks  %12.0f lines/s%n", lines / (chunkTime / 1e9)) ;
+		}
+	}
+}